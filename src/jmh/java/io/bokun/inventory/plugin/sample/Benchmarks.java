@@ -0,0 +1,148 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.util.*;
+
+import javax.annotation.*;
+
+import com.google.common.io.*;
+import com.google.inject.*;
+import com.google.inject.util.*;
+import com.google.protobuf.util.*;
+import io.grpc.*;
+
+import static com.google.inject.name.Names.*;
+import static java.nio.charset.StandardCharsets.*;
+
+/**
+ * Shared fixtures of the benchmarks: requests, wiring of the plugin and gRPC stand-ins.
+ */
+final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Same request as Inventory Service would send, pointing at given backend.
+     */
+    @Nonnull
+    static String availabilityRequestJson(@Nonnull String host, int port) {
+        return "{"
+                + "\"parameters\":["
+                + "{\"name\":\"SAMPLE_API_SCHEME\",\"value\":\"http\"},"
+                + "{\"name\":\"SAMPLE_API_HOST\",\"value\":\"" + host + "\"},"
+                + "{\"name\":\"SAMPLE_API_PORT\",\"value\":\"" + port + "\"},"
+                + "{\"name\":\"SAMPLE_API_PATH\",\"value\":\"/api/1\"},"
+                + "{\"name\":\"SAMPLE_API_USERNAME\",\"value\":\"user\"},"
+                + "{\"name\":\"SAMPLE_API_PASSWORD\",\"value\":\"secret\"}"
+                + "],"
+                + "\"productId\":\"123\","
+                + "\"range\":{\"from\":{\"year\":2019,\"month\":5,\"day\":1},\"to\":{\"year\":2019,\"month\":5,\"day\":31}},"
+                + "\"requiredCapacity\":2"
+                + "}";
+    }
+
+    /**
+     * Parses JSON request (as sent to REST plugin) into gRPC request.
+     */
+    @Nonnull
+    static io.bokun.inventory.plugin.api.grpc.ProductAvailabilityRequest grpcAvailabilityRequest(@Nonnull String json) {
+        io.bokun.inventory.plugin.api.grpc.ProductAvailabilityRequest.Builder builder =
+                io.bokun.inventory.plugin.api.grpc.ProductAvailabilityRequest.newBuilder();
+        try {
+            JsonFormat.parser().ignoringUnknownFields().merge(json, builder);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Parses JSON request into REST request.
+     */
+    @Nonnull
+    static io.bokun.inventory.plugin.api.rest.ProductAvailabilityRequest restAvailabilityRequest(@Nonnull String json) {
+        try {
+            return new GsonJsonCodec().read(new ByteArrayInputStream(json.getBytes(UTF_8)), io.bokun.inventory.plugin.api.rest.ProductAvailabilityRequest.class);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Creates injector wired the same way as {@link Main}, with some settings (<tt>SAMPLE_*</tt> environment variables) overridden.
+     */
+    @Nonnull
+    static Injector injector(@Nonnull Map<String, String> settings) {
+        return Guice.createInjector(
+                Modules.override(new Main.GuiceInitializer())
+                        .with(binder -> settings.forEach((name, value) -> binder.bindConstant().annotatedWith(named(name)).to(value)))
+        );
+    }
+
+    /**
+     * Descriptor of a unary method which passes raw bytes.
+     */
+    @Nonnull
+    static MethodDescriptor<byte[], byte[]> method(@Nonnull String serviceName, @Nonnull String methodName) {
+        MethodDescriptor.Marshaller<byte[]> marshaller = new MethodDescriptor.Marshaller<byte[]>() {
+            @Override
+            public InputStream stream(byte[] value) {
+                return new ByteArrayInputStream(value);
+            }
+
+            @Override
+            public byte[] parse(InputStream stream) {
+                try {
+                    return ByteStreams.toByteArray(stream);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+        return MethodDescriptor.<byte[], byte[]>newBuilder()
+                .setType(MethodDescriptor.MethodType.UNARY)
+                .setFullMethodName(MethodDescriptor.generateFullMethodName(serviceName, methodName))
+                .setRequestMarshaller(marshaller)
+                .setResponseMarshaller(marshaller)
+                .build();
+    }
+
+    /**
+     * Server call which ignores everything, for running interceptors without a transport.
+     */
+    static final class NoopServerCall<ReqT, RespT> extends ServerCall<ReqT, RespT> {
+
+        private final MethodDescriptor<ReqT, RespT> method;
+
+        NoopServerCall(@Nonnull MethodDescriptor<ReqT, RespT> method) {
+            this.method = method;
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void sendMessage(RespT message) {
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public MethodDescriptor<ReqT, RespT> getMethodDescriptor() {
+            return method;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.common.collect.*;
+import io.bokun.inventory.plugin.api.rest.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Country/city searches over {@link CatalogIndex} compared against scanning all products, for a synthetic catalog where a few countries
+ * (and cities) hold most of the products. Heap taken by the index (on top of the products themselves) and by its bitmaps is measured during
+ * setup, and reported next to the timings as secondary results (see {@link Footprint}).</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CatalogIndexBenchmark {
+
+    private static final int COUNTRIES = 100;
+    private static final int CITIES_PER_COUNTRY = 50;
+
+    /**
+     * Number of products in the catalog.
+     */
+    @Param({"100000"})
+    public int products;
+
+    private List<BasicProductInfo> catalog;
+
+    private CatalogIndex<BasicProductInfo> index;
+
+    private long indexHeapBytes;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42L);
+        catalog = new ArrayList<>(products);
+        Map<String, String> versions = new LinkedHashMap<>();
+        for (int i = 0; i < products; i++) {
+            // squared uniform value: low numbers (popular places) are picked much more often
+            int country = (int) (COUNTRIES * Math.pow(random.nextDouble(), 2.0));
+            int city = (int) (CITIES_PER_COUNTRY * Math.pow(random.nextDouble(), 2.0));
+            BasicProductInfo product = new BasicProductInfo();
+            product.setId(Integer.toString(i));
+            product.setName("Product " + i);
+            product.setCountries(ImmutableList.of(country(country)));
+            product.setCities(ImmutableList.of(city(country, city)));
+            catalog.add(product);
+            versions.put(product.getId(), "1");
+        }
+
+        long heapBefore = usedHeap();
+        index = CatalogIndex.<BasicProductInfo>empty().update(versions, catalog, new SyntheticSource(versions, catalog));
+        indexHeapBytes = usedHeap() - heapBefore;
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static String country(int country) {
+        return "C" + country;
+    }
+
+    private static String city(int country, int city) {
+        return "City " + country + "-" + city;
+    }
+
+    @Benchmark
+    public List<BasicProductInfo> indexPopularCountry(Footprint footprint) {
+        return index.search(country(0), null);
+    }
+
+    @Benchmark
+    public List<BasicProductInfo> indexRareCountry(Footprint footprint) {
+        return index.search(country(COUNTRIES - 1), null);
+    }
+
+    @Benchmark
+    public List<BasicProductInfo> indexCountryAndCity(Footprint footprint) {
+        return index.search(country(0), city(0, 1));
+    }
+
+    @Benchmark
+    public List<BasicProductInfo> scanRareCountry() {
+        return scan(country(COUNTRIES - 1), null);
+    }
+
+    @Benchmark
+    public List<BasicProductInfo> scanCountryAndCity() {
+        return scan(country(0), city(0, 1));
+    }
+
+    /**
+     * What searching without index looks like.
+     */
+    private List<BasicProductInfo> scan(@Nonnull String country, @Nullable String city) {
+        List<BasicProductInfo> result = new ArrayList<>();
+        for (BasicProductInfo product : catalog) {
+            if (product.getCountries().contains(country) && (city == null || product.getCities().contains(city))) {
+                result.add(product);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Heap taken by the index, measured once during setup; reported by the benchmarks searching it.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long indexHeapBytes;
+
+        public long bitmapBytes;
+
+        @Setup(Level.Iteration)
+        public void take(CatalogIndexBenchmark benchmark) {
+            indexHeapBytes = benchmark.indexHeapBytes;
+            bitmapBytes = benchmark.index.bitmapSizeInBytes();
+        }
+    }
+
+    /**
+     * Serves the synthetic catalog, same for every backend.
+     */
+    private static final class SyntheticSource implements CatalogSource<BasicProductInfo> {
+
+        private final Map<String, String> versions;
+
+        private final Map<String, BasicProductInfo> products = new HashMap<>();
+
+        SyntheticSource(@Nonnull Map<String, String> versions, @Nonnull List<BasicProductInfo> catalog) {
+            this.versions = versions;
+            for (BasicProductInfo product : catalog) {
+                products.put(product.getId(), product);
+            }
+        }
+
+        @Nonnull
+        @Override
+        public CompletableFuture<Map<String, String>> fetchVersions(@Nonnull Configuration configuration) {
+            return CompletableFuture.completedFuture(versions);
+        }
+
+        @Nonnull
+        @Override
+        public CompletableFuture<List<BasicProductInfo>> fetchProducts(@Nonnull Configuration configuration,
+                                                                      @Nonnull Collection<String> productIds) {
+            List<BasicProductInfo> fetched = new ArrayList<>(productIds.size());
+            for (String productId : productIds) {
+                BasicProductInfo product = products.get(productId);
+                if (product != null) {
+                    fetched.add(product);
+                }
+            }
+            return CompletableFuture.completedFuture(fetched);
+        }
+
+        @Nonnull
+        @Override
+        public String idOf(@Nonnull BasicProductInfo product) {
+            return product.getId();
+        }
+
+        @Nonnull
+        @Override
+        public Collection<String> countriesOf(@Nonnull BasicProductInfo product) {
+            return product.getCountries();
+        }
+
+        @Nonnull
+        @Override
+        public Collection<String> citiesOf(@Nonnull BasicProductInfo product) {
+            return product.getCities();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import com.google.gson.*;
+import com.google.protobuf.util.*;
+import io.bokun.inventory.plugin.api.rest.ProductAvailabilityWithRatesResponse;
+import org.openjdk.jmh.annotations.*;
+
+import static java.nio.charset.StandardCharsets.*;
+
+/**
+ * <p>CPU cost of compressing availability responses, per compression level, as JSON (REST) and as protobuf (gRPC; one message per date, the way
+ * they are streamed). Sizes before and after compression are reported next to the timings, as secondary results (see {@link Sizes}).</p>
+ *
+ * <p>gRPC compresses every message separately, so small messages gain much less than one big JSON document.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CompressionBenchmark {
+
+    /**
+     * Number of days worth of availability in response.
+     */
+    @Param({"2", "90", "365"})
+    public int days;
+
+    /**
+     * Deflate level, see <tt>SAMPLE_COMPRESSION_LEVEL</tt>.
+     */
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private byte[] json;
+
+    private List<byte[]> protobufMessages;
+
+    @Setup
+    public void setUp() throws IOException {
+        Gson gson = new Gson();
+        List<ProductAvailabilityWithRatesResponse> availability = JsonCodecBenchmark.availability(days);
+        json = gson.toJson(availability).getBytes(UTF_8);
+        protobufMessages = new ArrayList<>(days);
+        for (ProductAvailabilityWithRatesResponse response : availability) {
+            io.bokun.inventory.plugin.api.grpc.ProductAvailabilityWithRatesResponse.Builder message =
+                    io.bokun.inventory.plugin.api.grpc.ProductAvailabilityWithRatesResponse.newBuilder();
+            JsonFormat.parser().ignoringUnknownFields().merge(gson.toJson(response), message);
+            protobufMessages.add(message.build().toByteArray());
+        }
+    }
+
+    /**
+     * @return compressed size.
+     */
+    @Benchmark
+    public int compressJson(Sizes sizes) throws IOException {
+        int size = gzip(json);
+        sizes.record(json.length, size);
+        return size;
+    }
+
+    /**
+     * @return compressed size of all messages.
+     */
+    @Benchmark
+    public int compressProtobuf(Sizes sizes) throws IOException {
+        int uncompressedSize = 0;
+        int size = 0;
+        for (byte[] message : protobufMessages) {
+            uncompressedSize += message.length;
+            size += gzip(message);
+        }
+        sizes.record(uncompressedSize, size);
+        return size;
+    }
+
+    private int gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+        try (OutputStream out = new ResponseCompression.GzipCompressor(level).compress(compressed)) {
+            out.write(data);
+        }
+        return compressed.size();
+    }
+
+    /**
+     * Size of the response before and after compression, the same in every invocation of one benchmark.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Sizes {
+
+        public long uncompressedBytes;
+
+        public long compressedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            uncompressedBytes = 0L;
+            compressedBytes = 0L;
+        }
+
+        void record(int uncompressedSize, int compressedSize) {
+            uncompressedBytes = uncompressedSize;
+            compressedBytes = compressedSize;
+        }
+    }
+}
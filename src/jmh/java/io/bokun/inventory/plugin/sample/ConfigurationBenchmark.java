@@ -0,0 +1,56 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.common.collect.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures {@link Configuration} parsing: repeated parameters (served from the configuration cache) and distinct ones (parsed nearly every time,
+ * as distinct ports outnumber cache entries). Distinct ones override the port by appending another parameter, the last value wins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ConfigurationBenchmark {
+
+    private List<io.bokun.inventory.common.api.grpc.PluginConfigurationParameterValue> grpcParameters;
+
+    private List<io.bokun.inventory.plugin.api.rest.PluginConfigurationParameterValue> restParameters;
+
+    private int distinctPort;
+
+    @Setup
+    public void setUp() {
+        grpcParameters = Benchmarks.grpcAvailabilityRequest(Benchmarks.availabilityRequestJson("api.example.com", 443)).getParametersList();
+        restParameters = Benchmarks.restAvailabilityRequest(Benchmarks.availabilityRequestJson("api.example.com", 443)).getParameters();
+    }
+
+    @Benchmark
+    public Configuration grpcRepeated() {
+        return Configuration.fromGrpcParameters(grpcParameters);
+    }
+
+    @Benchmark
+    public Configuration restRepeated() {
+        return Configuration.fromRestParameters(restParameters);
+    }
+
+    @Benchmark
+    public Configuration grpcDistinct() {
+        io.bokun.inventory.common.api.grpc.PluginConfigurationParameterValue port = io.bokun.inventory.common.api.grpc.PluginConfigurationParameterValue.newBuilder()
+                .setName(Configuration.SAMPLE_API_PORT)
+                .setValue(Integer.toString(++distinctPort & 0xffff))
+                .build();
+        return Configuration.fromGrpcParameters(Iterables.concat(grpcParameters, ImmutableList.of(port)));
+    }
+
+    @Benchmark
+    public Configuration restDistinct() {
+        io.bokun.inventory.plugin.api.rest.PluginConfigurationParameterValue port = new io.bokun.inventory.plugin.api.rest.PluginConfigurationParameterValue();
+        port.setName(Configuration.SAMPLE_API_PORT);
+        port.setValue(Integer.toString(++distinctPort & 0xffff));
+        return Configuration.fromRestParameters(Iterables.concat(restParameters, ImmutableList.of(port)));
+    }
+}
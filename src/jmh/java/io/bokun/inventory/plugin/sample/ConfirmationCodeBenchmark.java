@@ -0,0 +1,44 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures making up confirmation codes by every generator, from many threads at once (as bookings arrive concurrently); random UUIDs all go
+ * through the same <tt>SecureRandom</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Threads(8)
+public class ConfirmationCodeBenchmark {
+
+    private final ConfirmationCodeGenerator uuid = ConfirmationCodeGenerator.create("uuid", -1);
+
+    private final ConfirmationCodeGenerator random = ConfirmationCodeGenerator.create("random", -1);
+
+    private final ConfirmationCodeGenerator timeOrdered = ConfirmationCodeGenerator.create("time", -1);
+
+    private final ConfirmationCodeGenerator snowflake = ConfirmationCodeGenerator.create("snowflake", 1);
+
+    @Benchmark
+    public String uuid() {
+        return uuid.next();
+    }
+
+    @Benchmark
+    public String random() {
+        return random.next();
+    }
+
+    @Benchmark
+    public String timeOrdered() {
+        return timeOrdered.next();
+    }
+
+    @Benchmark
+    public String snowflake() {
+        return snowflake.next();
+    }
+}
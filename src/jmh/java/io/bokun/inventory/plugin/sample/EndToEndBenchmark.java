@@ -0,0 +1,135 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.common.collect.*;
+import com.google.inject.Injector;
+import com.squareup.okhttp.*;
+import io.bokun.inventory.common.api.grpc.*;
+import io.bokun.inventory.plugin.api.grpc.*;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.*;
+import io.undertow.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * <p>Same <tt>getProductAvailability</tt> call through both transports, with all the plugin wiring of {@link Main}: gRPC over in-process channel
+ * vs. REST over HTTP on loopback. Plugin is configured to talk to a local {@link FakeBackend}, which it calls before returning its mock
+ * availability (see {@link MockBackendCalls}); with availability cache on, only cache misses and refreshes reach the backend.</p>
+ *
+ * <p>In-process channel skips HTTP/2 framing and sockets, so the gRPC number is a lower bound of the real thing, while REST includes the
+ * full HTTP round trip.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class EndToEndBenchmark {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    /**
+     * <tt>SAMPLE_AVAILABILITY_CACHE_TTL</tt>; 0 turns the cache off.
+     */
+    @Param({"0", "60"})
+    public String cacheTtl;
+
+    /**
+     * <tt>SAMPLE_REST_HANDLER_MODE</tt>.
+     */
+    @Param({"blocking", "async"})
+    public String restHandlerMode;
+
+    private FakeBackend backend;
+
+    private Server grpcServer;
+
+    private ManagedChannel channel;
+
+    private PluginApiGrpc.PluginApiBlockingStub stub;
+
+    private ProductAvailabilityRequest grpcRequest;
+
+    private Undertow restServer;
+
+    private OkHttpClient httpClient;
+
+    private Request restRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        backend = new FakeBackend("{}", LatencyModel.NONE);
+        Injector injector = Benchmarks.injector(
+                ImmutableMap.of(
+                        "SAMPLE_AVAILABILITY_CACHE_TTL", cacheTtl,
+                        "SAMPLE_REST_HANDLER_MODE", restHandlerMode,
+                        "SAMPLE_MOCK_BACKEND_CALLS", "true",
+                        "SAMPLE_BOOKING_JOURNAL_FILE", ""
+                )
+        );
+        String json = Benchmarks.availabilityRequestJson(backend.getHost(), backend.getPort());
+
+        String serverName = "end-to-end-" + UUID.randomUUID();
+        grpcServer = InProcessServerBuilder.forName(serverName)
+                .addService(
+                        Main.interceptedGrpcService(
+                                injector.getInstance(SampleGrpcPlugin.class),
+                                injector.getInstance(ResponseCompression.class),
+                                injector.getInstance(MetricsServerInterceptor.class),
+                                null
+                        )
+                )
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(serverName).build();
+        stub = PluginApiGrpc.newBlockingStub(channel);
+        grpcRequest = Benchmarks.grpcAvailabilityRequest(json);
+
+        restServer = Undertow.builder()
+                .addHttpListener(0, "127.0.0.1")
+                .setHandler(
+                        Main.restRoutes(
+                                injector.getInstance(SampleRestPlugin.class),
+                                injector.getInstance(RestHandlers.class),
+                                injector.getInstance(PluginMetrics.class),
+                                injector.getInstance(ResponseCompression.class),
+                                null
+                        )
+                )
+                .build();
+        restServer.start();
+        InetSocketAddress restAddress = (InetSocketAddress) restServer.getListenerInfo().get(0).getAddress();
+        httpClient = new OkHttpClient();
+        restRequest = new Request.Builder()
+                .url("http://127.0.0.1:" + restAddress.getPort() + "/product/getAvailability")
+                .post(RequestBody.create(JSON, json))
+                .build();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        channel.shutdownNow();
+        grpcServer.shutdownNow().awaitTermination();
+        restServer.stop();
+        httpClient.getDispatcher().getExecutorService().shutdown();
+        backend.close();
+    }
+
+    @Benchmark
+    public void grpc(Blackhole blackhole) {
+        stub.getProductAvailability(grpcRequest).forEachRemaining(blackhole::consume);
+    }
+
+    @Benchmark
+    public byte[] rest() throws IOException {
+        Response response = httpClient.newCall(restRequest).execute();
+        if (!response.isSuccessful()) {
+            throw new IOException("Unexpected response " + response.code());
+        }
+        return response.body().bytes();
+    }
+}
@@ -0,0 +1,77 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import com.google.common.collect.*;
+import io.grpc.*;
+import org.openjdk.jmh.annotations.*;
+
+import static io.grpc.Metadata.*;
+
+/**
+ * Measures per-call overhead of server interceptors: the shared secret check (with matching secret, alone or among secrets being rotated) and
+ * metrics.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InterceptorBenchmark {
+
+    private static final String SHARED_SECRET = "d2b1f6a0-3c1e-4b7a-9d8e-5f4c3b2a1908";
+
+    private static final String PREVIOUS_SHARED_SECRET = "0b9c8e7a-5d4f-4e3b-a2c1-f0e9d8c7b6a5";
+
+    private final ServerCall<byte[], byte[]> call = new Benchmarks.NoopServerCall<>(Benchmarks.method("PluginApi", "GetProductAvailability"));
+
+    private final ServerCall.Listener<byte[]> listener = new ServerCall.Listener<byte[]>() {};
+
+    private final ServerCallHandler<byte[], byte[]> next = (call, headers) -> listener;
+
+    private final ServerInterceptor sharedSecretInterceptor = new SharedSecretAuthenticator(ImmutableList.of(SHARED_SECRET));
+
+    private final ServerInterceptor rotatedSharedSecretInterceptor = new SharedSecretAuthenticator(
+            ImmutableList.of(PREVIOUS_SHARED_SECRET, SHARED_SECRET)
+    );
+
+    private final ServerInterceptor metricsInterceptor = new MetricsServerInterceptor(new PluginMetrics());
+
+    private final Metadata headers = new Metadata();
+
+    @Setup
+    public void setUp() {
+        headers.put(Metadata.Key.of("sharedSecret", ASCII_STRING_MARSHALLER), SHARED_SECRET);
+    }
+
+    @Benchmark
+    public ServerCall.Listener<byte[]> none() {
+        return next.startCall(call, headers);
+    }
+
+    @Benchmark
+    public ServerCall.Listener<byte[]> sharedSecret() {
+        return sharedSecretInterceptor.interceptCall(call, headers, next);
+    }
+
+    /**
+     * New secret, while the previous one is still accepted; every secret is compared, whichever matches.
+     */
+    @Benchmark
+    public ServerCall.Listener<byte[]> rotatedSharedSecret() {
+        return rotatedSharedSecretInterceptor.interceptCall(call, headers, next);
+    }
+
+    /**
+     * Includes closing the call, which is where the latency gets recorded.
+     */
+    @Benchmark
+    public ServerCall.Listener<byte[]> metrics() {
+        return metricsInterceptor.interceptCall(
+                call,
+                headers,
+                (interceptedCall, interceptedHeaders) -> {
+                    interceptedCall.close(Status.OK, interceptedHeaders);
+                    return listener;
+                }
+        );
+    }
+}
@@ -0,0 +1,107 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.common.collect.*;
+import com.google.gson.*;
+import io.bokun.inventory.plugin.api.rest.*;
+import org.openjdk.jmh.annotations.*;
+
+import static java.nio.charset.StandardCharsets.*;
+
+/**
+ * Compares shared {@link GsonJsonCodec} against creating <tt>new Gson()</tt> for every call, which is what {@link SampleRestPlugin} used to do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JsonCodecBenchmark {
+
+    /**
+     * Number of days worth of availability in response.
+     */
+    @Param({"2", "90"})
+    public int days;
+
+    private final JsonCodec codec = new GsonJsonCodec();
+
+    private byte[] requestBytes;
+
+    private List<ProductAvailabilityWithRatesResponse> response;
+
+    @Setup
+    public void setUp() {
+        requestBytes = Benchmarks.availabilityRequestJson("api.example.com", 443).getBytes(UTF_8);
+        response = availability(days);
+    }
+
+    @Benchmark
+    public ProductAvailabilityRequest readNewGsonPerCall() {
+        return new Gson().fromJson(new InputStreamReader(new ByteArrayInputStream(requestBytes)), ProductAvailabilityRequest.class);
+    }
+
+    @Benchmark
+    public ProductAvailabilityRequest readSharedCodec() throws IOException {
+        return codec.read(new ByteArrayInputStream(requestBytes), ProductAvailabilityRequest.class);
+    }
+
+    @Benchmark
+    public byte[] writeNewGsonPerCall() {
+        return new Gson().toJson(response).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public ByteBuffer writeSharedCodec() {
+        return codec.encode(response);
+    }
+
+    /**
+     * Builds the same kind of response as {@link SampleRestPlugin#getProductAvailability(ProductAvailabilityRequest)}, just for given
+     * number of days.
+     */
+    static List<ProductAvailabilityWithRatesResponse> availability(int days) {
+        List<ProductAvailabilityWithRatesResponse> result = new ArrayList<>(days);
+        for (int i = 0; i < days; i++) {
+            ProductAvailabilityWithRatesResponse response = new ProductAvailabilityWithRatesResponse();
+            response.setCapacity(100);
+
+            LocalDate date = LocalDate.of(2019, 5, 1).plusDays(i);
+            DateYMD dateYmd = new DateYMD();
+            dateYmd.setYear(date.getYear());
+            dateYmd.setMonth(date.getMonthValue());
+            dateYmd.setDay(date.getDayOfMonth());
+            response.setDate(dateYmd);
+
+            Time time = new Time();
+            time.setHour(13);
+            time.setMinute(0);
+            response.setTime(time);
+
+            PricePerPerson pricePerPerson = new PricePerPerson();
+            pricePerPerson.setPricingCategoryWithPrice(new ArrayList<>());
+            pricePerPerson.getPricingCategoryWithPrice().add(categoryPrice("ADT", "100"));
+            pricePerPerson.getPricingCategoryWithPrice().add(categoryPrice("CHD", "10"));
+
+            RateWithPrice rate = new RateWithPrice();
+            rate.setRateId("standard");
+            rate.setPricePerPerson(pricePerPerson);
+            response.setRates(ImmutableList.of(rate));
+            result.add(response);
+        }
+        return result;
+    }
+
+    private static PricingCategoryWithPrice categoryPrice(String pricingCategoryId, String amount) {
+        Price price = new Price();
+        price.setAmount(amount);
+        price.setCurrency("EUR");
+        PricingCategoryWithPrice categoryPrice = new PricingCategoryWithPrice();
+        categoryPrice.setPricingCategoryId(pricingCategoryId);
+        categoryPrice.setPrice(price);
+        return categoryPrice;
+    }
+}
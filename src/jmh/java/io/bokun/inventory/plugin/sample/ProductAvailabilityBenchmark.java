@@ -0,0 +1,83 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.common.collect.*;
+import com.google.inject.Injector;
+import io.bokun.inventory.common.api.grpc.*;
+import io.bokun.inventory.plugin.api.grpc.*;
+import io.grpc.stub.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures <tt>getProductAvailability</tt> of both plugins without transport: building the response (protobuf messages vs. REST objects) and
+ * serializing it (protobuf vs. JSON), with availability cache turned off and on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProductAvailabilityBenchmark {
+
+    /**
+     * <tt>SAMPLE_AVAILABILITY_CACHE_TTL</tt>; 0 turns the cache off.
+     */
+    @Param({"0", "60"})
+    public String cacheTtl;
+
+    private SampleGrpcPlugin grpcPlugin;
+
+    private SampleRestPlugin restPlugin;
+
+    private JsonCodec codec;
+
+    private ProductAvailabilityRequest grpcRequest;
+
+    private io.bokun.inventory.plugin.api.rest.ProductAvailabilityRequest restRequest;
+
+    @Setup
+    public void setUp() {
+        Injector injector = Benchmarks.injector(ImmutableMap.of("SAMPLE_AVAILABILITY_CACHE_TTL", cacheTtl));
+        grpcPlugin = injector.getInstance(SampleGrpcPlugin.class);
+        restPlugin = injector.getInstance(SampleRestPlugin.class);
+        codec = injector.getInstance(JsonCodec.class);
+        String json = Benchmarks.availabilityRequestJson("api.example.com", 443);
+        grpcRequest = Benchmarks.grpcAvailabilityRequest(json);
+        restRequest = Benchmarks.restAvailabilityRequest(json);
+    }
+
+    /**
+     * @return total size of serialized response messages.
+     */
+    @Benchmark
+    public int grpc() {
+        CompletableFuture<Integer> size = new CompletableFuture<>();
+        grpcPlugin.getProductAvailability(grpcRequest, new StreamObserver<ProductAvailabilityWithRatesResponse>() {
+            private int bytes;
+
+            @Override
+            public void onNext(ProductAvailabilityWithRatesResponse value) {
+                bytes += value.toByteArray().length;
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                size.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                size.complete(bytes);
+            }
+        });
+        return size.join();
+    }
+
+    @Benchmark
+    public ByteBuffer rest() {
+        return restPlugin.getProductAvailability(restRequest)
+                .thenApply(codec::encode)
+                .join();
+    }
+}
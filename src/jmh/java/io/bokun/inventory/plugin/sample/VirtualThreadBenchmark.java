@@ -0,0 +1,131 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.common.util.concurrent.*;
+import com.squareup.okhttp.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * <p>Blocking backend calls (OkHttp, as the plugins make them) from many requests at once, each on its own thread of given kind:<ul>
+ *     <li><tt>platform</tt> - cached thread pool, as gRPC's default executor;</li>
+ *     <li><tt>workers</tt> - fixed pool of 8 threads per CPU, as Undertow workers running <tt>blocking</tt> REST handlers;</li>
+ *     <li><tt>virtual</tt> - new virtual thread per request (needs Java 21 or later, fails otherwise).</li>
+ * </ul>
+ * Backend takes 50 ms to respond, so every invocation (<tt>inFlight</tt> concurrent calls) takes at least 50 ms; more than that means calls had
+ * to wait for a thread.</p>
+ *
+ * <p>{@link Footprint} reports, while all calls of an invocation are in flight, the number of live platform threads and heap taken per call.
+ * Stacks of platform threads are native memory (up to <tt>-Xss</tt> each), not included in the heap figure, while stacks of blocked virtual
+ * threads are on the heap.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class VirtualThreadBenchmark {
+
+    private static final long BACKEND_LATENCY_MILLIS = 50L;
+
+    @Param({"platform", "workers", "virtual"})
+    public String threads;
+
+    /**
+     * Concurrent requests, each making one backend call.
+     */
+    @Param({"100", "1000"})
+    public int inFlight;
+
+    private FakeBackend backend;
+
+    private OkHttpClient client;
+
+    private Request request;
+
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        backend = new FakeBackend("{}", () -> BACKEND_LATENCY_MILLIS);
+        client = new OkHttpClient();
+        client.setConnectionPool(new ConnectionPool(inFlight, TimeUnit.MINUTES.toMillis(5L)));
+        request = new Request.Builder()
+                .url("http://" + backend.getHost() + ":" + backend.getPort() + "/api/1/availability")
+                .build();
+        ThreadFactory threadFactory = new ThreadFactoryBuilder().setNameFormat("benchmark-" + threads + "-%d").setDaemon(true).build();
+        switch (threads) {
+            case "platform":
+                executor = Executors.newCachedThreadPool(threadFactory);
+                break;
+            case "workers":
+                executor = Executors.newFixedThreadPool(8 * Runtime.getRuntime().availableProcessors(), threadFactory);
+                break;
+            default:
+                executor = VirtualThreads.newPerTaskExecutor("benchmark-virtual-");
+                if (executor == null) {
+                    throw new IllegalStateException("Virtual threads are not available on Java " + VirtualThreads.javaVersion());
+                }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdownNow();
+        backend.close();
+    }
+
+    @Benchmark
+    public void blockingCalls(Footprint footprint) throws InterruptedException, ExecutionException {
+        long heapBefore = Footprint.heapUsed();
+        CountDownLatch started = new CountDownLatch(inFlight);
+        List<Future<Integer>> calls = new ArrayList<>(inFlight);
+        for (int i = 0; i < inFlight; i++) {
+            calls.add(executor.submit(() -> {
+                started.countDown();
+                try (ResponseBody body = client.newCall(request).execute().body()) {
+                    return body.bytes().length;
+                }
+            }));
+        }
+        // with too few threads, not all calls start; these are counted once the backend has answered the first ones
+        started.await(BACKEND_LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+        footprint.sample(heapBefore, inFlight);
+        for (Future<Integer> call : calls) {
+            call.get();
+        }
+    }
+
+    /**
+     * Peaks of an iteration, sampled while calls are in flight.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Footprint {
+
+        public long platformThreads;
+
+        public long heapBytesPerCall;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            platformThreads = 0L;
+            heapBytesPerCall = 0L;
+        }
+
+        void sample(long heapBefore, int inFlight) {
+            // virtual threads are not counted
+            platformThreads = Math.max(platformThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+            long heapDelta = heapUsed() - heapBefore;
+            // garbage collected in between otherwise
+            if (heapDelta > 0L) {
+                heapBytesPerCall = Math.max(heapBytesPerCall, heapDelta / inFlight);
+            }
+        }
+
+        static long heapUsed() {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+    }
+}
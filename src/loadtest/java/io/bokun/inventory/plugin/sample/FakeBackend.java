@@ -0,0 +1,60 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.net.*;
+
+import javax.annotation.*;
+
+import io.undertow.*;
+
+import static io.undertow.util.Headers.*;
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * Local stand-in for a backend system: answers every request with the same JSON, after a delay given by {@link LatencyModel}. Delays do not
+ * block any thread, so one instance can hold thousands of slow responses.
+ */
+final class FakeBackend implements AutoCloseable {
+
+    private final Undertow server;
+
+    /**
+     * @param body    response body.
+     * @param latency how long to wait before responding.
+     */
+    FakeBackend(@Nonnull String body, @Nonnull LatencyModel latency) {
+        this.server = Undertow.builder()
+                .addHttpListener(0, "127.0.0.1")
+                .setHandler(exchange -> {
+                    exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json");
+                    long delayMillis = latency.nextDelayMillis();
+                    if (delayMillis <= 0L) {
+                        exchange.getResponseSender().send(body);
+                        return;
+                    }
+                    exchange.dispatch(
+                            () -> exchange.getIoThread().executeAfter(() -> exchange.getResponseSender().send(body), delayMillis, MILLISECONDS)
+                    );
+                })
+                .build();
+        server.start();
+    }
+
+    @Nonnull
+    String getHost() {
+        return getAddress().getHostString();
+    }
+
+    int getPort() {
+        return getAddress().getPort();
+    }
+
+    @Nonnull
+    private InetSocketAddress getAddress() {
+        return (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+    }
+
+    @Override
+    public void close() {
+        server.stop();
+    }
+}
@@ -0,0 +1,109 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+import com.google.protobuf.util.*;
+import io.bokun.inventory.common.api.grpc.*;
+import io.bokun.inventory.plugin.api.grpc.*;
+import io.grpc.ManagedChannel;
+import io.grpc.Metadata;
+import io.grpc.netty.*;
+import io.grpc.stub.*;
+
+import static io.grpc.Metadata.*;
+
+/**
+ * Calls plugin with asynchronous {@link PluginApiGrpc} stub over a real (Netty) channel.
+ */
+final class GrpcLoadDriver implements LoadDriver {
+
+    private final ManagedChannel channel;
+
+    private final PluginApiGrpc.PluginApiStub stub;
+
+    private final SearchProductsRequest searchRequest;
+    private final GetProductByIdRequest getByIdRequest;
+    private final ProductAvailabilityRequest availabilityRequest;
+    private final ReservationRequest reserveRequest;
+    private final ConfirmBookingRequest confirmRequest;
+    private final CancelBookingRequest cancelRequest;
+
+    /**
+     * @param sharedSecret sent with every call if not <tt>null</tt>.
+     */
+    GrpcLoadDriver(@Nonnull String host, int port, @Nonnull String parametersJson, @Nullable String sharedSecret) {
+        this.channel = NettyChannelBuilder.forAddress(host, port)
+                .negotiationType(NegotiationType.PLAINTEXT)
+                .build();
+        PluginApiGrpc.PluginApiStub stub = PluginApiGrpc.newStub(channel);
+        if (sharedSecret != null) {
+            Metadata headers = new Metadata();
+            headers.put(Metadata.Key.of("sharedSecret", ASCII_STRING_MARSHALLER), sharedSecret);
+            stub = MetadataUtils.attachHeaders(stub, headers);
+        }
+        this.stub = stub;
+        this.searchRequest = parse(Operation.SEARCH, parametersJson, SearchProductsRequest.newBuilder()).build();
+        this.getByIdRequest = parse(Operation.GET_BY_ID, parametersJson, GetProductByIdRequest.newBuilder()).build();
+        this.availabilityRequest = parse(Operation.AVAILABILITY, parametersJson, ProductAvailabilityRequest.newBuilder()).build();
+        this.reserveRequest = parse(Operation.RESERVE, parametersJson, ReservationRequest.newBuilder()).build();
+        this.confirmRequest = parse(Operation.CONFIRM, parametersJson, ConfirmBookingRequest.newBuilder()).build();
+        this.cancelRequest = parse(Operation.CANCEL, parametersJson, CancelBookingRequest.newBuilder()).build();
+    }
+
+    @Nonnull
+    private static <B extends Message.Builder> B parse(@Nonnull Operation operation, @Nonnull String parametersJson, @Nonnull B builder) {
+        try {
+            JsonFormat.parser().ignoringUnknownFields().merge(operation.requestJson(parametersJson), builder);
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Could not build request of " + operation, e);
+        }
+        return builder;
+    }
+
+    @Nonnull
+    @Override
+    public CompletableFuture<Void> call(@Nonnull Operation operation) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        switch (operation) {
+            case SEARCH: stub.searchProducts(searchRequest, completing(result)); break;
+            case GET_BY_ID: stub.getProductById(getByIdRequest, completing(result)); break;
+            case AVAILABILITY: stub.getProductAvailability(availabilityRequest, completing(result)); break;
+            case RESERVE: stub.createReservation(reserveRequest, completing(result)); break;
+            case CONFIRM: stub.confirmBooking(confirmRequest, completing(result)); break;
+            case CANCEL: stub.cancelBooking(cancelRequest, completing(result)); break;
+            default: throw new IllegalArgumentException("Unknown operation " + operation);
+        }
+        return result;
+    }
+
+    /**
+     * @return observer which ignores responses and completes given future along with the call.
+     */
+    @Nonnull
+    private static <T> StreamObserver<T> completing(@Nonnull CompletableFuture<Void> result) {
+        return new StreamObserver<T>() {
+            @Override
+            public void onNext(T value) {
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.completeExceptionally(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                result.complete(null);
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        channel.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+/**
+ * How long {@link FakeBackend} takes to respond.
+ */
+@FunctionalInterface
+interface LatencyModel {
+
+    /**
+     * Responds immediately.
+     */
+    LatencyModel NONE = () -> 0L;
+
+    /**
+     * @return delay of the next response, in milliseconds.
+     */
+    long nextDelayMillis();
+
+    /**
+     * Parses latency model from command line. Supported forms:<ul>
+     *     <li><tt>none</tt>;</li>
+     *     <li><tt>fixed:200</tt> - always 200 ms;</li>
+     *     <li><tt>uniform:50-500</tt> - evenly distributed between 50 and 500 ms;</li>
+     *     <li><tt>exponential:100</tt> - exponentially distributed with mean of 100 ms (mostly fast, with a long tail);</li>
+     *     <li><tt>spikes:20:2000:0.01</tt> - 20 ms, but 2000 ms for 1% of responses.</li>
+     * </ul>
+     *
+     * @throws IllegalArgumentException if given specification can not be parsed.
+     */
+    @Nonnull
+    static LatencyModel parse(@Nonnull String specification) {
+        String[] parts = specification.split(":");
+        try {
+            switch (parts[0]) {
+                case "none":
+                    return NONE;
+                case "fixed": {
+                    long millis = Long.parseLong(parts[1]);
+                    return () -> millis;
+                }
+                case "uniform": {
+                    String[] bounds = parts[1].split("-");
+                    long min = Long.parseLong(bounds[0]);
+                    long max = Long.parseLong(bounds[1]);
+                    return () -> ThreadLocalRandom.current().nextLong(min, max + 1L);
+                }
+                case "exponential": {
+                    double mean = Double.parseDouble(parts[1]);
+                    return () -> (long) (-mean * Math.log(1.0 - ThreadLocalRandom.current().nextDouble()));
+                }
+                case "spikes": {
+                    long usual = Long.parseLong(parts[1]);
+                    long spike = Long.parseLong(parts[2]);
+                    double probability = Double.parseDouble(parts[3]);
+                    return () -> (ThreadLocalRandom.current().nextDouble() < probability) ? spike : usual;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown latency model " + specification);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid latency model " + specification, e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+/**
+ * Makes plugin calls over one transport. Calls must not block the caller, as it is the one keeping the arrival rate.
+ */
+interface LoadDriver extends AutoCloseable {
+
+    /**
+     * Starts the call.
+     *
+     * @return future completed once the whole response has been received, or failed if call failed.
+     */
+    @Nonnull
+    CompletableFuture<Void> call(@Nonnull Operation operation);
+
+    @Override
+    void close();
+}
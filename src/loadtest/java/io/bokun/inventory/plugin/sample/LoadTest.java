@@ -0,0 +1,216 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import javax.annotation.*;
+
+import com.google.common.collect.*;
+import com.google.inject.*;
+import com.google.inject.util.*;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.netty.*;
+import io.undertow.*;
+import org.slf4j.*;
+
+import static com.google.inject.name.Names.*;
+
+/**
+ * <p>Load and soak test tool. Drives the plugin over gRPC and/or REST with one or more {@link Scenario}s, one after another, and prints
+ * coordinated-omission-corrected latency percentiles, throughput and GC/allocation stats of each (see {@link ScenarioRunner}).</p>
+ *
+ * <p>Plugin is configured (via request parameters) to talk to a {@link FakeBackend} started by this tool, responding after delays given by
+ * <tt>--backend-latency</tt>. Unless <tt>--grpc-target</tt>/<tt>--rest-target</tt> is given, the plugin is started in this JVM, wired the same
+ * way as {@link Main} (<tt>SAMPLE_*</tt> environment variables apply), so that GC/allocation stats include the plugin. The embedded plugin
+ * calls the backend before returning its mock data (see {@link MockBackendCalls}), and has the booking journal disabled. With external targets,
+ * stats only cover the load generator itself, and the target has to set <tt>SAMPLE_MOCK_BACKEND_CALLS=true</tt> for the backend to be
+ * called.</p>
+ *
+ * <p>Run with <tt>./gradlew loadTest -PloadTestArgs="..."</tt>, e.g.
+ * <tt>-PloadTestArgs="--backend-latency uniform:50-500 availability-5k:grpc:5000:60:availability=100"</tt>.</p>
+ */
+public final class LoadTest {
+
+    private static final Logger log = LoggerFactory.getLogger(LoadTest.class);
+
+    private static final String DEFAULT_SCENARIO = "mixed:grpc:1000:60:search=5,getById=10,availability=80,reserve=2,confirm=2,cancel=1";
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        List<Scenario> scenarios = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("--")) {
+                if (i + 1 == args.length) {
+                    usage("Missing value of " + args[i]);
+                }
+                options.put(args[i], args[++i]);
+            } else {
+                scenarios.add(Scenario.parse(args[i]));
+            }
+        }
+        if (scenarios.isEmpty()) {
+            scenarios.add(Scenario.parse(DEFAULT_SCENARIO));
+        }
+        LatencyModel backendLatency = LatencyModel.parse(options.getOrDefault("--backend-latency", "none"));
+        int warmupSeconds = Integer.parseInt(options.getOrDefault("--warmup", "10"));
+        int maxInFlight = Integer.parseInt(options.getOrDefault("--max-in-flight", "10000"));
+        boolean poissonArrivals = "poisson".equals(options.getOrDefault("--arrivals", "constant"));
+        String sharedSecret = options.get("--shared-secret");
+        ScenarioRunner runner = new ScenarioRunner(warmupSeconds, maxInFlight, poissonArrivals);
+
+        try (FakeBackend backend = new FakeBackend("{}", backendLatency);
+             EmbeddedPlugin embeddedPlugin = new EmbeddedPlugin(sharedSecret)) {
+            String parametersJson = parametersJson(backend.getHost(), backend.getPort());
+            for (Scenario scenario : scenarios) {
+                log.info("Running scenario {}", scenario);
+                try (LoadDriver driver = createDriver(scenario.transport, options, embeddedPlugin, parametersJson, maxInFlight, sharedSecret)) {
+                    runner.run(scenario, driver, System.out);
+                }
+            }
+        }
+        System.exit(0);         // plugin executors are not daemons
+    }
+
+    @Nonnull
+    private static LoadDriver createDriver(@Nonnull String transport,
+                                           @Nonnull Map<String, String> options,
+                                           @Nonnull EmbeddedPlugin embeddedPlugin,
+                                           @Nonnull String parametersJson,
+                                           int maxInFlight,
+                                           @Nullable String sharedSecret) throws IOException {
+        if ("grpc".equals(transport)) {
+            InetSocketAddress target = options.containsKey("--grpc-target")
+                    ? parseAddress(options.get("--grpc-target"))
+                    : embeddedPlugin.startGrpc();
+            return new GrpcLoadDriver(target.getHostString(), target.getPort(), parametersJson, sharedSecret);
+        }
+        InetSocketAddress target = options.containsKey("--rest-target")
+                ? parseAddress(options.get("--rest-target"))
+                : embeddedPlugin.startRest();
+        return new RestLoadDriver(target.getHostString(), target.getPort(), parametersJson, maxInFlight, sharedSecret);
+    }
+
+    @Nonnull
+    private static InetSocketAddress parseAddress(@Nonnull String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon < 0) {
+            usage("Target should be host:port, got " + hostAndPort);
+        }
+        return InetSocketAddress.createUnresolved(hostAndPort.substring(0, colon), Integer.parseInt(hostAndPort.substring(colon + 1)));
+    }
+
+    /**
+     * @return plugin configuration parameters pointing at given backend.
+     */
+    @Nonnull
+    private static String parametersJson(@Nonnull String host, int port) {
+        return "["
+                + "{\"name\":\"SAMPLE_API_SCHEME\",\"value\":\"http\"},"
+                + "{\"name\":\"SAMPLE_API_HOST\",\"value\":\"" + host + "\"},"
+                + "{\"name\":\"SAMPLE_API_PORT\",\"value\":\"" + port + "\"},"
+                + "{\"name\":\"SAMPLE_API_PATH\",\"value\":\"/api/1\"},"
+                + "{\"name\":\"SAMPLE_API_USERNAME\",\"value\":\"load\"},"
+                + "{\"name\":\"SAMPLE_API_PASSWORD\",\"value\":\"test\"}"
+                + "]";
+    }
+
+    private static void usage(@Nonnull String error) {
+        System.err.println(error);
+        System.err.println("Usage: LoadTest [OPTION]... [SCENARIO]...");
+        System.err.println("  SCENARIO is name:transport:rate:seconds:mix, e.g. " + DEFAULT_SCENARIO + " (the default)");
+        System.err.println("  --grpc-target host:port   call running gRPC plugin instead of starting one in this JVM");
+        System.err.println("  --rest-target host:port   call running REST plugin instead of starting one in this JVM");
+        System.err.println("  --backend-latency model   none (default), fixed:200, uniform:50-500, exponential:100 or spikes:20:2000:0.01 (ms)");
+        System.err.println("  --warmup seconds          run each scenario this long before measuring (default 10)");
+        System.err.println("  --max-in-flight calls     drop calls above this many in flight (default 10000)");
+        System.err.println("  --arrivals type           constant (default) or poisson");
+        System.err.println("  --shared-secret secret    send shared secret with every call");
+        System.exit(1);
+    }
+
+    /**
+     * Plugin running in this JVM, on loopback; transports are started on first use.
+     */
+    private static final class EmbeddedPlugin implements AutoCloseable {
+
+        /**
+         * Settings overriding <tt>SAMPLE_*</tt> environment variables.
+         */
+        private static final Map<String, String> SETTINGS = ImmutableMap.of(
+                "SAMPLE_MOCK_BACKEND_CALLS", "true",
+                "SAMPLE_BOOKING_JOURNAL_FILE", ""
+        );
+
+        private final Injector injector = Guice.createInjector(
+                Modules.override(new Main.GuiceInitializer())
+                        .with(binder -> SETTINGS.forEach((name, value) -> binder.bindConstant().annotatedWith(named(name)).to(value)))
+        );
+
+        @Nullable
+        private final SharedSecretAuthenticator authenticator;
+
+        private Server grpcServer;
+
+        private Undertow restServer;
+
+        EmbeddedPlugin(@Nullable String sharedSecret) {
+            this.authenticator = (sharedSecret != null) ? new SharedSecretAuthenticator(ImmutableList.of(sharedSecret)) : null;
+        }
+
+        @Nonnull
+        InetSocketAddress startGrpc() throws IOException {
+            if (grpcServer == null) {
+                NettyServerBuilder serverBuilder = NettyServerBuilder.forAddress(new InetSocketAddress("127.0.0.1", 0));
+                ResponseCompression compression = injector.getInstance(ResponseCompression.class);
+                injector.getInstance(GrpcServerThreading.class).configure(serverBuilder);
+                compression.configure(serverBuilder);
+                ServerServiceDefinition service = Main.interceptedGrpcService(
+                        injector.getInstance(SampleGrpcPlugin.class),
+                        compression,
+                        injector.getInstance(MetricsServerInterceptor.class),
+                        authenticator
+                );
+                grpcServer = serverBuilder.addService(service).build().start();
+                log.info("Started embedded gRPC plugin on port {}", grpcServer.getPort());
+            }
+            return new InetSocketAddress("127.0.0.1", grpcServer.getPort());
+        }
+
+        @Nonnull
+        InetSocketAddress startRest() {
+            if (restServer == null) {
+                restServer = Undertow.builder()
+                        .addHttpListener(0, "127.0.0.1")
+                        .setHandler(
+                                Main.restRoutes(
+                                        injector.getInstance(SampleRestPlugin.class),
+                                        injector.getInstance(RestHandlers.class),
+                                        injector.getInstance(PluginMetrics.class),
+                                        injector.getInstance(ResponseCompression.class),
+                                        authenticator
+                                )
+                        )
+                        .build();
+                restServer.start();
+                log.info("Started embedded REST plugin");
+            }
+            return (InetSocketAddress) restServer.getListenerInfo().get(0).getAddress();
+        }
+
+        @Override
+        public void close() {
+            if (grpcServer != null) {
+                grpcServer.shutdownNow();
+                injector.getInstance(GrpcServerThreading.class).shutdown();
+            }
+            if (restServer != null) {
+                restServer.stop();
+            }
+        }
+    }
+}
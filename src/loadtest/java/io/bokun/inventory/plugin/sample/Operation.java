@@ -0,0 +1,89 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+
+import javax.annotation.*;
+
+/**
+ * Plugin calls the load test can make, with their REST routes (see
+ * {@link Main#restRoutes(SampleRestPlugin, RestHandlers, PluginMetrics, ResponseCompression, SharedSecretAuthenticator)}) and request bodies.
+ * Same JSON is used for REST and (converted) for gRPC.
+ */
+enum Operation {
+
+    SEARCH("search", "/product/search"),
+    GET_BY_ID("getById", "/product/getById"),
+    AVAILABILITY("availability", "/product/getAvailability"),
+    RESERVE("reserve", "/booking/reserve"),
+    /**
+     * Always confirms the same reservation. The embedded plugin has the booking journal disabled, so only confirmations overlapping in time are
+     * answered with one response (see {@link IdempotentBookings}); targets with the journal enabled answer all but the first from it.
+     */
+    CONFIRM("confirm", "/booking/confirm"),
+    /**
+     * Cancels a booking the plugin does not know about, which (like cancelling a booking made before restart) drops all cached availability of
+     * the backend.
+     */
+    CANCEL("cancel", "/booking/cancel");
+
+    private static final String RESERVATION_DATA_JSON = "{"
+            + "\"productId\":\"123\","
+            + "\"bookingSource\":{"
+            + "\"segment\":\"DIRECT_OFFLINE\","
+            + "\"bookingChannel\":{\"id\":\"1\",\"title\":\"Load test\"},"
+            + "\"extranetUser\":{\"email\":\"load.test@example.com\",\"fullName\":\"Load Test\"}"
+            + "}"
+            + "}";
+
+    /**
+     * Name used in scenario mix, e.g. <tt>availability</tt>.
+     */
+    final String shortName;
+
+    final String restPath;
+
+    Operation(@Nonnull String shortName, @Nonnull String restPath) {
+        this.shortName = shortName;
+        this.restPath = restPath;
+    }
+
+    /**
+     * @param parametersJson JSON array of plugin configuration parameters.
+     * @return JSON request of this operation.
+     */
+    @Nonnull
+    String requestJson(@Nonnull String parametersJson) {
+        String parameters = "\"parameters\":" + parametersJson;
+        switch (this) {
+            case SEARCH:
+                return "{" + parameters + ",\"country\":\"GB\",\"city\":\"London\"}";
+            case GET_BY_ID:
+                return "{" + parameters + ",\"externalId\":\"123\"}";
+            case AVAILABILITY:
+                return "{" + parameters + ","
+                        + "\"productId\":\"123\","
+                        + "\"range\":{\"from\":{\"year\":2019,\"month\":5,\"day\":1},\"to\":{\"year\":2019,\"month\":5,\"day\":31}},"
+                        + "\"requiredCapacity\":2"
+                        + "}";
+            case RESERVE:
+                return "{" + parameters + ",\"reservationData\":" + RESERVATION_DATA_JSON + "}";
+            case CONFIRM:
+                return "{" + parameters + ",\"reservationConfirmationCode\":\"LOAD-TEST-RESERVATION\",\"reservationData\":" + RESERVATION_DATA_JSON + "}";
+            case CANCEL:
+                return "{" + parameters + ",\"bookingConfirmationCode\":\"LOAD-TEST-BOOKING\"}";
+            default:
+                throw new IllegalStateException("Unknown operation " + this);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no operation of given name.
+     */
+    @Nonnull
+    static Operation fromShortName(@Nonnull String shortName) {
+        return Arrays.stream(values())
+                .filter(operation -> operation.shortName.equals(shortName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Unknown operation " + shortName));
+    }
+}
@@ -0,0 +1,79 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.squareup.okhttp.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * Calls REST routes of the plugin with asynchronous OkHttp calls.
+ */
+final class RestLoadDriver implements LoadDriver {
+
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private final OkHttpClient client = new OkHttpClient();
+
+    private final Map<Operation, Request> requests = new EnumMap<>(Operation.class);
+
+    /**
+     * @param maxInFlight  max number of concurrent calls (and pooled connections).
+     * @param sharedSecret sent with every call if not <tt>null</tt>.
+     */
+    RestLoadDriver(@Nonnull String host, int port, @Nonnull String parametersJson, int maxInFlight, @Nullable String sharedSecret) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxInFlight);
+        dispatcher.setMaxRequestsPerHost(maxInFlight);
+        client.setDispatcher(dispatcher);
+        client.setConnectionPool(new ConnectionPool(maxInFlight, MINUTES.toMillis(5L)));
+        client.setReadTimeout(1L, MINUTES);
+        for (Operation operation : Operation.values()) {
+            Request.Builder request = new Request.Builder()
+                    .url("http://" + host + ":" + port + operation.restPath)
+                    .post(RequestBody.create(JSON, operation.requestJson(parametersJson)));
+            if (sharedSecret != null) {
+                request.header("sharedSecret", sharedSecret);
+            }
+            requests.put(operation, request.build());
+        }
+    }
+
+    @Nonnull
+    @Override
+    public CompletableFuture<Void> call(@Nonnull Operation operation) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        client.newCall(requests.get(operation)).enqueue(new Callback() {
+            @Override
+            public void onFailure(Request request, IOException e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                try {
+                    response.body().bytes();        // reads and closes body
+                } catch (IOException e) {
+                    result.completeExceptionally(e);
+                    return;
+                }
+                if (response.isSuccessful()) {
+                    result.complete(null);
+                } else {
+                    result.completeExceptionally(new IOException("HTTP " + response.code()));
+                }
+            }
+        });
+        return result;
+    }
+
+    @Override
+    public void close() {
+        client.getDispatcher().getExecutorService().shutdown();
+        client.getConnectionPool().evictAll();
+    }
+}
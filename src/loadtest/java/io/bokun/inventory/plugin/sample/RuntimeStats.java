@@ -0,0 +1,65 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.lang.management.*;
+
+import javax.annotation.*;
+
+/**
+ * Garbage collection and allocation counters of this JVM at some point in time; difference of two snapshots tells what happened in between.
+ */
+final class RuntimeStats {
+
+    final long gcCount;
+
+    final long gcMillis;
+
+    /**
+     * Bytes allocated by currently live threads; -1 if JVM does not track this. Allocations of threads which have died meanwhile are not included.
+     */
+    final long allocatedBytes;
+
+    private RuntimeStats(long gcCount, long gcMillis, long allocatedBytes) {
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    @Nonnull
+    static RuntimeStats capture() {
+        long gcCount = 0L;
+        long gcMillis = 0L;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(collector.getCollectionCount(), 0L);
+            gcMillis += Math.max(collector.getCollectionTime(), 0L);
+        }
+        return new RuntimeStats(gcCount, gcMillis, allocatedBytes());
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1L;
+        }
+        com.sun.management.ThreadMXBean allocationTracking = (com.sun.management.ThreadMXBean) threads;
+        if (!allocationTracking.isThreadAllocatedMemorySupported() || !allocationTracking.isThreadAllocatedMemoryEnabled()) {
+            return -1L;
+        }
+        long total = 0L;
+        for (long allocated : allocationTracking.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(allocated, 0L);       // -1 for threads which died in the meantime
+        }
+        return total;
+    }
+
+    /**
+     * @return what happened between <tt>earlier</tt> and this snapshot.
+     */
+    @Nonnull
+    RuntimeStats minus(@Nonnull RuntimeStats earlier) {
+        return new RuntimeStats(
+                gcCount - earlier.gcCount,
+                gcMillis - earlier.gcMillis,
+                (allocatedBytes < 0L || earlier.allocatedBytes < 0L) ? -1L : allocatedBytes - earlier.allocatedBytes
+        );
+    }
+}
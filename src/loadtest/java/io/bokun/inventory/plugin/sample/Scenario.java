@@ -0,0 +1,99 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+
+import javax.annotation.*;
+
+/**
+ * <p>One run of the load test: which transport to use, how many calls per second to start, for how long, and the mix of operations.</p>
+ *
+ * <p>Written as <tt>name:transport:rate:seconds:mix</tt>, e.g. <tt>soak:grpc:500:3600:search=5,getById=10,availability=80,reserve=2,confirm=2,cancel=1</tt>
+ * where mix is relative weight of each {@link Operation}.</p>
+ */
+final class Scenario {
+
+    final String name;
+
+    /**
+     * <tt>grpc</tt> or <tt>rest</tt>.
+     */
+    final String transport;
+
+    /**
+     * Calls started per second.
+     */
+    final int rate;
+
+    final int durationSeconds;
+
+    private final Operation[] operations;
+
+    /**
+     * Cumulative weights of {@link #operations}.
+     */
+    private final int[] cumulativeWeights;
+
+    private Scenario(@Nonnull String name, @Nonnull String transport, int rate, int durationSeconds, @Nonnull Map<Operation, Integer> mix) {
+        this.name = name;
+        this.transport = transport;
+        this.rate = rate;
+        this.durationSeconds = durationSeconds;
+        this.operations = mix.keySet().toArray(new Operation[0]);
+        this.cumulativeWeights = new int[operations.length];
+        int total = 0;
+        for (int i = 0; i < operations.length; i++) {
+            total += mix.get(operations[i]);
+            cumulativeWeights[i] = total;
+        }
+    }
+
+    /**
+     * Picks operation according to the mix.
+     */
+    @Nonnull
+    Operation nextOperation(@Nonnull Random random) {
+        int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (value < cumulativeWeights[i]) {
+                return operations[i];
+            }
+        }
+        throw new IllegalStateException("Weights do not add up");
+    }
+
+    /**
+     * @throws IllegalArgumentException if given specification can not be parsed.
+     */
+    @Nonnull
+    static Scenario parse(@Nonnull String specification) {
+        String[] parts = specification.split(":");
+        if (parts.length != 5) {
+            throw new IllegalArgumentException("Scenario should be name:transport:rate:seconds:mix, got " + specification);
+        }
+        if (!"grpc".equals(parts[1]) && !"rest".equals(parts[1])) {
+            throw new IllegalArgumentException("Transport should be grpc or rest, got " + parts[1]);
+        }
+        Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+        for (String entry : parts[4].split(",")) {
+            String[] operationAndWeight = entry.split("=");
+            int weight = Integer.parseInt(operationAndWeight[1]);
+            if (weight > 0) {
+                mix.put(Operation.fromShortName(operationAndWeight[0]), weight);
+            }
+        }
+        if (mix.isEmpty()) {
+            throw new IllegalArgumentException("Scenario mix is empty: " + specification);
+        }
+        int rate = Integer.parseInt(parts[2]);
+        int durationSeconds = Integer.parseInt(parts[3]);
+        if (rate <= 0 || durationSeconds <= 0) {
+            throw new IllegalArgumentException("Rate and duration should be positive: " + specification);
+        }
+        return new Scenario(parts[0], parts[1], rate, durationSeconds, mix);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + transport + ", " + rate + " calls/s, " + durationSeconds + " s)";
+    }
+}
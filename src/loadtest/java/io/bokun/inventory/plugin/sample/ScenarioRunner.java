@@ -0,0 +1,204 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import javax.annotation.*;
+
+import org.HdrHistogram.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Runs {@link Scenario}s open loop: calls are started on schedule (evenly spaced or as a Poisson process) no matter how many previous calls
+ * are still in flight, just like independent users of the platform would. Latency of each call is measured from the time it was <em>scheduled</em>
+ * to start, so a stalled plugin shows in percentiles instead of silently lowering the request rate (coordinated omission). Time from the actual
+ * start of the call is reported too, as service time.</p>
+ *
+ * <p>Calls are only measured after warmup. If too many calls are in flight, new ones are not started but counted as dropped.</p>
+ */
+final class ScenarioRunner {
+
+    /**
+     * How long to wait for in-flight calls once the scenario is over.
+     */
+    private static final long DRAIN_SECONDS = 30L;
+
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+
+    private final int warmupSeconds;
+
+    private final int maxInFlight;
+
+    private final boolean poissonArrivals;
+
+    /**
+     * @param warmupSeconds   how long to run the scenario before measuring.
+     * @param maxInFlight     max number of calls in flight.
+     * @param poissonArrivals whether to space calls randomly (exponentially distributed gaps) rather than evenly.
+     */
+    ScenarioRunner(int warmupSeconds, int maxInFlight, boolean poissonArrivals) {
+        this.warmupSeconds = warmupSeconds;
+        this.maxInFlight = maxInFlight;
+        this.poissonArrivals = poissonArrivals;
+    }
+
+    /**
+     * Runs the scenario and prints its report.
+     */
+    void run(@Nonnull Scenario scenario, @Nonnull LoadDriver driver, @Nonnull PrintStream out) throws InterruptedException {
+        Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            stats.put(operation, new OperationStats());
+        }
+        AtomicInteger inFlight = new AtomicInteger();
+        Random random = new Random();
+        long intervalNanos = SECONDS.toNanos(1L) / scenario.rate;
+
+        long start = System.nanoTime();
+        long measureFrom = start + SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + SECONDS.toNanos(scenario.durationSeconds);
+        RuntimeStats before = (warmupSeconds == 0) ? RuntimeStats.capture() : null;
+
+        for (long scheduled = start; scheduled < end; scheduled += nextGap(intervalNanos, random)) {
+            waitUntil(scheduled);
+            boolean measured = scheduled >= measureFrom;
+            if (measured && before == null) {
+                before = RuntimeStats.capture();
+            }
+            Operation operation = scenario.nextOperation(random);
+            OperationStats operationStats = stats.get(operation);
+            if (inFlight.get() >= maxInFlight) {
+                if (measured) {
+                    operationStats.dropped.increment();
+                }
+                continue;
+            }
+            inFlight.incrementAndGet();
+            long scheduledStart = scheduled;
+            long actualStart = System.nanoTime();
+            call(driver, operation).whenComplete((ignored, failure) -> {
+                long now = System.nanoTime();
+                inFlight.decrementAndGet();
+                if (measured) {
+                    operationStats.record(now - scheduledStart, now - actualStart, failure != null);
+                }
+            });
+        }
+        long drainDeadline = System.nanoTime() + SECONDS.toNanos(DRAIN_SECONDS);
+        while (inFlight.get() > 0 && System.nanoTime() < drainDeadline) {
+            MILLISECONDS.sleep(10L);
+        }
+        RuntimeStats runtimeStats = RuntimeStats.capture().minus(before != null ? before : RuntimeStats.capture());
+        report(scenario, stats, inFlight.get(), runtimeStats, out);
+    }
+
+    private long nextGap(long intervalNanos, @Nonnull Random random) {
+        return poissonArrivals ? (long) (-intervalNanos * Math.log(1.0 - random.nextDouble())) : intervalNanos;
+    }
+
+    private static void waitUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0L) {
+            if (remaining > 100_000L) {
+                LockSupport.parkNanos(remaining - 50_000L);     // parking overshoots, spin for the rest
+            }
+        }
+    }
+
+    @Nonnull
+    private static CompletableFuture<Void> call(@Nonnull LoadDriver driver, @Nonnull Operation operation) {
+        try {
+            return driver.call(operation);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private void report(@Nonnull Scenario scenario,
+                        @Nonnull Map<Operation, OperationStats> stats,
+                        int unfinished,
+                        @Nonnull RuntimeStats runtimeStats,
+                        @Nonnull PrintStream out) {
+        out.printf("%nScenario %s, %s arrivals, %d s warmup%n", scenario, poissonArrivals ? "Poisson" : "constant", warmupSeconds);
+        out.printf("%-14s %9s %7s %7s %10s %9s %9s %9s %9s %9s %12s%n",
+                "operation", "calls", "errors", "dropped", "calls/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "svc p99 ms");
+        Histogram totalLatency = new Histogram(3);
+        Histogram totalServiceTime = new Histogram(3);
+        long totalErrors = 0L;
+        long totalDropped = 0L;
+        for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+            OperationStats operationStats = entry.getValue();
+            Histogram latency = operationStats.latencyMicros.copy();
+            Histogram serviceTime = operationStats.serviceTimeMicros.copy();
+            long errors = operationStats.errors.sum();
+            long dropped = operationStats.dropped.sum();
+            if (latency.getTotalCount() == 0L && dropped == 0L) {
+                continue;
+            }
+            printRow(out, entry.getKey().shortName, latency, serviceTime, errors, dropped, scenario.durationSeconds);
+            totalLatency.add(latency);
+            totalServiceTime.add(serviceTime);
+            totalErrors += errors;
+            totalDropped += dropped;
+        }
+        printRow(out, "total", totalLatency, totalServiceTime, totalErrors, totalDropped, scenario.durationSeconds);
+        if (unfinished > 0) {
+            out.printf("%d calls still unfinished %d s after the end, not included above%n", unfinished, DRAIN_SECONDS);
+        }
+        out.printf("GC: %d collections, %d ms total", runtimeStats.gcCount, runtimeStats.gcMillis);
+        if (runtimeStats.allocatedBytes >= 0L) {
+            out.printf("; allocated %.1f MB (%.1f MB/s)",
+                    runtimeStats.allocatedBytes / 1_048_576.0,
+                    runtimeStats.allocatedBytes / 1_048_576.0 / scenario.durationSeconds);
+        }
+        out.println();
+    }
+
+    private static void printRow(@Nonnull PrintStream out,
+                                 @Nonnull String name,
+                                 @Nonnull Histogram latency,
+                                 @Nonnull Histogram serviceTime,
+                                 long errors,
+                                 long dropped,
+                                 int durationSeconds) {
+        out.printf("%-14s %9d %7d %7d %10.1f", name, latency.getTotalCount(), errors, dropped, (double) latency.getTotalCount() / durationSeconds);
+        for (double percentile : PERCENTILES) {
+            out.printf(" %9.2f", latency.getValueAtPercentile(percentile) / 1000.0);
+        }
+        out.printf(" %9.2f %12.2f%n", latency.getMaxValue() / 1000.0, serviceTime.getValueAtPercentile(99.0) / 1000.0);
+    }
+
+    /**
+     * Measurements of one operation.
+     */
+    private static final class OperationStats {
+
+        /**
+         * From scheduled start to response; corrected for coordinated omission.
+         */
+        final Histogram latencyMicros = new ConcurrentHistogram(3);
+
+        /**
+         * From actual start to response.
+         */
+        final Histogram serviceTimeMicros = new ConcurrentHistogram(3);
+
+        final LongAdder errors = new LongAdder();
+
+        final LongAdder dropped = new LongAdder();
+
+        void record(long latencyNanos, long serviceTimeNanos, boolean error) {
+            latencyMicros.recordValue(NANOSECONDS.toMicros(latencyNanos));
+            serviceTimeMicros.recordValue(NANOSECONDS.toMicros(serviceTimeNanos));
+            if (error) {
+                errors.increment();
+            }
+        }
+    }
+}
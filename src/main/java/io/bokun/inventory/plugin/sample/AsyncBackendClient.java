@@ -0,0 +1,149 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.common.util.concurrent.*;
+import com.squareup.okhttp.*;
+import io.grpc.Context;
+import io.grpc.Status;
+
+/**
+ * <p>Calls one backend without blocking the caller: every call returns a {@link CompletableFuture}, completed from OkHttp's callback once the
+ * response has been read. Handlers can thus start several backend calls at once and combine their results, completing the
+ * <tt>StreamObserver</tt> (or REST response) from the callback instead of holding a thread while waiting, e.g.:
+ * <pre>
+ *     AsyncBackendClient backend = backendClients.async(configuration);
+ *     CompletableFuture&lt;Product&gt; product = backend.get(
+ *             backend.newUrlBuilder().addPathSegment("products").addPathSegment(productId).build(),
+ *             ResponseReader.json(codec, Product.class)
+ *     );
+ *     CompletableFuture&lt;Prices&gt; prices = backend.get(...);
+ *     return product.thenCombine(prices, (p, r) -&gt; ...);
+ * </pre>
+ * </p>
+ *
+ * <p>Requests are sent with Basic authorization of the configured user. The calls themselves run on dispatcher threads of the backend's
+ * {@link OkHttpClient}, at most <tt>SAMPLE_BACKEND_MAX_CONNECTIONS</tt> at once (see {@link BackendClients}); calls over that wait in the
+ * dispatcher's queue, holding no thread.</p>
+ *
+ * <p>Clients obtained while serving a gRPC call are bound to it: backend calls follow its deadline and are aborted once it is cancelled, same
+ * as {@link BackendClients#newCall(Configuration, Request)}. Cancelling returned future aborts the backend call as well. Futures fail with
+ * {@link BackendCallException} when the backend could not be called or responded with error status.</p>
+ */
+public class AsyncBackendClient {
+
+    private final Configuration configuration;
+
+    private final OkHttpClient client;
+
+    /**
+     * Context of the gRPC call this client is bound to, {@link Context#ROOT} if none.
+     */
+    private final Context context;
+
+    AsyncBackendClient(@Nonnull Configuration configuration, @Nonnull OkHttpClient client, @Nonnull Context context) {
+        this.configuration = configuration;
+        this.client = client;
+        this.context = context;
+    }
+
+    /**
+     * @return builder of backend URL, starting with scheme, host, port and API path of the configuration.
+     */
+    @Nonnull
+    public HttpUrl.Builder newUrlBuilder() {
+        return configuration.getBaseUrl().newBuilder();
+    }
+
+    /**
+     * Same as {@link #call(Request, ResponseReader)} for <tt>GET</tt> request of given URL.
+     */
+    @Nonnull
+    public <T> CompletableFuture<T> get(@Nonnull HttpUrl url, @Nonnull ResponseReader<T> reader) {
+        return call(new Request.Builder().url(url).get().build(), reader);
+    }
+
+    /**
+     * Starts backend call and returns right away.
+     *
+     * @param reader reads response body; runs on dispatcher thread, once the backend has responded with success status.
+     * @return future of what the reader has read.
+     */
+    @Nonnull
+    public <T> CompletableFuture<T> call(@Nonnull Request request, @Nonnull ResponseReader<T> reader) {
+        Call call = client.newCall(
+                request.newBuilder()
+                        .header("Authorization", configuration.getAuthorizationHeader())
+                        .build()
+        );
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Context.CancellationListener cancellation = cancelledContext -> call.cancel();
+        context.addListener(cancellation, MoreExecutors.directExecutor());
+        result.whenComplete((value, failure) -> {
+            // backend call may be long over by the time the gRPC call is, and the context may be a long lived one
+            context.removeListener(cancellation);
+            if (result.isCancelled()) {
+                call.cancel();
+            }
+        });
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Request request, IOException e) {
+                // guard and bound client already turn failures into BackendCallException, with proper status
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void onResponse(Response response) {
+                try (ResponseBody body = response.body()) {
+                    if (!response.isSuccessful()) {
+                        throw new BackendCallException(statusOf(response.code()));
+                    }
+                    result.complete(reader.read(body));
+                } catch (IOException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return status of plugin call failing because backend responded with given HTTP status code.
+     */
+    @Nonnull
+    private static Status statusOf(int code) {
+        Status status;
+        if (code >= 500) {
+            status = Status.UNAVAILABLE;
+        } else if (code == 404) {
+            status = Status.NOT_FOUND;
+        } else {
+            status = Status.INTERNAL;
+        }
+        return status.withDescription("Backend responded with HTTP status " + code);
+    }
+
+    /**
+     * Reads successful response of a backend call.
+     */
+    @FunctionalInterface
+    public interface ResponseReader<T> {
+
+        /**
+         * @param body response body, closed once this returns.
+         */
+        T read(@Nonnull ResponseBody body) throws IOException;
+
+        /**
+         * @return reader parsing JSON response into given type.
+         */
+        @Nonnull
+        static <T> ResponseReader<T> json(@Nonnull JsonCodec codec, @Nonnull Class<T> type) {
+            return body -> codec.read(body.byteStream(), type);
+        }
+    }
+}
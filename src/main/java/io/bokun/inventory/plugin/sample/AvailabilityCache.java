@@ -0,0 +1,399 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.annotation.*;
+
+import com.google.common.cache.*;
+import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
+import org.slf4j.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Caches product availability in front of the backend. Entries live for up to <tt>ttl</tt>; once older than <tt>refresh</tt>, the next read
+ * still gets the cached (stale) value but triggers reload on a background executor (stale-while-revalidate). Total size is bounded by the number
+ * of availability entries held, as reported by the weigher.</p>
+ *
+ * <p>Bookings change capacity, therefore entries of a product are dropped whenever we book, amend or cancel it (see
+ * {@link #invalidateProduct(Configuration, String)} and {@link #invalidateBooking(Configuration, String)}). Cached keys are indexed by backend and
+ * product, so that this only touches entries of that product. Loads and refreshes which started before the product was last invalidated may
+ * still return availability from before the booking; their results are not cached. Loads of the same key share one backend call (see
+ * {@link RequestCoalescer}), but not with calls started before the invalidation.</p>
+ *
+ * <p>Popular availability may also be loaded ahead of requests by {@link AvailabilityPrefetcher}.</p>
+ *
+ * <p>Instances are created by {@link AvailabilityCacheFactory}.</p>
+ *
+ * @param <V> cached value, e.g. {@link AvailabilitySlots}.
+ */
+public class AvailabilityCache<V> {
+
+    private static final Logger log = LoggerFactory.getLogger(AvailabilityCache.class);
+
+    /**
+     * How many booking confirmation codes to remember (so that cancellation, which only has the code, can find the product).
+     */
+    private static final int MAX_REMEMBERED_BOOKINGS = 100_000;
+
+    /**
+     * How many invalidated products to remember the generation of, see {@link #generations}.
+     */
+    private static final int MAX_REMEMBERED_GENERATIONS = 100_000;
+
+    private final Function<AvailabilityKey, CompletableFuture<V>> loader;
+
+    /**
+     * Shares one backend call between concurrent loads of the same key (also when caching is disabled), as long as its product has not been
+     * invalidated in the meantime.
+     */
+    private final RequestCoalescer<Load, V> coalescer;
+
+    /**
+     * Number of invalidations so far, of all products.
+     */
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Generation of products not in {@link #generations}: the latest one forgotten, so that loads which started before that are taken to be
+     * outdated.
+     */
+    private final AtomicLong forgottenGeneration = new AtomicLong();
+
+    /**
+     * Product -> its generation, i.e. value of {@link #invalidations} when it was last invalidated. Loads remember the generation they started
+     * in, so that those which started before an invalidation are told apart once they complete.
+     */
+    private final Cache<ProductKey, Long> generations = CacheBuilder.newBuilder()
+            .maximumSize(MAX_REMEMBERED_GENERATIONS)
+            .removalListener((RemovalListener<ProductKey, Long>) notification -> {
+                if (notification.wasEvicted()) {
+                    forgottenGeneration.accumulateAndGet(notification.getValue(), Math::max);
+                }
+            })
+            .build();
+
+    /**
+     * <tt>null</tt> if caching is disabled.
+     */
+    @Nullable
+    private final LoadingCache<AvailabilityKey, CompletableFuture<V>> cache;
+
+    /**
+     * <tt>null</tt> if prefetching (or caching) is disabled.
+     */
+    @Nullable
+    private final AvailabilityPrefetcher prefetcher;
+
+    /**
+     * Booking confirmation code -> product ID.
+     */
+    private final Cache<String, String> bookedProducts = CacheBuilder.newBuilder()
+            .maximumSize(MAX_REMEMBERED_BOOKINGS)
+            .build();
+
+    /**
+     * Backend -> product ID -> keys in {@link #cache}. Keys are added whenever returned by the cache, and removed once the cache no longer holds
+     * them; superfluous keys are harmless, missing ones are not (bookings would leave stale availability behind).
+     */
+    private final ConcurrentMap<Configuration, ConcurrentMap<String, Set<AvailabilityKey>>> cachedKeys = new ConcurrentHashMap<>();
+
+    AvailabilityCache(@Nonnull String name,
+                      @Nonnull Function<AvailabilityKey, CompletableFuture<V>> loader,
+                      @Nonnull ToIntFunction<V> weigher,
+                      long ttlSeconds,
+                      long refreshSeconds,
+                      long maxWeight,
+                      @Nonnull Executor refreshExecutor,
+                      @Nullable AvailabilityPrefetcher prefetcher) {
+        this.loader = loader;
+        this.coalescer = new RequestCoalescer<>(name);
+        if (ttlSeconds <= 0L) {
+            this.cache = null;
+            this.prefetcher = null;
+            return;
+        }
+        CacheBuilder<AvailabilityKey, CompletableFuture<V>> builder = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, SECONDS)
+                .maximumWeight(maxWeight)
+                .weigher((AvailabilityKey key, CompletableFuture<V> value) -> weigh(value, weigher))
+                .removalListener(notification -> {
+                    if (notification.getCause() != RemovalCause.REPLACED && notification.getKey() != null) {
+                        unindex(notification.getKey());
+                    }
+                });
+        if (refreshSeconds > 0L && refreshSeconds < ttlSeconds) {
+            builder.refreshAfterWrite(refreshSeconds, SECONDS);
+        }
+        this.cache = builder.build(new CacheLoader<AvailabilityKey, CompletableFuture<V>>() {
+            @Override
+            public CompletableFuture<V> load(@Nonnull AvailabilityKey key) {
+                return loadAndTrack(key);
+            }
+
+            @Override
+            public ListenableFuture<CompletableFuture<V>> reload(@Nonnull AvailabilityKey key, @Nonnull CompletableFuture<V> oldValue) {
+                // old value keeps being served until the returned future completes; failed reload keeps old value
+                SettableFuture<CompletableFuture<V>> reloaded = SettableFuture.create();
+                long generation = generation(key);
+                CompletableFuture.supplyAsync(() -> loadShared(key, generation), refreshExecutor)
+                        .thenCompose(Function.identity())
+                        .whenComplete((value, failure) -> {
+                            if (failure != null) {
+                                log.warn("Could not refresh availability {}", key, failure);
+                                reloaded.setException(failure);
+                                return;
+                            }
+                            Loaded<V> loaded = Loaded.of(value);
+                            // the cache stores refreshed value right away, even if the entry has been invalidated since
+                            reloaded.set(loaded);
+                            if (generation(key) != generation) {
+                                log.debug("Dropping availability {} refreshed before its product was invalidated", key);
+                                cache.asMap().remove(key, loaded);
+                            }
+                        });
+                return reloaded;
+            }
+        });
+        this.prefetcher = prefetcher;
+        if (prefetcher != null) {
+            prefetcher.start(key -> cache.getIfPresent(key) != null, this::getCached);
+        }
+    }
+
+    private static <V> int weigh(@Nonnull CompletableFuture<V> value, @Nonnull ToIntFunction<V> weigher) {
+        // anything but loaded value is weighed again once completed, see settle
+        return (value instanceof Loaded) ? 1 + weigher.applyAsInt(value.join()) : 1;
+    }
+
+    /**
+     * @return current generation of the product of given key, see {@link #generations}.
+     */
+    private long generation(@Nonnull AvailabilityKey key) {
+        Long generation = generations.getIfPresent(new ProductKey(key.configuration, key.productId));
+        return (generation != null) ? generation : forgottenGeneration.get();
+    }
+
+    /**
+     * Loads value from the backend, sharing the call with concurrent loads of the same key and generation.
+     */
+    @Nonnull
+    private CompletableFuture<V> loadShared(@Nonnull AvailabilityKey key, long generation) {
+        return coalescer.execute(new Load(key, generation), load -> loader.apply(load.key));
+    }
+
+    /**
+     * Loads value for the cache, see {@link #settle(AvailabilityKey, CompletableFuture)}.
+     */
+    @Nonnull
+    private CompletableFuture<V> loadAndTrack(@Nonnull AvailabilityKey key) {
+        long generation = generation(key);
+        Loading<V> loading = new Loading<>(generation);
+        loadShared(key, generation).whenComplete((value, failure) -> {
+            if (failure != null) {
+                loading.completeExceptionally(failure);
+            } else {
+                loading.complete(value);
+            }
+            settle(key, loading);
+        });
+        return loading;
+    }
+
+    /**
+     * Once loading future completes, replaces it in the cache with {@link Loaded} value, so that it gets weighed (or drops it, as failures and
+     * values loaded before the product was invalidated are not cached). Called both when the future completes and when it is returned by the
+     * cache, as it may complete before the cache stores it.
+     */
+    private void settle(@Nonnull AvailabilityKey key, @Nonnull CompletableFuture<V> future) {
+        if (!future.isDone() || !(future instanceof Loading)) {
+            return;
+        }
+        if (future.isCompletedExceptionally() || ((Loading<V>) future).generation != generation(key)) {
+            cache.asMap().remove(key, future);
+        } else {
+            cache.asMap().replace(key, future, Loaded.of(future.join()));
+        }
+    }
+
+    /**
+     * @return cached value, loading it if necessary.
+     */
+    @Nonnull
+    private CompletableFuture<V> getCached(@Nonnull AvailabilityKey key) {
+        CompletableFuture<V> value = cache.getUnchecked(key);
+        if (value instanceof Loading && ((Loading<V>) value).generation != generation(key)) {
+            // load which started before its product was invalidated, yet was not indexed by then
+            cache.asMap().remove(key, value);
+            value = cache.getUnchecked(key);
+        }
+        // after the cache stores the entry, so that removal of an earlier entry with the same key does not unindex it, see unindex
+        index(key);
+        settle(key, value);
+        if (value instanceof Loading && !value.isDone()) {
+            // joins the backend call rather than just waiting for it, so that it is not cancelled while this caller still waits
+            return loadShared(key, ((Loading<V>) value).generation);
+        }
+        return value;
+    }
+
+    private void index(@Nonnull AvailabilityKey key) {
+        ConcurrentMap<String, Set<AvailabilityKey>> products = cachedKeys.get(key.configuration);
+        if (products == null) {
+            products = cachedKeys.computeIfAbsent(key.configuration, configuration -> new ConcurrentHashMap<>());
+        }
+        Set<AvailabilityKey> keys = products.get(key.productId);
+        if (keys != null && keys.contains(key)) {
+            return;
+        }
+        products.compute(key.productId, (productId, indexed) -> {
+            Set<AvailabilityKey> updated = (indexed != null) ? indexed : ConcurrentHashMap.newKeySet();
+            updated.add(key);
+            return updated;
+        });
+    }
+
+    /**
+     * Called when entry is removed; keeps the key if the cache holds it again, as removal notifications may come late. Key being loaded again is
+     * indexed by {@link #getCached(AvailabilityKey)} once the cache returns it.
+     */
+    private void unindex(@Nonnull AvailabilityKey key) {
+        ConcurrentMap<String, Set<AvailabilityKey>> products = cachedKeys.get(key.configuration);
+        if (products != null) {
+            products.computeIfPresent(key.productId, (productId, keys) -> {
+                if (!cache.asMap().containsKey(key)) {
+                    keys.remove(key);
+                }
+                return keys.isEmpty() ? null : keys;
+            });
+        }
+    }
+
+    /**
+     * Returns cached availability, loading it from the backend if necessary.
+     */
+    @Nonnull
+    public CompletableFuture<V> get(@Nonnull AvailabilityKey key) {
+        if (cache == null) {
+            return loadShared(key, 0L);
+        }
+        if (prefetcher != null) {
+            prefetcher.requested(key);
+        }
+        return getCached(key);
+    }
+
+    /**
+     * Drops all cached availability of given product, and makes sure availability being loaded for it right now is not cached.
+     */
+    public void invalidateProduct(@Nonnull Configuration configuration, @Nonnull String productId) {
+        if (cache == null) {
+            return;
+        }
+        // before the entries go, so that loads starting in between do not join calls of the previous generation
+        generations.put(new ProductKey(configuration, productId), invalidations.incrementAndGet());
+        ConcurrentMap<String, Set<AvailabilityKey>> products = cachedKeys.get(configuration);
+        Set<AvailabilityKey> keys = (products != null) ? products.get(productId) : null;
+        if (keys != null) {
+            cache.invalidateAll(ImmutableList.copyOf(keys));
+        }
+    }
+
+    /**
+     * Remembers which product booking belongs to, so that availability can be invalidated when the booking changes later on.
+     */
+    public void bookingConfirmed(@Nonnull Configuration configuration, @Nonnull String bookingConfirmationCode, @Nonnull String productId) {
+        bookedProducts.put(bookingConfirmationCode, productId);
+        invalidateProduct(configuration, productId);
+    }
+
+    /**
+     * Drops cached availability of the product given booking was made for. If the booking is not known (e.g. it was made before restart),
+     * drops all cached availability of the backend.
+     */
+    public void invalidateBooking(@Nonnull Configuration configuration, @Nonnull String bookingConfirmationCode) {
+        if (cache == null) {
+            return;
+        }
+        String productId = bookedProducts.getIfPresent(bookingConfirmationCode);
+        if (productId != null) {
+            invalidateProduct(configuration, productId);
+        } else {
+            ConcurrentMap<String, Set<AvailabilityKey>> products = cachedKeys.get(configuration);
+            if (products != null) {
+                products.keySet().forEach(cachedProductId -> invalidateProduct(configuration, cachedProductId));
+            }
+        }
+    }
+
+    /**
+     * Shares backend calls between concurrent loads, see {@link #coalescer}.
+     */
+    @Nonnull
+    RequestCoalescer<?, V> getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Value being loaded, as stored in the cache until loaded (see {@link #settle(AvailabilityKey, CompletableFuture)}).
+     */
+    private static final class Loading<V> extends CompletableFuture<V> {
+
+        /**
+         * Generation of the product when loading started.
+         */
+        private final long generation;
+
+        Loading(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Successfully loaded value, as opposed to a future which was still loading when stored in the cache.
+     */
+    private static final class Loaded<V> extends CompletableFuture<V> {
+
+        @Nonnull
+        static <V> Loaded<V> of(V value) {
+            Loaded<V> loaded = new Loaded<>();
+            loaded.complete(value);
+            return loaded;
+        }
+    }
+
+    /**
+     * Key of coalesced loads: loads of a product which has been invalidated since do not join the call.
+     */
+    private static final class Load {
+
+        private final AvailabilityKey key;
+        private final long generation;
+
+        Load(@Nonnull AvailabilityKey key, long generation) {
+            this.key = key;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Load)) {
+                return false;
+            }
+            Load that = (Load) o;
+            return generation == that.generation && key.equals(that.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * key.hashCode() + Long.hashCode(generation);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.time.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import javax.annotation.*;
+
+import com.google.common.util.concurrent.*;
+import com.google.inject.*;
+import com.google.inject.name.*;
+
+/**
+ * <p>Creates {@link AvailabilityCache}s configured by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_AVAILABILITY_CACHE_TTL</tt> - max age of cached availability, in seconds; <tt>0</tt> disables caching;</li>
+ *     <li><tt>SAMPLE_AVAILABILITY_CACHE_REFRESH</tt> - age (in seconds) after which cached availability is refreshed in the background, while
+ *     the stale value is still being served;</li>
+ *     <li><tt>SAMPLE_AVAILABILITY_CACHE_MAX_ENTRIES</tt> - memory budget of each cache, expressed as total number of availability entries (one
+ *     date/time slot each) held;</li>
+ *     <li><tt>SAMPLE_AVAILABILITY_CACHE_REFRESH_THREADS</tt> - number of threads doing background refreshes.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>Caches may be warmed by {@link AvailabilityPrefetcher}, configured by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_PREFETCH_INTERVAL</tt> - seconds between prefetch rounds; <tt>0</tt> (default) disables prefetching;</li>
+ *     <li><tt>SAMPLE_PREFETCH_MAX_LOADS</tt> - max number of availability windows loaded by one round;</li>
+ *     <li><tt>SAMPLE_PREFETCH_MAX_CONCURRENCY</tt> - max number of prefetch loads in flight;</li>
+ *     <li><tt>SAMPLE_PREFETCH_MIN_REQUESTS</tt> - how many times a window has to be requested (with counts halved every round within prefetch
+ *     hours) to get prefetched;</li>
+ *     <li><tt>SAMPLE_PREFETCH_DAYS_AHEAD</tt> - how many following days' windows are prefetched as well as today's, once their day starts
+ *     within cache TTL;</li>
+ *     <li><tt>SAMPLE_PREFETCH_HOURS</tt> - UTC hours when prefetching runs, e.g. <tt>1-6</tt>; <tt>0-24</tt> means all day.</li>
+ * </ul>
+ * </p>
+ */
+@Singleton
+public class AvailabilityCacheFactory {
+
+    private final long ttlSeconds;
+    private final long refreshSeconds;
+    private final long maxEntries;
+    private final ExecutorService refreshExecutor;
+
+    private final long prefetchIntervalSeconds;
+    private final int prefetchMaxLoads;
+    private final int prefetchMaxConcurrency;
+    private final int prefetchMinRequests;
+    private final int prefetchDaysAhead;
+    private final String prefetchHours;
+
+    /**
+     * Runs prefetch rounds; <tt>null</tt> if prefetching is disabled.
+     */
+    @Nullable
+    private final ScheduledExecutorService prefetchScheduler;
+
+    private final PluginMetrics metrics;
+
+    @Inject
+    public AvailabilityCacheFactory(@Named("SAMPLE_AVAILABILITY_CACHE_TTL") long ttlSeconds,
+                                    @Named("SAMPLE_AVAILABILITY_CACHE_REFRESH") long refreshSeconds,
+                                    @Named("SAMPLE_AVAILABILITY_CACHE_MAX_ENTRIES") long maxEntries,
+                                    @Named("SAMPLE_AVAILABILITY_CACHE_REFRESH_THREADS") int refreshThreads,
+                                    @Named("SAMPLE_PREFETCH_INTERVAL") long prefetchIntervalSeconds,
+                                    @Named("SAMPLE_PREFETCH_MAX_LOADS") int prefetchMaxLoads,
+                                    @Named("SAMPLE_PREFETCH_MAX_CONCURRENCY") int prefetchMaxConcurrency,
+                                    @Named("SAMPLE_PREFETCH_MIN_REQUESTS") int prefetchMinRequests,
+                                    @Named("SAMPLE_PREFETCH_DAYS_AHEAD") int prefetchDaysAhead,
+                                    @Named("SAMPLE_PREFETCH_HOURS") String prefetchHours,
+                                    PluginMetrics metrics) {
+        this.ttlSeconds = ttlSeconds;
+        this.refreshSeconds = refreshSeconds;
+        this.maxEntries = maxEntries;
+        this.refreshExecutor = Executors.newFixedThreadPool(
+                refreshThreads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("availability-refresh-%d")
+                        .setDaemon(true)
+                        .build()
+        );
+        this.prefetchIntervalSeconds = prefetchIntervalSeconds;
+        this.prefetchMaxLoads = prefetchMaxLoads;
+        this.prefetchMaxConcurrency = prefetchMaxConcurrency;
+        this.prefetchMinRequests = prefetchMinRequests;
+        this.prefetchDaysAhead = prefetchDaysAhead;
+        this.prefetchHours = prefetchHours;
+        // rounds wait for free prefetch slots, so every cache (one per plugin) gets a thread
+        this.prefetchScheduler = (prefetchIntervalSeconds <= 0L) ? null : Executors.newScheduledThreadPool(
+                2,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("availability-prefetch-%d")
+                        .setDaemon(true)
+                        .build()
+        );
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param name    what is being cached, e.g. <tt>grpc.getProductAvailability</tt>; used for monitoring.
+     * @param loader  fetches availability from the backend; concurrent identical loads share one call.
+     * @param weigher returns number of availability entries in the value.
+     * @return new, empty cache.
+     */
+    @Nonnull
+    public <V> AvailabilityCache<V> create(@Nonnull String name,
+                                           @Nonnull Function<AvailabilityKey, CompletableFuture<V>> loader,
+                                           @Nonnull ToIntFunction<V> weigher) {
+        AvailabilityPrefetcher prefetcher = null;
+        if (prefetchScheduler != null && ttlSeconds > 0L) {
+            prefetcher = new AvailabilityPrefetcher(
+                    name,
+                    prefetchIntervalSeconds,
+                    prefetchMaxLoads,
+                    prefetchMaxConcurrency,
+                    prefetchMinRequests,
+                    prefetchDaysAhead,
+                    prefetchHours,
+                    ttlSeconds,
+                    Clock.systemUTC(),
+                    prefetchScheduler
+            );
+            metrics.register(prefetcher);
+        }
+        AvailabilityCache<V> cache = new AvailabilityCache<>(
+                name, loader, weigher, ttlSeconds, refreshSeconds, maxEntries, refreshExecutor, prefetcher
+        );
+        metrics.register(cache.getCoalescer());
+        return cache;
+    }
+}
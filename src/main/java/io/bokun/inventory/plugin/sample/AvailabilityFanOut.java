@@ -0,0 +1,317 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.annotation.*;
+
+import com.google.common.cache.*;
+import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
+import com.google.inject.*;
+import com.google.inject.name.*;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import org.slf4j.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Checks availability of many products in parallel, for {@code getAvailableProducts}. Product IDs are split into batches which are checked
+ * concurrently, yet no more than a fixed number of batches per backend are in flight at any time (across all requests). Results are passed on as
+ * soon as each batch completes. Products not checked by the deadline (or whose batch failed) are reported with
+ * <tt>actualCheckDone=false</tt> instead of failing the whole call.</p>
+ *
+ * <p>Batches over the per-backend limit wait in a queue rather than on a thread: each batch is started when an earlier one completes (or runs
+ * out of time, so that a check which never completes does not hold its slot forever). Threads are therefore only busy while checks start, and
+ * many big requests to a slow backend can not hold up requests to other backends.</p>
+ *
+ * <p>Batches are checked in the gRPC context of the caller, so that their backend calls are aborted once the call is cancelled, see
+ * {@link BackendClients#newCall(Configuration, com.squareup.okhttp.Request)}; batches not started by then are not started at all.</p>
+ *
+ * <p>Configured by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_FANOUT_BATCH_SIZE</tt> - max number of products checked by one backend call;</li>
+ *     <li><tt>SAMPLE_FANOUT_MAX_CONCURRENCY</tt> - max number of batches in flight per backend;</li>
+ *     <li><tt>SAMPLE_FANOUT_DEADLINE</tt> - how long (in milliseconds) to wait for all batches of one request, at most (less if the gRPC
+ *     deadline of the request is nearer);</li>
+ *     <li><tt>SAMPLE_FANOUT_THREADS</tt> - number of threads starting checks of batches.</li>
+ * </ul>
+ * </p>
+ */
+@Singleton
+public class AvailabilityFanOut {
+
+    private static final Logger log = LoggerFactory.getLogger(AvailabilityFanOut.class);
+
+    private final int batchSize;
+    private final long deadlineMillis;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Limits number of batches in flight per backend.
+     */
+    private final LoadingCache<Configuration, BackendPermits> backendPermits;
+
+    @Inject
+    public AvailabilityFanOut(@Named("SAMPLE_FANOUT_BATCH_SIZE") int batchSize,
+                              @Named("SAMPLE_FANOUT_MAX_CONCURRENCY") int maxConcurrency,
+                              @Named("SAMPLE_FANOUT_DEADLINE") long deadlineMillis,
+                              @Named("SAMPLE_FANOUT_THREADS") int threads) {
+        this.batchSize = batchSize;
+        this.deadlineMillis = deadlineMillis;
+        this.executor = Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder().setNameFormat("availability-fanout-%d").setDaemon(true).build()
+        );
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("availability-fanout-deadline").setDaemon(true).build()
+        );
+        this.backendPermits = CacheBuilder.newBuilder()
+                .expireAfterAccess(10L, MINUTES)
+                .build(CacheLoader.from(configuration -> new BackendPermits(maxConcurrency)));
+    }
+
+    /**
+     * Checks availability of given products.
+     *
+     * @param configuration backend to check.
+     * @param productIds    products to check.
+     * @param checkBatch    checks a batch of products with the backend; may omit products which are not available.
+     * @param notChecked    creates result for a product which could not be checked in time.
+     * @param productIdOf   returns product ID of a result.
+     * @param onResult      receives results as they become available; never called concurrently and never after returned future completes.
+     * @return future which completes once all products have been reported (checked, not available or not checked); fails only if
+     * <tt>onResult</tt> throws (e.g. once the client has gone), and nothing more is reported then.
+     */
+    @Nonnull
+    public <R> CompletableFuture<Void> execute(@Nonnull Configuration configuration,
+                                               @Nonnull List<String> productIds,
+                                               @Nonnull Function<List<String>, CompletableFuture<List<R>>> checkBatch,
+                                               @Nonnull Function<String, R> notChecked,
+                                               @Nonnull Function<R, String> productIdOf,
+                                               @Nonnull Consumer<R> onResult) {
+        FanOut<R> fanOut = new FanOut<>(productIds, notChecked, productIdOf, onResult);
+        if (fanOut.isDone()) {
+            return fanOut.done;
+        }
+        List<List<String>> batches = Lists.partition(ImmutableList.copyOf(new LinkedHashSet<>(productIds)), batchSize);
+        // batches run on behalf of the caller, so that their backend calls follow its gRPC deadline and cancellation
+        Context context = Context.current();
+        long remainingMillis = remainingMillis(context);
+        long deadlineNanos = System.nanoTime() + MILLISECONDS.toNanos(remainingMillis);
+        ScheduledFuture<?> timeout = scheduler.schedule(fanOut::expire, remainingMillis, MILLISECONDS);
+        fanOut.done.whenComplete((ignored, failure) -> timeout.cancel(false));
+
+        BackendPermits permits = backendPermits.getUnchecked(configuration);
+        for (List<String> batch : batches) {
+            permits.submit(context.wrap(() -> runBatch(fanOut, batch, checkBatch, permits, deadlineNanos)));
+        }
+        return fanOut.done;
+    }
+
+    /**
+     * @return time left to check products, i.e. configured deadline, unless the caller's gRPC deadline is nearer.
+     */
+    private long remainingMillis(@Nonnull Context context) {
+        Deadline callerDeadline = context.getDeadline();
+        if (callerDeadline == null) {
+            return deadlineMillis;
+        }
+        return Math.max(0L, Math.min(deadlineMillis, callerDeadline.timeRemaining(MILLISECONDS)));
+    }
+
+    /**
+     * Checks one batch, holding a permit which is released once the check completes or its time is up.
+     */
+    private <R> void runBatch(@Nonnull FanOut<R> fanOut,
+                              @Nonnull List<String> batch,
+                              @Nonnull Function<List<String>, CompletableFuture<List<R>>> checkBatch,
+                              @Nonnull BackendPermits permits,
+                              long deadlineNanos) {
+        long remainingNanos = deadlineNanos - System.nanoTime();
+        if (fanOut.isDone() || remainingNanos <= 0L || Context.current().isCancelled()) {
+            permits.release();
+            return;                                                 // products of this batch will be reported as not checked
+        }
+        CompletableFuture<List<R>> results = check(checkBatch, batch);
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                permits.release();
+            }
+        };
+        // nobody waits for the results past the deadline, so neither does the permit
+        ScheduledFuture<?> timeout = scheduler.schedule(release, remainingNanos, NANOSECONDS);
+        results.whenComplete((batchResults, failure) -> {
+            timeout.cancel(false);
+            release.run();
+            if (failure != null) {
+                log.warn("Could not check availability of {}", batch, failure);
+                fanOut.batchFailed(batch);
+            } else {
+                fanOut.batchCompleted(batch, batchResults);
+            }
+        });
+    }
+
+    /**
+     * Starts check of given batch, turning synchronously thrown exceptions into failed future.
+     */
+    @Nonnull
+    private static <R> CompletableFuture<List<R>> check(@Nonnull Function<List<String>, CompletableFuture<List<R>>> checkBatch,
+                                                        @Nonnull List<String> batch) {
+        try {
+            return checkBatch.apply(batch);
+        } catch (RuntimeException e) {
+            CompletableFuture<List<R>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /**
+     * Non-blocking semaphore of one backend: batches over the limit are queued, and started by the executor once a permit is released.
+     */
+    private final class BackendPermits {
+
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+        private int available;
+
+        BackendPermits(int permits) {
+            this.available = permits;
+        }
+
+        /**
+         * Runs given batch on the executor as soon as a permit is available; the batch must {@link #release()} it once done.
+         */
+        void submit(@Nonnull Runnable batch) {
+            synchronized (this) {
+                if (available == 0) {
+                    waiting.add(batch);
+                    return;
+                }
+                available--;
+            }
+            executor.execute(batch);
+        }
+
+        /**
+         * Passes the permit on to the first waiting batch, if any.
+         */
+        void release() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    available++;
+                    return;
+                }
+            }
+            executor.execute(next);
+        }
+    }
+
+    /**
+     * State of one {@link #execute} call. All state changes happen while holding the monitor.
+     */
+    private static final class FanOut<R> {
+
+        private final Set<String> pending;
+        private final Function<String, R> notChecked;
+        private final Function<R, String> productIdOf;
+        private final Consumer<R> onResult;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        FanOut(List<String> productIds, Function<String, R> notChecked, Function<R, String> productIdOf, Consumer<R> onResult) {
+            this.pending = new LinkedHashSet<>(productIds);
+            this.notChecked = notChecked;
+            this.productIdOf = productIdOf;
+            this.onResult = onResult;
+            if (pending.isEmpty()) {
+                done.complete(null);
+            }
+        }
+
+        synchronized boolean isDone() {
+            return done.isDone();
+        }
+
+        synchronized void batchCompleted(List<String> batch, List<R> results) {
+            if (done.isDone()) {
+                return;
+            }
+            Set<String> owned = claim(batch);
+            for (R result : results) {
+                if (owned.contains(productIdOf.apply(result)) && !pass(result)) {
+                    return;
+                }
+            }
+            completeIfNothingPending();
+        }
+
+        synchronized void batchFailed(List<String> batch) {
+            if (done.isDone()) {
+                return;
+            }
+            for (String productId : claim(batch)) {
+                if (!pass(notChecked.apply(productId))) {
+                    return;
+                }
+            }
+            completeIfNothingPending();
+        }
+
+        synchronized void expire() {
+            if (done.isDone()) {
+                return;
+            }
+            log.debug("{} product(s) not checked before deadline", pending.size());
+            for (String productId : new ArrayList<>(pending)) {
+                if (!pass(notChecked.apply(productId))) {
+                    return;
+                }
+            }
+            pending.clear();
+            done.complete(null);
+        }
+
+        /**
+         * Passes the result on. If that throws, fails the whole fan-out instead of leaving it never done, as nothing more can be passed on.
+         *
+         * @return whether to carry on.
+         */
+        private boolean pass(R result) {
+            try {
+                onResult.accept(result);
+                return true;
+            } catch (RuntimeException e) {
+                pending.clear();
+                done.completeExceptionally(e);
+                return false;
+            }
+        }
+
+        /**
+         * Removes batch products from pending ones, returning those which were still pending.
+         */
+        private Set<String> claim(List<String> batch) {
+            Set<String> owned = new HashSet<>();
+            for (String productId : batch) {
+                if (pending.remove(productId)) {
+                    owned.add(productId);
+                }
+            }
+            return owned;
+        }
+
+        private void completeIfNothingPending() {
+            if (pending.isEmpty()) {
+                done.complete(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.time.*;
+import java.util.*;
+
+import javax.annotation.*;
+
+/**
+ * Identifies availability of one product over a date range, as seen by one backend. Dates are encoded as <tt>yyyyMMdd</tt> integers.
+ */
+public final class AvailabilityKey {
+
+    final Configuration configuration;
+    final String productId;
+    final int fromDate;
+    final int toDate;
+
+    public AvailabilityKey(@Nonnull Configuration configuration, @Nonnull String productId, int fromDate, int toDate) {
+        this.configuration = configuration;
+        this.productId = productId;
+        this.fromDate = fromDate;
+        this.toDate = toDate;
+    }
+
+    /**
+     * Encodes date as <tt>yyyyMMdd</tt> integer, e.g. 2019-05-01 becomes 20190501. Values are not validated.
+     */
+    public static int encodeDate(int year, int month, int day) {
+        return year * 10_000 + month * 100 + day;
+    }
+
+    /**
+     * Reverse of {@link #encodeDate(int, int, int)}.
+     *
+     * @throws DateTimeException if value is not a valid date.
+     */
+    @Nonnull
+    public static LocalDate decodeDate(int date) {
+        return LocalDate.of(date / 10_000, date / 100 % 100, date % 100);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof AvailabilityKey)) {
+            return false;
+        }
+        AvailabilityKey that = (AvailabilityKey) o;
+        return fromDate == that.fromDate
+                && toDate == that.toDate
+                && productId.equals(that.productId)
+                && configuration.equals(that.configuration);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(configuration, productId, fromDate, toDate);
+    }
+
+    @Override
+    public String toString() {
+        return productId + "[" + fromDate + ".." + toDate + "]@" + configuration.host;
+    }
+}
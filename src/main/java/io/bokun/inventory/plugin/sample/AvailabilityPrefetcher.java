@@ -0,0 +1,317 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.time.*;
+import java.time.temporal.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.annotation.*;
+
+import com.google.common.cache.*;
+import com.google.common.collect.*;
+import org.slf4j.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Warms {@link AvailabilityCache} ahead of requests. The platform asks for availability of the same popular products day after day, each
+ * time over a window starting some days from today (e.g. the next 30 days). Such access patterns (backend, product, window start relative to
+ * today, window length) are counted as availability is requested. Every round, patterns requested at least <tt>minRequests</tt> times are
+ * turned back into date windows for today and the following <tt>daysAhead</tt> days, and windows not cached yet are loaded, most requested
+ * first. Counts are halved after each round, so patterns no longer requested cool down.</p>
+ *
+ * <p>Each round loads at most <tt>maxLoadsPerRound</tt> windows, with no more than <tt>maxConcurrency</tt> loads in flight, and only runs
+ * (and halves counts) within configured (UTC) hours, so that it can be kept to off-peak time while counts of the rest of the day are kept.
+ * Prefetched availability lives in the cache as long as any other, so the interval between rounds should be shorter than cache TTL, and windows
+ * of following days are only loaded once their day starts within cache TTL (e.g. shortly before midnight), as they would expire unused
+ * otherwise.</p>
+ *
+ * <p>Counts availability requests, prefetch loads (and their failures), and prefetched windows which were then requested (hits), see
+ * {@link PluginMetrics}.</p>
+ *
+ * <p>Instances are created by {@link AvailabilityCacheFactory}.</p>
+ */
+public class AvailabilityPrefetcher {
+
+    private static final Logger log = LoggerFactory.getLogger(AvailabilityPrefetcher.class);
+
+    /**
+     * How many distinct access patterns to count.
+     */
+    private static final int MAX_TRACKED_PATTERNS = 10_000;
+
+    private final String name;
+    private final long intervalSeconds;
+    private final int maxLoadsPerRound;
+    private final int minRequests;
+    private final int daysAhead;
+    private final int fromHour;
+    private final int toHour;
+    private final long cacheTtlSeconds;
+    private final Clock clock;
+    private final ScheduledExecutorService scheduler;
+
+    private final Semaphore permits;
+
+    private final Cache<AccessPattern, AtomicLong> requestCounts = CacheBuilder.newBuilder()
+            .maximumSize(MAX_TRACKED_PATTERNS)
+            .build();
+
+    /**
+     * Windows loaded by prefetching which have not been requested yet.
+     */
+    private final Cache<AvailabilityKey, Boolean> prefetched;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param name             what is being prefetched, e.g. <tt>grpc.getProductAvailability</tt>; used for monitoring.
+     * @param hours            UTC hours when prefetching runs, as <tt>from-to</tt> (e.g. <tt>1-6</tt>, or <tt>22-4</tt> across midnight).
+     * @param cacheTtlSeconds  max age of cached availability; windows which would not be requested by then are not prefetched, prefetched
+     *                         windows not requested by then are no longer counted as hits.
+     * @throws IllegalArgumentException if hours can not be parsed.
+     */
+    AvailabilityPrefetcher(@Nonnull String name,
+                           long intervalSeconds,
+                           int maxLoadsPerRound,
+                           int maxConcurrency,
+                           int minRequests,
+                           int daysAhead,
+                           @Nonnull String hours,
+                           long cacheTtlSeconds,
+                           @Nonnull Clock clock,
+                           @Nonnull ScheduledExecutorService scheduler) {
+        String[] fromAndTo = hours.trim().split("-");
+        if (fromAndTo.length != 2) {
+            throw new IllegalArgumentException("Prefetch hours must be given as from-to, e.g. 1-6, got " + hours);
+        }
+        this.name = name;
+        this.intervalSeconds = intervalSeconds;
+        this.maxLoadsPerRound = maxLoadsPerRound;
+        this.minRequests = minRequests;
+        this.daysAhead = daysAhead;
+        this.fromHour = Integer.parseInt(fromAndTo[0].trim());
+        this.toHour = Integer.parseInt(fromAndTo[1].trim());
+        this.cacheTtlSeconds = cacheTtlSeconds;
+        this.clock = clock;
+        this.scheduler = scheduler;
+        this.permits = new Semaphore(maxConcurrency);
+        this.prefetched = CacheBuilder.newBuilder()
+                .expireAfterWrite(cacheTtlSeconds, SECONDS)
+                .maximumSize((long) maxLoadsPerRound * 4L)
+                .build();
+    }
+
+    /**
+     * Starts prefetch rounds.
+     *
+     * @param isCached tells whether availability is already cached (or being loaded).
+     * @param load     loads availability into the cache.
+     */
+    void start(@Nonnull Predicate<AvailabilityKey> isCached, @Nonnull Function<AvailabilityKey, CompletableFuture<?>> load) {
+        scheduler.scheduleWithFixedDelay(() -> prefetch(isCached, load), intervalSeconds, intervalSeconds, SECONDS);
+    }
+
+    /**
+     * Counts availability request, called for every request served by the cache.
+     */
+    void requested(@Nonnull AvailabilityKey key) {
+        requests.increment();
+        if (prefetched.asMap().remove(key) != null) {
+            hits.increment();
+        }
+        AccessPattern pattern = AccessPattern.of(key, LocalDate.now(clock));
+        if (pattern != null) {
+            requestCounts.asMap().computeIfAbsent(pattern, ignored -> new AtomicLong()).incrementAndGet();
+        }
+    }
+
+    private void prefetch(@Nonnull Predicate<AvailabilityKey> isCached, @Nonnull Function<AvailabilityKey, CompletableFuture<?>> load) {
+        try {
+            if (!isPrefetchHour(LocalTime.now(clock).getHour())) {
+                return;
+            }
+            prefetchHotWindows(isCached, load);
+            for (AtomicLong count : requestCounts.asMap().values()) {
+                count.updateAndGet(value -> value / 2);
+            }
+            requestCounts.asMap().values().removeIf(count -> count.get() == 0L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // must not escape, as it would cancel further rounds
+            log.warn("Availability prefetch round of {} failed", name, e);
+        }
+    }
+
+    private void prefetchHotWindows(@Nonnull Predicate<AvailabilityKey> isCached,
+                                    @Nonnull Function<AvailabilityKey, CompletableFuture<?>> load) throws InterruptedException {
+        // counts keep changing, so sort a snapshot of them
+        List<Map.Entry<AccessPattern, Long>> hot = new ArrayList<>();
+        requestCounts.asMap().forEach((pattern, count) -> {
+            long requestCount = count.get();
+            if (requestCount >= minRequests) {
+                hot.add(Maps.immutableEntry(pattern, requestCount));
+            }
+        });
+        hot.sort(Map.Entry.<AccessPattern, Long>comparingByValue().reversed());
+
+        LocalDate today = LocalDate.now(clock);
+        int days = daysWithinCacheTtl(today);
+        int budget = maxLoadsPerRound;
+        for (Map.Entry<AccessPattern, Long> entry : hot) {
+            for (int day = 0; day <= days; day++) {
+                AvailabilityKey key = entry.getKey().keyFor(today.plusDays(day));
+                if (isCached.test(key)) {
+                    continue;
+                }
+                if (budget-- <= 0) {
+                    return;
+                }
+                permits.acquire();
+                loads.increment();
+                prefetched.put(key, Boolean.TRUE);
+                CompletableFuture<?> loaded;
+                try {
+                    loaded = load.apply(key);
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+                loaded.whenComplete((value, failure) -> {
+                    permits.release();
+                    if (failure != null) {
+                        log.debug("Could not prefetch availability {}", key, failure);
+                        failures.increment();
+                        prefetched.invalidate(key);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * @return how many of the following <tt>daysAhead</tt> days start before availability prefetched now expires.
+     */
+    private int daysWithinCacheTtl(@Nonnull LocalDate today) {
+        Instant expiry = clock.instant().plusSeconds(cacheTtlSeconds);
+        int days = 0;
+        while (days < daysAhead && today.plusDays(days + 1).atStartOfDay(clock.getZone()).toInstant().isBefore(expiry)) {
+            days++;
+        }
+        return days;
+    }
+
+    private boolean isPrefetchHour(int hour) {
+        return (fromHour <= toHour) ? (hour >= fromHour && hour < toHour) : (hour >= fromHour || hour < toHour);
+    }
+
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of availability requests seen.
+     */
+    public long getRequestCount() {
+        return requests.sum();
+    }
+
+    /**
+     * @return number of windows loaded by prefetching.
+     */
+    public long getLoadCount() {
+        return loads.sum();
+    }
+
+    /**
+     * @return number of prefetch loads which failed.
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return number of requests served by prefetched availability.
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * Availability window of one product relative to the day it is requested on.
+     */
+    private static final class AccessPattern {
+
+        private final Configuration configuration;
+        private final String productId;
+        private final int startOffsetDays;
+        private final int lengthDays;
+
+        private AccessPattern(@Nonnull Configuration configuration, @Nonnull String productId, int startOffsetDays, int lengthDays) {
+            this.configuration = configuration;
+            this.productId = productId;
+            this.startOffsetDays = startOffsetDays;
+            this.lengthDays = lengthDays;
+        }
+
+        /**
+         * @return pattern of given request, or <tt>null</tt> if it is not worth prefetching (invalid dates, window in the past).
+         */
+        @Nullable
+        static AccessPattern of(@Nonnull AvailabilityKey key, @Nonnull LocalDate today) {
+            LocalDate from;
+            LocalDate to;
+            try {
+                from = AvailabilityKey.decodeDate(key.fromDate);
+                to = AvailabilityKey.decodeDate(key.toDate);
+            } catch (DateTimeException e) {
+                return null;
+            }
+            long startOffsetDays = ChronoUnit.DAYS.between(today, from);
+            long lengthDays = ChronoUnit.DAYS.between(from, to);
+            if (startOffsetDays < 0L || lengthDays < 0L) {
+                return null;
+            }
+            return new AccessPattern(key.configuration, key.productId, (int) startOffsetDays, (int) lengthDays);
+        }
+
+        @Nonnull
+        AvailabilityKey keyFor(@Nonnull LocalDate day) {
+            LocalDate from = day.plusDays(startOffsetDays);
+            LocalDate to = from.plusDays(lengthDays);
+            return new AvailabilityKey(
+                    configuration,
+                    productId,
+                    AvailabilityKey.encodeDate(from.getYear(), from.getMonthValue(), from.getDayOfMonth()),
+                    AvailabilityKey.encodeDate(to.getYear(), to.getMonthValue(), to.getDayOfMonth())
+            );
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof AccessPattern)) {
+                return false;
+            }
+            AccessPattern that = (AccessPattern) o;
+            return startOffsetDays == that.startOffsetDays
+                    && lengthDays == that.lengthDays
+                    && productId.equals(that.productId)
+                    && configuration.equals(that.configuration);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(configuration, productId, startOffsetDays, lengthDays);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.math.*;
+import java.util.*;
+
+import javax.annotation.*;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+
+/**
+ * <p>Availability of one product, as held by {@link AvailabilityCache}: slots (date, start time, capacity), each with its rates, each
+ * priced either per person (one price per pricing category) or per booking (one price). Plugins build responses from it on every request, so that the cache holds a few arrays per product instead of
+ * response objects (with their dates, times, rates, prices and strings) for every slot.</p>
+ *
+ * <p>Values are kept in columns of primitives, one entry per slot, rate or price; rates of slot <tt>i</tt> are <tt>rateStart(i)</tt> (inclusive)
+ * to <tt>rateStart(i + 1)</tt> (exclusive), same for prices of a rate. Dates are <tt>yyyyMMdd</tt> integers (see {@link AvailabilityKey}),
+ * times are minutes since midnight. Rate, pricing category and currency IDs are stored as codes of per-instance dictionaries, whose strings are
+ * interned across instances. Amounts are stored as unscaled <tt>long</tt> and number of decimals, so that {@link #amount(int)} gives back the
+ * very string the backend sent, e.g. <tt>100</tt> stays <tt>100</tt>; the few strings which do not come back that way (e.g. <tt>1E+2</tt>
+ * or <tt>0100</tt>) are kept as they are.</p>
+ *
+ * <p>Instances are immutable, therefore safe to share between threads.</p>
+ */
+public final class AvailabilitySlots {
+
+    /**
+     * Time of slots which have no start time, e.g. full day activities.
+     */
+    public static final int NO_TIME = -1;
+
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    /**
+     * Rate, pricing category and currency IDs are mostly the same across products and backends; one string each is enough.
+     */
+    private static final Interner<String> IDS = Interners.newWeakInterner();
+
+    // slots
+    private final int[] dates;
+    private final int[] times;
+    private final int[] capacities;
+    private final int[] rateStarts;
+
+    // rates
+    private final short[] rateIds;
+    private final int[] priceStarts;
+    private final BitSet pricedPerBooking;
+
+    // prices
+    private final short[] pricingCategoryIds;
+    private final short[] currencies;
+    private final long[] unscaledAmounts;
+    private final byte[] amountScales;
+
+    /**
+     * Amounts which can not be stored as unscaled value and scale, or would not come back as the same string, by price index.
+     */
+    private final Map<Integer, String> amountStrings;
+
+    // dictionaries
+    private final String[] rateIdDictionary;
+    private final String[] pricingCategoryIdDictionary;
+    private final String[] currencyDictionary;
+
+    private AvailabilitySlots(@Nonnull Builder builder) {
+        this.dates = Arrays.copyOf(builder.dates, builder.slotCount);
+        this.times = Arrays.copyOf(builder.times, builder.slotCount);
+        this.capacities = Arrays.copyOf(builder.capacities, builder.slotCount);
+        this.rateStarts = Arrays.copyOf(builder.rateStarts, builder.slotCount + 1);
+        this.rateStarts[builder.slotCount] = builder.rateCount;
+        this.rateIds = Arrays.copyOf(builder.rateIds, builder.rateCount);
+        this.priceStarts = Arrays.copyOf(builder.priceStarts, builder.rateCount + 1);
+        this.priceStarts[builder.rateCount] = builder.priceCount;
+        this.pricedPerBooking = (BitSet) builder.pricedPerBooking.clone();
+        this.pricingCategoryIds = Arrays.copyOf(builder.pricingCategoryIds, builder.priceCount);
+        this.currencies = Arrays.copyOf(builder.currencies, builder.priceCount);
+        this.unscaledAmounts = Arrays.copyOf(builder.unscaledAmounts, builder.priceCount);
+        this.amountScales = Arrays.copyOf(builder.amountScales, builder.priceCount);
+        this.amountStrings = builder.amountStrings.isEmpty() ? Collections.emptyMap() : new HashMap<>(builder.amountStrings);
+        this.rateIdDictionary = builder.rateIdDictionary.toArray();
+        this.pricingCategoryIdDictionary = builder.pricingCategoryIdDictionary.toArray();
+        this.currencyDictionary = builder.currencyDictionary.toArray();
+    }
+
+    @Nonnull
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Encodes time as minutes since midnight, e.g. 13:30 becomes 810.
+     */
+    public static int encodeTime(int hour, int minute) {
+        return hour * 60 + minute;
+    }
+
+    /**
+     * @return number of slots.
+     */
+    public int size() {
+        return dates.length;
+    }
+
+    /**
+     * @return date of given slot, as <tt>yyyyMMdd</tt> integer.
+     */
+    public int date(int slot) {
+        return dates[slot];
+    }
+
+    /**
+     * @return start time of given slot, in minutes since midnight, or {@link #NO_TIME}.
+     */
+    public int time(int slot) {
+        return times[slot];
+    }
+
+    public int capacity(int slot) {
+        return capacities[slot];
+    }
+
+    /**
+     * @return index of the first rate of given slot; rates of slot <tt>i</tt> end where rates of <tt>i + 1</tt> start (see class
+     * description), including the last slot.
+     */
+    public int rateStart(int slot) {
+        return rateStarts[slot];
+    }
+
+    @Nonnull
+    public String rateId(int rate) {
+        return rateIdDictionary[Short.toUnsignedInt(rateIds[rate])];
+    }
+
+    /**
+     * @return <tt>true</tt> if given rate has one price for the whole booking, which has no pricing category; <tt>false</tt> if it has a price
+     * per pricing category.
+     */
+    public boolean isPricedPerBooking(int rate) {
+        return pricedPerBooking.get(rate);
+    }
+
+    /**
+     * @return index of the first price of given rate; prices of rate <tt>i</tt> end where prices of <tt>i + 1</tt> start. Rates priced per
+     * booking have exactly one price.
+     */
+    public int priceStart(int rate) {
+        return priceStarts[rate];
+    }
+
+    /**
+     * @throws ArrayIndexOutOfBoundsException if given price belongs to a rate priced per booking.
+     */
+    @Nonnull
+    public String pricingCategoryId(int price) {
+        return pricingCategoryIdDictionary[Short.toUnsignedInt(pricingCategoryIds[price])];
+    }
+
+    @Nonnull
+    public String currency(int price) {
+        return currencyDictionary[Short.toUnsignedInt(currencies[price])];
+    }
+
+    /**
+     * @return amount of given price, same string as passed to the builder, e.g. <tt>100</tt> or <tt>12.50</tt>.
+     */
+    @Nonnull
+    public String amount(int price) {
+        String amount = amountStrings.get(price);
+        return (amount != null) ? amount : BigDecimal.valueOf(unscaledAmounts[price], amountScales[price]).toPlainString();
+    }
+
+    /**
+     * Collects availability slot by slot; every {@link #rate(String)} belongs to the last {@link #slot(int, int, int)}, every
+     * {@link #price(String, String, String)} or {@link #pricePerBooking(String, String)} to the last rate. Not thread-safe.
+     */
+    public static final class Builder {
+
+        private int slotCount;
+        private int[] dates = new int[16];
+        private int[] times = new int[16];
+        private int[] capacities = new int[16];
+        private int[] rateStarts = new int[17];
+
+        private int rateCount;
+        private short[] rateIds = new short[16];
+        private int[] priceStarts = new int[17];
+        private final BitSet pricedPerBooking = new BitSet();
+
+        private int priceCount;
+        private short[] pricingCategoryIds = new short[32];
+        private short[] currencies = new short[32];
+        private long[] unscaledAmounts = new long[32];
+        private byte[] amountScales = new byte[32];
+        private final Map<Integer, String> amountStrings = new HashMap<>();
+
+        private final Dictionary rateIdDictionary = new Dictionary("rate IDs");
+        private final Dictionary pricingCategoryIdDictionary = new Dictionary("pricing category IDs");
+        private final Dictionary currencyDictionary = new Dictionary("currencies");
+
+        private Builder() {
+        }
+
+        /**
+         * Starts next slot.
+         *
+         * @param date <tt>yyyyMMdd</tt>, see {@link AvailabilityKey#encodeDate(int, int, int)}.
+         * @param time minutes since midnight (see {@link #encodeTime(int, int)}), or {@link #NO_TIME}.
+         */
+        @Nonnull
+        public Builder slot(int date, int time, int capacity) {
+            if (slotCount == dates.length) {
+                int length = dates.length * 2;
+                dates = Arrays.copyOf(dates, length);
+                times = Arrays.copyOf(times, length);
+                capacities = Arrays.copyOf(capacities, length);
+                rateStarts = Arrays.copyOf(rateStarts, length + 1);
+            }
+            dates[slotCount] = date;
+            times[slotCount] = time;
+            capacities[slotCount] = capacity;
+            rateStarts[slotCount] = rateCount;
+            slotCount++;
+            return this;
+        }
+
+        /**
+         * Starts next rate of the last slot.
+         *
+         * @throws IllegalStateException if no slot has been started.
+         */
+        @Nonnull
+        public Builder rate(@Nonnull String rateId) {
+            Preconditions.checkState(slotCount > 0, "Rate must belong to a slot");
+            if (rateCount == rateIds.length) {
+                int length = rateIds.length * 2;
+                rateIds = Arrays.copyOf(rateIds, length);
+                priceStarts = Arrays.copyOf(priceStarts, length + 1);
+            }
+            rateIds[rateCount] = rateIdDictionary.encode(rateId);
+            priceStarts[rateCount] = priceCount;
+            rateCount++;
+            return this;
+        }
+
+        /**
+         * Adds price of one pricing category to the last rate, which is thereby priced per person.
+         *
+         * @param amount decimal amount, e.g. <tt>12.50</tt>.
+         * @throws IllegalStateException    if no rate has been started, or the last one is priced per booking.
+         * @throws IllegalArgumentException if amount is not a decimal number.
+         */
+        @Nonnull
+        public Builder price(@Nonnull String pricingCategoryId, @Nonnull String amount, @Nonnull String currency) {
+            Preconditions.checkState(rateCount > 0, "Price must belong to a rate");
+            Preconditions.checkState(!pricedPerBooking.get(rateCount - 1), "Rate is priced per booking");
+            addPrice(pricingCategoryIdDictionary.encode(pricingCategoryId), amount, currency);
+            return this;
+        }
+
+        /**
+         * Sets price of the last rate for the whole booking, regardless of pricing categories.
+         *
+         * @param amount decimal amount, e.g. <tt>12.50</tt>.
+         * @throws IllegalStateException    if no rate has been started, or the last one already has a price.
+         * @throws IllegalArgumentException if amount is not a decimal number.
+         */
+        @Nonnull
+        public Builder pricePerBooking(@Nonnull String amount, @Nonnull String currency) {
+            Preconditions.checkState(rateCount > 0, "Price must belong to a rate");
+            Preconditions.checkState(priceStarts[rateCount - 1] == priceCount, "Rate already has a price");
+            addPrice((short) 0, amount, currency);
+            pricedPerBooking.set(rateCount - 1);
+            return this;
+        }
+
+        private void addPrice(short pricingCategoryId, @Nonnull String amount, @Nonnull String currency) {
+            BigDecimal decimal = new BigDecimal(amount);
+            if (priceCount == currencies.length) {
+                int length = currencies.length * 2;
+                pricingCategoryIds = Arrays.copyOf(pricingCategoryIds, length);
+                currencies = Arrays.copyOf(currencies, length);
+                unscaledAmounts = Arrays.copyOf(unscaledAmounts, length);
+                amountScales = Arrays.copyOf(amountScales, length);
+            }
+            pricingCategoryIds[priceCount] = pricingCategoryId;
+            currencies[priceCount] = currencyDictionary.encode(currency);
+            if (decimal.scale() >= 0 && decimal.scale() <= Byte.MAX_VALUE && decimal.unscaledValue().bitLength() < Long.SIZE
+                    && decimal.toPlainString().equals(amount)) {
+                unscaledAmounts[priceCount] = decimal.unscaledValue().longValue();
+                amountScales[priceCount] = (byte) decimal.scale();
+            } else {
+                amountStrings.put(priceCount, amount);
+            }
+            priceCount++;
+        }
+
+        @Nonnull
+        public AvailabilitySlots build() {
+            return new AvailabilitySlots(this);
+        }
+    }
+
+    /**
+     * Assigns codes to distinct strings, in order of appearance.
+     */
+    private static final class Dictionary {
+
+        private final String name;
+
+        private final Map<String, Short> codes = new HashMap<>();
+
+        private final List<String> values = new ArrayList<>();
+
+        Dictionary(@Nonnull String name) {
+            this.name = name;
+        }
+
+        short encode(@Nonnull String value) {
+            Short code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            Preconditions.checkArgument(values.size() < MAX_DICTIONARY_SIZE, "Too many distinct %s", name);
+            code = (short) values.size();
+            codes.put(value, code);
+            values.add(IDS.intern(value));
+            return code;
+        }
+
+        @Nonnull
+        String[] toArray() {
+            return values.toArray(new String[0]);
+        }
+    }
+}
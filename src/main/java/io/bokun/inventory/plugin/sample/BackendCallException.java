@@ -0,0 +1,30 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+
+import javax.annotation.*;
+
+import io.grpc.Status;
+
+/**
+ * <p>Backend call which failed (or was not even attempted, see {@link BackendGuard}), along with the status plugin call failing because of it
+ * should respond with.</p>
+ *
+ * <p>The status is also set as the cause (with the original failure, if any, as its cause), so gRPC handlers pick it up with
+ * <tt>Status.fromThrowable(failure)</tt>, however deeply this exception is wrapped. REST handlers map it to HTTP status code, see
+ * {@link RestHandlers}.</p>
+ */
+public class BackendCallException extends IOException {
+
+    private final Status status;
+
+    public BackendCallException(@Nonnull Status status) {
+        super(status.getDescription(), status.asRuntimeException());
+        this.status = status;
+    }
+
+    @Nonnull
+    public Status getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,358 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.cache.*;
+import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
+import com.google.inject.*;
+import com.google.inject.name.*;
+import com.squareup.okhttp.*;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.Status;
+import org.slf4j.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Keeps a separate {@link OkHttpClient} (with its own connection pool, dispatcher and timeouts) for every distinct backend, so that one slow
+ * backend can not use up keep-alive connections or request slots of all the others. Backends are told apart by scheme, host, port and username of
+ * the {@link Configuration} sent with each request.</p>
+ *
+ * <p>Every backend gets its own instance of the limits below, configured by optional environment variables; limits of some backends may be set
+ * apart from the rest with <tt>SAMPLE_BACKEND_OVERRIDES</tt>:<ul>
+ *     <li><tt>SAMPLE_BACKEND_MAX_CONNECTIONS</tt> - max number of concurrent requests (and pooled idle connections) per backend; the actual
+ *     limit adapts to backend latency, see {@link BackendGuard};</li>
+ *     <li><tt>SAMPLE_BACKEND_CONNECT_TIMEOUT</tt> - connect timeout, in seconds;</li>
+ *     <li><tt>SAMPLE_BACKEND_READ_TIMEOUT</tt> - how long to wait (in seconds) for the backend to respond to requests;</li>
+ *     <li><tt>SAMPLE_BACKEND_IDLE_TIMEOUT</tt> - idle pooled connections are closed after this many seconds; clients of backends which have not
+ *     been used for this long are discarded altogether;</li>
+ *     <li><tt>SAMPLE_BACKEND_COMPRESSION</tt> - whether to ask backends for gzipped responses (<tt>true</tt> by default). OkHttp sends
+ *     <tt>Accept-Encoding: gzip</tt> and unzips responses transparently; turning this off saves CPU when backends are close by;</li>
+ *     <li><tt>SAMPLE_BACKEND_LATENCY_TARGET</tt> - backend calls taking longer than this many milliseconds lower the concurrency limit;</li>
+ *     <li><tt>SAMPLE_BACKEND_FAILURE_THRESHOLD</tt> - number of consecutive failed calls which opens the circuit breaker;</li>
+ *     <li><tt>SAMPLE_BACKEND_OPEN_TIMEOUT</tt> - how long (in seconds) the circuit stays open, failing calls right away;</li>
+ *     <li><tt>SAMPLE_BACKEND_OVERRIDES</tt> - limits of particular backends (told apart by host) which differ from the above, e.g.
+ *     <tt>slow.example.com:READ_TIMEOUT=60,MAX_CONNECTIONS=5;big.example.com:MAX_CONNECTIONS=100</tt>. Settings are named after the
+ *     variables above, without the <tt>SAMPLE_BACKEND_</tt> prefix; <tt>IDLE_TIMEOUT</tt> and <tt>COMPRESSION</tt> can not be overridden.
+ *     Empty by default.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>Clients of idle backends are discarded by a background task. A discarded client which is still being used (e.g. by a request which got
+ * it just before) keeps working: only its idle connections are closed, and its dispatcher threads end by themselves once idle for a minute.</p>
+ *
+ * <p>Backend calls made while serving a gRPC call follow its deadline and cancellation, rather than waiting for the full read timeout, see
+ * {@link #newCall(Configuration, Request)}. Handlers which would rather not block while waiting for the backend use
+ * {@link #async(Configuration)}.</p>
+ */
+@Singleton
+public class BackendClients {
+
+    private static final Logger log = LoggerFactory.getLogger(BackendClients.class);
+
+    /**
+     * HTTP/2 is used if the backend supports it (negotiated via ALPN over TLS), falling back to HTTP/1.1 otherwise.
+     */
+    private static final List<Protocol> PROTOCOLS = ImmutableList.of(Protocol.HTTP_2, Protocol.HTTP_1_1);
+
+    private final long idleTimeoutSeconds;
+    private final boolean compression;
+
+    /**
+     * Limits of backends not mentioned in {@link #overrides}.
+     */
+    private final Limits defaultLimits;
+
+    /**
+     * Backend host -> limits.
+     */
+    private final Map<String, Limits> overrides;
+
+    private final LoadingCache<BackendKey, OkHttpClient> clients;
+
+    @Inject
+    public BackendClients(@Named("SAMPLE_BACKEND_MAX_CONNECTIONS") int maxConnections,
+                          @Named("SAMPLE_BACKEND_CONNECT_TIMEOUT") long connectTimeoutSeconds,
+                          @Named("SAMPLE_BACKEND_READ_TIMEOUT") long readTimeoutSeconds,
+                          @Named("SAMPLE_BACKEND_IDLE_TIMEOUT") long idleTimeoutSeconds,
+                          @Named("SAMPLE_BACKEND_COMPRESSION") boolean compression,
+                          @Named("SAMPLE_BACKEND_LATENCY_TARGET") long latencyTargetMillis,
+                          @Named("SAMPLE_BACKEND_FAILURE_THRESHOLD") int failureThreshold,
+                          @Named("SAMPLE_BACKEND_OPEN_TIMEOUT") long openTimeoutSeconds,
+                          @Named("SAMPLE_BACKEND_OVERRIDES") String overrides) {
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        this.compression = compression;
+        this.defaultLimits = new Limits(
+                maxConnections, connectTimeoutSeconds, readTimeoutSeconds, latencyTargetMillis, failureThreshold, openTimeoutSeconds
+        );
+        this.overrides = parseOverrides(overrides, defaultLimits);
+        this.clients = CacheBuilder.newBuilder()
+                .expireAfterAccess(idleTimeoutSeconds, SECONDS)
+                .removalListener((RemovalListener<BackendKey, OkHttpClient>) notification -> discard(notification.getKey(), notification.getValue()))
+                .build(CacheLoader.from(this::createClient));
+
+        // expired clients are otherwise only noticed by later lookups, which may never come
+        long cleanUpIntervalSeconds = Math.max(1L, Math.min(60L, idleTimeoutSeconds));
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("backend-clients-cleanup").setDaemon(true).build()
+        );
+        cleaner.scheduleWithFixedDelay(clients::cleanUp, cleanUpIntervalSeconds, cleanUpIntervalSeconds, SECONDS);
+    }
+
+    /**
+     * Parses <tt>SAMPLE_BACKEND_OVERRIDES</tt>, see class documentation.
+     *
+     * @throws IllegalArgumentException if overrides are malformed.
+     */
+    @Nonnull
+    private static Map<String, Limits> parseOverrides(@Nonnull String overrides, @Nonnull Limits defaultLimits) {
+        Map<String, Limits> result = new HashMap<>();
+        for (String backend : Splitter.on(';').trimResults().omitEmptyStrings().split(overrides)) {
+            int colon = backend.indexOf(':');
+            Preconditions.checkArgument(colon > 0, "Backend override should be host:SETTING=value,..., got %s", backend);
+            Limits limits = defaultLimits;
+            for (Map.Entry<String, String> setting
+                    : Splitter.on(',').trimResults().withKeyValueSeparator('=').split(backend.substring(colon + 1)).entrySet()) {
+                limits = limits.with(setting.getKey().toUpperCase(), Long.parseLong(setting.getValue()));
+            }
+            result.put(backend.substring(0, colon), limits);
+            log.info("Backend {} has its own limits: {}", backend.substring(0, colon), limits);
+        }
+        return result;
+    }
+
+    /**
+     * Returns client dedicated to the backend described by given configuration, creating one if necessary. When called while serving a gRPC
+     * call, the client is bound to that call, see {@link #newCall(Configuration, Request)}.
+     */
+    @Nonnull
+    public OkHttpClient get(@Nonnull Configuration configuration) {
+        OkHttpClient client = clients.getUnchecked(new BackendKey(configuration));
+        Context context = Context.current();
+        // attached context of a gRPC call is never the cancellable one itself, but follows its cancellation; which contexts can be cancelled is
+        // not exposed, so only ROOT (which callers outside gRPC calls, and calls shared only by them, run in) uses the client as it is
+        return (context != Context.ROOT) ? boundTo(client, context) : client;
+    }
+
+    /**
+     * Prepares call to the backend described by given configuration. When called while serving a gRPC call, the backend call is bound to it:
+     * timeouts are cut down to the time left until its deadline, and the backend call is aborted as soon as the gRPC call is cancelled or
+     * its deadline passes, so that no connection slot is held for a response nobody will read.
+     *
+     * <p>Calls shared by several callers (see {@link RequestCoalescer}) are bound to a context of their own instead, which is cancelled once
+     * all their callers have gone.</p>
+     */
+    @Nonnull
+    public Call newCall(@Nonnull Configuration configuration, @Nonnull Request request) {
+        Call call = get(configuration).newCall(request);
+        // gRPC cancels the context of every call once it is over, so the listener does not outlive it
+        Context.current().addListener(context -> call.cancel(), MoreExecutors.directExecutor());
+        return call;
+    }
+
+    /**
+     * Returns client calling the backend described by given configuration without blocking, see {@link AsyncBackendClient}. When called while
+     * serving a gRPC call, its backend calls are bound to it, same as {@link #newCall(Configuration, Request)}.
+     */
+    @Nonnull
+    public AsyncBackendClient async(@Nonnull Configuration configuration) {
+        return new AsyncBackendClient(configuration, get(configuration), Context.current());
+    }
+
+    /**
+     * @return copy of the client (sharing connection pool and dispatcher) which does not wait past deadline of given context, and fails
+     * calls once the context is cancelled.
+     */
+    @Nonnull
+    private static OkHttpClient boundTo(@Nonnull OkHttpClient client, @Nonnull Context context) {
+        Deadline deadline = context.getDeadline();
+        OkHttpClient bound = client.clone();
+        boolean shortened = false;
+        if (deadline != null) {
+            long remainingMillis = Math.max(1L, deadline.timeRemaining(MILLISECONDS));
+            shortened = remainingMillis < Math.max(client.getConnectTimeout(), Math.max(client.getReadTimeout(), client.getWriteTimeout()));
+            bound.setConnectTimeout(Math.min(client.getConnectTimeout(), remainingMillis), MILLISECONDS);
+            bound.setReadTimeout(Math.min(client.getReadTimeout(), remainingMillis), MILLISECONDS);
+            bound.setWriteTimeout(Math.min(client.getWriteTimeout(), remainingMillis), MILLISECONDS);
+        }
+        boolean timeoutsShortened = shortened;
+        // behind the guard, which does not count failures of calls given up on against the backend
+        bound.interceptors().add(chain -> {
+            if (context.isCancelled()) {
+                throw givenUp(context, null);
+            }
+            try {
+                return chain.proceed(chain.request());
+            } catch (IOException e) {
+                // timeouts cut down to the deadline tell nothing about the backend, which still had time under its own timeouts
+                if (context.isCancelled()
+                        || (deadline != null && deadline.isExpired())
+                        || (timeoutsShortened && e instanceof InterruptedIOException)) {
+                    throw givenUp(context, e);
+                }
+                throw e;
+            }
+        });
+        return bound;
+    }
+
+    @Nonnull
+    private static BackendCallException givenUp(@Nonnull Context context, @Nullable IOException cause) {
+        Deadline deadline = context.getDeadline();
+        // cut down timeouts may fire a moment before the deadline itself expires
+        Status status = (deadline != null && (deadline.isExpired() || !context.isCancelled()))
+                ? Status.DEADLINE_EXCEEDED.withDescription("Deadline passed while calling backend")
+                : Status.CANCELLED.withDescription("Call cancelled while calling backend");
+        return new BackendCallException(status.withCause(cause));
+    }
+
+    @Nonnull
+    private OkHttpClient createClient(@Nonnull BackendKey key) {
+        Limits limits = overrides.getOrDefault(key.host, defaultLimits);
+        log.info("Creating HTTP client for backend {}", key);
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(limits.maxConnections);
+        dispatcher.setMaxRequestsPerHost(limits.maxConnections);
+
+        OkHttpClient client = new OkHttpClient();
+        client.setProtocols(PROTOCOLS);
+        client.setConnectionPool(new ConnectionPool(limits.maxConnections, SECONDS.toMillis(idleTimeoutSeconds)));
+        client.setDispatcher(dispatcher);
+        client.setConnectTimeout(limits.connectTimeoutSeconds, SECONDS);
+        client.setReadTimeout(limits.readTimeoutSeconds, SECONDS);
+        client.setWriteTimeout(limits.readTimeoutSeconds, SECONDS);
+        client.interceptors().add(
+                new BackendGuard(key.toString(), limits.maxConnections, limits.latencyTargetMillis, limits.failureThreshold, limits.openTimeoutSeconds)
+        );
+        if (!compression) {
+            // explicit header stops OkHttp from asking for gzip
+            client.interceptors().add(chain -> chain.proceed(chain.request().newBuilder().header("Accept-Encoding", "identity").build()));
+        }
+        return client;
+    }
+
+    /**
+     * Closes idle connections of a client no longer kept. Its dispatcher is not shut down, as the client may still be in use (taken just before
+     * it expired); dispatcher threads end by themselves once idle, connections still in use are closed by the pool once idle as well.
+     */
+    private static void discard(@Nullable BackendKey key, @Nullable OkHttpClient client) {
+        if (client == null) {
+            return;
+        }
+        log.info("Discarding HTTP client for idle backend {}", key);
+        client.getConnectionPool().evictAll();
+    }
+
+    /**
+     * Limits of one backend, see class documentation.
+     */
+    private static final class Limits {
+
+        private final int maxConnections;
+        private final long connectTimeoutSeconds;
+        private final long readTimeoutSeconds;
+        private final long latencyTargetMillis;
+        private final int failureThreshold;
+        private final long openTimeoutSeconds;
+
+        Limits(int maxConnections,
+               long connectTimeoutSeconds,
+               long readTimeoutSeconds,
+               long latencyTargetMillis,
+               int failureThreshold,
+               long openTimeoutSeconds) {
+            this.maxConnections = maxConnections;
+            this.connectTimeoutSeconds = connectTimeoutSeconds;
+            this.readTimeoutSeconds = readTimeoutSeconds;
+            this.latencyTargetMillis = latencyTargetMillis;
+            this.failureThreshold = failureThreshold;
+            this.openTimeoutSeconds = openTimeoutSeconds;
+        }
+
+        /**
+         * @param setting name of the environment variable without <tt>SAMPLE_BACKEND_</tt> prefix, e.g. <tt>READ_TIMEOUT</tt>.
+         * @return copy with given setting changed.
+         * @throws IllegalArgumentException if there is no such setting.
+         */
+        @Nonnull
+        Limits with(@Nonnull String setting, long value) {
+            switch (setting) {
+                case "MAX_CONNECTIONS":
+                    return new Limits(Math.toIntExact(value), connectTimeoutSeconds, readTimeoutSeconds, latencyTargetMillis, failureThreshold, openTimeoutSeconds);
+                case "CONNECT_TIMEOUT":
+                    return new Limits(maxConnections, value, readTimeoutSeconds, latencyTargetMillis, failureThreshold, openTimeoutSeconds);
+                case "READ_TIMEOUT":
+                    return new Limits(maxConnections, connectTimeoutSeconds, value, latencyTargetMillis, failureThreshold, openTimeoutSeconds);
+                case "LATENCY_TARGET":
+                    return new Limits(maxConnections, connectTimeoutSeconds, readTimeoutSeconds, value, failureThreshold, openTimeoutSeconds);
+                case "FAILURE_THRESHOLD":
+                    return new Limits(maxConnections, connectTimeoutSeconds, readTimeoutSeconds, latencyTargetMillis, Math.toIntExact(value), openTimeoutSeconds);
+                case "OPEN_TIMEOUT":
+                    return new Limits(maxConnections, connectTimeoutSeconds, readTimeoutSeconds, latencyTargetMillis, failureThreshold, value);
+                default:
+                    throw new IllegalArgumentException("Unknown backend setting " + setting);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "MAX_CONNECTIONS=" + maxConnections
+                    + ",CONNECT_TIMEOUT=" + connectTimeoutSeconds
+                    + ",READ_TIMEOUT=" + readTimeoutSeconds
+                    + ",LATENCY_TARGET=" + latencyTargetMillis
+                    + ",FAILURE_THRESHOLD=" + failureThreshold
+                    + ",OPEN_TIMEOUT=" + openTimeoutSeconds;
+        }
+    }
+
+    /**
+     * Identifies one backend.
+     */
+    private static final class BackendKey {
+
+        private final String scheme;
+        private final String host;
+        private final int port;
+        private final String username;
+
+        BackendKey(@Nonnull Configuration configuration) {
+            this.scheme = configuration.scheme;
+            this.host = configuration.host;
+            this.port = configuration.port;
+            this.username = configuration.username;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof BackendKey)) {
+                return false;
+            }
+            BackendKey that = (BackendKey) o;
+            return port == that.port
+                    && Objects.equals(scheme, that.scheme)
+                    && Objects.equals(host, that.host)
+                    && Objects.equals(username, that.username);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(scheme, host, port, username);
+        }
+
+        @Override
+        public String toString() {
+            return username + "@" + scheme + "://" + host + ":" + port;
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+import javax.annotation.*;
+
+import com.squareup.okhttp.*;
+import io.grpc.Status;
+import org.slf4j.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Protects one backend (and the plugin) from piling up requests when the backend slows down or fails. Installed as an interceptor of the
+ * backend's {@link OkHttpClient} by {@link BackendClients}.</p>
+ *
+ * <p>Concurrency limit adapts to the backend (AIMD): it grows by one for every <tt>limit</tt> calls completing within the latency target, and
+ * is halved (at most once per latency target period) when calls fail or take longer. Calls over the limit fail right away instead of
+ * queueing. The limit starts at, and never grows past, the max number of connections to the backend, which bounds concurrency anyway; it
+ * only shrinks below that while the backend is congested, and grows back once it recovers.</p>
+ *
+ * <p>Circuit breaker opens after a number of consecutive failures (I/O errors or 5xx responses); calls then fail right away until the open
+ * period has passed. After that a single trial call is let through, which either closes the circuit again or keeps it open for another
+ * period.</p>
+ *
+ * <p>Rejected calls, as well as failed ones, throw {@link BackendCallException}: <tt>UNAVAILABLE</tt> when rejected or backend could not be
+ * reached, <tt>DEADLINE_EXCEEDED</tt> when backend did not respond in time. Calls aborted because the caller gave up (cancelled, or ran out of
+ * time before the backend's own timeouts, see {@link BackendClients}) leave both the limit and the circuit as they are; an abandoned trial
+ * call lets the next call be the trial.</p>
+ */
+final class BackendGuard implements Interceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(BackendGuard.class);
+
+    private enum CircuitState {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private enum Admission {
+        REJECTED,
+        ADMITTED,
+        /**
+         * Single call let through while circuit is half open.
+         */
+        TRIAL
+    }
+
+    private final String backend;
+    private final int maxLimit;
+    private final long latencyTargetNanos;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Current concurrency limit; fractional, as it grows by fractions of one. Only changed while holding the monitor.
+     */
+    private volatile double limit;
+
+    private long lastDecreaseNanos;
+
+    private CircuitState circuitState = CircuitState.CLOSED;
+    private int consecutiveFailures;
+    private long openUntilNanos;
+    private boolean trialInFlight;
+
+    /**
+     * @param backend             name of the backend, for logging.
+     * @param maxLimit            upper bound of concurrency limit; also the initial limit.
+     * @param latencyTargetMillis calls taking longer count as congestion and decrease the limit.
+     * @param failureThreshold    consecutive failures to open the circuit.
+     * @param openSeconds         how long the circuit stays open before a trial call.
+     */
+    BackendGuard(@Nonnull String backend, int maxLimit, long latencyTargetMillis, int failureThreshold, long openSeconds) {
+        this.backend = backend;
+        this.maxLimit = maxLimit;
+        this.latencyTargetNanos = MILLISECONDS.toNanos(latencyTargetMillis);
+        this.failureThreshold = failureThreshold;
+        this.openNanos = SECONDS.toNanos(openSeconds);
+        this.limit = maxLimit;
+        this.lastDecreaseNanos = System.nanoTime() - latencyTargetNanos;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        if (!tryAcquire()) {
+            throw new BackendCallException(Status.UNAVAILABLE.withDescription("Too many concurrent requests to " + backend));
+        }
+        long start = System.nanoTime();
+        Admission admission = allowRequest(start);
+        if (admission == Admission.REJECTED) {
+            inFlight.decrementAndGet();
+            throw new BackendCallException(Status.UNAVAILABLE.withDescription("Circuit open for " + backend));
+        }
+        boolean settled = false;
+        try {
+            Response response = chain.proceed(chain.request());
+            long elapsedNanos = System.nanoTime() - start;
+            settled = true;
+            if (response.code() >= 500) {
+                onFailure(System.nanoTime());
+            } else {
+                onSuccess(elapsedNanos);
+            }
+            return response;
+        } catch (InterruptedIOException e) {
+            // includes socket timeouts
+            settled = true;
+            onFailure(System.nanoTime());
+            throw new BackendCallException(Status.DEADLINE_EXCEEDED.withDescription("No response in time from " + backend).withCause(e));
+        } catch (BackendCallException e) {
+            // caller gave up (see BackendClients), which is no fault of the backend
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            settled = true;
+            onFailure(System.nanoTime());
+            throw new BackendCallException(Status.UNAVAILABLE.withDescription("Could not call " + backend + ": " + e.getMessage()).withCause(e));
+        } finally {
+            inFlight.decrementAndGet();
+            if (!settled) {
+                onAbandoned(admission);
+            }
+        }
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    @Nonnull
+    private synchronized Admission allowRequest(long nowNanos) {
+        switch (circuitState) {
+            case CLOSED:
+                return Admission.ADMITTED;
+            case OPEN:
+                if (nowNanos - openUntilNanos < 0L) {
+                    return Admission.REJECTED;
+                }
+                circuitState = CircuitState.HALF_OPEN;
+                trialInFlight = true;
+                return Admission.TRIAL;
+            default:
+                if (trialInFlight) {
+                    return Admission.REJECTED;
+                }
+                trialInFlight = true;
+                return Admission.TRIAL;
+        }
+    }
+
+    private synchronized void onSuccess(long elapsedNanos) {
+        consecutiveFailures = 0;
+        if (circuitState != CircuitState.CLOSED) {
+            log.info("Closing circuit for {}", backend);
+            circuitState = CircuitState.CLOSED;
+            trialInFlight = false;
+        }
+        if (elapsedNanos > latencyTargetNanos) {
+            decreaseLimit(System.nanoTime());
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    private synchronized void onFailure(long nowNanos) {
+        consecutiveFailures++;
+        decreaseLimit(nowNanos);
+        if (circuitState == CircuitState.HALF_OPEN || (circuitState == CircuitState.CLOSED && consecutiveFailures >= failureThreshold)) {
+            log.warn("Opening circuit for {} after {} consecutive failures", backend, consecutiveFailures);
+            circuitState = CircuitState.OPEN;
+            openUntilNanos = nowNanos + openNanos;
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * Call ended without telling anything about the backend (e.g. caller gave up); if it was the trial, the next call may try instead.
+     */
+    private synchronized void onAbandoned(@Nonnull Admission admission) {
+        if (admission == Admission.TRIAL && circuitState == CircuitState.HALF_OPEN) {
+            trialInFlight = false;
+        }
+    }
+
+    /**
+     * Halves the limit, unless it was already halved within the latency target period (calls in flight at that time complete late, or fail,
+     * all at once).
+     */
+    private void decreaseLimit(long nowNanos) {
+        if (nowNanos - lastDecreaseNanos < latencyTargetNanos) {
+            return;
+        }
+        lastDecreaseNanos = nowNanos;
+        limit = Math.max(1.0, limit / 2.0);
+        log.debug("Concurrency limit of {} decreased to {}", backend, (int) limit);
+    }
+
+    /**
+     * @return current concurrency limit.
+     */
+    int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return whether calls are currently rejected by the circuit breaker (open, or half open with the trial call in flight).
+     */
+    synchronized boolean isCircuitOpen() {
+        return (circuitState == CircuitState.OPEN) || (circuitState == CircuitState.HALF_OPEN && trialInFlight);
+    }
+}
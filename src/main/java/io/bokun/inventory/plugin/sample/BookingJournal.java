@@ -0,0 +1,430 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.zip.*;
+
+import javax.annotation.*;
+
+import com.google.common.base.*;
+import com.google.common.hash.*;
+import org.slf4j.*;
+
+import static java.nio.file.StandardCopyOption.*;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * <p>Append-only journal of booking responses, keyed on 32-byte hashes (see {@link IdempotentBookings}), kept in a memory-mapped local file so
+ * that it survives plugin restarts. Every record is written to the mapped file once and never changed; lookups go through an in-memory index
+ * (key -> record position), rebuilt from the file when it is opened.</p>
+ *
+ * <p>File header: magic number (<tt>int</tt>), end of the last claimed record (<tt>int</tt>). Record layout: size of the whole record
+ * (<tt>int</tt>), time written (epoch millis, <tt>long</tt>), key (32 bytes), response size (<tt>int</tt>), response bytes, CRC32 of everything
+ * after the record size (<tt>int</tt>). When a record's range is claimed, its size is written first and the end in file header right after,
+ * so every record up to that end can be found by its size. A record torn by a crash fails its CRC check and is skipped when the journal is
+ * opened again, and records after it are still found.</p>
+ *
+ * <p>Appends hardly block each other: each one claims its own range of the file (which takes a short monitor), then fills it in. The lock is
+ * only taken exclusively to compact the journal (or grow it, once full): live records are copied to a fresh file, which then replaces the old
+ * one. Appends finding the journal full while another one is compacting it wait for that compaction instead of running their own.</p>
+ *
+ * <p>Every append forces the mapped file to disk before returning, so stored responses survive the machine crashing as well as the plugin.</p>
+ */
+final class BookingJournal implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(BookingJournal.class);
+
+    private static final int MAGIC = 0x424b4a31;                    // "BKJ1"
+
+    private static final int FILE_HEADER_SIZE = 8;
+
+    /**
+     * Offset of the end of the last claimed record in file header; 0 in files written before it was kept.
+     */
+    private static final int CLAIMED_END_OFFSET = 4;
+
+    private static final int KEY_SIZE = 32;
+
+    /**
+     * Record size, time written, key and response size.
+     */
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + KEY_SIZE + 4;
+
+    private static final int RECORD_OVERHEAD = RECORD_HEADER_SIZE + 4;
+
+    private final Path file;
+
+    /**
+     * Shared by appends and lookups, exclusive for compaction (which moves every record).
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final ConcurrentMap<HashCode, Location> index = new ConcurrentHashMap<>();
+
+    /**
+     * Guards {@link #writePosition}, so that claimed end in file header only ever moves forward.
+     */
+    private final Object claimLock = new Object();
+
+    private int writePosition;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private BookingJournal(@Nonnull Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens journal in given file, creating it if necessary.
+     *
+     * @param initialSize size of new journal file, in bytes.
+     * @throws IOException if file can not be opened or mapped, is not a journal, or is being used by another process.
+     */
+    @Nonnull
+    static BookingJournal open(@Nonnull Path file, int initialSize) throws IOException {
+        BookingJournal journal = new BookingJournal(file);
+        FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE);
+        try {
+            lockExclusively(channel, file);
+            long size = channel.size();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, Math.max(size, initialSize));
+            if (size == 0L) {
+                buffer.putInt(0, MAGIC);
+            } else if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a booking journal");
+            }
+            journal.channel = channel;
+            journal.buffer = buffer;
+            journal.replay();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        log.info("Opened booking journal {} with {} records", file, journal.size());
+        return journal;
+    }
+
+    private static void lockExclusively(@Nonnull FileChannel channel, @Nonnull Path file) throws IOException {
+        try {
+            if (channel.tryLock() == null) {
+                throw new IOException(file + " is used by another process");
+            }
+        } catch (OverlappingFileLockException e) {
+            throw new IOException(file + " is already open", e);
+        }
+    }
+
+    /**
+     * Indexes records of just mapped file, up to the claimed end (or the first empty record, in files which do not have it).
+     */
+    private void replay() {
+        int claimedEnd = buffer.getInt(CLAIMED_END_OFFSET);
+        int position = FILE_HEADER_SIZE;
+        int skipped = 0;
+        while (position + RECORD_OVERHEAD <= buffer.capacity() && (claimedEnd == 0 || position < claimedEnd)) {
+            int recordSize = buffer.getInt(position);
+            if (recordSize == 0 && claimedEnd == 0) {
+                break;
+            }
+            if (recordSize < RECORD_OVERHEAD || recordSize > buffer.capacity() - position) {
+                log.warn("Booking journal {} is corrupt at {}, ignoring the rest of it", file, position);
+                break;
+            }
+            if (isIntact(position, recordSize)) {
+                index.put(keyAt(position), locationAt(position));
+            } else {
+                skipped++;
+            }
+            position += recordSize;
+        }
+        if (skipped > 0) {
+            log.warn("Skipped {} incomplete records of booking journal {}", skipped, file);
+        }
+        synchronized (claimLock) {
+            setWritePosition(position);
+        }
+    }
+
+    /**
+     * @return stored response, or <tt>null</tt> if there is none for given key.
+     */
+    @Nullable
+    byte[] get(@Nonnull HashCode key) {
+        lock.readLock().lock();
+        try {
+            Location location = index.get(key);
+            if (location == null) {
+                return null;
+            }
+            byte[] response = new byte[location.responseSize];
+            ByteBuffer source = buffer.duplicate();
+            source.position(location.position + RECORD_HEADER_SIZE);
+            source.get(response);
+            return response;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores response under given key, replacing previous one (if any), and forces it to disk. Compacts, or grows, the journal if it is full.
+     *
+     * @param minTimestampMillis older records may be dropped if journal has to be compacted to make room.
+     * @throws IOException if journal can not be grown.
+     */
+    void append(@Nonnull HashCode key, @Nonnull byte[] response, long minTimestampMillis) throws IOException {
+        Preconditions.checkArgument(key.bits() == KEY_SIZE * 8, "Key must be %s bytes", KEY_SIZE);
+        int recordSize = RECORD_OVERHEAD + response.length;
+        while (true) {
+            MappedByteBuffer full;
+            lock.readLock().lock();
+            try {
+                int position = claim(recordSize);
+                if (position >= 0) {
+                    long timestampMillis = System.currentTimeMillis();
+                    write(position, recordSize, timestampMillis, key, response);
+                    buffer.force();
+                    index.put(key, new Location(position, response.length, timestampMillis));
+                    return;
+                }
+                full = buffer;
+            } finally {
+                lock.readLock().unlock();
+            }
+            makeRoom(full, minTimestampMillis, recordSize);
+        }
+    }
+
+    /**
+     * Claims file range for the record, writing its size at the start and the new claimed end into file header (in this order, see class
+     * description).
+     *
+     * @return start of file range claimed for the record, or <tt>-1</tt> if it does not fit.
+     */
+    private int claim(int recordSize) {
+        synchronized (claimLock) {
+            int position = writePosition;
+            if (recordSize > buffer.capacity() - position) {
+                return -1;
+            }
+            buffer.putInt(position, recordSize);
+            setWritePosition(position + recordSize);
+            return position;
+        }
+    }
+
+    /**
+     * Must hold {@link #claimLock}.
+     */
+    private void setWritePosition(int position) {
+        writePosition = position;
+        buffer.putInt(CLAIMED_END_OFFSET, position);
+    }
+
+    /**
+     * Writes record into claimed range, whose size has already been written.
+     */
+    private void write(int position, int recordSize, long timestampMillis, @Nonnull HashCode key, @Nonnull byte[] response) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(position);
+        record.limit(position + recordSize);
+        record = record.slice();
+        record.putInt(recordSize);
+        record.putLong(timestampMillis);
+        record.put(key.asBytes());
+        record.putInt(response.length);
+        record.put(response);
+        record.putInt(checksum(position, recordSize));
+    }
+
+    private boolean isIntact(int position, int recordSize) {
+        int responseSize = buffer.getInt(position + RECORD_HEADER_SIZE - 4);
+        return responseSize == recordSize - RECORD_OVERHEAD && buffer.getInt(position + recordSize - 4) == checksum(position, recordSize);
+    }
+
+    /**
+     * @return CRC32 of the record (without its size and checksum).
+     */
+    private int checksum(int position, int recordSize) {
+        ByteBuffer covered = buffer.duplicate();
+        covered.position(position + 4);
+        covered.limit(position + recordSize - 4);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    @Nonnull
+    private HashCode keyAt(int position) {
+        byte[] key = new byte[KEY_SIZE];
+        ByteBuffer source = buffer.duplicate();
+        source.position(position + 12);
+        source.get(key);
+        return HashCode.fromBytes(key);
+    }
+
+    @Nonnull
+    private Location locationAt(int position) {
+        return new Location(position, buffer.getInt(position + RECORD_HEADER_SIZE - 4), buffer.getLong(position + 4));
+    }
+
+    /**
+     * Compacts (or grows) given full buffer, unless another append has already done so while this one was waiting for the lock.
+     */
+    private void makeRoom(@Nonnull MappedByteBuffer full, long minTimestampMillis, int neededSpace) throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (buffer == full) {
+                compact(minTimestampMillis, neededSpace);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops records written before given time, by copying all later ones to a new file which then replaces the journal file. Does nothing if
+     * no record is that old and the journal has enough free space, so that periodic compactions do not hold up appends for nothing.
+     *
+     * @param minTimestampMillis records written before this time are dropped.
+     * @param neededSpace        free space the compacted journal must have (on top of live records); it is grown if necessary.
+     */
+    void compact(long minTimestampMillis, int neededSpace) throws IOException {
+        // checked under shared lock first, as it usually is not needed at all; then again, in case appends got in between
+        if (!needsCompaction(minTimestampMillis, neededSpace)) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (!needsCompaction(minTimestampMillis, neededSpace)) {
+                return;
+            }
+            List<Map.Entry<HashCode, Location>> live = new ArrayList<>(index.size());
+            long liveSize = 0L;
+            for (Map.Entry<HashCode, Location> entry : index.entrySet()) {
+                if (entry.getValue().timestampMillis >= minTimestampMillis) {
+                    live.add(entry);
+                    liveSize += RECORD_OVERHEAD + entry.getValue().responseSize;
+                }
+            }
+            // copied in order written, so that newer records stay after older ones
+            live.sort(Comparator.comparingInt(entry -> entry.getValue().position));
+
+            long requiredSize = FILE_HEADER_SIZE + liveSize + neededSpace;
+            long newSize = buffer.capacity();
+            while (newSize < requiredSize * 2L && newSize < Integer.MAX_VALUE) {
+                newSize = Math.min(newSize * 2L, Integer.MAX_VALUE);
+            }
+            if (requiredSize > newSize) {
+                throw new IOException("Booking journal " + file + " can not grow beyond " + newSize + " bytes");
+            }
+
+            Path compacted = file.resolveSibling(file.getFileName() + ".compacting");
+            Files.deleteIfExists(compacted);
+            FileChannel newChannel = FileChannel.open(compacted, CREATE_NEW, READ, WRITE);
+            MappedByteBuffer newBuffer;
+            Map<HashCode, Location> newIndex = new HashMap<>();
+            try {
+                lockExclusively(newChannel, compacted);
+                newBuffer = newChannel.map(FileChannel.MapMode.READ_WRITE, 0L, newSize);
+                newBuffer.putInt(0, MAGIC);
+                int newPosition = FILE_HEADER_SIZE;
+                for (Map.Entry<HashCode, Location> entry : live) {
+                    Location location = entry.getValue();
+                    int recordSize = RECORD_OVERHEAD + location.responseSize;
+                    ByteBuffer record = buffer.duplicate();
+                    record.position(location.position);
+                    record.limit(location.position + recordSize);
+                    ByteBuffer target = newBuffer.duplicate();
+                    target.position(newPosition);
+                    target.put(record);
+                    newIndex.put(entry.getKey(), new Location(newPosition, location.responseSize, location.timestampMillis));
+                    newPosition += recordSize;
+                }
+                newBuffer.putInt(CLAIMED_END_OFFSET, newPosition);
+                newBuffer.force();
+                Files.move(compacted, file, ATOMIC_MOVE, REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                newChannel.close();
+                Files.deleteIfExists(compacted);
+                throw e;
+            }
+
+            int dropped = index.size() - newIndex.size();
+            channel.close();
+            channel = newChannel;
+            buffer = newBuffer;
+            synchronized (claimLock) {
+                writePosition = newBuffer.getInt(CLAIMED_END_OFFSET);
+            }
+            index.clear();
+            index.putAll(newIndex);
+            log.info("Compacted booking journal {}: {} records kept, {} dropped, {} bytes", file, newIndex.size(), dropped, newSize);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return whether some record was written before given time, or there is less than given free space.
+     */
+    private boolean needsCompaction(long minTimestampMillis, int neededSpace) {
+        lock.readLock().lock();
+        try {
+            synchronized (claimLock) {
+                if (buffer.capacity() - writePosition < neededSpace) {
+                    return true;
+                }
+            }
+            for (Location location : index.values()) {
+                if (location.timestampMillis < minTimestampMillis) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of stored responses.
+     */
+    int size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            buffer.force();
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Where record of some key is.
+     */
+    private static final class Location {
+
+        final int position;
+        final int responseSize;
+        final long timestampMillis;
+
+        Location(int position, int responseSize, long timestampMillis) {
+            this.position = position;
+            this.responseSize = responseSize;
+            this.timestampMillis = timestampMillis;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+
+import javax.annotation.*;
+
+import com.google.common.collect.*;
+import org.roaringbitmap.*;
+
+/**
+ * <p>Immutable snapshot of the product catalog of one backend, indexed by country and city, so that searches only touch matching products.
+ * Country codes and city names are matched ignoring case.</p>
+ *
+ * <p>Products are numbered by their position in the snapshot. Every country and city maps to a compressed bitmap of the numbers of its
+ * products, so a filter is a bitmap lookup and a combined filter is a bitmap intersection; product objects are only touched to hand out the
+ * result. Bitmaps are never modified once built.</p>
+ *
+ * <p>Every sync produces a new snapshot (see {@link #update(Map, Collection, CatalogSource)}), which is swapped in at once, so readers never
+ * see a half-applied sync.</p>
+ *
+ * @param <P> type of products.
+ */
+final class CatalogIndex<P> {
+
+    private static final CatalogIndex<?> EMPTY = new CatalogIndex<>(ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of(), ImmutableMap.of());
+
+    /**
+     * Product ID -> product, in backend order.
+     */
+    private final ImmutableMap<String, P> productsById;
+
+    /**
+     * Products by their number.
+     */
+    private final ImmutableList<P> products;
+
+    /**
+     * Product ID -> version, as listed by {@link CatalogSource#fetchVersions(Configuration)}.
+     */
+    private final ImmutableMap<String, String> versions;
+
+    private final ImmutableMap<String, RoaringBitmap> productsByCountry;
+    private final ImmutableMap<String, RoaringBitmap> productsByCity;
+
+    private CatalogIndex(ImmutableMap<String, P> productsById,
+                         ImmutableMap<String, String> versions,
+                         ImmutableMap<String, RoaringBitmap> productsByCountry,
+                         ImmutableMap<String, RoaringBitmap> productsByCity) {
+        this.productsById = productsById;
+        this.products = productsById.values().asList();
+        this.versions = versions;
+        this.productsByCountry = productsByCountry;
+        this.productsByCity = productsByCity;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nonnull
+    static <P> CatalogIndex<P> empty() {
+        return (CatalogIndex<P>) EMPTY;
+    }
+
+    int size() {
+        return products.size();
+    }
+
+    /**
+     * @return memory taken by country and city bitmaps (excluding map keys), in bytes.
+     */
+    long bitmapSizeInBytes() {
+        long size = 0L;
+        for (RoaringBitmap bitmap : Iterables.concat(productsByCountry.values(), productsByCity.values())) {
+            size += bitmap.getLongSizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * @param latestVersions product ID -> version, as currently listed by the backend.
+     * @return IDs of products which are new or whose version differs from the indexed one.
+     */
+    @Nonnull
+    List<String> changedIds(@Nonnull Map<String, String> latestVersions) {
+        List<String> changed = new ArrayList<>();
+        latestVersions.forEach((productId, version) -> {
+            if (!version.equals(versions.get(productId))) {
+                changed.add(productId);
+            }
+        });
+        return changed;
+    }
+
+    /**
+     * @param latestVersions  product ID -> version of every product the backend has now.
+     * @param changedProducts fetched products whose version changed (see {@link #changedIds(Map)}).
+     * @return new snapshot: changed products replaced, products no longer listed removed, everything else kept.
+     */
+    @Nonnull
+    CatalogIndex<P> update(@Nonnull Map<String, String> latestVersions,
+                           @Nonnull Collection<P> changedProducts,
+                           @Nonnull CatalogSource<P> source) {
+        Map<String, P> changedById = new HashMap<>();
+        for (P product : changedProducts) {
+            changedById.put(source.idOf(product), product);
+        }
+
+        ImmutableMap.Builder<String, P> newProducts = ImmutableMap.builder();
+        ImmutableMap.Builder<String, String> newVersions = ImmutableMap.builder();
+        Map<String, RoaringBitmap> newProductsByCountry = new HashMap<>();
+        Map<String, RoaringBitmap> newProductsByCity = new HashMap<>();
+        int number = 0;
+        for (Map.Entry<String, String> latest : latestVersions.entrySet()) {
+            String productId = latest.getKey();
+            String version = latest.getValue();
+            P product = changedById.get(productId);
+            if (product == null) {
+                if (!version.equals(versions.get(productId))) {
+                    continue;                                       // changed, but gone by the time it was fetched
+                }
+                product = productsById.get(productId);
+            }
+            newProducts.put(productId, product);
+            newVersions.put(productId, version);
+            // numbers only grow, so bitmaps are appended to
+            for (String country : source.countriesOf(product)) {
+                newProductsByCountry.computeIfAbsent(normalize(country), key -> new RoaringBitmap()).add(number);
+            }
+            for (String city : source.citiesOf(product)) {
+                newProductsByCity.computeIfAbsent(normalize(city), key -> new RoaringBitmap()).add(number);
+            }
+            number++;
+        }
+        return new CatalogIndex<>(newProducts.build(), newVersions.build(), optimized(newProductsByCountry), optimized(newProductsByCity));
+    }
+
+    @Nonnull
+    private static ImmutableMap<String, RoaringBitmap> optimized(@Nonnull Map<String, RoaringBitmap> bitmaps) {
+        for (RoaringBitmap bitmap : bitmaps.values()) {
+            bitmap.runOptimize();
+            bitmap.trim();
+        }
+        return ImmutableMap.copyOf(bitmaps);
+    }
+
+    /**
+     * @param country country code to match; <tt>null</tt> or empty matches any.
+     * @param city    city name to match; <tt>null</tt> or empty matches any.
+     * @return matching products.
+     */
+    @Nonnull
+    List<P> search(@Nullable String country, @Nullable String city) {
+        boolean anyCountry = (country == null) || country.isEmpty();
+        boolean anyCity = (city == null) || city.isEmpty();
+        if (anyCountry && anyCity) {
+            return products;
+        }
+        RoaringBitmap matching;
+        if (anyCountry) {
+            matching = productsByCity.get(normalize(city));
+        } else if (anyCity) {
+            matching = productsByCountry.get(normalize(country));
+        } else {
+            RoaringBitmap inCountry = productsByCountry.get(normalize(country));
+            RoaringBitmap inCity = productsByCity.get(normalize(city));
+            matching = (inCountry == null || inCity == null) ? null : RoaringBitmap.and(inCountry, inCity);
+        }
+        if (matching == null) {
+            return ImmutableList.of();
+        }
+        List<P> result = new ArrayList<>(matching.getCardinality());
+        PeekableIntIterator numbers = matching.getIntIterator();
+        while (numbers.hasNext()) {
+            result.add(products.get(numbers.next()));
+        }
+        return result;
+    }
+
+    @Nonnull
+    private static String normalize(@Nonnull String value) {
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+}
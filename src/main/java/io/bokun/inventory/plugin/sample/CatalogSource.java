@@ -0,0 +1,39 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+/**
+ * Fetches product catalog of a backend for {@link CatalogSync}, and tells what the index needs to know about each product.
+ *
+ * @param <P> type of products, e.g. <tt>BasicProductInfo</tt>.
+ */
+public interface CatalogSource<P> {
+
+    /**
+     * Lists every product of the backend along with its version, which changes whenever the product does (e.g. ETag, last modification time
+     * or a hash of the content). Expected to be much cheaper than fetching the products themselves.
+     *
+     * @return future of product ID -> version.
+     */
+    @Nonnull
+    CompletableFuture<Map<String, String>> fetchVersions(@Nonnull Configuration configuration);
+
+    /**
+     * @param productIds IDs of products to fetch; never more than the configured batch size.
+     * @return future of products. Products which no longer exist are just left out.
+     */
+    @Nonnull
+    CompletableFuture<List<P>> fetchProducts(@Nonnull Configuration configuration, @Nonnull Collection<String> productIds);
+
+    @Nonnull
+    String idOf(@Nonnull P product);
+
+    @Nonnull
+    Collection<String> countriesOf(@Nonnull P product);
+
+    @Nonnull
+    Collection<String> citiesOf(@Nonnull P product);
+}
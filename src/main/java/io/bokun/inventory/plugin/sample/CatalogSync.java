@@ -0,0 +1,220 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.annotation.*;
+
+import com.google.common.cache.*;
+import com.google.common.collect.*;
+import io.grpc.Context;
+import org.slf4j.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Keeps a local index of the product catalog of every backend and answers product searches from it, so that response time depends on
+ * the number of matching products rather than on the size of the catalog.</p>
+ *
+ * <p>Catalog of a backend is synced in the background every <tt>interval</tt>, starting with the first search for that backend (which waits
+ * for the initial sync). Each sync only lists product versions (see {@link CatalogSource#fetchVersions(Configuration)}) and fetches the
+ * products whose version changed, in batches. Changed versions are also reported to {@link ProductDescriptionStore}, which drops outdated
+ * descriptions. Backends not searched for <tt>idleTimeout</tt> are no longer synced and their index is dropped.</p>
+ *
+ * <p>With sync disabled (interval <tt>0</tt>), every search fetches the whole catalog.</p>
+ *
+ * <p>Instances are created by {@link CatalogSyncFactory}.</p>
+ *
+ * @param <P> type of products.
+ */
+public class CatalogSync<P> {
+
+    private static final Logger log = LoggerFactory.getLogger(CatalogSync.class);
+
+    private final CatalogSource<P> source;
+    private final ProductDescriptionStore productStore;
+    private final long intervalSeconds;
+    private final int batchSize;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * <tt>null</tt> if sync is disabled.
+     */
+    @Nullable
+    private final LoadingCache<Configuration, BackendCatalog> catalogs;
+
+    CatalogSync(@Nonnull CatalogSource<P> source,
+                @Nonnull ProductDescriptionStore productStore,
+                long intervalSeconds,
+                long idleTimeoutSeconds,
+                int batchSize,
+                @Nonnull ScheduledExecutorService scheduler) {
+        this.source = source;
+        this.productStore = productStore;
+        this.intervalSeconds = intervalSeconds;
+        this.batchSize = batchSize;
+        this.scheduler = scheduler;
+        this.catalogs = (intervalSeconds <= 0L) ? null : CacheBuilder.newBuilder()
+                .expireAfterAccess(idleTimeoutSeconds, SECONDS)
+                .removalListener((RemovalListener<Configuration, BackendCatalog>) notification -> {
+                    if (notification.getValue() != null) {
+                        notification.getValue().stop();
+                    }
+                })
+                .build(CacheLoader.from(this::startCatalog));
+        if (catalogs != null) {
+            // expired catalogs are otherwise only dropped (and stopped) once searches touch the cache again, which idle backends never do
+            long cleanUpSeconds = Math.max(1L, Math.min(intervalSeconds, idleTimeoutSeconds));
+            scheduler.scheduleWithFixedDelay(catalogs::cleanUp, cleanUpSeconds, cleanUpSeconds, SECONDS);
+        }
+    }
+
+    /**
+     * @param country country code to match; <tt>null</tt> or empty matches any.
+     * @param city    city name to match; <tt>null</tt> or empty matches any.
+     * @return future of matching products.
+     */
+    @Nonnull
+    public CompletableFuture<List<P>> search(@Nonnull Configuration configuration, @Nullable String country, @Nullable String city) {
+        if (catalogs == null) {
+            return sync(configuration, CatalogIndex.empty()).thenApply(index -> index.search(country, city));
+        }
+        BackendCatalog catalog = catalogs.getUnchecked(configuration);
+        if (catalog.initialSync.isCompletedExceptionally()) {
+            catalogs.asMap().remove(configuration, catalog);        // next search tries again
+        }
+        return catalog.initialSync.thenApply(ignored -> catalog.index.search(country, city));
+    }
+
+    @Nonnull
+    private BackendCatalog startCatalog(@Nonnull Configuration configuration) {
+        log.info("Starting catalog sync of {}", configuration.host);
+        BackendCatalog catalog = new BackendCatalog(configuration);
+        // runs on behalf of all searches, not just the one which happens to start it
+        Context previous = Context.ROOT.attach();
+        try {
+            catalog.start();
+        } finally {
+            Context.ROOT.detach(previous);
+        }
+        return catalog;
+    }
+
+    /**
+     * Brings given index up to date with the backend.
+     *
+     * @return future of the new index.
+     */
+    @Nonnull
+    private CompletableFuture<CatalogIndex<P>> sync(@Nonnull Configuration configuration, @Nonnull CatalogIndex<P> index) {
+        CompletableFuture<Map<String, String>> versions;
+        try {
+            versions = source.fetchVersions(configuration);
+        } catch (RuntimeException e) {
+            versions = new CompletableFuture<>();
+            versions.completeExceptionally(e);
+        }
+        return versions.thenCompose(latestVersions -> {
+            List<String> changedIds = index.changedIds(latestVersions);
+            return fetchInBatches(configuration, changedIds).thenApply(changedProducts -> {
+                CatalogIndex<P> updated = index.update(latestVersions, changedProducts, source);
+                for (String productId : changedIds) {
+                    productStore.reportVersion(configuration, productId, latestVersions.get(productId));
+                }
+                log.debug("Synced catalog of {}: {} products, {} changed", configuration.host, updated.size(), changedIds.size());
+                return updated;
+            });
+        });
+    }
+
+    /**
+     * Fetches products one batch after another, so that a big change does not flood the backend.
+     */
+    @Nonnull
+    private CompletableFuture<List<P>> fetchInBatches(@Nonnull Configuration configuration, @Nonnull List<String> productIds) {
+        CompletableFuture<List<P>> result = CompletableFuture.completedFuture(new ArrayList<>(productIds.size()));
+        for (List<String> batch : Lists.partition(productIds, batchSize)) {
+            result = result.thenCompose(
+                    fetched -> source.fetchProducts(configuration, batch).thenApply(products -> {
+                        fetched.addAll(products);
+                        return fetched;
+                    })
+            );
+        }
+        return result;
+    }
+
+    /**
+     * Index of one backend, replaced by each successful sync.
+     */
+    private final class BackendCatalog {
+
+        private final Configuration configuration;
+
+        /**
+         * Completed once the index has been filled for the first time.
+         */
+        private final CompletableFuture<Void> initialSync = new CompletableFuture<>();
+
+        /**
+         * Prevents overlapping syncs when one takes longer than the interval.
+         */
+        private final AtomicBoolean syncing = new AtomicBoolean();
+
+        private volatile CatalogIndex<P> index = CatalogIndex.empty();
+
+        @Nullable
+        private ScheduledFuture<?> schedule;
+
+        private boolean stopped;
+
+        BackendCatalog(@Nonnull Configuration configuration) {
+            this.configuration = configuration;
+        }
+
+        void start() {
+            syncing.set(true);
+            sync(configuration, index).whenComplete((synced, failure) -> {
+                syncing.set(false);
+                if (failure != null) {
+                    log.warn("Could not sync catalog of {}", configuration.host, failure);
+                    initialSync.completeExceptionally(failure);
+                    return;
+                }
+                index = synced;
+                synchronized (this) {
+                    if (!stopped) {
+                        schedule = scheduler.scheduleWithFixedDelay(this::resync, intervalSeconds, intervalSeconds, SECONDS);
+                    }
+                }
+                initialSync.complete(null);
+            });
+        }
+
+        /**
+         * Failed sync keeps the current index until the next attempt.
+         */
+        private void resync() {
+            if (!syncing.compareAndSet(false, true)) {
+                return;
+            }
+            sync(configuration, index).whenComplete((synced, failure) -> {
+                syncing.set(false);
+                if (failure != null) {
+                    log.warn("Could not sync catalog of {}", configuration.host, failure);
+                } else {
+                    index = synced;
+                }
+            });
+        }
+
+        synchronized void stop() {
+            log.info("Stopping catalog sync of {}", configuration.host);
+            stopped = true;
+            if (schedule != null) {
+                schedule.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.common.util.concurrent.*;
+import com.google.inject.*;
+import com.google.inject.name.*;
+
+/**
+ * <p>Creates {@link CatalogSync}s configured by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_CATALOG_SYNC_INTERVAL</tt> - how often (in seconds) catalogs are synced with backends; <tt>0</tt> disables the local index,
+ *     so that every search fetches the whole catalog;</li>
+ *     <li><tt>SAMPLE_CATALOG_IDLE_TIMEOUT</tt> - catalogs of backends not searched for this many seconds are no longer synced;</li>
+ *     <li><tt>SAMPLE_CATALOG_BATCH_SIZE</tt> - max number of changed products fetched by one backend call;</li>
+ *     <li><tt>SAMPLE_CATALOG_SYNC_THREADS</tt> - number of threads starting syncs.</li>
+ * </ul>
+ * </p>
+ */
+@Singleton
+public class CatalogSyncFactory {
+
+    private final long intervalSeconds;
+    private final long idleTimeoutSeconds;
+    private final int batchSize;
+    private final ScheduledExecutorService scheduler;
+
+    @Inject
+    public CatalogSyncFactory(@Named("SAMPLE_CATALOG_SYNC_INTERVAL") long intervalSeconds,
+                              @Named("SAMPLE_CATALOG_IDLE_TIMEOUT") long idleTimeoutSeconds,
+                              @Named("SAMPLE_CATALOG_BATCH_SIZE") int batchSize,
+                              @Named("SAMPLE_CATALOG_SYNC_THREADS") int threads) {
+        this.intervalSeconds = intervalSeconds;
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+        this.batchSize = batchSize;
+        this.scheduler = Executors.newScheduledThreadPool(
+                threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("catalog-sync-%d")
+                        .setDaemon(true)
+                        .build()
+        );
+    }
+
+    /**
+     * @param source       fetches catalog from backends.
+     * @param productStore told about changed product versions.
+     * @return new sync, with no catalogs yet.
+     */
+    @Nonnull
+    public <P> CatalogSync<P> create(@Nonnull CatalogSource<P> source, @Nonnull ProductDescriptionStore productStore) {
+        return new CatalogSync<>(source, productStore, intervalSeconds, idleTimeoutSeconds, batchSize, scheduler);
+    }
+}
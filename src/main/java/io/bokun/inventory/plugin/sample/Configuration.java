@@ -1,9 +1,21 @@
 package io.bokun.inventory.plugin.sample;
 
+import java.util.*;
+
+import javax.annotation.*;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.squareup.okhttp.*;
 import io.bokun.inventory.common.api.grpc.*;
 
 /**
- * Holder of configuration parameter values.
+ * <p>Holder of configuration parameter values.</p>
+ *
+ * <p>The same parameters are sent with every request, therefore parsed instances are immutable and cached (keyed on raw parameter names and
+ * values), so that repeated requests get the same object back. Derived values (base URL, authorization header) are computed once per instance.</p>
  */
 public final class Configuration {
 
@@ -14,37 +26,135 @@ public final class Configuration {
     static final String SAMPLE_API_USERNAME = "SAMPLE_API_USERNAME";
     static final String SAMPLE_API_PASSWORD = "SAMPLE_API_PASSWORD";
 
-    String scheme;
-    String host;
-    int port;
-    String apiPath;
-    String username;
-    String password;
-
-    private static void setParameterValue(String parameterName, String parameterValue, Configuration configuration) {
-        switch (parameterName) {
-            case SAMPLE_API_SCHEME: configuration.scheme = parameterValue; break;
-            case SAMPLE_API_HOST: configuration.host = parameterValue; break;
-            case SAMPLE_API_PORT: configuration.port = Integer.parseInt(parameterValue); break;
-            case SAMPLE_API_PATH: configuration.apiPath = parameterValue; break;
-            case SAMPLE_API_USERNAME: configuration.username = parameterValue; break;
-            case SAMPLE_API_PASSWORD: configuration.password = parameterValue; break;
+    /**
+     * Max number of distinct configurations to keep; least recently used ones are evicted first.
+     */
+    private static final int MAX_CACHED_CONFIGURATIONS = 1_000;
+
+    /**
+     * Parsed configurations, keyed on parameter names and values as they came in (name1, value1, name2, value2, ...). Whole values are compared
+     * rather than just hashes, as a hash collision would hand out someone else's credentials.
+     */
+    private static final Cache<List<String>, Configuration> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_CONFIGURATIONS)
+            .build();
+
+    final String scheme;
+    final String host;
+    final int port;
+    final String apiPath;
+    final String username;
+    final String password;
+
+    private final Supplier<HttpUrl> baseUrl;
+
+    private final Supplier<String> authorizationHeader;
+
+    private Configuration(String scheme, String host, int port, String apiPath, String username, String password) {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.apiPath = apiPath;
+        this.username = username;
+        this.password = password;
+        // lazy, as incomplete configuration would not produce valid URL
+        this.baseUrl = Suppliers.memoize(
+                () -> new HttpUrl.Builder()
+                        .scheme(scheme)
+                        .host(host)
+                        .port(port)
+                        .encodedPath(apiPath)
+                        .build()
+        );
+        this.authorizationHeader = Suppliers.memoize(() -> Credentials.basic(username, password));
+    }
+
+    /**
+     * @return backend URL made of scheme, host, port and API path.
+     * @throws IllegalArgumentException if URL can not be built from configured values.
+     */
+    @Nonnull
+    public HttpUrl getBaseUrl() {
+        return baseUrl.get();
+    }
+
+    /**
+     * @return value of <tt>Authorization</tt> header to use for Basic authentication with configured username and password.
+     */
+    @Nonnull
+    public String getAuthorizationHeader() {
+        return authorizationHeader.get();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
         }
+        if (!(o instanceof Configuration)) {
+            return false;
+        }
+        Configuration that = (Configuration) o;
+        return port == that.port
+                && Objects.equals(scheme, that.scheme)
+                && Objects.equals(host, that.host)
+                && Objects.equals(apiPath, that.apiPath)
+                && Objects.equals(username, that.username)
+                && Objects.equals(password, that.password);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(scheme, host, port, apiPath, username, password);
+    }
+
+    @Nonnull
+    private static Configuration parse(@Nonnull List<String> namesAndValues) {
+        String scheme = null;
+        String host = null;
+        int port = 0;
+        String apiPath = null;
+        String username = null;
+        String password = null;
+        for (int i = 0; i < namesAndValues.size(); i += 2) {
+            String parameterValue = namesAndValues.get(i + 1);
+            switch (namesAndValues.get(i)) {
+                case SAMPLE_API_SCHEME: scheme = parameterValue; break;
+                case SAMPLE_API_HOST: host = parameterValue; break;
+                case SAMPLE_API_PORT: port = Integer.parseInt(parameterValue); break;
+                case SAMPLE_API_PATH: apiPath = parameterValue; break;
+                case SAMPLE_API_USERNAME: username = parameterValue; break;
+                case SAMPLE_API_PASSWORD: password = parameterValue; break;
+            }
+        }
+        return new Configuration(scheme, host, port, apiPath, username, password);
+    }
+
+    @Nonnull
+    private static Configuration fromNamesAndValues(@Nonnull List<String> namesAndValues) {
+        Configuration configuration = CACHE.getIfPresent(namesAndValues);
+        if (configuration == null) {
+            configuration = parse(namesAndValues);
+            CACHE.put(namesAndValues, configuration);
+        }
+        return configuration;
     }
 
     public static Configuration fromGrpcParameters(Iterable<io.bokun.inventory.common.api.grpc.PluginConfigurationParameterValue> configParameters) {
-        Configuration configuration = new Configuration();
+        List<String> namesAndValues = new ArrayList<>(12);
         for (PluginConfigurationParameterValue parameterValue : configParameters) {
-            setParameterValue(parameterValue.getName(), parameterValue.getValue(), configuration);
+            namesAndValues.add(parameterValue.getName());
+            namesAndValues.add(parameterValue.getValue());
         }
-        return configuration;
+        return fromNamesAndValues(namesAndValues);
     }
 
     public static Configuration fromRestParameters(Iterable<io.bokun.inventory.plugin.api.rest.PluginConfigurationParameterValue> configParameters) {
-        Configuration configuration = new Configuration();
+        List<String> namesAndValues = new ArrayList<>(12);
         for (io.bokun.inventory.plugin.api.rest.PluginConfigurationParameterValue parameterValue : configParameters) {
-            setParameterValue(parameterValue.getName(), parameterValue.getValue(), configuration);
+            namesAndValues.add(parameterValue.getName());
+            namesAndValues.add(parameterValue.getValue());
         }
-        return configuration;
+        return fromNamesAndValues(namesAndValues);
     }
 }
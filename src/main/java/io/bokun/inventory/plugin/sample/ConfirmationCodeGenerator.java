@@ -0,0 +1,53 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+
+import javax.annotation.*;
+
+/**
+ * <p>Makes up confirmation codes of reservations, bookings and amendments, and barcodes of tickets. Codes must be unique across all plugin
+ * instances, as the platform refers to bookings by them, and generating them must not hold bookings up. Codes and barcodes must not be
+ * guessable from ones seen before, so that nobody can make up references to bookings or tickets of others; every generator therefore puts
+ * random bits into every code, and barcodes are random, unrelated to any code.</p>
+ *
+ * <p>Which generator is used is chosen by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_CONFIRMATION_CODES</tt> - <tt>random</tt> (default) for {@link RandomCodeGenerator}, <tt>time</tt> for
+ *     {@link TimeOrderedCodeGenerator}, <tt>snowflake</tt> for {@link SnowflakeCodeGenerator}, or <tt>uuid</tt> for random UUIDs (which go
+ *     through a <tt>SecureRandom</tt> shared by the whole JVM for every code);</li>
+ *     <li><tt>SAMPLE_CONFIRMATION_NODE_ID</tt> - ID of this plugin instance, 0 to 1023, unique among all instances; required by
+ *     <tt>snowflake</tt>.</li>
+ * </ul>
+ * </p>
+ */
+public interface ConfirmationCodeGenerator {
+
+    /**
+     * @return new confirmation code; safe to call from any thread.
+     */
+    @Nonnull
+    String next();
+
+    /**
+     * @return new ticket barcode, random; safe to call from any thread.
+     */
+    @Nonnull
+    default String nextTicketBarcode() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * @param type   <tt>random</tt>, <tt>time</tt>, <tt>snowflake</tt> or <tt>uuid</tt>.
+     * @param nodeId ID of this plugin instance, used by <tt>snowflake</tt>.
+     * @throws IllegalArgumentException if type is unknown, or node ID is out of range.
+     */
+    @Nonnull
+    static ConfirmationCodeGenerator create(@Nonnull String type, int nodeId) {
+        switch (type.toLowerCase(Locale.ROOT)) {
+            case "random": return new RandomCodeGenerator();
+            case "time": return new TimeOrderedCodeGenerator();
+            case "snowflake": return new SnowflakeCodeGenerator(nodeId);
+            case "uuid": return () -> UUID.randomUUID().toString();
+            default: throw new IllegalArgumentException("Unknown confirmation code generator: " + type);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.common.util.concurrent.*;
+import com.google.inject.*;
+import com.google.inject.name.*;
+import io.grpc.netty.*;
+import io.netty.channel.*;
+import io.netty.channel.epoll.*;
+import io.netty.channel.nio.*;
+import io.netty.channel.socket.nio.*;
+import org.slf4j.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Applies threading, transport and connection settings to the gRPC server. Configured by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_GRPC_EXECUTOR</tt> - executor running service methods: <tt>default</tt> (gRPC's unbounded cached thread pool),
+ *     <tt>fixed</tt> (bounded thread pool), <tt>forkjoin</tt> (work-stealing pool) or <tt>virtual</tt> (new virtual thread for every call, see
+ *     {@link VirtualThreads}; falls back to <tt>default</tt> before Java 21);</li>
+ *     <li><tt>SAMPLE_GRPC_EXECUTOR_THREADS</tt> - number of threads of <tt>fixed</tt>/<tt>forkjoin</tt> executor; <tt>0</tt> means number of
+ *     CPUs;</li>
+ *     <li><tt>SAMPLE_GRPC_BOSS_THREADS</tt> - number of threads accepting connections;</li>
+ *     <li><tt>SAMPLE_GRPC_WORKER_THREADS</tt> - number of Netty event loop threads doing network IO; <tt>0</tt> means Netty default (2 x CPUs);</li>
+ *     <li><tt>SAMPLE_GRPC_NATIVE_TRANSPORT</tt> - <tt>true</tt> to use epoll transport when running on Linux;</li>
+ *     <li><tt>SAMPLE_GRPC_MAX_CONCURRENT_CALLS_PER_CONNECTION</tt> - <tt>0</tt> means unlimited;</li>
+ *     <li><tt>SAMPLE_GRPC_KEEPALIVE_TIME</tt>, <tt>SAMPLE_GRPC_KEEPALIVE_TIMEOUT</tt> - in seconds, <tt>0</tt> means gRPC default;</li>
+ *     <li><tt>SAMPLE_GRPC_FLOW_CONTROL_WINDOW</tt> - HTTP/2 flow control window in bytes, <tt>0</tt> means gRPC default.</li>
+ * </ul>
+ * </p>
+ */
+@Singleton
+public class GrpcServerThreading {
+
+    private static final Logger log = LoggerFactory.getLogger(GrpcServerThreading.class);
+
+    private final String executorType;
+    private final int executorThreads;
+    private final int bossThreads;
+    private final int workerThreads;
+    private final boolean nativeTransport;
+    private final int maxConcurrentCallsPerConnection;
+    private final long keepAliveTimeSeconds;
+    private final long keepAliveTimeoutSeconds;
+    private final int flowControlWindow;
+
+    /**
+     * Resources created by {@link #configure(NettyServerBuilder)}, released by {@link #shutdown()}.
+     */
+    private ExecutorService executor;
+    private EventLoopGroup bossGroup;
+    private EventLoopGroup workerGroup;
+
+    @Inject
+    public GrpcServerThreading(@Named("SAMPLE_GRPC_EXECUTOR") String executorType,
+                               @Named("SAMPLE_GRPC_EXECUTOR_THREADS") int executorThreads,
+                               @Named("SAMPLE_GRPC_BOSS_THREADS") int bossThreads,
+                               @Named("SAMPLE_GRPC_WORKER_THREADS") int workerThreads,
+                               @Named("SAMPLE_GRPC_NATIVE_TRANSPORT") boolean nativeTransport,
+                               @Named("SAMPLE_GRPC_MAX_CONCURRENT_CALLS_PER_CONNECTION") int maxConcurrentCallsPerConnection,
+                               @Named("SAMPLE_GRPC_KEEPALIVE_TIME") long keepAliveTimeSeconds,
+                               @Named("SAMPLE_GRPC_KEEPALIVE_TIMEOUT") long keepAliveTimeoutSeconds,
+                               @Named("SAMPLE_GRPC_FLOW_CONTROL_WINDOW") int flowControlWindow) {
+        this.executorType = executorType.toLowerCase();
+        this.executorThreads = (executorThreads > 0) ? executorThreads : Runtime.getRuntime().availableProcessors();
+        this.bossThreads = bossThreads;
+        this.workerThreads = workerThreads;
+        this.nativeTransport = nativeTransport;
+        this.maxConcurrentCallsPerConnection = maxConcurrentCallsPerConnection;
+        this.keepAliveTimeSeconds = keepAliveTimeSeconds;
+        this.keepAliveTimeoutSeconds = keepAliveTimeoutSeconds;
+        this.flowControlWindow = flowControlWindow;
+    }
+
+    /**
+     * Applies settings to the server builder.
+     */
+    public synchronized void configure(@Nonnull NettyServerBuilder serverBuilder) {
+        // differs from the configured one if that is not available
+        String usedExecutorType = executorType;
+        switch (executorType) {
+            case "default":
+                break;
+            case "fixed":
+                executor = Executors.newFixedThreadPool(
+                        executorThreads,
+                        new ThreadFactoryBuilder().setNameFormat("grpc-executor-%d").setDaemon(true).build()
+                );
+                serverBuilder.executor(executor);
+                break;
+            case "forkjoin":
+                executor = new ForkJoinPool(executorThreads, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+                serverBuilder.executor(executor);
+                break;
+            case "virtual":
+                executor = VirtualThreads.newPerTaskExecutor("grpc-virtual-");
+                if (executor == null) {
+                    log.warn("Virtual threads are not available on Java {}, falling back to default gRPC executor", VirtualThreads.javaVersion());
+                    usedExecutorType = "default";
+                    break;
+                }
+                serverBuilder.executor(executor);
+                break;
+            default:
+                throw new IllegalStateException("Unknown gRPC executor type: " + executorType);
+        }
+        log.info("Using {} gRPC executor", usedExecutorType);
+
+        if (nativeTransport && Epoll.isAvailable()) {
+            bossGroup = new EpollEventLoopGroup(bossThreads, new ThreadFactoryBuilder().setNameFormat("grpc-boss-%d").setDaemon(true).build());
+            workerGroup = new EpollEventLoopGroup(workerThreads, new ThreadFactoryBuilder().setNameFormat("grpc-worker-%d").setDaemon(true).build());
+            serverBuilder.channelType(EpollServerSocketChannel.class);
+            log.info("Using epoll transport");
+        } else {
+            if (nativeTransport) {
+                log.warn("Native transport requested but not available, falling back to NIO", Epoll.unavailabilityCause());
+            }
+            bossGroup = new NioEventLoopGroup(bossThreads, new ThreadFactoryBuilder().setNameFormat("grpc-boss-%d").setDaemon(true).build());
+            workerGroup = new NioEventLoopGroup(workerThreads, new ThreadFactoryBuilder().setNameFormat("grpc-worker-%d").setDaemon(true).build());
+            serverBuilder.channelType(NioServerSocketChannel.class);
+        }
+        serverBuilder.bossEventLoopGroup(bossGroup)
+                .workerEventLoopGroup(workerGroup);
+
+        if (maxConcurrentCallsPerConnection > 0) {
+            serverBuilder.maxConcurrentCallsPerConnection(maxConcurrentCallsPerConnection);
+        }
+        if (keepAliveTimeSeconds > 0L) {
+            serverBuilder.keepAliveTime(keepAliveTimeSeconds, SECONDS);
+        }
+        if (keepAliveTimeoutSeconds > 0L) {
+            serverBuilder.keepAliveTimeout(keepAliveTimeoutSeconds, SECONDS);
+        }
+        if (flowControlWindow > 0) {
+            serverBuilder.flowControlWindow(flowControlWindow);
+        }
+    }
+
+    /**
+     * Releases threads created by {@link #configure(NettyServerBuilder)}. To be called after the server has been shut down.
+     */
+    public synchronized void shutdown() {
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+        }
+        if (workerGroup != null) {
+            workerGroup.shutdownGracefully();
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+import javax.annotation.*;
+
+import com.google.common.collect.*;
+import com.google.gson.*;
+import com.google.gson.stream.*;
+import com.google.inject.*;
+import io.bokun.inventory.plugin.api.rest.*;
+
+import static java.nio.charset.StandardCharsets.*;
+
+/**
+ * {@link JsonCodec} backed by one shared {@link Gson} instance.
+ *
+ * <p>Gson is thread-safe and caches type adapters once they have been built, but building them involves quite a bit of reflection. Adapters for
+ * all REST API request/response objects are therefore created upfront, so that no request ever pays for this. JSON is streamed directly from/into
+ * exchange streams (or buffers) without building intermediate <tt>String</tt>s.</p>
+ */
+@Singleton
+public class GsonJsonCodec implements JsonCodec {
+
+    /**
+     * Types which are (de)serialized by {@link SampleRestPlugin}; adapters for these are built eagerly.
+     */
+    private static final List<Class<?>> REST_API_TYPES = ImmutableList.of(
+            PluginDefinition.class,
+            SearchProductRequest.class,
+            BasicProductInfo.class,
+            GetProductByIdRequest.class,
+            ProductDescription.class,
+            ProductsAvailabilityRequest.class,
+            ProductsAvailabilityResponse.class,
+            ProductAvailabilityRequest.class,
+            ProductAvailabilityWithRatesResponse.class,
+            ReservationResponse.class,
+            CancelReservationResponse.class,
+            ConfirmBookingRequest.class,
+            CreateConfirmBookingRequest.class,
+            ConfirmBookingResponse.class,
+            AmendBookingRequest.class,
+            AmendBookingResponse.class,
+            CancelBookingRequest.class,
+            CancelBookingResponse.class
+    );
+
+    private final Gson gson;
+
+    @Inject
+    public GsonJsonCodec() {
+        this.gson = new GsonBuilder().create();
+        for (Class<?> type : REST_API_TYPES) {
+            gson.getAdapter(type);
+        }
+    }
+
+    @Nonnull
+    @Override
+    public <T> T read(@Nonnull InputStream in, @Nonnull Class<T> type) throws IOException {
+        JsonReader reader = gson.newJsonReader(new InputStreamReader(in, UTF_8));
+        try {
+            T value = gson.fromJson(reader, type);
+            if (value == null) {
+                throw new EOFException("Empty JSON document, expected " + type.getSimpleName());
+            }
+            return value;
+        } catch (JsonParseException e) {
+            throw new IOException("Could not parse " + type.getSimpleName(), e);
+        }
+    }
+
+    @Override
+    public void write(@Nonnull Object value, @Nonnull OutputStream out) throws IOException {
+        JsonWriter writer = gson.newJsonWriter(new OutputStreamWriter(out, UTF_8));
+        try {
+            gson.toJson(value, value.getClass(), writer);
+        } catch (JsonIOException e) {
+            throw new IOException("Could not write " + value.getClass().getSimpleName(), e);
+        }
+        writer.flush();
+    }
+
+    @Nonnull
+    @Override
+    public ByteBuffer encode(@Nonnull Object value) {
+        ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream();
+        try {
+            write(value, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);             // can not happen for in-memory stream
+        }
+        return out.toByteBuffer();
+    }
+
+    /**
+     * Gives access to the internal buffer so that encoded JSON does not have to be copied once more.
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+        ExposedByteArrayOutputStream() {
+            super(1024);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.annotation.*;
+
+import com.google.common.hash.*;
+import com.google.common.util.concurrent.*;
+import com.google.inject.*;
+import com.google.inject.name.*;
+import com.google.protobuf.*;
+import org.slf4j.*;
+
+import static java.util.concurrent.CompletableFuture.*;
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Makes booking confirmations idempotent. When the platform gives up waiting for a confirmation, it retries it; without this, the retry
+ * would make another booking on the backend. Responses of successful confirmations are therefore kept in a local {@link BookingJournal} (so that
+ * they survive restarts), keyed on what identifies the booking in the request (see {@link #bookingKey(String, Configuration, String)} and
+ * {@link #requestKey(String, ByteBuffer)}). A retried request gets the stored response back, without calling the backend again. A retry arriving
+ * while the original is still in progress waits for it, rather than making another booking; the original carries on even if its caller has
+ * given up, so that the response is there for the retry. Failed confirmations are not stored, so their retries do call the backend again.</p>
+ *
+ * <p>Records older than TTL are dropped when the journal gets compacted, which happens periodically (and whenever the journal is full).</p>
+ *
+ * <p>Configured by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_BOOKING_JOURNAL_FILE</tt> - journal file, e.g. <tt>booking-journal.dat</tt> (in working directory). Empty (default)
+ *     disables the journal, so only retries arriving while the original is in progress are answered with its response. Set it in production;
+ *     a file can only be used by one plugin (or injector) at a time;</li>
+ *     <li><tt>SAMPLE_BOOKING_JOURNAL_SIZE</tt> - initial size of journal file, in bytes; it grows when full of live records;</li>
+ *     <li><tt>SAMPLE_BOOKING_JOURNAL_TTL</tt> - how long (in seconds) responses are kept for retries;</li>
+ *     <li><tt>SAMPLE_BOOKING_JOURNAL_COMPACT_INTERVAL</tt> - how often (in seconds) the journal is compacted.</li>
+ * </ul>
+ * </p>
+ */
+@Singleton
+public class IdempotentBookings {
+
+    private static final Logger log = LoggerFactory.getLogger(IdempotentBookings.class);
+
+    private static final HashFunction KEY_HASH = Hashing.sha256();
+
+    /**
+     * <tt>null</tt> if the journal is disabled.
+     */
+    @Nullable
+    private final BookingJournal journal;
+
+    private final long ttlMillis;
+
+    /**
+     * <tt>null</tt> if the journal is disabled.
+     */
+    @Nullable
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * Confirmations in progress; values are responses of whatever type the caller uses.
+     */
+    private final RequestCoalescer<HashCode, Object> inProgress = new RequestCoalescer<>("bookings", false);
+
+    private final LongAdder replays = new LongAdder();
+
+    @Inject
+    public IdempotentBookings(@Named("SAMPLE_BOOKING_JOURNAL_FILE") String journalFile,
+                              @Named("SAMPLE_BOOKING_JOURNAL_SIZE") int journalSize,
+                              @Named("SAMPLE_BOOKING_JOURNAL_TTL") long ttlSeconds,
+                              @Named("SAMPLE_BOOKING_JOURNAL_COMPACT_INTERVAL") long compactIntervalSeconds,
+                              PluginMetrics metrics) {
+        this.ttlMillis = SECONDS.toMillis(ttlSeconds);
+        if (journalFile.isEmpty()) {
+            log.info("Booking journal is disabled");
+            this.journal = null;
+            this.compactor = null;
+        } else {
+            try {
+                this.journal = BookingJournal.open(Paths.get(journalFile), journalSize);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not open booking journal " + journalFile, e);
+            }
+            this.compactor = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder()
+                            .setNameFormat("booking-journal-compact")
+                            .setDaemon(true)
+                            .build()
+            );
+            compactor.scheduleWithFixedDelay(this::compact, compactIntervalSeconds, compactIntervalSeconds, SECONDS);
+        }
+        metrics.register(inProgress);
+        metrics.register(this);
+    }
+
+    /**
+     * @param operation                   e.g. <tt>grpc.confirmBooking</tt>; keeps apart responses of different operations and transports.
+     * @param reservationConfirmationCode code of the reservation being confirmed, as returned by the backend.
+     * @return key of confirmation of given reservation on given backend.
+     */
+    @Nonnull
+    public static HashCode bookingKey(@Nonnull String operation,
+                                      @Nonnull Configuration configuration,
+                                      @Nonnull String reservationConfirmationCode) {
+        return KEY_HASH.newHasher()
+                .putString(operation, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(configuration.scheme), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(configuration.host), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putInt(configuration.port)
+                .putString(String.valueOf(configuration.apiPath), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(String.valueOf(configuration.username), StandardCharsets.UTF_8).putByte((byte) 0)
+                .putString(reservationConfirmationCode, StandardCharsets.UTF_8)
+                .hash();
+    }
+
+    /**
+     * For requests not referring to anything the backend has issued before (e.g. reserving and confirming at once), where a retry can only be
+     * told by being the same request all over again.
+     *
+     * @param operation e.g. <tt>rest.createAndConfirmBooking</tt>.
+     * @param request   serialized request, including configuration parameters.
+     * @return key of given request.
+     */
+    @Nonnull
+    public static HashCode requestKey(@Nonnull String operation, @Nonnull ByteBuffer request) {
+        return KEY_HASH.newHasher()
+                .putString(operation, StandardCharsets.UTF_8).putByte((byte) 0)
+                .putBytes(request.duplicate())
+                .hash();
+    }
+
+    /**
+     * Confirms booking once per key: returns stored (or in-progress) response of earlier request with the same key, or confirms it and stores
+     * the response.
+     *
+     * @param format  turns responses into bytes to be stored and back.
+     * @param confirm actually confirms the booking on the backend.
+     */
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    public <T> CompletableFuture<T> confirm(@Nonnull HashCode key,
+                                            @Nonnull ResponseFormat<T> format,
+                                            @Nonnull Supplier<CompletableFuture<T>> confirm) {
+        T stored = stored(key, format);
+        if (stored != null) {
+            return completedFuture(stored);
+        }
+        return (CompletableFuture<T>) inProgress.execute(key, k -> (CompletableFuture<Object>) confirmOnce(k, format, confirm));
+    }
+
+    @Nonnull
+    private <T> CompletableFuture<?> confirmOnce(@Nonnull HashCode key,
+                                                 @Nonnull ResponseFormat<T> format,
+                                                 @Nonnull Supplier<CompletableFuture<T>> confirm) {
+        // the original may have completed between the first lookup and here
+        T stored = stored(key, format);
+        if (stored != null) {
+            return completedFuture(stored);
+        }
+        return confirm.get().thenApply(response -> {
+            store(key, format.toBytes(response));
+            return response;
+        });
+    }
+
+    @Nullable
+    private <T> T stored(@Nonnull HashCode key, @Nonnull ResponseFormat<T> format) {
+        byte[] response = (journal != null) ? journal.get(key) : null;
+        if (response == null) {
+            return null;
+        }
+        try {
+            T parsed = format.fromBytes(response);
+            replays.increment();
+            log.info("Replaying stored response of booking {}", key);
+            return parsed;
+        } catch (IOException e) {
+            log.warn("Could not parse stored response of booking {}, confirming it again", key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Failing to store the response must not fail the booking, which has been made already; the caller would retry and book again.
+     */
+    private void store(@Nonnull HashCode key, @Nonnull byte[] response) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(key, response, System.currentTimeMillis() - ttlMillis);
+        } catch (IOException | RuntimeException e) {
+            log.error("Could not store response of booking {}, its retries will book again", key, e);
+        }
+    }
+
+    private void compact() {
+        try {
+            journal.compact(System.currentTimeMillis() - ttlMillis, 0);
+        } catch (IOException | RuntimeException e) {
+            // must not escape, as it would cancel further compactions
+            log.warn("Could not compact booking journal", e);
+        }
+    }
+
+    /**
+     * Stops compactions and closes the journal, flushing it to disk.
+     */
+    public void close() {
+        if (journal == null) {
+            return;
+        }
+        compactor.shutdownNow();
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.warn("Could not close booking journal", e);
+        }
+    }
+
+    /**
+     * @return number of requests answered with stored responses.
+     */
+    public long getReplayCount() {
+        return replays.sum();
+    }
+
+    /**
+     * @return number of responses in the journal.
+     */
+    public int getStoredCount() {
+        return (journal != null) ? journal.size() : 0;
+    }
+
+    /**
+     * Converts responses of one type to bytes stored in the journal, and back.
+     */
+    public interface ResponseFormat<T> {
+
+        @Nonnull
+        byte[] toBytes(@Nonnull T response);
+
+        @Nonnull
+        T fromBytes(@Nonnull byte[] bytes) throws IOException;
+
+        /**
+         * @return format storing gRPC responses as protobuf bytes.
+         */
+        @Nonnull
+        static <T extends MessageLite> ResponseFormat<T> protobuf(@Nonnull Parser<T> parser) {
+            return new ResponseFormat<T>() {
+                @Nonnull
+                @Override
+                public byte[] toBytes(@Nonnull T response) {
+                    return response.toByteArray();
+                }
+
+                @Nonnull
+                @Override
+                public T fromBytes(@Nonnull byte[] bytes) throws IOException {
+                    return parser.parseFrom(bytes);
+                }
+            };
+        }
+
+        /**
+         * @return format storing REST responses as JSON.
+         */
+        @Nonnull
+        static <T> ResponseFormat<T> json(@Nonnull JsonCodec codec, @Nonnull Class<T> type) {
+            return new ResponseFormat<T>() {
+                @Nonnull
+                @Override
+                public byte[] toBytes(@Nonnull T response) {
+                    ByteBuffer json = codec.encode(response);
+                    byte[] bytes = new byte[json.remaining()];
+                    json.get(bytes);
+                    return bytes;
+                }
+
+                @Nonnull
+                @Override
+                public T fromBytes(@Nonnull byte[] bytes) throws IOException {
+                    return codec.read(new ByteArrayInputStream(bytes), type);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.*;
+
+import javax.annotation.*;
+
+/**
+ * Converts REST plugin API objects to and from JSON. A single instance is shared by all requests, therefore implementations must be thread-safe.
+ */
+public interface JsonCodec {
+
+    /**
+     * Reads one JSON document of given type from the stream. The stream is read as UTF-8 and is not closed.
+     *
+     * @param in   stream to read JSON from, e.g. {@link io.undertow.server.HttpServerExchange#getInputStream()}.
+     * @param type type of the object to read.
+     * @return deserialized object.
+     * @throws IOException if the stream can not be read or does not contain valid JSON.
+     */
+    @Nonnull
+    <T> T read(@Nonnull InputStream in, @Nonnull Class<T> type) throws IOException;
+
+    /**
+     * Writes given object as UTF-8 encoded JSON into the stream. The stream is flushed but not closed.
+     *
+     * @param value object to serialize.
+     * @param out   stream to write JSON into, e.g. {@link io.undertow.server.HttpServerExchange#getOutputStream()}.
+     * @throws IOException if the stream can not be written.
+     */
+    void write(@Nonnull Object value, @Nonnull OutputStream out) throws IOException;
+
+    /**
+     * Same as {@link #write(Object, OutputStream)} but returns UTF-8 encoded JSON as a buffer. Useful when the exchange is not in blocking mode and
+     * has to be completed with {@link io.undertow.io.Sender#send(ByteBuffer)}.
+     */
+    @Nonnull
+    ByteBuffer encode(@Nonnull Object value);
+}
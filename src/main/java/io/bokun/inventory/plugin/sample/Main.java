@@ -3,13 +3,16 @@ package io.bokun.inventory.plugin.sample;
 import java.io.*;
 import java.nio.file.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 import javax.annotation.*;
 
+import com.google.common.collect.*;
 import com.google.inject.*;
 import com.google.inject.name.*;
 import io.grpc.*;
+import io.bokun.inventory.plugin.api.rest.*;
 import io.grpc.netty.*;
 import io.netty.handler.ssl.*;
 import io.undertow.*;
@@ -19,9 +22,9 @@ import org.slf4j.*;
 
 import static com.google.inject.Scopes.*;
 import static com.google.inject.name.Names.*;
-import static io.grpc.Metadata.*;
 import static io.netty.handler.ssl.ClientAuth.*;
 import static io.netty.handler.ssl.SslProvider.*;
+import static java.util.concurrent.TimeUnit.*;
 
 /**
  * <p>The entry point for launching the plugin. Also bootstraps Gradle.</p>
@@ -31,17 +34,35 @@ import static io.netty.handler.ssl.SslProvider.*;
  * </ul>
  * </p>
  *
+ * <p>The following environment variables are optional:<ul>
+ *     <li><tt>SAMPLE_REST_HANDLER_MODE</tt> - <tt>blocking</tt> (default), <tt>async</tt> or <tt>virtual</tt>, see {@link RestHandlers}</li>
+ *     <li><tt>SAMPLE_BACKEND_*</tt> - per-backend HTTP client limits, timeouts and circuit breaker, see {@link BackendClients}</li>
+ *     <li><tt>SAMPLE_AVAILABILITY_CACHE_*</tt> - availability cache settings, see {@link AvailabilityCacheFactory}</li>
+ *     <li><tt>SAMPLE_PREFETCH_*</tt> - loading popular availability ahead of requests, see {@link AvailabilityCacheFactory}</li>
+ *     <li><tt>SAMPLE_FANOUT_*</tt> - parallel availability checks of many products, see {@link AvailabilityFanOut}</li>
+ *     <li><tt>SAMPLE_STREAMING_PAGE_SIZE</tt> - number of products fetched at once when streaming search results, see
+ *     {@link PagedResponseStreamer}</li>
+ *     <li><tt>SAMPLE_GRPC_*</tt> - gRPC server executor, event loops and connection settings, see {@link GrpcServerThreading}</li>
+ *     <li><tt>SAMPLE_COMPRESSION*</tt> - compression of gRPC and REST responses, see {@link ResponseCompression}</li>
+ *     <li><tt>SAMPLE_PRODUCT_STORE_*</tt> - serialized product descriptions, see {@link ProductDescriptionStore}</li>
+ *     <li><tt>SAMPLE_CATALOG_*</tt> - local product catalog index used for searches, see {@link CatalogSyncFactory}</li>
+ *     <li><tt>SAMPLE_BOOKING_JOURNAL_*</tt> - stored booking responses, returned to retried requests, see {@link IdempotentBookings}</li>
+ *     <li><tt>SAMPLE_CONFIRMATION_*</tt> - how confirmation codes are made up, see {@link ConfirmationCodeGenerator}</li>
+ *     <li><tt>SAMPLE_MOCK_BACKEND_CALLS</tt> - whether mock data is only returned after calling the backend, for benchmarks and load tests, see
+ *     {@link MockBackendCalls}</li>
+ * </ul>
+ * </p>
+ *
+ * <p>Callers are authenticated by shared secret if <tt>SHARED_SECRET</tt> or <tt>SHARED_SECRET_FILE</tt> is set, see
+ * {@link SharedSecretAuthenticator} (also for optional <tt>SHARED_SECRET_*</tt> variables).</p>
+ *
+ * <p>When running REST service, request counts and latencies (see {@link PluginMetrics}) are available in Prometheus text format on
+ * <tt>GET /metrics</tt>, which requires shared secret as well unless <tt>SHARED_SECRET_EXEMPT_METRICS=true</tt>.</p>
+ *
  * @author Mindaugas Žakšauskas
  */
 public class Main {
 
-    /**
-     * This value is what real server expects as well (if you're using shared secrets); don't change it as this will render the feature useless.
-     */
-    private static final String SHARED_SECRET_HEADER = "sharedSecret";
-
-    private static final Metadata.Key<String> SHARED_SECRET_METADATA_KEY = Metadata.Key.of(SHARED_SECRET_HEADER, ASCII_STRING_MARSHALLER);
-
     private static final Logger log = LoggerFactory.getLogger(Main.class);
 
     /**
@@ -49,9 +70,6 @@ public class Main {
      */
     private static final String ENVIRONMENT_PREFIX = "SAMPLE_";
 
-    @SuppressWarnings("rawtypes")
-    private static final ServerCall.Listener NOOP_LISTENER = new ServerCall.Listener() {};
-
     /**
      * gRPC server.
      */
@@ -72,26 +90,71 @@ public class Main {
      */
     private final SampleRestPlugin restService;
 
+    /**
+     * Adapts REST implementation methods to Undertow handlers.
+     */
+    private final RestHandlers restHandlers;
+
+    /**
+     * Threading/transport settings of the gRPC server.
+     */
+    private final GrpcServerThreading grpcServerThreading;
+
+    /**
+     * Request counts and latencies, exposed on <tt>/metrics</tt> of the REST listener.
+     */
+    private final PluginMetrics metrics;
+
+    /**
+     * Records gRPC calls in {@link #metrics}.
+     */
+    private final MetricsServerInterceptor metricsInterceptor;
+
+    /**
+     * Compresses big responses of both transports.
+     */
+    private final ResponseCompression responseCompression;
+
+    /**
+     * Holds the booking journal, which is closed on shutdown.
+     */
+    private final IdempotentBookings idempotentBookings;
+
     /**
      * Called by Gradle
      */
     @Inject
     public Main(@Named(ENVIRONMENT_PREFIX + "PLUGIN_PORT") int port,
                 SampleGrpcPlugin grpcService,
-                SampleRestPlugin restService) {
+                SampleRestPlugin restService,
+                RestHandlers restHandlers,
+                GrpcServerThreading grpcServerThreading,
+                PluginMetrics metrics,
+                MetricsServerInterceptor metricsInterceptor,
+                ResponseCompression responseCompression,
+                IdempotentBookings idempotentBookings) {
         this.port = port;
         this.grpcService = grpcService;
         this.restService = restService;
+        this.restHandlers = restHandlers;
+        this.grpcServerThreading = grpcServerThreading;
+        this.metrics = metrics;
+        this.metricsInterceptor = metricsInterceptor;
+        this.responseCompression = responseCompression;
+        this.idempotentBookings = idempotentBookings;
     }
 
     /**
      * Starts the service: binds gRPC server, adds shutdown hook.
      *
+     * @param authenticator if not <tt>null</tt>, calls without matching shared secret are rejected.
      * @throws IOException if specified port can not be bound.
      */
-    private void start() throws IOException {
+    private void start(@Nullable SharedSecretAuthenticator authenticator) throws IOException {
         Map<String, String> environmentVariables = System.getenv();
-        ServerBuilder<?> serverBuilder;
+        NettyServerBuilder serverBuilder = NettyServerBuilder.forPort(port);
+        grpcServerThreading.configure(serverBuilder);
+        responseCompression.configure(serverBuilder);
 
         // configure TLS/SSL if requested
         if (environmentVariables.containsKey("USE_TLS") && Boolean.TRUE.toString().equalsIgnoreCase(environmentVariables.get("USE_TLS"))) {
@@ -113,23 +176,13 @@ public class Main {
                     .trustManager(certFile)
                     .clientAuth(OPTIONAL)
                     .build();
-            serverBuilder = NettyServerBuilder.forPort(port)
-                    .sslContext(sslContext);
+            serverBuilder.sslContext(sslContext);
             log.info("Using TLS/SSL");
         } else {
-            serverBuilder = ServerBuilder.forPort(port);
             log.info("Not using TLS/SSL");
         }
 
-        // configure shared secret if set via environment variable
-        if (environmentVariables.containsKey("SHARED_SECRET")) {
-            String sharedSecret = environmentVariables.get("SHARED_SECRET");
-            serverBuilder.addService(ServerInterceptors.intercept(grpcService, getSharedSecretCheckerInterceptor(sharedSecret)));
-            log.info("Using shared secret for caller authentication");
-        } else {
-            serverBuilder.addService(grpcService);
-            log.info("Not using shared secret for caller authentication");
-        }
+        serverBuilder.addService(interceptedGrpcService(grpcService, responseCompression, metricsInterceptor, authenticator));
 
         server = serverBuilder.build();
         server.start();
@@ -144,12 +197,19 @@ public class Main {
     }
 
     /**
-     * Stops the gRPC server.
+     * Stops the gRPC server (if running), then closes the booking journal.
      */
     private void stop() {
         if (server != null) {
             server.shutdown();
+            try {
+                server.awaitTermination(5L, SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            grpcServerThreading.shutdown();
         }
+        idempotentBookings.close();
     }
 
     /**
@@ -161,6 +221,23 @@ public class Main {
         }
     }
 
+    /**
+     * Wraps gRPC service with all interceptors. Metrics interceptor goes last, i.e. outermost, so that calls rejected by shared secret check are
+     * counted too.
+     *
+     * @param authenticator if not <tt>null</tt>, calls without matching shared secret are rejected.
+     */
+    @Nonnull
+    static ServerServiceDefinition interceptedGrpcService(@Nonnull BindableService service,
+                                                          @Nonnull ResponseCompression compression,
+                                                          @Nonnull MetricsServerInterceptor metricsInterceptor,
+                                                          @Nullable SharedSecretAuthenticator authenticator) {
+        if (authenticator == null) {
+            return ServerInterceptors.intercept(service, compression, metricsInterceptor);
+        }
+        return ServerInterceptors.intercept(service, compression, authenticator, metricsInterceptor);
+    }
+
     /**
      * Creates and returns a new interceptor which will intercept all service calls by checking shared secret against some predefined value.
      *
@@ -168,23 +245,8 @@ public class Main {
      * ServerInterceptor...)}
      */
     @Nonnull
-    @SuppressWarnings("unchecked")
     public static ServerInterceptor getSharedSecretCheckerInterceptor(@Nonnull String sharedSecret) {
-        return new ServerInterceptor() {
-            @Override
-            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
-                                                                         Metadata headers,
-                                                                         ServerCallHandler<ReqT, RespT> next) {
-                String sharedSecretValue = headers.get(SHARED_SECRET_METADATA_KEY);
-                if (sharedSecretValue == null || !sharedSecret.equals(sharedSecretValue)) {
-                    log.warn("Incoming request does not have matching shared secret {}", sharedSecretValue);
-                    call.close(Status.UNAUTHENTICATED.withDescription("Incoming request does not have matching shared secret"), headers);
-                    return NOOP_LISTENER;
-                }
-                ServerCall.Listener<ReqT> listener = Contexts.interceptCall(Context.current(), call, headers, next);
-                return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {};
-            }
-        };
+        return new SharedSecretAuthenticator(ImmutableList.of(sharedSecret));
     }
 
     /**
@@ -203,49 +265,154 @@ public class Main {
         }
         Injector injector = Guice.createInjector(new GuiceInitializer());
         Main server = injector.getInstance(Main.class);
+        SharedSecretAuthenticator authenticator = SharedSecretAuthenticator.fromEnvironment(GuiceInitializer.withDefaults(System.getenv()));
+        if (authenticator != null) {
+            log.info("Using shared secret for caller authentication");
+        } else {
+            log.info("Not using shared secret for caller authentication");
+        }
 
         if (isGrpc) {
-            server.start();
+            server.start(authenticator);
             server.blockUntilShutdown();
             log.info("gRPC server has been stopped.");
         }
         if (isRest) {
             Undertow.builder()
                     .addHttpListener(server.port, "localhost")
-                    .setHandler(
-                            new RoutingHandler()
-                                    .get("/plugin/definition", server.restService::getDefinition)
-                                    .post("/product/search", new BlockingHandler(server.restService::searchProducts))
-                                    .post("/product/getById", new BlockingHandler(server.restService::getProductById))
-                                    .post("/product/getAvailable", new BlockingHandler(server.restService::getAvailableProducts))
-                                    .post("/product/getAvailability", new BlockingHandler(server.restService::getProductAvailability))
-                                    .post("/booking/reserve", new BlockingHandler(server.restService::createReservation))
-                                    .post("/booking/cancelReserve", new BlockingHandler(server.restService::cancelReservation))
-                                    .post("/booking/confirm", new BlockingHandler(server.restService::confirmBooking))
-                                    .post("/booking/createAndConfirm", new BlockingHandler(server.restService::createAndConfirmBooking))
-                                    .post("/booking/cancel", new BlockingHandler(server.restService::cancelBooking))
-                                    .post("/booking/amend", new BlockingHandler(server.restService::amendBooking))
-                    )
+                    .setHandler(restRoutes(server.restService, server.restHandlers, server.metrics, server.responseCompression, authenticator))
                     .build()
                     .start();
             log.info("Started REST service on port {}", server.port);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
         }
     }
 
+    /**
+     * Creates handler serving all REST endpoints of the plugin, plus <tt>/metrics</tt>.
+     *
+     * @param authenticator if not <tt>null</tt>, requests without matching shared secret are rejected (<tt>/metrics</tt> too, unless exempt,
+     *                      see {@link SharedSecretAuthenticator#wrapMetrics(HttpHandler)}). Rejected requests are measured too.
+     */
+    @Nonnull
+    static HttpHandler restRoutes(@Nonnull SampleRestPlugin rest,
+                                  @Nonnull RestHandlers handlers,
+                                  @Nonnull PluginMetrics metrics,
+                                  @Nonnull ResponseCompression compression,
+                                  @Nullable SharedSecretAuthenticator authenticator) {
+        UnaryOperator<HttpHandler> authenticated = (authenticator != null) ? authenticator::wrap : UnaryOperator.identity();
+        Map<String, HttpHandler> postRoutes = ImmutableMap.<String, HttpHandler>builder()
+                .put("/product/search", handlers.handler(SearchProductRequest.class, rest::searchProducts))
+                .put("/product/getById", handlers.handler(GetProductByIdRequest.class, rest::getProductById))
+                .put("/product/getAvailable", handlers.handler(ProductsAvailabilityRequest.class, rest::getAvailableProducts))
+                .put("/product/getAvailability", handlers.handler(ProductAvailabilityRequest.class, rest::getProductAvailability))
+                .put("/booking/reserve", handlers.handler(ReservationRequest.class, rest::createReservation))
+                .put("/booking/cancelReserve", handlers.handler(CancelReservationRequest.class, rest::cancelReservation))
+                .put("/booking/confirm", handlers.handler(ConfirmBookingRequest.class, rest::confirmBooking))
+                .put("/booking/createAndConfirm", handlers.handler(CreateConfirmBookingRequest.class, rest::createAndConfirmBooking))
+                .put("/booking/cancel", handlers.handler(CancelBookingRequest.class, rest::cancelBooking))
+                .put("/booking/amend", handlers.handler(AmendBookingRequest.class, rest::amendBooking))
+                .build();
+        RoutingHandler routes = new RoutingHandler()
+                .get("/plugin/definition", metrics.measure("/plugin/definition", authenticated.apply(rest::getDefinition)))
+                .get("/metrics", (authenticator != null) ? authenticator.wrapMetrics(metrics::handleScrape) : metrics::handleScrape);
+        postRoutes.forEach((path, handler) -> routes.post(path, metrics.measure(path, authenticated.apply(handler))));
+        return compression.wrap(routes);
+    }
+
     /**
      * Initializes environment variables as Guice injectables, configures all necessary objects to initialize etc.
      */
-    private static class GuiceInitializer extends AbstractModule {
+    static class GuiceInitializer extends AbstractModule {
+
+        /**
+         * Values of optional environment variables, used when these are not set.
+         */
+        private static final Map<String, String> DEFAULTS = ImmutableMap.<String, String>builder()
+                .put(ENVIRONMENT_PREFIX + "REST_HANDLER_MODE", "blocking")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_MAX_CONNECTIONS", "20")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_CONNECT_TIMEOUT", "10")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_READ_TIMEOUT", "30")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_IDLE_TIMEOUT", "300")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_COMPRESSION", "true")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_LATENCY_TARGET", "5000")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_FAILURE_THRESHOLD", "5")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_OPEN_TIMEOUT", "30")
+                .put(ENVIRONMENT_PREFIX + "BACKEND_OVERRIDES", "")
+                .put(ENVIRONMENT_PREFIX + "AVAILABILITY_CACHE_TTL", "60")
+                .put(ENVIRONMENT_PREFIX + "AVAILABILITY_CACHE_REFRESH", "20")
+                .put(ENVIRONMENT_PREFIX + "AVAILABILITY_CACHE_MAX_ENTRIES", "100000")
+                .put(ENVIRONMENT_PREFIX + "AVAILABILITY_CACHE_REFRESH_THREADS", "4")
+                .put(ENVIRONMENT_PREFIX + "PREFETCH_INTERVAL", "0")
+                .put(ENVIRONMENT_PREFIX + "PREFETCH_MAX_LOADS", "100")
+                .put(ENVIRONMENT_PREFIX + "PREFETCH_MAX_CONCURRENCY", "2")
+                .put(ENVIRONMENT_PREFIX + "PREFETCH_MIN_REQUESTS", "3")
+                .put(ENVIRONMENT_PREFIX + "PREFETCH_DAYS_AHEAD", "1")
+                .put(ENVIRONMENT_PREFIX + "PREFETCH_HOURS", "0-24")
+                .put(ENVIRONMENT_PREFIX + "FANOUT_BATCH_SIZE", "10")
+                .put(ENVIRONMENT_PREFIX + "FANOUT_MAX_CONCURRENCY", "4")
+                .put(ENVIRONMENT_PREFIX + "FANOUT_DEADLINE", "5000")
+                .put(ENVIRONMENT_PREFIX + "FANOUT_THREADS", "16")
+                .put(ENVIRONMENT_PREFIX + "STREAMING_PAGE_SIZE", "100")
+                .put(ENVIRONMENT_PREFIX + "GRPC_EXECUTOR", "default")
+                .put(ENVIRONMENT_PREFIX + "GRPC_EXECUTOR_THREADS", "0")
+                .put(ENVIRONMENT_PREFIX + "GRPC_BOSS_THREADS", "1")
+                .put(ENVIRONMENT_PREFIX + "GRPC_WORKER_THREADS", "0")
+                .put(ENVIRONMENT_PREFIX + "GRPC_NATIVE_TRANSPORT", "true")
+                .put(ENVIRONMENT_PREFIX + "GRPC_MAX_CONCURRENT_CALLS_PER_CONNECTION", "0")
+                .put(ENVIRONMENT_PREFIX + "GRPC_KEEPALIVE_TIME", "0")
+                .put(ENVIRONMENT_PREFIX + "GRPC_KEEPALIVE_TIMEOUT", "0")
+                .put(ENVIRONMENT_PREFIX + "GRPC_FLOW_CONTROL_WINDOW", "0")
+                .put(ENVIRONMENT_PREFIX + "COMPRESSION", "none")
+                .put(ENVIRONMENT_PREFIX + "COMPRESSION_LEVEL", "1")
+                .put(ENVIRONMENT_PREFIX + "COMPRESSION_MIN_SIZE", "1024")
+                .put(ENVIRONMENT_PREFIX + "PRODUCT_STORE_TTL", "3600")
+                .put(ENVIRONMENT_PREFIX + "PRODUCT_STORE_MAX_BYTES", "67108864")
+                .put(ENVIRONMENT_PREFIX + "CATALOG_SYNC_INTERVAL", "300")
+                .put(ENVIRONMENT_PREFIX + "CATALOG_IDLE_TIMEOUT", "86400")
+                .put(ENVIRONMENT_PREFIX + "CATALOG_BATCH_SIZE", "100")
+                .put(ENVIRONMENT_PREFIX + "CATALOG_SYNC_THREADS", "2")
+                .put(ENVIRONMENT_PREFIX + "BOOKING_JOURNAL_FILE", "")
+                .put(ENVIRONMENT_PREFIX + "BOOKING_JOURNAL_SIZE", "16777216")
+                .put(ENVIRONMENT_PREFIX + "BOOKING_JOURNAL_TTL", "604800")
+                .put(ENVIRONMENT_PREFIX + "BOOKING_JOURNAL_COMPACT_INTERVAL", "3600")
+                .put(ENVIRONMENT_PREFIX + "CONFIRMATION_CODES", "random")
+                .put(ENVIRONMENT_PREFIX + "CONFIRMATION_NODE_ID", "-1")
+                .put(ENVIRONMENT_PREFIX + "MOCK_BACKEND_CALLS", "false")
+                .put("SHARED_SECRET_RELOAD_INTERVAL", "30")
+                .put("SHARED_SECRET_EXEMPT_METRICS", "false")
+                .build();
+
+        /**
+         * @return given environment variables, plus defaults of optional ones which are not set.
+         */
+        @Nonnull
+        static Map<String, String> withDefaults(@Nonnull Map<String, String> environmentVariables) {
+            Map<String, String> variables = new HashMap<>(DEFAULTS);
+            variables.putAll(environmentVariables);
+            return variables;
+        }
 
         @Override
         protected void configure() {
-            Map<String, String> guiceSpecificVars = System.getenv().entrySet().stream()
-                    .filter(entry -> entry.getKey().toUpperCase().startsWith(ENVIRONMENT_PREFIX))
-                    .collect(Collectors.toMap(entry -> entry.getKey().toUpperCase(), Map.Entry::getValue));
+            Map<String, String> guiceSpecificVars = new HashMap<>(DEFAULTS);
+            guiceSpecificVars.putAll(
+                    System.getenv().entrySet().stream()
+                            .filter(entry -> entry.getKey().toUpperCase().startsWith(ENVIRONMENT_PREFIX))
+                            .collect(Collectors.toMap(entry -> entry.getKey().toUpperCase(), Map.Entry::getValue))
+            );
             Binder binder = binder();
             bindProperties(binder, guiceSpecificVars);
+            binder.bind(JsonCodec.class).to(GsonJsonCodec.class).in(SINGLETON);
             binder.bind(SampleGrpcPlugin.class).in(SINGLETON);
             binder.bind(Main.class).in(SINGLETON);
         }
+
+        @Provides
+        @Singleton
+        ConfirmationCodeGenerator confirmationCodeGenerator(@Named("SAMPLE_CONFIRMATION_CODES") String type,
+                                                            @Named("SAMPLE_CONFIRMATION_NODE_ID") int nodeId) {
+            return ConfirmationCodeGenerator.create(type, nodeId);
+        }
     }
 }
@@ -0,0 +1,63 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.atomic.*;
+
+import javax.annotation.*;
+
+import com.google.inject.*;
+import io.grpc.*;
+
+/**
+ * Measures gRPC calls: counts them, counts failed ones (closed with non-OK status, or cancelled by the client or by its deadline) and records
+ * their latency in {@link PluginMetrics}.
+ */
+@Singleton
+public class MetricsServerInterceptor implements ServerInterceptor {
+
+    private final PluginMetrics metrics;
+
+    @Inject
+    public MetricsServerInterceptor(PluginMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        PluginMetrics.LatencyMetric metric = metrics.pluginCall("grpc", methodName(call.getMethodDescriptor()));
+        long start = System.nanoTime();
+        // cancelled calls are never closed by the handler (or are cancelled after closing, if response could not be sent); recorded once either way
+        AtomicBoolean recorded = new AtomicBoolean();
+        ServerCall.Listener<ReqT> listener = next.startCall(
+                new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                    @Override
+                    public void close(Status status, Metadata trailers) {
+                        if (recorded.compareAndSet(false, true)) {
+                            metric.record(System.nanoTime() - start, !status.isOk());
+                        }
+                        super.close(status, trailers);
+                    }
+                },
+                headers
+        );
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                if (recorded.compareAndSet(false, true)) {
+                    metric.record(System.nanoTime() - start, true);
+                }
+                super.onCancel();
+            }
+        };
+    }
+
+    /**
+     * @return bare method name, e.g. <tt>GetProductAvailability</tt>.
+     */
+    @Nonnull
+    private static String methodName(@Nonnull MethodDescriptor<?, ?> method) {
+        String fullMethodName = method.getFullMethodName();
+        return fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1);
+    }
+}
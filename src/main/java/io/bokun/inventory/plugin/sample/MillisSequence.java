@@ -0,0 +1,36 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * <p>Strictly increasing numbers made of current time (milliseconds since some epoch) and a 12-bit sequence within the millisecond, shared by
+ * time-based {@link ConfirmationCodeGenerator}s. Taking a number is a single compare-and-set; no locks, nothing shared beyond this instance.</p>
+ *
+ * <p>Once 4096 numbers are taken within the same millisecond, or the clock goes back, numbers run ahead of the clock for a while, borrowing
+ * milliseconds from the future rather than waiting or repeating themselves.</p>
+ */
+final class MillisSequence {
+
+    static final int SEQUENCE_BITS = 12;
+
+    static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1L;
+
+    private final long epochMillis;
+
+    /**
+     * Last number taken: milliseconds since epoch, shifted left by {@link #SEQUENCE_BITS}, plus sequence.
+     */
+    private final AtomicLong last = new AtomicLong();
+
+    MillisSequence(long epochMillis) {
+        this.epochMillis = epochMillis;
+    }
+
+    /**
+     * @return next number; <tt>number >>> SEQUENCE_BITS</tt> is its time, <tt>number & SEQUENCE_MASK</tt> its sequence.
+     */
+    long next() {
+        long now = (System.currentTimeMillis() - epochMillis) << SEQUENCE_BITS;
+        return last.updateAndGet(previous -> Math.max(now, previous + 1L));
+    }
+}
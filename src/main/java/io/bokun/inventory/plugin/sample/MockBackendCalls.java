@@ -0,0 +1,49 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.inject.*;
+import com.google.inject.name.*;
+
+import static java.util.concurrent.CompletableFuture.*;
+
+/**
+ * <p>Stands in for the backend calls of this sample, which only returns mock data. Plugins call {@link #call(Configuration, String)} where
+ * actual plugins would call their backend, and return mock data once it completes.</p>
+ *
+ * <p>By default the call completes right away. With <tt>SAMPLE_MOCK_BACKEND_CALLS=true</tt>, it makes a <tt>GET</tt> request (through
+ * {@link BackendClients}, with its limits, circuit breaker and deadlines) to the backend of the configuration, and ignores the response body.
+ * Benchmarks and load tests turn this on to include backend round trips in their numbers.</p>
+ *
+ * <p>Replace calls of this class with calls to your backend.</p>
+ */
+@Singleton
+public class MockBackendCalls {
+
+    private final BackendClients backendClients;
+
+    private final boolean enabled;
+
+    @Inject
+    public MockBackendCalls(BackendClients backendClients,
+                            @Named("SAMPLE_MOCK_BACKEND_CALLS") boolean enabled) {
+        this.backendClients = backendClients;
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param resource path segment under API path of the configuration, e.g. <tt>availability</tt>.
+     * @return future which completes once the backend has responded (or right away, unless enabled); fails same as
+     * {@link AsyncBackendClient#call(com.squareup.okhttp.Request, AsyncBackendClient.ResponseReader)}.
+     */
+    @Nonnull
+    public CompletableFuture<Void> call(@Nonnull Configuration configuration, @Nonnull String resource) {
+        if (!enabled) {
+            return completedFuture(null);
+        }
+        AsyncBackendClient backend = backendClients.async(configuration);
+        return backend.get(backend.newUrlBuilder().addPathSegment(resource).build(), body -> null);
+    }
+}
@@ -0,0 +1,35 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+/**
+ * Fetches one page of a (potentially huge) result from the backend, see {@link PagedResponseStreamer}.
+ *
+ * @param <T> type of items.
+ */
+@FunctionalInterface
+public interface PageFetcher<T> {
+
+    /**
+     * @param pageNumber zero-based page number; pages are always fetched in order, one at a time.
+     * @param pageSize   max number of items to return.
+     * @return future of page items; empty list means there are no more pages.
+     */
+    @Nonnull
+    CompletableFuture<List<T>> fetch(int pageNumber, int pageSize);
+
+    /**
+     * @param items future of the whole result, e.g. products found in a local index.
+     * @return fetcher handing out pages of given result.
+     */
+    @Nonnull
+    static <T> PageFetcher<T> of(@Nonnull CompletableFuture<List<T>> items) {
+        return (pageNumber, pageSize) -> items.thenApply(all -> {
+            int from = (int) Math.min((long) pageNumber * pageSize, all.size());
+            return all.subList(from, Math.min(from + pageSize, all.size()));
+        });
+    }
+}
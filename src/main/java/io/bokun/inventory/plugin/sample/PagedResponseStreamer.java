@@ -0,0 +1,158 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.inject.*;
+import com.google.inject.name.*;
+import io.grpc.Status;
+import io.grpc.stub.*;
+import org.slf4j.*;
+
+/**
+ * <p>Streams server-streaming gRPC responses page by page, with respect to flow control: next page is only fetched from the backend once the
+ * previous one has been handed over to the transport and the client is ready to receive more ({@link ServerCallStreamObserver#isReady()}). This
+ * way at most one page is held in memory, however big the whole result is. Streaming stops when the call gets cancelled.</p>
+ *
+ * <p>Page size is set by the optional <tt>SAMPLE_STREAMING_PAGE_SIZE</tt> environment variable.</p>
+ */
+@Singleton
+public class PagedResponseStreamer {
+
+    private static final Logger log = LoggerFactory.getLogger(PagedResponseStreamer.class);
+
+    private final int pageSize;
+
+    @Inject
+    public PagedResponseStreamer(@Named("SAMPLE_STREAMING_PAGE_SIZE") int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Starts streaming. Must be called from the gRPC service method, before it returns (this is when readiness handler can be registered).
+     * The stream is completed (or failed) by this class.
+     *
+     * @param responseObserver observer passed to the service method.
+     * @param fetcher          fetches pages from the backend.
+     */
+    public <T> void stream(@Nonnull StreamObserver<T> responseObserver, @Nonnull PageFetcher<T> fetcher) {
+        new Stream<>(responseObserver, fetcher, pageSize).start();
+    }
+
+    /**
+     * State of one streaming call. All state changes happen while holding the monitor, as readiness callbacks and page fetches complete on
+     * different threads.
+     */
+    private static final class Stream<T> {
+
+        private final StreamObserver<T> observer;
+        @Nullable
+        private final ServerCallStreamObserver<T> flowControlledObserver;
+        private final PageFetcher<T> fetcher;
+        private final int pageSize;
+
+        private final Deque<T> buffer = new ArrayDeque<>();
+        private int nextPageNumber;
+        private boolean fetching;
+        private boolean exhausted;
+        private boolean done;
+        private volatile boolean cancelled;
+
+        Stream(StreamObserver<T> observer, PageFetcher<T> fetcher, int pageSize) {
+            this.observer = observer;
+            // observers are always flow-controlled when called by gRPC; direct calls (e.g. from benchmarks) just ignore flow control
+            this.flowControlledObserver = (observer instanceof ServerCallStreamObserver) ? (ServerCallStreamObserver<T>) observer : null;
+            this.fetcher = fetcher;
+            this.pageSize = pageSize;
+        }
+
+        void start() {
+            if (flowControlledObserver != null) {
+                flowControlledObserver.setOnCancelHandler(() -> {
+                    cancelled = true;
+                    log.debug("Streaming call cancelled by client");
+                });
+                flowControlledObserver.setOnReadyHandler(this::drain);
+            }
+            drain();
+        }
+
+        private boolean isReady() {
+            return (flowControlledObserver == null) || flowControlledObserver.isReady();
+        }
+
+        /**
+         * Sends as much as the transport accepts, then fetches the next page if everything has been sent.
+         */
+        private synchronized void drain() {
+            while (!done) {
+                if (cancelled) {
+                    done = true;
+                    buffer.clear();
+                    return;
+                }
+                while (!buffer.isEmpty() && isReady()) {
+                    observer.onNext(buffer.poll());
+                }
+                if (!buffer.isEmpty() || fetching) {
+                    return;                                     // waiting for readiness or page
+                }
+                if (exhausted) {
+                    done = true;
+                    observer.onCompleted();
+                    return;
+                }
+                if (!isReady()) {
+                    return;                                     // don't fetch before client can take more
+                }
+                fetching = true;
+                CompletableFuture<List<T>> page = fetchPage(nextPageNumber++);
+                if (!page.isDone()) {
+                    page.whenComplete(this::pageFetched);
+                    return;
+                }
+                // completed synchronously: process it in this loop rather than recursively
+                try {
+                    pageArrived(page.join(), null);
+                } catch (CompletionException | CancellationException e) {
+                    pageArrived(null, e.getCause() != null ? e.getCause() : e);
+                }
+            }
+        }
+
+        @Nonnull
+        private CompletableFuture<List<T>> fetchPage(int pageNumber) {
+            try {
+                return fetcher.fetch(pageNumber, pageSize);
+            } catch (RuntimeException e) {
+                CompletableFuture<List<T>> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+
+        private synchronized void pageFetched(@Nullable List<T> items, @Nullable Throwable failure) {
+            pageArrived(items, failure);
+            drain();
+        }
+
+        private void pageArrived(@Nullable List<T> items, @Nullable Throwable failure) {
+            fetching = false;
+            if (done) {
+                return;
+            }
+            if (failure != null) {
+                log.error("Could not fetch page {}", nextPageNumber - 1, failure);
+                done = true;
+                buffer.clear();
+                observer.onError(Status.fromThrowable(failure).asRuntimeException());
+            } else if (items == null || items.isEmpty()) {
+                exhausted = true;
+            } else {
+                buffer.addAll(items);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.annotation.*;
+
+import com.google.inject.*;
+import io.undertow.server.*;
+import org.HdrHistogram.*;
+
+import static io.undertow.util.Headers.*;
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Collects request counts, error counts and latency histograms of plugin calls (per transport and endpoint) and of backend calls made while
+ * serving them, plus counters of {@link RequestCoalescer}s, {@link AvailabilityPrefetcher}s and {@link IdempotentBookings}. Everything is exposed
+ * in Prometheus text format by {@link #handleScrape(HttpServerExchange)}.</p>
+ *
+ * <p>gRPC calls are measured by {@link MetricsServerInterceptor}, REST calls by wrapping route handlers with
+ * {@link #measure(String, HttpHandler)}.</p>
+ *
+ * <p>Counts and sums are totals since start, as Prometheus expects; latency quantiles are of calls made since the previous scrape, so that they
+ * follow current latency rather than being flattened by all history (<tt>NaN</tt> if there were none). Every scrape starts a new interval,
+ * so there should be one scraper per plugin.</p>
+ */
+@Singleton
+public class PluginMetrics {
+
+    /**
+     * Quantiles reported for each latency histogram.
+     */
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ConcurrentMap<String, LatencyMetric> pluginCalls = new ConcurrentSkipListMap<>();
+
+    private final ConcurrentMap<String, LatencyMetric> backendCalls = new ConcurrentSkipListMap<>();
+
+    private final List<RequestCoalescer<?, ?>> coalescers = new CopyOnWriteArrayList<>();
+
+    private final List<AvailabilityPrefetcher> prefetchers = new CopyOnWriteArrayList<>();
+
+    private final List<IdempotentBookings> bookings = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param transport <tt>grpc</tt> or <tt>rest</tt>.
+     * @param endpoint  name of the endpoint, e.g. <tt>GetProductAvailability</tt>.
+     * @return metric of plugin calls to given endpoint.
+     */
+    @Nonnull
+    public LatencyMetric pluginCall(@Nonnull String transport, @Nonnull String endpoint) {
+        return pluginCalls.computeIfAbsent(labels(transport, endpoint), LatencyMetric::new);
+    }
+
+    /**
+     * Measures backend call made while serving a plugin call.
+     *
+     * @param transport <tt>grpc</tt> or <tt>rest</tt>.
+     * @param endpoint  plugin endpoint on whose behalf the backend is called.
+     * @param call      starts the backend call.
+     * @return future of backend call result.
+     */
+    @Nonnull
+    public <T> CompletableFuture<T> measureBackendCall(@Nonnull String transport,
+                                                       @Nonnull String endpoint,
+                                                       @Nonnull Supplier<CompletableFuture<T>> call) {
+        LatencyMetric metric = backendCalls.computeIfAbsent(labels(transport, endpoint), LatencyMetric::new);
+        long start = System.nanoTime();
+        CompletableFuture<T> result;
+        try {
+            result = call.get();
+        } catch (RuntimeException e) {
+            metric.record(System.nanoTime() - start, true);
+            throw e;
+        }
+        return result.whenComplete((value, failure) -> metric.record(System.nanoTime() - start, failure != null));
+    }
+
+    /**
+     * Includes counters of given coalescer in scraped metrics.
+     */
+    public void register(@Nonnull RequestCoalescer<?, ?> coalescer) {
+        coalescers.add(coalescer);
+    }
+
+    /**
+     * Includes counters of given prefetcher in scraped metrics.
+     */
+    public void register(@Nonnull AvailabilityPrefetcher prefetcher) {
+        prefetchers.add(prefetcher);
+    }
+
+    /**
+     * Includes counts of replayed and stored booking responses in scraped metrics.
+     */
+    public void register(@Nonnull IdempotentBookings idempotentBookings) {
+        bookings.add(idempotentBookings);
+    }
+
+    /**
+     * Wraps REST route handler so that its calls are measured. Responses with status 5xx count as errors.
+     *
+     * @param endpoint name of the endpoint, e.g. <tt>/product/getAvailability</tt>.
+     * @param next     actual handler.
+     * @return measuring handler.
+     */
+    @Nonnull
+    public HttpHandler measure(@Nonnull String endpoint, @Nonnull HttpHandler next) {
+        LatencyMetric metric = pluginCall("rest", endpoint);
+        return exchange -> {
+            long start = System.nanoTime();
+            exchange.addExchangeCompleteListener((completedExchange, nextListener) -> {
+                metric.record(System.nanoTime() - start, completedExchange.getStatusCode() >= 500);
+                nextListener.proceed();
+            });
+            next.handleRequest(exchange);
+        };
+    }
+
+    /**
+     * Responds with all metrics in Prometheus text exposition format.
+     */
+    public void handleScrape(@Nonnull HttpServerExchange exchange) {
+        exchange.getResponseHeaders().put(CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        exchange.getResponseSender().send(scrape());
+    }
+
+    /**
+     * @return all metrics in Prometheus text exposition format.
+     */
+    @Nonnull
+    public String scrape() {
+        StringBuilder out = new StringBuilder(4096);
+        writeLatencyMetrics(out, "plugin_requests", "plugin_request_duration_seconds", pluginCalls);
+        writeLatencyMetrics(out, "plugin_backend_calls", "plugin_backend_call_duration_seconds", backendCalls);
+
+        out.append("# TYPE plugin_coalescer_calls_total counter\n");
+        for (RequestCoalescer<?, ?> coalescer : coalescers) {
+            out.append("plugin_coalescer_calls_total{name=\"").append(coalescer.getName()).append("\"} ")
+                    .append(coalescer.getCallCount()).append('\n');
+        }
+        out.append("# TYPE plugin_coalesced_calls_total counter\n");
+        for (RequestCoalescer<?, ?> coalescer : coalescers) {
+            out.append("plugin_coalesced_calls_total{name=\"").append(coalescer.getName()).append("\"} ")
+                    .append(coalescer.getCoalescedCallCount()).append('\n');
+        }
+        writePrefetchCounter(out, "plugin_prefetch_requests_total", AvailabilityPrefetcher::getRequestCount);
+        writePrefetchCounter(out, "plugin_prefetch_loads_total", AvailabilityPrefetcher::getLoadCount);
+        writePrefetchCounter(out, "plugin_prefetch_failures_total", AvailabilityPrefetcher::getFailureCount);
+        writePrefetchCounter(out, "plugin_prefetch_hits_total", AvailabilityPrefetcher::getHitCount);
+        out.append("# TYPE plugin_booking_replays_total counter\n");
+        for (IdempotentBookings idempotentBookings : bookings) {
+            out.append("plugin_booking_replays_total ").append(idempotentBookings.getReplayCount()).append('\n');
+        }
+        out.append("# TYPE plugin_booking_journal_records gauge\n");
+        for (IdempotentBookings idempotentBookings : bookings) {
+            out.append("plugin_booking_journal_records ").append(idempotentBookings.getStoredCount()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void writeLatencyMetrics(@Nonnull StringBuilder out,
+                                            @Nonnull String counterPrefix,
+                                            @Nonnull String durationName,
+                                            @Nonnull Map<String, LatencyMetric> metrics) {
+        out.append("# TYPE ").append(counterPrefix).append("_total counter\n");
+        for (LatencyMetric metric : metrics.values()) {
+            out.append(counterPrefix).append("_total{").append(metric.labels).append("} ").append(metric.getCount()).append('\n');
+        }
+        out.append("# TYPE ").append(counterPrefix).append("_errors_total counter\n");
+        for (LatencyMetric metric : metrics.values()) {
+            out.append(counterPrefix).append("_errors_total{").append(metric.labels).append("} ").append(metric.getErrorCount()).append('\n');
+        }
+        out.append("# TYPE ").append(durationName).append(" summary\n");
+        for (LatencyMetric metric : metrics.values()) {
+            Histogram interval = metric.intervalSnapshot();
+            for (double quantile : QUANTILES) {
+                out.append(durationName).append('{').append(metric.labels).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append((interval.getTotalCount() > 0L) ? toSeconds(interval.getValueAtPercentile(quantile * 100.0)) : Double.NaN)
+                        .append('\n');
+            }
+            out.append(durationName).append("_count{").append(metric.labels).append("} ").append(metric.getCount()).append('\n');
+            out.append(durationName).append("_sum{").append(metric.labels).append("} ").append(toSeconds(metric.getTotalMicros())).append('\n');
+        }
+    }
+
+    private void writePrefetchCounter(@Nonnull StringBuilder out, @Nonnull String name, @Nonnull ToLongFunction<AvailabilityPrefetcher> counter) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        for (AvailabilityPrefetcher prefetcher : prefetchers) {
+            out.append(name).append("{name=\"").append(prefetcher.getName()).append("\"} ").append(counter.applyAsLong(prefetcher)).append('\n');
+        }
+    }
+
+    private static double toSeconds(long micros) {
+        return micros / 1_000_000.0;
+    }
+
+    @Nonnull
+    private static String labels(@Nonnull String transport, @Nonnull String endpoint) {
+        return "transport=\"" + transport + "\",endpoint=\"" + endpoint + "\"";
+    }
+
+    /**
+     * Count, error count and latency distribution (microsecond resolution, 3 significant digits, since the previous scrape) of one kind of call.
+     */
+    public static final class LatencyMetric {
+
+        private final String labels;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errorCount = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final Recorder latencyMicros = new Recorder(3);
+
+        LatencyMetric(@Nonnull String labels) {
+            this.labels = labels;
+        }
+
+        /**
+         * @param elapsedNanos how long the call took.
+         * @param error        whether the call failed.
+         */
+        public void record(long elapsedNanos, boolean error) {
+            long micros = NANOSECONDS.toMicros(elapsedNanos);
+            count.increment();
+            if (error) {
+                errorCount.increment();
+            }
+            totalMicros.add(micros);
+            latencyMicros.recordValue(micros);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrorCount() {
+            return errorCount.sum();
+        }
+
+        public long getTotalMicros() {
+            return totalMicros.sum();
+        }
+
+        /**
+         * @return latencies recorded since previous call, which they are taken out of.
+         */
+        @Nonnull
+        Histogram intervalSnapshot() {
+            return latencyMicros.getIntervalHistogram();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import javax.annotation.*;
+
+import com.google.common.cache.*;
+import com.google.inject.*;
+import com.google.inject.name.*;
+
+import static java.util.concurrent.CompletableFuture.*;
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Keeps product descriptions already serialized for the transport (protobuf bytes for gRPC, JSON for REST), per product and backend, so
+ * that repeated <tt>getProductById</tt> calls write stored bytes straight out instead of building and serializing the description again. Each
+ * plugin gets its own instance (this class is not a singleton), holding its own format.</p>
+ *
+ * <p>Every description is stored along with its version, as reported by the backend (e.g. a revision number or last modification time). Once
+ * the backend reports a different version of the product (see {@link #reportVersion(Configuration, String, String)}), the stored description
+ * is dropped, and descriptions loaded in the meantime with an outdated version are not stored.</p>
+ *
+ * <p>Configured by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_PRODUCT_STORE_TTL</tt> - max age of stored description, in seconds, in case backend never reports changes; <tt>0</tt>
+ *     disables the store;</li>
+ *     <li><tt>SAMPLE_PRODUCT_STORE_MAX_BYTES</tt> - max total size of stored descriptions.</li>
+ * </ul>
+ * </p>
+ */
+public class ProductDescriptionStore {
+
+    /**
+     * <tt>null</tt> if the store is disabled.
+     */
+    @Nullable
+    private final Cache<ProductKey, Entry> entries;
+
+    /**
+     * Latest version reported by backends, per product.
+     */
+    private final Cache<ProductKey, String> reportedVersions;
+
+    @Inject
+    public ProductDescriptionStore(@Named("SAMPLE_PRODUCT_STORE_TTL") long ttlSeconds,
+                                   @Named("SAMPLE_PRODUCT_STORE_MAX_BYTES") long maxBytes) {
+        this.entries = (ttlSeconds <= 0L) ? null : CacheBuilder.newBuilder()
+                .expireAfterWrite(ttlSeconds, SECONDS)
+                .maximumWeight(maxBytes)
+                .weigher((ProductKey key, Entry entry) -> entry.description.size())
+                .build();
+        this.reportedVersions = CacheBuilder.newBuilder()
+                .expireAfterWrite(Math.max(ttlSeconds, 1L), SECONDS)
+                .maximumSize(100_000L)
+                .build();
+    }
+
+    /**
+     * Returns stored description, loading (and storing) it if necessary.
+     *
+     * @param loader loads and serializes the description.
+     */
+    @Nonnull
+    public CompletableFuture<SerializedMessage> get(@Nonnull ProductKey key, @Nonnull Function<ProductKey, CompletableFuture<Entry>> loader) {
+        if (entries == null) {
+            return loader.apply(key).thenApply(entry -> entry.description);
+        }
+        Entry entry = entries.getIfPresent(key);
+        if (entry != null) {
+            return completedFuture(entry.description);
+        }
+        return loader.apply(key).thenApply(loaded -> {
+            String reportedVersion = reportedVersions.getIfPresent(key);
+            if (reportedVersion == null || reportedVersion.equals(loaded.version)) {
+                entries.put(key, loaded);
+            }
+            return loaded.description;
+        });
+    }
+
+    /**
+     * Tells the store which version of the product the backend has now. Stored description of another version is dropped.
+     */
+    public void reportVersion(@Nonnull Configuration configuration, @Nonnull String productId, @Nonnull String version) {
+        ProductKey key = new ProductKey(configuration, productId);
+        reportedVersions.put(key, version);
+        if (entries != null) {
+            Entry entry = entries.getIfPresent(key);
+            if (entry != null && !entry.version.equals(version)) {
+                entries.asMap().remove(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Drops stored description of the product, whatever its version.
+     */
+    public void invalidate(@Nonnull Configuration configuration, @Nonnull String productId) {
+        if (entries != null) {
+            entries.invalidate(new ProductKey(configuration, productId));
+        }
+    }
+
+    /**
+     * Serialized description of some version of a product.
+     */
+    public static final class Entry {
+
+        final String version;
+        final SerializedMessage description;
+
+        public Entry(@Nonnull String version, @Nonnull SerializedMessage description) {
+            this.version = version;
+            this.description = description;
+        }
+    }
+}
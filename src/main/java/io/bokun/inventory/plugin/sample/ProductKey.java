@@ -0,0 +1,41 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+
+import javax.annotation.*;
+
+/**
+ * Identifies one product of one backend.
+ */
+public final class ProductKey {
+
+    final Configuration configuration;
+    final String productId;
+
+    public ProductKey(@Nonnull Configuration configuration, @Nonnull String productId) {
+        this.configuration = configuration;
+        this.productId = productId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ProductKey)) {
+            return false;
+        }
+        ProductKey that = (ProductKey) o;
+        return productId.equals(that.productId) && configuration.equals(that.configuration);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(configuration, productId);
+    }
+
+    @Override
+    public String toString() {
+        return productId + "@" + configuration.host;
+    }
+}
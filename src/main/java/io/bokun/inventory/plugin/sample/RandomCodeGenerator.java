@@ -0,0 +1,53 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.nio.*;
+import java.util.*;
+
+import javax.annotation.*;
+
+/**
+ * <p>Confirmation codes laid out as random (version 4) UUIDs, same as <tt>UUID.randomUUID()</tt> makes, with all 122 random bits taken from
+ * {@link UnguessableBits} instead of the JVM-wide <tt>SecureRandom</tt>. Codes tell nothing about other codes, nor about when they were
+ * made.</p>
+ *
+ * <p>Codes of any instances collide with odds of about one in 2^61 per pair of codes, same as random UUIDs; this needs no configuration per
+ * instance, and holds across restarts and clock changes.</p>
+ */
+final class RandomCodeGenerator implements ConfirmationCodeGenerator {
+
+    private static final long VERSION_MASK = 0xf000L;
+
+    private static final long VERSION = 4L << 12;
+
+    private static final long VARIANT_MASK = 0xc000_0000_0000_0000L;
+
+    private static final long VARIANT = 1L << 63;
+
+    private final UnguessableBits bits;
+
+    RandomCodeGenerator() {
+        this(new UnguessableBits());
+    }
+
+    /**
+     * @param bits source of random bits, which may be shared with another generator.
+     */
+    RandomCodeGenerator(@Nonnull UnguessableBits bits) {
+        this.bits = bits;
+    }
+
+    @Nonnull
+    @Override
+    public String next() {
+        ByteBuffer random = bits.next();
+        long mostSignificantBits = (random.getLong() & ~VERSION_MASK) | VERSION;
+        long leastSignificantBits = (random.getLong() & ~VARIANT_MASK) | VARIANT;
+        return new UUID(mostSignificantBits, leastSignificantBits).toString();
+    }
+
+    @Nonnull
+    @Override
+    public String nextTicketBarcode() {
+        return next();
+    }
+}
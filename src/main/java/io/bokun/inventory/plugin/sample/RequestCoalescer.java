@@ -0,0 +1,209 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import javax.annotation.*;
+
+import com.google.common.util.concurrent.*;
+import io.grpc.Context;
+
+/**
+ * <p>Single-flight execution of backend calls: while a call for some key is in flight, concurrent callers asking for the same key get the result
+ * of that call instead of starting another one. Once the call completes, the next caller starts a new one (nothing is cached).</p>
+ *
+ * <p>Calls are shared by all their callers, so they are not bound to the gRPC context of whoever started them. Each call runs in a context of
+ * its own instead, which is cancelled once all callers waiting for it have gone, i.e. their gRPC calls have been cancelled or their deadlines
+ * have passed (so the call runs until the latest deadline of its callers). Backend calls made from that context are aborted then, see
+ * {@link BackendClients#newCall(Configuration, com.squareup.okhttp.Request)}. Callers not serving a gRPC call never go, so calls they start run
+ * in ROOT context; calls of coalescers created with <tt>cancelWhenAbandoned=false</tt> always carry on as well.</p>
+ *
+ * <p>Counts all calls and the ones which were coalesced, so that effectiveness can be monitored.</p>
+ *
+ * @param <K> key identifying identical calls; must have proper <tt>equals</tt>/<tt>hashCode</tt>.
+ * @param <V> result of the call.
+ */
+public class RequestCoalescer<K, V> {
+
+    private final String name;
+
+    private final boolean cancelWhenAbandoned;
+
+    private final ConcurrentMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final LongAdder calls = new LongAdder();
+
+    private final LongAdder coalescedCalls = new LongAdder();
+
+    /**
+     * @param name what is being coalesced, e.g. <tt>getProductById</tt>; used for monitoring.
+     */
+    public RequestCoalescer(@Nonnull String name) {
+        this(name, true);
+    }
+
+    /**
+     * @param name                what is being coalesced, e.g. <tt>getProductById</tt>; used for monitoring.
+     * @param cancelWhenAbandoned whether to cancel calls once all their callers have gone; <tt>false</tt> for calls whose result is needed
+     *                            anyway, e.g. bookings whose response is kept for retries.
+     */
+    public RequestCoalescer(@Nonnull String name, boolean cancelWhenAbandoned) {
+        this.name = name;
+        this.cancelWhenAbandoned = cancelWhenAbandoned;
+    }
+
+    /**
+     * Returns result of in-flight call for the same key, or starts a new call.
+     *
+     * @param key  identifies the call.
+     * @param call starts actual backend call.
+     * @return future of the result; each caller gets its own future, so completing or cancelling it does not affect others.
+     */
+    @Nonnull
+    public CompletableFuture<V> execute(@Nonnull K key, @Nonnull Function<K, CompletableFuture<V>> call) {
+        calls.increment();
+        Context caller = Context.current();
+        while (true) {
+            Flight<V> existing = inFlight.get(key);
+            if (existing == null) {
+                // a caller not serving a gRPC call never goes, so neither would the call; it is left in ROOT, where backend clients are used
+                // as they are (see BackendClients#get)
+                boolean cancellable = cancelWhenAbandoned && caller != Context.ROOT;
+                Flight<V> started = new Flight<>(cancellable ? Context.ROOT.withCancellation() : null);
+                existing = inFlight.putIfAbsent(key, started);
+                if (existing == null) {
+                    CompletableFuture<V> result = started.join(caller);
+                    start(key, started, call);
+                    return result;
+                }
+            }
+            CompletableFuture<V> joined = existing.join(caller);
+            if (joined != null) {
+                coalescedCalls.increment();
+                return joined;
+            }
+            inFlight.remove(key, existing);                         // abandoned just now, start another call
+        }
+    }
+
+    private void start(@Nonnull K key, @Nonnull Flight<V> flight, @Nonnull Function<K, CompletableFuture<V>> call) {
+        // shared by all callers, so it must not be aborted when the one who started it gives up (see BackendClients#newCall)
+        Context sharedContext = (flight.context != null) ? flight.context : Context.ROOT;
+        Context previous = sharedContext.attach();
+        try {
+            call.apply(key).whenComplete((value, failure) -> {
+                inFlight.remove(key, flight);
+                if (failure != null) {
+                    flight.result.completeExceptionally(failure);
+                } else {
+                    flight.result.complete(value);
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.remove(key, flight);
+            flight.result.completeExceptionally(e);
+        } finally {
+            sharedContext.detach(previous);
+        }
+    }
+
+    @Nonnull
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return total number of {@link #execute(Object, Function)} calls.
+     */
+    public long getCallCount() {
+        return calls.sum();
+    }
+
+    /**
+     * @return number of {@link #execute(Object, Function)} calls which did not reach the backend but joined an in-flight call instead.
+     */
+    public long getCoalescedCallCount() {
+        return coalescedCalls.sum();
+    }
+
+    /**
+     * @return number of distinct calls in flight right now.
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + getCoalescedCallCount() + " of " + getCallCount() + " calls coalesced";
+    }
+
+    /**
+     * One call in flight, along with its callers still waiting for it.
+     */
+    private static final class Flight<V> {
+
+        private final CompletableFuture<V> result = new CompletableFuture<>();
+
+        /**
+         * Context the call runs in, cancelled once no caller waits; <tt>null</tt> if the call always carries on.
+         */
+        @Nullable
+        private final Context.CancellableContext context;
+
+        private int waiting;
+
+        private boolean abandoned;
+
+        Flight(@Nullable Context.CancellableContext context) {
+            this.context = context;
+            // once done, so that listeners the call has added are let go
+            result.whenComplete((value, failure) -> {
+                if (context != null) {
+                    context.cancel(null);
+                }
+            });
+        }
+
+        /**
+         * Adds given caller to those waiting, until its context is cancelled or it cancels returned future.
+         *
+         * @return future of the result, or <tt>null</tt> if the call has been abandoned already.
+         */
+        @Nullable
+        synchronized CompletableFuture<V> join(@Nonnull Context caller) {
+            if (abandoned) {
+                return null;
+            }
+            CompletableFuture<V> copy = result.thenApply(Function.identity());
+            if (context == null) {
+                return copy;
+            }
+            waiting++;
+            AtomicBoolean gone = new AtomicBoolean();
+            Runnable leave = () -> {
+                if (gone.compareAndSet(false, true)) {
+                    leave();
+                }
+            };
+            Context.CancellationListener cancellation = cancelledContext -> leave.run();
+            caller.addListener(cancellation, MoreExecutors.directExecutor());
+            copy.whenComplete((value, failure) -> {
+                caller.removeListener(cancellation);
+                if (copy.isCancelled()) {
+                    leave.run();
+                }
+            });
+            return copy;
+        }
+
+        private synchronized void leave() {
+            waiting--;
+            if (waiting == 0 && !result.isDone()) {
+                abandoned = true;
+                context.cancel(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.util.zip.*;
+
+import javax.annotation.*;
+
+import com.google.inject.*;
+import com.google.inject.name.*;
+import com.google.protobuf.*;
+import io.grpc.Codec;
+import io.grpc.Compressor;
+import io.grpc.CompressorRegistry;
+import io.grpc.DecompressorRegistry;
+import io.grpc.ForwardingServerCall;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.netty.*;
+import io.undertow.server.*;
+import io.undertow.server.handlers.encoding.*;
+import org.slf4j.*;
+
+import static io.undertow.util.Headers.*;
+
+/**
+ * <p>Compresses responses of both transports. Big responses (e.g. availability over several months) shrink a lot, while small ones are not worth
+ * the CPU, therefore only responses of at least <tt>minSize</tt> bytes are compressed.</p>
+ *
+ * <p>Configured by optional environment variables:<ul>
+ *     <li><tt>SAMPLE_COMPRESSION</tt> - <tt>none</tt> (default) or <tt>gzip</tt>. gRPC responses are gzipped if the client accepts gzip; REST
+ *     responses are gzipped or deflated, depending on <tt>Accept-Encoding</tt> of the request;</li>
+ *     <li><tt>SAMPLE_COMPRESSION_LEVEL</tt> - 1 (default; fastest) to 9 (smallest output);</li>
+ *     <li><tt>SAMPLE_COMPRESSION_MIN_SIZE</tt> - responses (gRPC messages) smaller than this many bytes are sent uncompressed.</li>
+ * </ul>
+ * </p>
+ */
+@Singleton
+public class ResponseCompression implements ServerInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(ResponseCompression.class);
+
+    private static final String GZIP = "gzip";
+
+    private final boolean enabled;
+
+    private final int level;
+
+    private final int minSize;
+
+    @Inject
+    public ResponseCompression(@Named("SAMPLE_COMPRESSION") String compression,
+                               @Named("SAMPLE_COMPRESSION_LEVEL") int level,
+                               @Named("SAMPLE_COMPRESSION_MIN_SIZE") int minSize) {
+        switch (compression.toLowerCase()) {
+            case "none": this.enabled = false; break;
+            case GZIP: this.enabled = true; break;
+            default: throw new IllegalArgumentException("Unsupported compression " + compression);
+        }
+        this.level = level;
+        this.minSize = minSize;
+        log.info("Response compression: {}, level {}, min size {}", compression, level, minSize);
+    }
+
+    /**
+     * Registers gzip compressor of configured level with gRPC server. Compressed requests are accepted regardless of settings.
+     */
+    public void configure(@Nonnull NettyServerBuilder serverBuilder) {
+        CompressorRegistry compressors = CompressorRegistry.newEmptyInstance();
+        compressors.register(Codec.Identity.NONE);
+        compressors.register(new GzipCompressor(level));
+        serverBuilder.compressorRegistry(compressors);
+        serverBuilder.decompressorRegistry(DecompressorRegistry.getDefaultInstance());
+    }
+
+    /**
+     * Turns on gzip for gRPC call (gRPC falls back to no compression if client does not accept gzip), and decides per message whether it is
+     * big enough to be compressed.
+     */
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        if (!enabled) {
+            return next.startCall(call, headers);
+        }
+        call.setCompression(GZIP);
+        return next.startCall(
+                new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+                    @Override
+                    public void sendMessage(RespT message) {
+                        super.setMessageCompression(size(message) >= minSize);
+                        super.sendMessage(message);
+                    }
+                },
+                headers
+        );
+    }
+
+    /**
+     * @return serialized size of gRPC response, or {@link Long#MAX_VALUE} if not known.
+     */
+    private static long size(@Nonnull Object message) {
+        if (message instanceof SerializedMessage) {
+            return ((SerializedMessage) message).size();
+        }
+        // serialized size is computed once and memoized by the message, so asking for it costs nothing extra
+        return (message instanceof MessageLite) ? ((MessageLite) message).getSerializedSize() : Long.MAX_VALUE;
+    }
+
+    /**
+     * Wraps REST handler so that its responses are gzipped or deflated if big enough and accepted by the client.
+     */
+    @Nonnull
+    public HttpHandler wrap(@Nonnull HttpHandler next) {
+        if (!enabled) {
+            return next;
+        }
+        ContentEncodingRepository encodings = new ContentEncodingRepository()
+                .addEncodingHandler(GZIP, new GzipEncodingProvider(level), 100, this::isBigEnough)
+                .addEncodingHandler("deflate", new DeflateEncodingProvider(level), 50, this::isBigEnough);
+        return new EncodingHandler(next, encodings);
+    }
+
+    /**
+     * Evaluated once response starts being written. {@link RestHandlers} encode responses upfront and set their <tt>Content-Length</tt>;
+     * responses of unknown length are sent uncompressed, as there is no telling whether they are worth it.
+     */
+    private boolean isBigEnough(@Nonnull HttpServerExchange exchange) {
+        String contentLength = exchange.getResponseHeaders().getFirst(CONTENT_LENGTH);
+        return (contentLength != null) && (Long.parseLong(contentLength) >= minSize);
+    }
+
+    /**
+     * Same as gRPC built-in gzip, but with configurable compression level (built-in one uses the default, rather slow, level 6).
+     */
+    static final class GzipCompressor implements Compressor {
+
+        private final int level;
+
+        GzipCompressor(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public String getMessageEncoding() {
+            return GZIP;
+        }
+
+        @Override
+        public OutputStream compress(OutputStream os) throws IOException {
+            return new GZIPOutputStream(os) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+/**
+ * One REST plugin API operation: takes parsed request object and eventually produces response object which will be sent back as JSON.
+ *
+ * @param <I> request type.
+ * @param <O> response type.
+ */
+@FunctionalInterface
+public interface RestEndpoint<I, O> {
+
+    /**
+     * Processes the request. Implementations should not block waiting for the backend if they can avoid it; returned future may be completed
+     * from any thread.
+     *
+     * @param request parsed request.
+     * @return future of the response; completing it exceptionally results in HTTP error status matching gRPC status of the failure (see
+     * {@link BackendCallException}): 503 if the backend is unavailable or overloaded, 504 if it did not respond in time, 500 otherwise.
+     */
+    @Nonnull
+    CompletableFuture<O> handle(@Nonnull I request);
+}
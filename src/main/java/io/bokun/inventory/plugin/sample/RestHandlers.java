@@ -0,0 +1,239 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.inject.*;
+import com.google.inject.name.*;
+import io.grpc.Status;
+import io.undertow.server.*;
+import io.undertow.server.handlers.*;
+import io.undertow.util.*;
+import org.slf4j.*;
+
+import static io.undertow.util.Headers.*;
+import static io.undertow.util.StatusCodes.*;
+
+/**
+ * <p>Turns {@link RestEndpoint}s into Undertow handlers. Three modes are supported, selected by <tt>SAMPLE_REST_HANDLER_MODE</tt> environment
+ * variable:<ul>
+ *     <li><tt>blocking</tt> (default) - every request is wrapped into {@link BlockingHandler}, i.e. it occupies one Undertow worker thread from
+ *     the moment the body starts being read until the response has been written;</li>
+ *     <li><tt>async</tt> - request body is read by the IO thread without blocking, then the endpoint is invoked on a worker thread and the
+ *     exchange is completed from the callback of the returned future. The worker is released as soon as the endpoint returns, so endpoints
+ *     returning futures of non-blocking backend calls (see {@link AsyncBackendClient}) hold no thread while waiting for the backend, and worker
+ *     pool size no longer limits the number of requests in flight. Endpoints blocking on the backend still hold the worker, same as in
+ *     <tt>blocking</tt> mode, but never the IO thread;</li>
+ *     <li><tt>virtual</tt> - same as <tt>blocking</tt>, but every request gets its own virtual thread instead of a worker thread (see
+ *     {@link VirtualThreads}), so endpoints may block on the backend without worker pool size limiting the number of requests in flight. Falls
+ *     back to <tt>blocking</tt> before Java 21.</li>
+ * </ul>
+ * </p>
+ *
+ * <p>Endpoints may also return {@link SerializedMessage} holding ready JSON, which is sent as is.</p>
+ *
+ * <p>Requests which can not be read or parsed respond with <tt>400 Bad Request</tt>. Failed calls respond with <tt>503 Service Unavailable</tt>
+ * when backend is unavailable or overloaded (see {@link BackendGuard}), <tt>504 Gateway Timeout</tt> when it did not respond in time,
+ * <tt>500 Internal Server Error</tt> otherwise.</p>
+ */
+@Singleton
+public class RestHandlers {
+
+    /**
+     * Request processing modes, see class documentation.
+     */
+    public enum Mode {
+        BLOCKING,
+        ASYNC,
+        VIRTUAL
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(RestHandlers.class);
+
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+
+    private final JsonCodec codec;
+
+    private final Mode mode;
+
+    /**
+     * Runs requests in <tt>VIRTUAL</tt> mode, <tt>null</tt> in other modes.
+     */
+    @Nullable
+    private final ExecutorService virtualThreads;
+
+    @Inject
+    public RestHandlers(JsonCodec codec,
+                        @Named("SAMPLE_REST_HANDLER_MODE") String mode) {
+        this.codec = codec;
+        Mode requestedMode = Mode.valueOf(mode.toUpperCase());
+        this.virtualThreads = (requestedMode == Mode.VIRTUAL) ? VirtualThreads.newPerTaskExecutor("rest-virtual-") : null;
+        if (requestedMode == Mode.VIRTUAL && virtualThreads == null) {
+            log.warn("Virtual threads are not available on Java {}, falling back to blocking REST request handling", VirtualThreads.javaVersion());
+            this.mode = Mode.BLOCKING;
+        } else {
+            this.mode = requestedMode;
+        }
+        log.info("Using {} REST request handling", this.mode);
+    }
+
+    /**
+     * Creates handler which parses request body as JSON object of given type, passes it to the endpoint and writes the response back as JSON.
+     *
+     * @param requestType type of the request object.
+     * @param endpoint    actual implementation, e.g. <tt>SampleRestPlugin::getProductAvailability</tt>.
+     * @return handler to register for the route.
+     */
+    @Nonnull
+    public <I, O> HttpHandler handler(@Nonnull Class<I> requestType, @Nonnull RestEndpoint<I, O> endpoint) {
+        switch (mode) {
+            case ASYNC:
+                return asyncHandler(requestType, endpoint);
+            case VIRTUAL:
+                return virtualThreadHandler(requestType, endpoint);
+            default:
+                return new BlockingHandler(blockingHandler(requestType, endpoint));
+        }
+    }
+
+    /**
+     * Same as {@link BlockingHandler}, dispatching to a new virtual thread instead of a worker thread.
+     */
+    @Nonnull
+    private <I, O> HttpHandler virtualThreadHandler(@Nonnull Class<I> requestType, @Nonnull RestEndpoint<I, O> endpoint) {
+        HttpHandler handler = blockingHandler(requestType, endpoint);
+        return exchange -> {
+            exchange.startBlocking();
+            if (exchange.isInIoThread()) {
+                exchange.dispatch(virtualThreads, handler);
+            } else {
+                handler.handleRequest(exchange);
+            }
+        };
+    }
+
+    /**
+     * @return handler to be run where it may block, i.e. not on IO thread.
+     */
+    @Nonnull
+    private <I, O> HttpHandler blockingHandler(@Nonnull Class<I> requestType, @Nonnull RestEndpoint<I, O> endpoint) {
+        return exchange -> {
+            I request;
+            try {
+                request = codec.read(exchange.getInputStream(), requestType);
+            } catch (IOException e) {
+                log.warn("Could not read {}", exchange.getRequestPath(), e);
+                exchange.setStatusCode(BAD_REQUEST);
+                return;
+            }
+            O response;
+            try {
+                response = endpoint.handle(request).join();
+            } catch (CompletionException e) {
+                // still on the worker (or virtual) thread; exchange is ended once this handler returns
+                log.error("Could not process {}", exchange.getRequestPath(), e.getCause());
+                exchange.setStatusCode(statusCode(e.getCause()));
+                return;
+            }
+            // encoded upfront, same as async responses, so that Content-Length is known (see ResponseCompression)
+            ByteBuffer body = encode(response);
+            exchange.getResponseHeaders().put(CONTENT_TYPE, JSON_CONTENT_TYPE);
+            exchange.setResponseContentLength(body.remaining());
+            exchange.getResponseSender().send(body);
+        };
+    }
+
+    @Nonnull
+    private <I, O> HttpHandler asyncHandler(@Nonnull Class<I> requestType, @Nonnull RestEndpoint<I, O> endpoint) {
+        return exchange -> exchange.getRequestReceiver().receiveFullBytes(
+                (receivedExchange, body) -> {
+                    I request;
+                    try {
+                        request = codec.read(new ByteArrayInputStream(body), requestType);
+                    } catch (IOException e) {
+                        rejectUnreadable(receivedExchange, e);
+                        return;
+                    }
+                    // keeps the exchange open after this callback returns, it is completed once the future completes; endpoint runs on a worker
+                    // thread, as it may block before returning the future, which must never happen on the IO thread
+                    receivedExchange.dispatch(
+                            () -> invoke(endpoint, request).whenComplete((response, failure) -> {
+                                if (failure != null) {
+                                    fail(receivedExchange, failure);
+                                } else {
+                                    send(receivedExchange, encode(response));
+                                }
+                            })
+                    );
+                },
+                this::rejectUnreadable
+        );
+    }
+
+    /**
+     * Calls the endpoint, turning synchronously thrown exceptions into failed future.
+     */
+    @Nonnull
+    private static <I, O> CompletableFuture<O> invoke(@Nonnull RestEndpoint<I, O> endpoint, @Nonnull I request) {
+        try {
+            return endpoint.handle(request);
+        } catch (RuntimeException e) {
+            CompletableFuture<O> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Nonnull
+    private ByteBuffer encode(@Nonnull Object response) {
+        return (response instanceof SerializedMessage) ? ((SerializedMessage) response).asByteBuffer() : codec.encode(response);
+    }
+
+    /**
+     * Sends encoded response from the IO thread of the exchange (as the future may be completed by any thread).
+     */
+    private static void send(@Nonnull HttpServerExchange exchange, @Nonnull ByteBuffer body) {
+        exchange.getIoThread().execute(() -> {
+            exchange.getResponseHeaders().put(CONTENT_TYPE, JSON_CONTENT_TYPE);
+            exchange.getResponseSender().send(body);
+        });
+    }
+
+    /**
+     * Responds with <tt>400 Bad Request</tt> to request whose body could not be read or parsed; the endpoint has not been called.
+     */
+    private void rejectUnreadable(@Nonnull HttpServerExchange exchange, @Nonnull IOException failure) {
+        log.warn("Could not read {}", exchange.getRequestPath(), failure);
+        exchange.getIoThread().execute(() -> {
+            exchange.setStatusCode(BAD_REQUEST);
+            exchange.endExchange();
+        });
+    }
+
+    private void fail(@Nonnull HttpServerExchange exchange, @Nonnull Throwable failure) {
+        log.error("Could not process {}", exchange.getRequestPath(), failure);
+        int statusCode = statusCode(failure);
+        exchange.getIoThread().execute(() -> {
+            exchange.setStatusCode(statusCode);
+            exchange.endExchange();
+        });
+    }
+
+    /**
+     * @return HTTP status code matching gRPC status of the failure (see {@link BackendCallException}).
+     */
+    private static int statusCode(@Nonnull Throwable failure) {
+        switch (Status.fromThrowable(failure).getCode()) {
+            case UNAVAILABLE:
+            case RESOURCE_EXHAUSTED:
+                return SERVICE_UNAVAILABLE;
+            case DEADLINE_EXCEEDED:
+                return GATEWAY_TIME_OUT;
+            default:
+                return INTERNAL_SERVER_ERROR;
+        }
+    }
+}
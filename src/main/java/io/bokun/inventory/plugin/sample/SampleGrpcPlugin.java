@@ -2,6 +2,7 @@ package io.bokun.inventory.plugin.sample;
 
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.annotation.*;
 
@@ -12,12 +13,14 @@ import io.bokun.inventory.common.api.grpc.Date;
 import io.bokun.inventory.common.api.grpc.*;
 import io.bokun.inventory.plugin.api.grpc.PluginConfigurationParameter;
 import io.bokun.inventory.plugin.api.grpc.*;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
 import io.grpc.stub.*;
 import org.slf4j.*;
 
 import static io.bokun.inventory.common.api.grpc.PluginCapability.*;
 import static io.bokun.inventory.common.api.grpc.PluginParameterDataType.*;
-import static java.util.concurrent.TimeUnit.*;
+import static java.util.concurrent.CompletableFuture.*;
 
 /**
  * Inventory Service API implementation using gRPC transport.
@@ -29,16 +32,89 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
     private static final Logger log = LoggerFactory.getLogger(SampleGrpcPlugin.class);
 
     /**
-     * Default OkHttp read timeout: how long to wait (in seconds) for the backend to respond to requests.
+     * HTTP clients for talking to backends, one per backend; use <tt>backendClients.newCall(configuration, request)</tt>, which aborts backend
+     * call as soon as the gRPC call is cancelled or its deadline passes, or <tt>backendClients.async(configuration)</tt> to make several calls at
+     * once without blocking (see {@link AsyncBackendClient}).
      */
-    private static final long DEFAULT_READ_TIMEOUT = 30L;
+    private final BackendClients backendClients;
 
-    private final OkHttpClient client;
+    /**
+     * Availability per product and date range; concurrent identical requests share one backend call, also when caching is disabled. See
+     * {@link #getProductAvailability(ProductAvailabilityRequest, StreamObserver)}.
+     */
+    private final AvailabilityCache<AvailabilitySlots> availabilityCache;
+
+    /**
+     * Shares one backend call between concurrent identical {@link #getSerializedProductById(GetProductByIdRequest, StreamObserver)} requests.
+     */
+    private final RequestCoalescer<ProductKey, ProductDescriptionStore.Entry> productCoalescer = new RequestCoalescer<>("grpc.getProductById");
+
+    /**
+     * Product descriptions as serialized protobuf bytes, see {@link #getSerializedProductById(GetProductByIdRequest, StreamObserver)}.
+     */
+    private final ProductDescriptionStore productStore;
+
+    /**
+     * Checks many products in parallel, see {@link #getAvailableProducts(ProductsAvailabilityRequest, StreamObserver)}.
+     */
+    private final AvailabilityFanOut availabilityFanOut;
+
+    /**
+     * Streams big results with respect to flow control, see {@link #searchProducts(SearchProductsRequest, StreamObserver)}.
+     */
+    private final PagedResponseStreamer pagedResponseStreamer;
+
+    /**
+     * Local index of backend catalogs, see {@link #searchProducts(SearchProductsRequest, StreamObserver)}.
+     */
+    private final CatalogSync<BasicProductInfo> catalogSync;
+
+    /**
+     * Answers retried confirmations with the response of the original one, see {@link #confirmBooking(ConfirmBookingRequest, StreamObserver)}.
+     */
+    private final IdempotentBookings idempotentBookings;
+
+    /**
+     * Makes up confirmation codes of reservations and bookings.
+     */
+    private final ConfirmationCodeGenerator confirmationCodes;
+
+    /**
+     * Stands in for backend calls, see {@link MockBackendCalls}.
+     */
+    private final MockBackendCalls mockBackend;
+
+    /**
+     * Times backend calls; plugin calls themselves are timed by {@link MetricsServerInterceptor}.
+     */
+    private final PluginMetrics metrics;
 
     @Inject
-    public SampleGrpcPlugin() {
-        this.client = new OkHttpClient();
-        client.setReadTimeout(DEFAULT_READ_TIMEOUT, SECONDS);
+    public SampleGrpcPlugin(BackendClients backendClients,
+                            AvailabilityCacheFactory availabilityCacheFactory,
+                            AvailabilityFanOut availabilityFanOut,
+                            PagedResponseStreamer pagedResponseStreamer,
+                            PluginMetrics metrics,
+                            ProductDescriptionStore productStore,
+                            CatalogSyncFactory catalogSyncFactory,
+                            IdempotentBookings idempotentBookings,
+                            ConfirmationCodeGenerator confirmationCodes,
+                            MockBackendCalls mockBackend) {
+        this.backendClients = backendClients;
+        this.availabilityFanOut = availabilityFanOut;
+        this.pagedResponseStreamer = pagedResponseStreamer;
+        this.metrics = metrics;
+        this.productStore = productStore;
+        this.idempotentBookings = idempotentBookings;
+        this.confirmationCodes = confirmationCodes;
+        this.mockBackend = mockBackend;
+        this.availabilityCache = availabilityCacheFactory.create(
+                "grpc.getProductAvailability",
+                key -> metrics.measureBackendCall("grpc", "GetProductAvailability", () -> loadProductAvailability(key)),
+                AvailabilitySlots::size
+        );
+        this.catalogSync = catalogSyncFactory.create(new ProductCatalogSource(), productStore);
+        metrics.register(productCoalescer);
     }
 
     /**
@@ -105,24 +181,47 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
      */
     @Nonnull
     private HttpUrl.Builder getUrlBuilder(@Nonnull Configuration configuration) {
-        return new HttpUrl.Builder()
-                .scheme(configuration.scheme)
-                .host(configuration.host)
-                .port(configuration.port)
-                .encodedPath(configuration.apiPath);
+        return configuration.getBaseUrl().newBuilder();
     }
 
     /**
-     * This method should list all your products
+     * This method should list all your products. Products are found in the local catalog index, kept in sync with the backend by
+     * {@link #catalogSync}, and streamed page by page as the client is ready to receive more, see {@link PagedResponseStreamer}.
      */
     @Override
     public void searchProducts(SearchProductsRequest request, StreamObserver<BasicProductInfo> responseObserver) {
         log.trace("In ::searchProducts");
         Configuration configuration = Configuration.fromGrpcParameters(request.getParametersList());
+        pagedResponseStreamer.stream(
+                responseObserver,           // streamer makes sure onCompleted is called, as IS will otherwise block waiting endlessly
+                PageFetcher.of(catalogSync.search(configuration, request.getCountry(), request.getCity()))
+        );
+    }
+
+    /**
+     * Lists versions of all products for {@link #catalogSync}.
+     *
+     * @return future of product ID -> version.
+     */
+    @Nonnull
+    private CompletableFuture<Map<String, String>> fetchProductVersions(@Nonnull Configuration configuration) {
+        // At this point you might want to call your external system to list products along with their ETag, last modification time or
+        // content hash. Code below just provides some mocks.
+        return mockBackend.call(configuration, "productVersions").thenApply(ignored -> ImmutableMap.of("123", "1"));
+    }
 
-        // At this point you might want to call your external system to do the actual search and return data back.
+    /**
+     * Fetches given products for {@link #catalogSync}.
+     */
+    @Nonnull
+    private CompletableFuture<List<BasicProductInfo>> fetchProducts(@Nonnull Configuration configuration, @Nonnull Collection<String> productIds) {
+        // At this point you might want to call your external system to fetch the products and return data back.
         // Code below just provides some mocks.
+        CompletableFuture<Void> backendCall = mockBackend.call(configuration, "products");
 
+        if (!productIds.contains("123")) {
+            return backendCall.thenApply(ignored -> ImmutableList.of());     // mock catalog only has one product
+        }
         BasicProductInfo basicProductInfo = BasicProductInfo.newBuilder()
                 .setId("123")
                 .setName("Mock product")
@@ -140,21 +239,55 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
                 .addCities("London")
                 .addCountries("GB")
                 .build();
-        responseObserver.onNext(basicProductInfo);      // you will likely want to run this in a loop, to return multiple products
-        responseObserver.onCompleted();                 // make sure this call is never forgotten as IS will otherwise block waiting endlessly 
-        log.trace("Successfully completed ::searchProducts");
+        return backendCall.thenApply(ignored -> ImmutableList.of(basicProductInfo));
     }
 
     /**
-     * Return detailed information about one particular product by given ID.
+     * Same as generated binding, except that <tt>GetProductById</tt> is served by
+     * {@link #getSerializedProductById(GetProductByIdRequest, StreamObserver)}, which responds with stored protobuf bytes.
      */
     @Override
-    public void getProductById(GetProductByIdRequest request, StreamObserver<ProductDescription> responseObserver) {
+    public ServerServiceDefinition bindService() {
+        return SerializedMessage.bindUnary(super.bindService(), "GetProductById", this::getSerializedProductById);
+    }
+
+    /**
+     * Return detailed information about one particular product by given ID.
+     *
+     * <p>Description is serialized once and kept in {@link #productStore}, so that repeated calls write stored bytes out instead of building
+     * and serializing it again. Bound in place of generated <tt>getProductById</tt>, see {@link #bindService()}.</p>
+     */
+    private void getSerializedProductById(GetProductByIdRequest request, StreamObserver<Object> responseObserver) {
         log.trace("In ::getProductById");
         Configuration configuration = Configuration.fromGrpcParameters(request.getParametersList());
+        ProductKey key = new ProductKey(configuration, request.getExternalId());
+        productStore.get(
+                key,
+                missing -> productCoalescer.execute(
+                        missing,
+                        k -> metrics.measureBackendCall("grpc", "GetProductById", () -> loadProductDescription(k))
+                )
+        ).whenComplete((productDescription, failure) -> {
+            if (failure != null) {
+                log.error("Could not get product {}", key, failure);
+                responseObserver.onError(Status.fromThrowable(failure).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(productDescription);
+            responseObserver.onCompleted();
+            log.trace("Successfully completed ::getProductById");
+        });
+    }
 
+    /**
+     * Fetches product description from the backend and serializes it for {@link #productStore}. Concurrent identical requests share one call,
+     * see {@link #productCoalescer}.
+     */
+    @Nonnull
+    private CompletableFuture<ProductDescriptionStore.Entry> loadProductDescription(@Nonnull ProductKey key) {
         // At this point you might want to call your external system to do the actual get and return data back.
         // Code below just provides some mocks.
+        CompletableFuture<Void> backendCall = mockBackend.call(key.configuration, "product");
 
         // similar to searchProducts except this should return a single product with a bit more information
         ProductDescription productDescription = ProductDescription.newBuilder()
@@ -219,9 +352,9 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
                 .setMeetingType(MeetingType.MEET_ON_LOCATION)
                 .setDropoffAvailable(false)
                 .build();
-        responseObserver.onNext(productDescription);
-        responseObserver.onCompleted();
-        log.trace("Successfully completed ::getProductById");
+
+        // version should be whatever the backend reports (revision, last modification time etc.), see ProductDescriptionStore
+        return backendCall.thenApply(ignored -> new ProductDescriptionStore.Entry("1", new SerializedMessage(productDescription.toByteArray())));
     }
 
     /**
@@ -233,76 +366,173 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
     @Override
     public void getAvailableProducts(ProductsAvailabilityRequest request, StreamObserver<ProductsAvailabilityResponse> responseObserver) {
         log.trace("In ::getAvailableProducts");
+        Configuration configuration = Configuration.fromGrpcParameters(request.getParametersList());
+
+        // products are checked in parallel batches; each response is streamed back as soon as its batch completes
+        availabilityFanOut.execute(
+                configuration,
+                request.getExternalProductIdsList(),
+                batch -> metrics.measureBackendCall("grpc", "GetAvailableProducts", () -> checkAvailableProducts(configuration, request, batch)),
+                productId -> ProductsAvailabilityResponse.newBuilder()
+                        .setProductId(productId)
+                        .setActualCheckDone(false)
+                        .build(),
+                ProductsAvailabilityResponse::getProductId,
+                responseObserver::onNext
+        ).whenComplete((ignored, failure) -> {
+            if (responseObserver instanceof ServerCallStreamObserver && ((ServerCallStreamObserver<?>) responseObserver).isCancelled()) {
+                log.debug("Client has gone before all products were checked");
+                return;
+            }
+            if (failure != null) {
+                log.error("Could not check available products", failure);
+                responseObserver.onError(Status.fromThrowable(failure).asRuntimeException());
+                return;
+            }
+            responseObserver.onCompleted();
+            log.trace("Out ::getAvailableProducts");
+        });
+    }
 
+    /**
+     * Checks one batch of products for {@link #getAvailableProducts(ProductsAvailabilityRequest, StreamObserver)}. Products which are not
+     * available should be omitted from the result.
+     */
+    @Nonnull
+    private CompletableFuture<List<ProductsAvailabilityResponse>> checkAvailableProducts(@Nonnull Configuration configuration,
+                                                                                        @Nonnull ProductsAvailabilityRequest request,
+                                                                                        @Nonnull List<String> productIds) {
         // At this point you might want to call your external system to do the actual get and return data back.
         // Code below just provides some mocks.
+        CompletableFuture<Void> backendCall = mockBackend.call(configuration, "availableProducts");
 
-        responseObserver.onNext(
-                ProductsAvailabilityResponse.newBuilder()
-                        .setProductId("123")
-                        .setActualCheckDone(false)
-                        .build()
+        if (!productIds.contains("123")) {
+            return backendCall.thenApply(ignored -> ImmutableList.of());
+        }
+        return backendCall.thenApply(ignored ->
+                ImmutableList.of(
+                        ProductsAvailabilityResponse.newBuilder()
+                                .setProductId("123")
+                                .setActualCheckDone(false)
+                                .build()
+                )
         );
-        responseObserver.onCompleted();
-        log.trace("Out ::getAvailableProducts");
     }
 
     /**
      * Get availability of a particular product over a date range. This request should follow GetAvailableProducts and provide more details on
      * precise dates/times for each product as well as capacity for each date. This call, however, is for a single product only (as opposed to
      * {@link #getAvailableProducts(ProductsAvailabilityRequest, StreamObserver)}) which checks many products but only does a basic shallow check.
+     *
+     * Availability is served from {@link #availabilityCache}, which holds it as {@link AvailabilitySlots}; response messages are built for every
+     * request. See {@link #loadProductAvailability(AvailabilityKey)} for the actual backend call.
      */
     @Override
     public void getProductAvailability(ProductAvailabilityRequest request, StreamObserver<ProductAvailabilityWithRatesResponse> responseObserver) {
         log.trace("In ::getProductAvailability");
+        Configuration configuration = Configuration.fromGrpcParameters(request.getParametersList());
+        AvailabilityKey key = new AvailabilityKey(
+                configuration,
+                request.getProductId(),
+                toKeyDate(request.getRange().getFrom()),
+                toKeyDate(request.getRange().getTo())
+        );
+        availabilityCache.get(key).whenComplete((slots, failure) -> {
+            if (failure != null) {
+                log.error("Could not get availability {}", key, failure);
+                responseObserver.onError(Status.fromThrowable(failure).asRuntimeException());
+                return;
+            }
+            for (int slot = 0; slot < slots.size(); slot++) {
+                responseObserver.onNext(toAvailabilityResponse(slots, slot));
+            }
+            responseObserver.onCompleted();
+            log.trace("Out ::getProductAvailability");
+        });
+    }
 
-        // At this point you might want to call your external system to do the actual get and return data back.
+    /**
+     * Fetches availability of one product from the backend. Called by {@link #availabilityCache} on cache misses and background refreshes.
+     */
+    @Nonnull
+    private CompletableFuture<AvailabilitySlots> loadProductAvailability(@Nonnull AvailabilityKey key) {
+        // At this point you might want to call your external system to do the actual get and return data back. If availability and prices
+        // come from separate endpoints, fetch them at once and combine, e.g.
+        //     AsyncBackendClient backend = backendClients.async(key.configuration);
+        //     backend.get(availabilityUrl, reader).thenCombine(backend.get(pricesUrl, reader), (availability, prices) -> ...)
         // Code below just provides some mocks.
+        CompletableFuture<Void> backendCall = mockBackend.call(key.configuration, "availability");
 
         LocalDate tomorrow = LocalDate.now().plusDays(1L);
-        responseObserver.onNext(
-                ProductAvailabilityWithRatesResponse.newBuilder()
-                        .setCapacity(10)
-                        .setDate(
-                                Date.newBuilder()
-                                        .setYear(tomorrow.getYear())
-                                        .setMonth(tomorrow.getMonthValue())
-                                        .setDay(tomorrow.getDayOfMonth())
-                        )
-                        .setTime(
-                                Time.newBuilder()
-                                        .setHour(8)
-                                        .setMinute(15)
-                        )
-                        .addRates(
-                                RateWithPrice.newBuilder()
-                                        .setRateId("standard")
-                                        .setPricePerPerson(
-                                                PricePerPerson.newBuilder()
-                                                        .addPricingCategoryWithPrice(
-                                                                PricingCategoryWithPrice.newBuilder()
-                                                                        .setPricingCategoryId("ADT")
-                                                                        .setPrice(
-                                                                                Price.newBuilder()
-                                                                                        .setAmount("100")
-                                                                                        .setCurrency("EUR")
-                                                                        )
-                                                        )
-                                                        .addPricingCategoryWithPrice(
-                                                                PricingCategoryWithPrice.newBuilder()
-                                                                        .setPricingCategoryId("CHD")
-                                                                        .setPrice(
-                                                                                Price.newBuilder()
-                                                                                        .setAmount("10")
-                                                                                        .setCurrency("EUR")
-                                                                        )
-                                                        )
-                                        )
+        return backendCall.thenApply(ignored ->
+                AvailabilitySlots.builder()
+                        .slot(
+                                AvailabilityKey.encodeDate(tomorrow.getYear(), tomorrow.getMonthValue(), tomorrow.getDayOfMonth()),
+                                AvailabilitySlots.encodeTime(8, 15),
+                                10
                         )
+                        .rate("standard")
+                        .price("ADT", "100", "EUR")
+                        .price("CHD", "10", "EUR")
                         .build()
         );
-        responseObserver.onCompleted();
-        log.trace("Out ::getProductAvailability");
+    }
+
+    /**
+     * Builds response message of one availability slot.
+     */
+    @Nonnull
+    private static ProductAvailabilityWithRatesResponse toAvailabilityResponse(@Nonnull AvailabilitySlots slots, int slot) {
+        LocalDate date = AvailabilityKey.decodeDate(slots.date(slot));
+        ProductAvailabilityWithRatesResponse.Builder response = ProductAvailabilityWithRatesResponse.newBuilder()
+                .setCapacity(slots.capacity(slot))
+                .setDate(
+                        Date.newBuilder()
+                                .setYear(date.getYear())
+                                .setMonth(date.getMonthValue())
+                                .setDay(date.getDayOfMonth())
+                );
+        int time = slots.time(slot);
+        if (time != AvailabilitySlots.NO_TIME) {
+            response.setTime(
+                    Time.newBuilder()
+                            .setHour(time / 60)
+                            .setMinute(time % 60)
+            );
+        }
+        for (int rate = slots.rateStart(slot); rate < slots.rateStart(slot + 1); rate++) {
+            RateWithPrice.Builder rateWithPrice = RateWithPrice.newBuilder()
+                    .setRateId(slots.rateId(rate));
+            if (slots.isPricedPerBooking(rate)) {
+                rateWithPrice.setPricePerBooking(
+                        PricePerBooking.newBuilder()
+                                .setPrice(toPrice(slots, slots.priceStart(rate)))
+                );
+            } else {
+                PricePerPerson.Builder pricePerPerson = PricePerPerson.newBuilder();
+                for (int price = slots.priceStart(rate); price < slots.priceStart(rate + 1); price++) {
+                    pricePerPerson.addPricingCategoryWithPrice(
+                            PricingCategoryWithPrice.newBuilder()
+                                    .setPricingCategoryId(slots.pricingCategoryId(price))
+                                    .setPrice(toPrice(slots, price))
+                    );
+                }
+                rateWithPrice.setPricePerPerson(pricePerPerson);
+            }
+            response.addRates(rateWithPrice);
+        }
+        return response.build();
+    }
+
+    @Nonnull
+    private static Price.Builder toPrice(@Nonnull AvailabilitySlots slots, int price) {
+        return Price.newBuilder()
+                .setAmount(slots.amount(price))
+                .setCurrency(slots.currency(price));
+    }
+
+    private static int toKeyDate(@Nonnull Date date) {
+        return AvailabilityKey.encodeDate(date.getYear(), date.getMonth(), date.getDay());
     }
 
     /**
@@ -324,7 +554,7 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
                 ReservationResponse.newBuilder()
                         .setSuccessfulReservation(
                                 SuccessfulReservation.newBuilder()
-                                        .setReservationConfirmationCode(UUID.randomUUID().toString())
+                                        .setReservationConfirmationCode(confirmationCodes.next())
                         )
                         .build()
         );
@@ -338,33 +568,51 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
      * Only implement this method if {@link PluginCapability#SUPPORTS_RESERVATIONS} is among capabilities of your {@link PluginDefinition}.
      * Otherwise you are only required to implement {@link #createAndConfirmBooking(CreateConfirmBookingRequest, StreamObserver)} which does both
      * reservation and confirmation, this method can be left empty or non-overridden.
+     *
+     * The platform retries confirmation it got no response for; retries of the same reservation get the response of the original confirmation,
+     * without calling the backend again (see {@link IdempotentBookings}).
      */
     @Override
     public void confirmBooking(ConfirmBookingRequest request, StreamObserver<ConfirmBookingResponse> responseObserver) {
         log.trace("In ::confirmBooking");
+        Configuration configuration = Configuration.fromGrpcParameters(request.getParametersList());
+        idempotentBookings.confirm(
+                IdempotentBookings.bookingKey("grpc.confirmBooking", configuration, request.getReservationConfirmationCode()),
+                IdempotentBookings.ResponseFormat.protobuf(ConfirmBookingResponse.parser()),
+                () -> mockBackend.call(configuration, "bookings").thenApply(ignored -> confirmReservation(configuration, request))
+        ).whenComplete((response, failure) -> {
+            if (failure != null) {
+                log.error("Could not confirm reservation {}", request.getReservationConfirmationCode(), failure);
+                responseObserver.onError(Status.fromThrowable(failure).asRuntimeException());
+                return;
+            }
+            responseObserver.onNext(response);
+            responseObserver.onCompleted();
+            log.trace("Out ::confirmBooking");
+        });
+    }
 
+    @Nonnull
+    private ConfirmBookingResponse confirmReservation(@Nonnull Configuration configuration, @Nonnull ConfirmBookingRequest request) {
         // At this point you might want to call your external system to do the actual confirmation and return data back.
         // Code below just provides some mocks.
 
         processBookingSourceInfo(request.getReservationData().getBookingSource());
-        String confirmationCode = UUID.randomUUID().toString();
-        responseObserver.onNext(
-                ConfirmBookingResponse.newBuilder()
-                        .setSuccessfulBooking(
-                                SuccessfulBooking.newBuilder()
-                                        .setBookingConfirmationCode(confirmationCode)
-                                        .setBookingTicket(
-                                                Ticket.newBuilder()
-                                                        .setQrTicket(
-                                                                QrTicket.newBuilder()
-                                                                        .setTicketBarcode(confirmationCode + "_ticket")
-                                                        )
-                                        )
-                        )
-                        .build()
-        );
-        responseObserver.onCompleted();
-        log.trace("Out ::confirmBooking");
+        String confirmationCode = confirmationCodes.next();
+        availabilityCache.bookingConfirmed(configuration, confirmationCode, request.getReservationData().getProductId());
+        return ConfirmBookingResponse.newBuilder()
+                .setSuccessfulBooking(
+                        SuccessfulBooking.newBuilder()
+                                .setBookingConfirmationCode(confirmationCode)
+                                .setBookingTicket(
+                                        Ticket.newBuilder()
+                                                .setQrTicket(
+                                                        QrTicket.newBuilder()
+                                                                .setTicketBarcode(confirmationCodes.nextTicketBarcode())
+                                                )
+                                )
+                )
+                .build();
     }
 
     /**
@@ -422,10 +670,13 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
     @Override
     public void cancelBooking(CancelBookingRequest request, StreamObserver<CancelBookingResponse> responseObserver) {
         log.trace("In ::cancelBooking");
+        Configuration configuration = Configuration.fromGrpcParameters(request.getParametersList());
 
         // At this point you might want to call your external system to do the actual cancellation and return data back.
         // Code below just provides some mocks.
 
+        availabilityCache.invalidateBooking(configuration, request.getBookingConfirmationCode());
+
         responseObserver.onNext(
                 CancelBookingResponse.newBuilder()
                         .setSuccessfulCancellation(
@@ -458,12 +709,15 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
     @Override
     public void amendBooking(AmendBookingRequest request, StreamObserver<AmendBookingResponse> responseObserver) {
         log.trace("In ::amendBooking");
+        Configuration configuration = Configuration.fromGrpcParameters(request.getParametersList());
 
         // At this point you might want to call your external system to do the actual amendment and return data back.
         // Code below just provides some mocks.
 
         processBookingSourceInfo(request.getReservationData().getBookingSource());
-        String confirmationCode = UUID.randomUUID().toString();
+        availabilityCache.invalidateBooking(configuration, request.getBookingConfirmationCode());
+        availabilityCache.invalidateProduct(configuration, request.getReservationData().getProductId());
+        String confirmationCode = confirmationCodes.next();
         responseObserver.onNext(
                 AmendBookingResponse.newBuilder()
                         .setSuccessfulAmendment(
@@ -473,7 +727,7 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
                                                 Ticket.newBuilder()
                                                         .setQrTicket(
                                                                 QrTicket.newBuilder()
-                                                                        .setTicketBarcode(confirmationCode + "ticket_amended")
+                                                                        .setTicketBarcode(confirmationCodes.nextTicketBarcode())
                                                         )
                                         )
                         )
@@ -482,4 +736,41 @@ public class SampleGrpcPlugin extends PluginApiGrpc.PluginApiImplBase {
         responseObserver.onCompleted();
         log.trace("Out ::amendBooking");
     }
+
+    /**
+     * Feeds {@link #catalogSync} from the backend.
+     */
+    private final class ProductCatalogSource implements CatalogSource<BasicProductInfo> {
+
+        @Nonnull
+        @Override
+        public CompletableFuture<Map<String, String>> fetchVersions(@Nonnull Configuration configuration) {
+            return metrics.measureBackendCall("grpc", "SearchProducts", () -> fetchProductVersions(configuration));
+        }
+
+        @Nonnull
+        @Override
+        public CompletableFuture<List<BasicProductInfo>> fetchProducts(@Nonnull Configuration configuration,
+                                                                      @Nonnull Collection<String> productIds) {
+            return metrics.measureBackendCall("grpc", "SearchProducts", () -> SampleGrpcPlugin.this.fetchProducts(configuration, productIds));
+        }
+
+        @Nonnull
+        @Override
+        public String idOf(@Nonnull BasicProductInfo product) {
+            return product.getId();
+        }
+
+        @Nonnull
+        @Override
+        public Collection<String> countriesOf(@Nonnull BasicProductInfo product) {
+            return product.getCountriesList();
+        }
+
+        @Nonnull
+        @Override
+        public Collection<String> citiesOf(@Nonnull BasicProductInfo product) {
+            return product.getCitiesList();
+        }
+    }
 }
@@ -1,26 +1,28 @@
 package io.bokun.inventory.plugin.sample;
 
-import java.io.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.annotation.*;
 
 import com.google.common.collect.*;
-import com.google.gson.*;
 import com.google.inject.*;
-import com.squareup.okhttp.*;
 import io.bokun.inventory.plugin.api.rest.*;
 import io.undertow.server.*;
 import org.slf4j.*;
 
 import static io.bokun.inventory.plugin.api.rest.PluginCapability.*;
 import static io.undertow.util.Headers.*;
-import static java.util.concurrent.TimeUnit.*;
+import static java.util.concurrent.CompletableFuture.*;
 
 /**
  * The actual Inventory Service API implementation.
  *
+ * <p>Apart from {@link #getDefinition(HttpServerExchange)}, all methods take the request object (already parsed from JSON) and return a future
+ * of the response object. This way the same code works both when Undertow worker threads are blocked for the whole request and when requests are
+ * processed asynchronously; see {@link RestHandlers}.</p>
+ *
  * @author Mindaugas Žakšauskas
  */
 public class SampleRestPlugin {
@@ -28,16 +30,102 @@ public class SampleRestPlugin {
     private static final Logger log = LoggerFactory.getLogger(SampleRestPlugin.class);
 
     /**
-     * Default OkHttp read timeout: how long to wait (in seconds) for the backend to respond to requests.
+     * HTTP clients for talking to backends, one per backend; use <tt>backendClients.get(configuration)</tt>, or
+     * <tt>backendClients.async(configuration)</tt> to make several calls at once without blocking (see {@link AsyncBackendClient}).
+     */
+    private final BackendClients backendClients;
+
+    /**
+     * Shared (thread-safe) codec for reading requests and writing responses.
+     */
+    private final JsonCodec codec;
+
+    /**
+     * Availability per product and date range; concurrent identical requests share one backend call, also when caching is disabled. See
+     * {@link #getProductAvailability(ProductAvailabilityRequest)}.
+     */
+    private final AvailabilityCache<AvailabilitySlots> availabilityCache;
+
+    /**
+     * Shares one backend call between concurrent identical {@link #getProductById(GetProductByIdRequest)} requests.
+     */
+    private final RequestCoalescer<ProductKey, ProductDescriptionStore.Entry> productCoalescer = new RequestCoalescer<>("rest.getProductById");
+
+    /**
+     * Product descriptions as serialized JSON, see {@link #getProductById(GetProductByIdRequest)}.
+     */
+    private final ProductDescriptionStore productStore;
+
+    /**
+     * Checks many products in parallel, see {@link #getAvailableProducts(ProductsAvailabilityRequest)}.
+     */
+    private final AvailabilityFanOut availabilityFanOut;
+
+    /**
+     * Local index of backend catalogs, see {@link #searchProducts(SearchProductRequest)}.
      */
-    private static final long DEFAULT_READ_TIMEOUT = 30L;
+    private final CatalogSync<BasicProductInfo> catalogSync;
 
-    private final OkHttpClient client;
+    /**
+     * Answers retried confirmations with the response of the original one, see {@link #confirmBooking(ConfirmBookingRequest)}.
+     */
+    private final IdempotentBookings idempotentBookings;
+
+    /**
+     * Makes up confirmation codes of reservations and bookings.
+     */
+    private final ConfirmationCodeGenerator confirmationCodes;
+
+    /**
+     * Stands in for backend calls, see {@link MockBackendCalls}.
+     */
+    private final MockBackendCalls mockBackend;
+
+    /**
+     * Stores confirmation responses for {@link #idempotentBookings}.
+     */
+    private final IdempotentBookings.ResponseFormat<ConfirmBookingResponse> confirmBookingFormat;
+
+    /**
+     * Times backend calls; plugin calls themselves are timed by route wrappers set up in {@link Main}.
+     */
+    private final PluginMetrics metrics;
 
     @Inject
-    public SampleRestPlugin() {
-        this.client = new OkHttpClient();
-        client.setReadTimeout(DEFAULT_READ_TIMEOUT, SECONDS);
+    public SampleRestPlugin(BackendClients backendClients,
+                            JsonCodec codec,
+                            AvailabilityCacheFactory availabilityCacheFactory,
+                            AvailabilityFanOut availabilityFanOut,
+                            PluginMetrics metrics,
+                            ProductDescriptionStore productStore,
+                            CatalogSyncFactory catalogSyncFactory,
+                            IdempotentBookings idempotentBookings,
+                            ConfirmationCodeGenerator confirmationCodes,
+                            MockBackendCalls mockBackend) {
+        this.backendClients = backendClients;
+        this.codec = codec;
+        this.idempotentBookings = idempotentBookings;
+        this.confirmationCodes = confirmationCodes;
+        this.mockBackend = mockBackend;
+        this.confirmBookingFormat = IdempotentBookings.ResponseFormat.json(codec, ConfirmBookingResponse.class);
+        this.availabilityFanOut = availabilityFanOut;
+        this.metrics = metrics;
+        this.productStore = productStore;
+        this.availabilityCache = availabilityCacheFactory.create(
+                "rest.getProductAvailability",
+                key -> metrics.measureBackendCall("rest", "/product/getAvailability", () -> loadProductAvailability(key)),
+                AvailabilitySlots::size
+        );
+        this.catalogSync = catalogSyncFactory.create(new ProductCatalogSource(), productStore);
+        metrics.register(productCoalescer);
+    }
+
+    /**
+     * Sends given object back as JSON response.
+     */
+    private void sendResponse(@Nonnull HttpServerExchange exchange, @Nonnull Object response) {
+        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
+        exchange.getResponseSender().send(codec.encode(response));
     }
 
     // helper method to express string as required string parameter structure, required by the REST API
@@ -82,22 +170,45 @@ public class SampleRestPlugin {
         definition.getParameters().add(asRequiredStringParameter(Configuration.SAMPLE_API_USERNAME));
         definition.getParameters().add(asRequiredStringParameter(Configuration.SAMPLE_API_PASSWORD));
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(definition));
+        sendResponse(exchange, definition);
     }
 
     /**
-     * This method should list all your products
+     * This method should list all your products. Products are found in the local catalog index, kept in sync with the backend by
+     * {@link #catalogSync}.
      */
-    public void searchProducts(@Nonnull HttpServerExchange exchange) {
-        SearchProductRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), SearchProductRequest.class);
+    @Nonnull
+    public CompletableFuture<List<BasicProductInfo>> searchProducts(@Nonnull SearchProductRequest request) {
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
+        return catalogSync.search(configuration, request.getCountry(), request.getCity());
+    }
 
-        // At this point you might want to call your external system to do the actual search and return data back.
+    /**
+     * Lists versions of all products for {@link #catalogSync}.
+     *
+     * @return future of product ID -> version.
+     */
+    @Nonnull
+    private CompletableFuture<Map<String, String>> fetchProductVersions(@Nonnull Configuration configuration) {
+        // At this point you might want to call your external system to list products along with their ETag, last modification time or
+        // content hash. Code below just provides some mocks.
+        return mockBackend.call(configuration, "productVersions").thenApply(ignored -> ImmutableMap.of("123", "1"));
+    }
+
+    /**
+     * Fetches given products for {@link #catalogSync}.
+     */
+    @Nonnull
+    private CompletableFuture<List<BasicProductInfo>> fetchProducts(@Nonnull Configuration configuration, @Nonnull Collection<String> productIds) {
+        // At this point you might want to call your external system to fetch the products and return data back.
         // Code below just provides some mocks.
+        CompletableFuture<Void> backendCall = mockBackend.call(configuration, "products");
+
+        if (!productIds.contains("123")) {
+            return backendCall.thenApply(ignored -> new ArrayList<>());      // mock catalog only has one product
+        }
 
         // Do something with httpResponseBody, e.g. convert this JSON into POJO and convert that POJO into BasicProductInfo
-        // Don't forget to filter them by country and city, based on request parameters.
         BasicProductInfo basicProductInfo = new BasicProductInfo();     // you will likely want to run this in a loop, to return multiple products
         basicProductInfo.setId("123");
         basicProductInfo.setName("Mock product");
@@ -119,16 +230,36 @@ public class SampleRestPlugin {
         basicProductInfo.setCities(ImmutableList.of("London"));
         basicProductInfo.setCountries(ImmutableList.of("GB"));
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(Lists.newArrayList(basicProductInfo)));
+        return backendCall.thenApply(ignored -> Lists.newArrayList(basicProductInfo));
     }
 
     /**
      * Return detailed information about one particular product by given ID.
+     *
+     * <p>Responds with JSON of {@link ProductDescription}, serialized once and kept in {@link #productStore}, so that repeated calls write stored
+     * bytes out instead of building and serializing the description again.</p>
      */
-    public void getProductById(HttpServerExchange exchange) {
-        GetProductByIdRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), GetProductByIdRequest.class);
+    @Nonnull
+    public CompletableFuture<SerializedMessage> getProductById(@Nonnull GetProductByIdRequest request) {
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
+        return productStore.get(
+                new ProductKey(configuration, request.getExternalId()),
+                missing -> productCoalescer.execute(
+                        missing,
+                        key -> metrics.measureBackendCall("rest", "/product/getById", () -> loadProductDescription(key))
+                )
+        );
+    }
+
+    /**
+     * Fetches product description from the backend and serializes it for {@link #productStore}. Concurrent identical requests share one call,
+     * see {@link #productCoalescer}.
+     */
+    @Nonnull
+    private CompletableFuture<ProductDescriptionStore.Entry> loadProductDescription(@Nonnull ProductKey key) {
+        // At this point you might want to call your external system to do the actual get and return data back.
+        // Code below just provides some mocks.
+        CompletableFuture<Void> backendCall = mockBackend.call(key.configuration, "product");
 
         // similar to searchProducts except this should return a single product with a bit more information
         ProductDescription description = new ProductDescription();
@@ -202,8 +333,8 @@ public class SampleRestPlugin {
         description.setMeetingType(MeetingType.MEET_ON_LOCATION);
         description.setDropoffAvailable(false);
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(description));
+        // version should be whatever the backend reports (revision, last modification time etc.), see ProductDescriptionStore
+        return backendCall.thenApply(ignored -> new ProductDescriptionStore.Entry("1", SerializedMessage.copyOf(codec.encode(description))));
     }
 
     /**
@@ -212,87 +343,164 @@ public class SampleRestPlugin {
      * Note: even though request contains capacity and date range, for a matching product it is enough to have availabilities for *some* dates over
      * requested period. Subsequent GetProductAvailability request will clarify precise dates and capacities.
      */
-    public void getAvailableProducts(HttpServerExchange exchange) {
-        ProductsAvailabilityRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), ProductsAvailabilityRequest.class);
+    @Nonnull
+    public CompletableFuture<List<ProductsAvailabilityResponse>> getAvailableProducts(@Nonnull ProductsAvailabilityRequest request) {
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
 
-        // At this point you might want to call your external system to do the actual search and return data back.
-        // Code below just provides some mocks.
-
         if (!request.getExternalProductIds().contains("123")) {
             throw new IllegalStateException("Previous call only returned product having id=123");
         }
 
+        // products are checked in parallel batches; results are sent back once all of them are in (or deadline passes)
+        List<ProductsAvailabilityResponse> responses = new ArrayList<>();
+        return availabilityFanOut.execute(
+                configuration,
+                request.getExternalProductIds(),
+                batch -> metrics.measureBackendCall("rest", "/product/getAvailable", () -> checkAvailableProducts(configuration, request, batch)),
+                productId -> {
+                    ProductsAvailabilityResponse notChecked = new ProductsAvailabilityResponse();
+                    notChecked.setActualCheckDone(false);
+                    notChecked.setProductId(productId);
+                    return notChecked;
+                },
+                ProductsAvailabilityResponse::getProductId,
+                responses::add
+        ).thenApply(ignored -> responses);
+    }
+
+    /**
+     * Checks one batch of products for {@link #getAvailableProducts(ProductsAvailabilityRequest)}. Products which are not available should be
+     * omitted from the result.
+     */
+    @Nonnull
+    private CompletableFuture<List<ProductsAvailabilityResponse>> checkAvailableProducts(@Nonnull Configuration configuration,
+                                                                                        @Nonnull ProductsAvailabilityRequest request,
+                                                                                        @Nonnull List<String> productIds) {
+        // At this point you might want to call your external system to do the actual search and return data back.
+        // Code below just provides some mocks.
+        CompletableFuture<Void> backendCall = mockBackend.call(configuration, "availableProducts");
+
+        if (!productIds.contains("123")) {
+            return backendCall.thenApply(ignored -> ImmutableList.of());
+        }
         ProductsAvailabilityResponse response = new ProductsAvailabilityResponse();
         response.setActualCheckDone(true);
         response.setProductId("123");
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(ImmutableList.of(response)));
+        return backendCall.thenApply(ignored -> ImmutableList.of(response));
     }
 
     /**
      * Get availability of a particular product over a date range. This request should follow GetAvailableProducts and provide more details on
      * precise dates/times for each product as well as capacity for each date. This call, however, is for a single product only (as opposed to
-     * {@link #getAvailableProducts(HttpServerExchange)} which checks many products but only does a basic shallow check.
+     * {@link #getAvailableProducts(ProductsAvailabilityRequest)} which checks many products but only does a basic shallow check.
      */
-    public void getProductAvailability(HttpServerExchange exchange) {
+    @Nonnull
+    public CompletableFuture<List<ProductAvailabilityWithRatesResponse>> getProductAvailability(@Nonnull ProductAvailabilityRequest request) {
         log.trace("In ::getProductAvailability");
 
-        ProductAvailabilityRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), ProductAvailabilityRequest.class);
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
+        AvailabilityKey key = new AvailabilityKey(
+                configuration,
+                request.getProductId(),
+                toKeyDate(request.getRange().getFrom()),
+                toKeyDate(request.getRange().getTo())
+        );
+        return availabilityCache.get(key)
+                .thenApply(SampleRestPlugin::toAvailabilityResponses)
+                .whenComplete((availabilities, failure) -> log.trace("Out ::getProductAvailability"));
+    }
 
-        // At this point you might want to call your external system to do the actual search and return data back.
+    /**
+     * Fetches availability of one product from the backend. Called by {@link #availabilityCache} on cache misses and background refreshes.
+     */
+    @Nonnull
+    private CompletableFuture<AvailabilitySlots> loadProductAvailability(@Nonnull AvailabilityKey key) {
+        // At this point you might want to call your external system to do the actual search and return data back. If availability and prices
+        // come from separate endpoints, fetch them at once and combine, e.g.
+        //     AsyncBackendClient backend = backendClients.async(key.configuration);
+        //     backend.get(availabilityUrl, json(codec, Availability.class))
+        //             .thenCombine(backend.get(pricesUrl, json(codec, Prices.class)), (availability, prices) -> ...)
         // Code below just provides some mocks.
+        CompletableFuture<Void> backendCall = mockBackend.call(key.configuration, "availability");
 
-        List<ProductAvailabilityWithRatesResponse> l = new ArrayList<>();
+        AvailabilitySlots.Builder slots = AvailabilitySlots.builder();
         for (int i=0; i<=1; i++) {
-            ProductAvailabilityWithRatesResponse response = new ProductAvailabilityWithRatesResponse();
-            response.setCapacity(100);
-
             LocalDate date = LocalDate.now().plusDays(i);
-            DateYMD tomorrowDate = new DateYMD();
-            tomorrowDate.setYear(date.getYear());
-            tomorrowDate.setMonth(date.getMonthValue());
-            tomorrowDate.setDay(date.getDayOfMonth());
-            response.setDate(tomorrowDate);
-
-            Time tomorrowTime = new Time();
-            tomorrowTime.setHour(13);
-            tomorrowTime.setMinute(00);
-            response.setTime(tomorrowTime);
-
-            RateWithPrice rate = new RateWithPrice();
-            rate.setRateId("standard");
-
-            PricePerPerson pricePerPerson = new PricePerPerson();
-            pricePerPerson.setPricingCategoryWithPrice(new ArrayList<>());
-            {
-                PricingCategoryWithPrice adultCategoryPrice = new PricingCategoryWithPrice();
-                adultCategoryPrice.setPricingCategoryId("ADT");
-                Price adultPrice = new Price();
-                adultPrice.setAmount("100");
-                adultPrice.setCurrency("EUR");
-                adultCategoryPrice.setPrice(adultPrice);
-                pricePerPerson.getPricingCategoryWithPrice().add(adultCategoryPrice);
+            slots.slot(
+                            AvailabilityKey.encodeDate(date.getYear(), date.getMonthValue(), date.getDayOfMonth()),
+                            AvailabilitySlots.encodeTime(13, 0),
+                            100
+                    )
+                    .rate("standard")
+                    .price("ADT", "100", "EUR")
+                    .price("CHD", "10", "EUR");
+        }
+        return backendCall.thenApply(ignored -> slots.build());
+    }
+
+    /**
+     * Builds response objects of all availability slots.
+     */
+    @Nonnull
+    private static List<ProductAvailabilityWithRatesResponse> toAvailabilityResponses(@Nonnull AvailabilitySlots slots) {
+        List<ProductAvailabilityWithRatesResponse> responses = new ArrayList<>(slots.size());
+        for (int slot = 0; slot < slots.size(); slot++) {
+            ProductAvailabilityWithRatesResponse response = new ProductAvailabilityWithRatesResponse();
+            response.setCapacity(slots.capacity(slot));
+
+            LocalDate date = AvailabilityKey.decodeDate(slots.date(slot));
+            DateYMD dateYmd = new DateYMD();
+            dateYmd.setYear(date.getYear());
+            dateYmd.setMonth(date.getMonthValue());
+            dateYmd.setDay(date.getDayOfMonth());
+            response.setDate(dateYmd);
+
+            int minutes = slots.time(slot);
+            if (minutes != AvailabilitySlots.NO_TIME) {
+                Time time = new Time();
+                time.setHour(minutes / 60);
+                time.setMinute(minutes % 60);
+                response.setTime(time);
             }
-            {
-                PricingCategoryWithPrice childCategoryPrice = new PricingCategoryWithPrice();
-                childCategoryPrice.setPricingCategoryId("CHD");
-                Price childPrice = new Price();
-                childPrice.setAmount("10");
-                childPrice.setCurrency("EUR");
-                childCategoryPrice.setPrice(childPrice);
-                pricePerPerson.getPricingCategoryWithPrice().add(childCategoryPrice);
+
+            List<RateWithPrice> rates = new ArrayList<>(slots.rateStart(slot + 1) - slots.rateStart(slot));
+            for (int rate = slots.rateStart(slot); rate < slots.rateStart(slot + 1); rate++) {
+                RateWithPrice rateWithPrice = new RateWithPrice();
+                rateWithPrice.setRateId(slots.rateId(rate));
+                if (slots.isPricedPerBooking(rate)) {
+                    PricePerBooking pricePerBooking = new PricePerBooking();
+                    pricePerBooking.setPrice(toPrice(slots, slots.priceStart(rate)));
+                    rateWithPrice.setPricePerBooking(pricePerBooking);
+                } else {
+                    PricePerPerson pricePerPerson = new PricePerPerson();
+                    pricePerPerson.setPricingCategoryWithPrice(new ArrayList<>(slots.priceStart(rate + 1) - slots.priceStart(rate)));
+                    for (int price = slots.priceStart(rate); price < slots.priceStart(rate + 1); price++) {
+                        PricingCategoryWithPrice categoryPrice = new PricingCategoryWithPrice();
+                        categoryPrice.setPricingCategoryId(slots.pricingCategoryId(price));
+                        categoryPrice.setPrice(toPrice(slots, price));
+                        pricePerPerson.getPricingCategoryWithPrice().add(categoryPrice);
+                    }
+                    rateWithPrice.setPricePerPerson(pricePerPerson);
+                }
+                rates.add(rateWithPrice);
             }
-            rate.setPricePerPerson(pricePerPerson);
-            response.setRates(ImmutableList.of(rate));
-            l.add(response);
+            response.setRates(rates);
+            responses.add(response);
         }
+        return responses;
+    }
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(l));
-        log.trace("Out ::getProductAvailability");
+    @Nonnull
+    private static Price toPrice(@Nonnull AvailabilitySlots slots, int price) {
+        Price amount = new Price();
+        amount.setAmount(slots.amount(price));
+        amount.setCurrency(slots.currency(price));
+        return amount;
+    }
+
+    private static int toKeyDate(@Nonnull DateYMD date) {
+        return AvailabilityKey.encodeDate(date.getYear(), date.getMonth(), date.getDay());
     }
 
     /**
@@ -300,10 +508,11 @@ public class SampleRestPlugin {
      * limited time, and reverted back to being available if the booking is not confirmed.
      *
      * Only implement this method if {@link PluginCapability#RESERVATIONS} is among capabilities of your {@link PluginDefinition}.
-     * Otherwise you are only required to implement {@link #createAndConfirmBooking(HttpServerExchange)} which does both
+     * Otherwise you are only required to implement {@link #createAndConfirmBooking(CreateConfirmBookingRequest)} which does both
      * reservation and confirmation, this method can be left empty or non-overridden.
      */
-    public void createReservation(HttpServerExchange exchange) {
+    @Nonnull
+    public CompletableFuture<ReservationResponse> createReservation(@Nonnull ReservationRequest request) {
         // body of this method can be left empty if reserve & confirm is only supported as a single step
         log.trace("In ::createReservation");
 
@@ -312,12 +521,11 @@ public class SampleRestPlugin {
 
         ReservationResponse response = new ReservationResponse();
         SuccessfulReservation reservation = new SuccessfulReservation();
-        reservation.setReservationConfirmationCode(UUID.randomUUID().toString());
+        reservation.setReservationConfirmationCode(confirmationCodes.next());
         response.setSuccessfulReservation(reservation);
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(response));
         log.trace("Out ::createReservation");
+        return completedFuture(response);
     }
 
     /**
@@ -326,7 +534,8 @@ public class SampleRestPlugin {
      * Only implement this method if {@link PluginCapability#RESERVATIONS} and {@link PluginCapability#RESERVATION_CANCELLATION} are among
      * capabilities of your {@link PluginDefinition}.
      */
-    public void cancelReservation(HttpServerExchange exchange) {
+    @Nonnull
+    public CompletableFuture<CancelReservationResponse> cancelReservation(@Nonnull CancelReservationRequest request) {
         log.trace("In ::cancelReservation");
 
         // At this point you might want to call your external system to do the actual reservation and return data back.
@@ -336,71 +545,81 @@ public class SampleRestPlugin {
         SuccessfulReservationCancellation greatSuccess = new SuccessfulReservationCancellation();
         response.setSuccessfulReservationCancellation(greatSuccess);
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(response));
         log.trace("Out ::cancelReservation");
+        return completedFuture(response);
     }
 
     /**
      * Once reserved, proceed with booking. This will be called in case if reservation has succeeded.
      *
      * Only implement this method if {@link PluginCapability#RESERVATIONS} is among capabilities of your {@link PluginDefinition}.
-     * Otherwise you are only required to implement {@link #createAndConfirmBooking(HttpServerExchange)} which does both
+     * Otherwise you are only required to implement {@link #createAndConfirmBooking(CreateConfirmBookingRequest)} which does both
      * reservation and confirmation, this method can be left empty or non-overridden.
+     *
+     * The platform retries confirmation it got no response for; retries of the same reservation get the response of the original confirmation,
+     * without calling the backend again (see {@link IdempotentBookings}).
      */
-    public void confirmBooking(HttpServerExchange exchange) {
+    @Nonnull
+    public CompletableFuture<ConfirmBookingResponse> confirmBooking(@Nonnull ConfirmBookingRequest request) {
         // body of this method can be left empty if reserve & confirm is only supported as a single step
         log.trace("In ::confirmBooking");
 
-        ConfirmBookingRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), ConfirmBookingRequest.class);
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
+        return idempotentBookings.confirm(
+                IdempotentBookings.bookingKey("rest.confirmBooking", configuration, request.getReservationConfirmationCode()),
+                confirmBookingFormat,
+                () -> mockBackend.call(configuration, "bookings").thenApply(ignored -> confirmReservation(configuration, request))
+        );
+    }
 
+    @Nonnull
+    private ConfirmBookingResponse confirmReservation(@Nonnull Configuration configuration, @Nonnull ConfirmBookingRequest request) {
         // At this point you might want to call your external system to do the actual confirmation and return data back.
         // Code below just provides some mocks.
 
         processBookingSourceInfo(request.getReservationData().getBookingSource());
-        String confirmationCode = UUID.randomUUID().toString();
+        String confirmationCode = confirmationCodes.next();
+        availabilityCache.bookingConfirmed(configuration, confirmationCode, request.getReservationData().getProductId());
 
         ConfirmBookingResponse response = new ConfirmBookingResponse();
         SuccessfulBooking successfulBooking = new SuccessfulBooking();
         successfulBooking.setBookingConfirmationCode(confirmationCode);
         Ticket ticket = new Ticket();
         QrTicket qrTicket = new QrTicket();
-        qrTicket.setTicketBarcode(confirmationCode + "_ticket");
+        qrTicket.setTicketBarcode(confirmationCodes.nextTicketBarcode());
         ticket.setQrTicket(qrTicket);
         successfulBooking.setBookingTicket(ticket);
         response.setSuccessfulBooking(successfulBooking);
         
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(response));
         log.trace("Out ::confirmBooking");
+        return response;
     }
 
-    public void amendBooking(HttpServerExchange exchange) {
+    @Nonnull
+    public CompletableFuture<AmendBookingResponse> amendBooking(@Nonnull AmendBookingRequest request) {
         log.trace("In ::amendBooking");
 
-        AmendBookingRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), AmendBookingRequest.class);
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
 
         // At this point you might want to call your external system to do the actual amendment and return data back.
         // Code below just provides some mocks.
 
         processBookingSourceInfo(request.getReservationData().getBookingSource());
+        availabilityCache.invalidateBooking(configuration, request.getBookingConfirmationCode());
+        availabilityCache.invalidateProduct(configuration, request.getReservationData().getProductId());
 
         AmendBookingResponse response = new AmendBookingResponse();
         SuccessfulAmendment successfulAmendment = new SuccessfulAmendment();
         Ticket ticket = new Ticket();
         QrTicket qrTicket = new QrTicket();
-        String ticketBarcode = request.getBookingConfirmationCode() + "_ticket_amended";
-        qrTicket.setTicketBarcode(ticketBarcode);
+        qrTicket.setTicketBarcode(confirmationCodes.nextTicketBarcode());
         ticket.setQrTicket(qrTicket);
         successfulAmendment.setBookingTicket(ticket);
-        successfulAmendment.setAmendmentConfirmationCode(ticketBarcode);
+        successfulAmendment.setAmendmentConfirmationCode(confirmationCodes.next());
         response.setSuccessfulAmendment(successfulAmendment);
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(response));
         log.trace("Out ::amendBooking");
+        return completedFuture(response);
     }
 
     /**
@@ -444,35 +663,46 @@ public class SampleRestPlugin {
 
     /**
      * Only implement this method if {@link PluginCapability#RESERVATIONS} is <b>NOT</b> among capabilities of your {@link PluginDefinition}.
-     * Otherwise you are only required to implement both {@link #createReservation(HttpServerExchange)} and {@link
-     * #confirmBooking(HttpServerExchange)} separately; this method should remain empty or non-overridden.
+     * Otherwise you are only required to implement both {@link #createReservation(ReservationRequest)} and {@link
+     * #confirmBooking(ConfirmBookingRequest)} separately; this method should remain empty or non-overridden.
+     *
+     * Nothing in the request identifies the booking before it is made, so only a retry repeating the very same request gets the response of
+     * the original one (see {@link IdempotentBookings}).
      */
-    public void createAndConfirmBooking(HttpServerExchange exchange) {
+    @Nonnull
+    public CompletableFuture<ConfirmBookingResponse> createAndConfirmBooking(@Nonnull CreateConfirmBookingRequest request) {
         log.trace("In ::createAndConfirmBooking");          // should never happen
 //        throw new UnsupportedOperationException();
 
-        CreateConfirmBookingRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), CreateConfirmBookingRequest.class);
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
+        return idempotentBookings.confirm(
+                IdempotentBookings.requestKey("rest.createAndConfirmBooking", codec.encode(request)),
+                confirmBookingFormat,
+                () -> completedFuture(reserveAndConfirm(configuration, request))
+        );
+    }
 
+    @Nonnull
+    private ConfirmBookingResponse reserveAndConfirm(@Nonnull Configuration configuration, @Nonnull CreateConfirmBookingRequest request) {
         // At this point you might want to call your external system to do the actual reserve&confirm and return data back.
         // Code below just provides some mocks.
 
         processBookingSourceInfo(request.getReservationData().getBookingSource());
-        String confirmationCode = UUID.randomUUID().toString();
+        String confirmationCode = confirmationCodes.next();
+        availabilityCache.bookingConfirmed(configuration, confirmationCode, request.getReservationData().getProductId());
 
         ConfirmBookingResponse response = new ConfirmBookingResponse();
         SuccessfulBooking successfulBooking = new SuccessfulBooking();
         successfulBooking.setBookingConfirmationCode(confirmationCode);
         Ticket ticket = new Ticket();
         QrTicket qrTicket = new QrTicket();
-        qrTicket.setTicketBarcode(confirmationCode + "_ticket");
+        qrTicket.setTicketBarcode(confirmationCodes.nextTicketBarcode());
         ticket.setQrTicket(qrTicket);
         successfulBooking.setBookingTicket(ticket);
         response.setSuccessfulBooking(successfulBooking);
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(response));
         log.trace("Out ::createAndConfirmBooking");
+        return response;
     }
 
     /**
@@ -480,20 +710,58 @@ public class SampleRestPlugin {
      * If your system does not support booking cancellation, one of the current workarounds is to create a cancellation policy (on the Bokun end)
      * which offers no refund. Then a cancellation does not have any monetary effect.
      */
-    public void cancelBooking(HttpServerExchange exchange) {
+    @Nonnull
+    public CompletableFuture<CancelBookingResponse> cancelBooking(@Nonnull CancelBookingRequest request) {
         log.trace("In ::cancelBooking");
 
-        CancelBookingRequest request = new Gson().fromJson(new InputStreamReader(exchange.getInputStream()), CancelBookingRequest.class);
         Configuration configuration = Configuration.fromRestParameters(request.getParameters());
 
         // At this point you might want to call your external system to do the actual booking cancellation and return data back.
         // Code below just provides some mocks.
 
+        availabilityCache.invalidateBooking(configuration, request.getBookingConfirmationCode());
+
         CancelBookingResponse response = new CancelBookingResponse();
         response.setSuccessfulCancellation(new SuccessfulCancellation());
 
-        exchange.getResponseHeaders().put(CONTENT_TYPE, "application/json; charset=utf-8");
-        exchange.getResponseSender().send(new Gson().toJson(response));
         log.trace("Out ::cancelBooking");
+        return completedFuture(response);
+    }
+
+    /**
+     * Feeds {@link #catalogSync} from the backend.
+     */
+    private final class ProductCatalogSource implements CatalogSource<BasicProductInfo> {
+
+        @Nonnull
+        @Override
+        public CompletableFuture<Map<String, String>> fetchVersions(@Nonnull Configuration configuration) {
+            return metrics.measureBackendCall("rest", "/product/search", () -> fetchProductVersions(configuration));
+        }
+
+        @Nonnull
+        @Override
+        public CompletableFuture<List<BasicProductInfo>> fetchProducts(@Nonnull Configuration configuration,
+                                                                      @Nonnull Collection<String> productIds) {
+            return metrics.measureBackendCall("rest", "/product/search", () -> SampleRestPlugin.this.fetchProducts(configuration, productIds));
+        }
+
+        @Nonnull
+        @Override
+        public String idOf(@Nonnull BasicProductInfo product) {
+            return product.getId();
+        }
+
+        @Nonnull
+        @Override
+        public Collection<String> countriesOf(@Nonnull BasicProductInfo product) {
+            return (product.getCountries() != null) ? product.getCountries() : ImmutableList.of();
+        }
+
+        @Nonnull
+        @Override
+        public Collection<String> citiesOf(@Nonnull BasicProductInfo product) {
+            return (product.getCities() != null) ? product.getCities() : ImmutableList.of();
+        }
     }
 }
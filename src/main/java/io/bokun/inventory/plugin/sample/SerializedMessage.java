@@ -0,0 +1,123 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.*;
+
+import javax.annotation.*;
+
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerMethodDefinition;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.stub.*;
+
+/**
+ * <p>Response which has already been serialized for its transport: protobuf bytes for gRPC, JSON for REST. It is written out as is, without
+ * building or serializing the response object again.</p>
+ *
+ * <p>REST endpoints simply return it instead of the response object ({@link RestHandlers} sends the bytes). gRPC methods need to be bound with
+ * {@link #bindUnary(ServerServiceDefinition, String, ServerCalls.UnaryMethod)}, as generated bindings only accept message objects.</p>
+ */
+public final class SerializedMessage {
+
+    private final byte[] bytes;
+
+    /**
+     * @param bytes serialized message; must not be modified afterwards.
+     */
+    public SerializedMessage(@Nonnull byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return message holding a copy of remaining bytes of the buffer.
+     */
+    @Nonnull
+    public static SerializedMessage copyOf(@Nonnull ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new SerializedMessage(bytes);
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    /**
+     * @return read-only view of the bytes (no copy).
+     */
+    @Nonnull
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+    }
+
+    public void writeTo(@Nonnull OutputStream out) throws IOException {
+        out.write(bytes);
+    }
+
+    /**
+     * Stream of known length lets gRPC frame the message without copying it first.
+     */
+    @Nonnull
+    private InputStream stream() {
+        return new KnownLengthInputStream(bytes);
+    }
+
+    /**
+     * Rebinds one unary method of the service so that its implementation may respond with either message objects or {@link SerializedMessage}s.
+     * The wire format stays exactly the same, so clients do not notice.
+     *
+     * @param service    generated service binding.
+     * @param methodName name of the method, e.g. <tt>GetProductById</tt> (case insensitive).
+     * @param method     implementation of the method.
+     * @return service binding with given method replaced.
+     * @throws IllegalArgumentException if service has no such method.
+     */
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    public static <ReqT> ServerServiceDefinition bindUnary(@Nonnull ServerServiceDefinition service,
+                                                           @Nonnull String methodName,
+                                                           @Nonnull ServerCalls.UnaryMethod<ReqT, Object> method) {
+        ServerServiceDefinition.Builder builder = ServerServiceDefinition.builder(service.getServiceDescriptor().getName());
+        boolean found = false;
+        for (ServerMethodDefinition<?, ?> definition : service.getMethods()) {
+            String fullMethodName = definition.getMethodDescriptor().getFullMethodName();
+            if (fullMethodName.substring(fullMethodName.lastIndexOf('/') + 1).equalsIgnoreCase(methodName)) {
+                builder.addMethod(acceptingSerialized((MethodDescriptor<ReqT, Object>) definition.getMethodDescriptor()), ServerCalls.asyncUnaryCall(method));
+                found = true;
+            } else {
+                builder.addMethod(definition);
+            }
+        }
+        if (!found) {
+            throw new IllegalArgumentException("No method " + methodName + " in " + service.getServiceDescriptor().getName());
+        }
+        return builder.build();
+    }
+
+    @Nonnull
+    private static <ReqT> MethodDescriptor<ReqT, Object> acceptingSerialized(@Nonnull MethodDescriptor<ReqT, Object> method) {
+        MethodDescriptor.Marshaller<Object> messageMarshaller = method.getResponseMarshaller();
+        return method.toBuilder(
+                method.getRequestMarshaller(),
+                new MethodDescriptor.Marshaller<Object>() {
+                    @Override
+                    public InputStream stream(Object value) {
+                        return (value instanceof SerializedMessage) ? ((SerializedMessage) value).stream() : messageMarshaller.stream(value);
+                    }
+
+                    @Override
+                    public Object parse(InputStream stream) {
+                        return messageMarshaller.parse(stream);
+                    }
+                }
+        ).build();
+    }
+
+    private static final class KnownLengthInputStream extends ByteArrayInputStream implements KnownLength {
+
+        KnownLengthInputStream(@Nonnull byte[] bytes) {
+            super(bytes);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.common.base.*;
+import com.google.common.collect.*;
+import com.google.common.util.concurrent.*;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.undertow.server.*;
+import io.undertow.util.*;
+import org.slf4j.*;
+
+import static java.util.concurrent.TimeUnit.*;
+
+/**
+ * <p>Authenticates the caller (Inventory Server) by shared secret, which it sends in <tt>sharedSecret</tt> header of gRPC calls and REST requests
+ * alike. Calls without matching secret are rejected: gRPC ones with <tt>UNAUTHENTICATED</tt> status, REST ones with <tt>401</tt>.</p>
+ *
+ * <p>Several secrets may be accepted at once, so that the secret can be rotated without downtime: add the new one, switch the caller over to
+ * it, then remove the old one. Secrets are configured by environment variables:<ul>
+ *     <li><tt>SHARED_SECRET</tt> - a single secret;</li>
+ *     <li><tt>SHARED_SECRET_FILE</tt> - file listing secrets, one per line (blank lines and lines starting with <tt>#</tt> are skipped). The file
+ *     is re-read whenever it changes, so secrets listed there can be rotated without restart;</li>
+ *     <li><tt>SHARED_SECRET_RELOAD_INTERVAL</tt> - how often (in seconds) to check whether the file has changed, 30 by default;</li>
+ *     <li><tt>SHARED_SECRET_EXEMPT_METRICS</tt> - <tt>true</tt> to serve REST <tt>/metrics</tt> without shared secret, for monitoring which
+ *     can not send it; <tt>false</tt> (default) protects it like any other endpoint.</li>
+ * </ul>
+ * If both <tt>SHARED_SECRET</tt> and <tt>SHARED_SECRET_FILE</tt> are set, secrets from either are accepted.</p>
+ *
+ * <p>The check runs for every call, therefore header values are compared as they are, char by char, against secrets encoded up front.
+ * Comparison takes the same time however much of the secret matches, so that the secret can not be guessed byte by byte from response times.
+ * Accepted gRPC calls go straight to the next handler, with no listener wrapped around them.</p>
+ */
+public class SharedSecretAuthenticator implements ServerInterceptor {
+
+    private static final Logger log = LoggerFactory.getLogger(SharedSecretAuthenticator.class);
+
+    /**
+     * This value is what real server expects as well (if you're using shared secrets); don't change it as this will render the feature useless.
+     */
+    private static final String SHARED_SECRET_HEADER = "sharedSecret";
+
+    private static final Metadata.Key<String> SHARED_SECRET_METADATA_KEY = Metadata.Key.of(SHARED_SECRET_HEADER, Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final HttpString SHARED_SECRET_HTTP_HEADER = new HttpString(SHARED_SECRET_HEADER);
+
+    @SuppressWarnings("rawtypes")
+    private static final ServerCall.Listener NOOP_LISTENER = new ServerCall.Listener() {};
+
+    /**
+     * Secrets which do not come from {@link #secretFile}.
+     */
+    private final ImmutableList<byte[]> fixedSecrets;
+
+    @Nullable
+    private final Path secretFile;
+
+    private final boolean metricsExempt;
+
+    /**
+     * All secrets currently accepted, US-ASCII encoded. Replaced as a whole when secret file changes.
+     */
+    private volatile byte[][] secrets;
+
+    /**
+     * Modification time of {@link #secretFile} when it was last read; only touched by the thread (re)loading it.
+     */
+    private FileTime secretFileModified;
+
+    /**
+     * @param secrets secrets to accept.
+     * @throws IllegalArgumentException if no secrets are given, or some secret is not printable ASCII.
+     */
+    public SharedSecretAuthenticator(@Nonnull Collection<String> secrets) {
+        this(encode(secrets), null, false);
+        if (this.secrets.length == 0) {
+            throw new IllegalArgumentException("At least one shared secret is required");
+        }
+    }
+
+    private SharedSecretAuthenticator(@Nonnull ImmutableList<byte[]> fixedSecrets, @Nullable Path secretFile, boolean metricsExempt) {
+        this.fixedSecrets = fixedSecrets;
+        this.secretFile = secretFile;
+        this.metricsExempt = metricsExempt;
+        this.secrets = fixedSecrets.toArray(new byte[0][]);
+    }
+
+    /**
+     * Creates authenticator from <tt>SHARED_SECRET*</tt> environment variables (see class description); if secret file is set, starts checking
+     * it for changes in background.
+     *
+     * @param environmentVariables environment variables, along with defaults of optional ones (see {@link Main}).
+     * @return authenticator, or <tt>null</tt> if no shared secret is configured, i.e. callers are not authenticated.
+     * @throws IllegalStateException if secret file is set but can not be read or lists no secrets.
+     */
+    @Nullable
+    public static SharedSecretAuthenticator fromEnvironment(@Nonnull Map<String, String> environmentVariables) {
+        String sharedSecret = environmentVariables.get("SHARED_SECRET");
+        String sharedSecretFile = environmentVariables.get("SHARED_SECRET_FILE");
+        if (sharedSecret == null && sharedSecretFile == null) {
+            return null;
+        }
+        ImmutableList<String> fixedSecrets = (sharedSecret != null) ? ImmutableList.of(sharedSecret) : ImmutableList.of();
+        boolean metricsExempt = Boolean.parseBoolean(setting(environmentVariables, "SHARED_SECRET_EXEMPT_METRICS"));
+        if (sharedSecretFile == null) {
+            return new SharedSecretAuthenticator(encode(fixedSecrets), null, metricsExempt);
+        }
+        SharedSecretAuthenticator authenticator = new SharedSecretAuthenticator(encode(fixedSecrets), Paths.get(sharedSecretFile), metricsExempt);
+        try {
+            authenticator.reloadSecretFile();
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalStateException("Could not read shared secrets from " + sharedSecretFile, e);
+        }
+        long reloadIntervalSeconds = Long.parseLong(setting(environmentVariables, "SHARED_SECRET_RELOAD_INTERVAL"));
+        ScheduledExecutorService reloader = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder()
+                        .setNameFormat("shared-secret-reload")
+                        .setDaemon(true)
+                        .build()
+        );
+        reloader.scheduleWithFixedDelay(authenticator::reloadChangedSecretFile, reloadIntervalSeconds, reloadIntervalSeconds, SECONDS);
+        return authenticator;
+    }
+
+    @Nonnull
+    private static String setting(@Nonnull Map<String, String> environmentVariables, @Nonnull String name) {
+        String value = environmentVariables.get(name);
+        if (value == null) {
+            throw new IllegalStateException(name + " is not set");
+        }
+        return value;
+    }
+
+    /**
+     * Re-reads secret file if it has changed. Keeps secrets accepted so far if it can not be read or is no good, as rejecting every call
+     * would be worse. Runs periodically, see {@link #fromEnvironment(Map)}.
+     */
+    void reloadChangedSecretFile() {
+        try {
+            if (!Files.getLastModifiedTime(secretFile).equals(secretFileModified)) {
+                reloadSecretFile();
+            }
+        } catch (IOException | RuntimeException e) {
+            // must not escape, as it would cancel further reloads
+            log.warn("Could not reload shared secrets from {}, keeping previous ones", secretFile, e);
+        }
+    }
+
+    private void reloadSecretFile() throws IOException {
+        FileTime modified = Files.getLastModifiedTime(secretFile);
+        List<String> fileSecrets = new ArrayList<>();
+        for (String line : Files.readAllLines(secretFile, StandardCharsets.US_ASCII)) {
+            String secret = line.trim();
+            if (!secret.isEmpty() && !secret.startsWith("#")) {
+                fileSecrets.add(secret);
+            }
+        }
+        // not reading again until it changes, even if it is no good
+        secretFileModified = modified;
+        if (fileSecrets.isEmpty()) {
+            throw new IllegalArgumentException("No shared secrets listed in " + secretFile);
+        }
+        secrets = Iterables.toArray(Iterables.concat(fixedSecrets, encode(fileSecrets)), byte[].class);
+        log.info("Loaded {} shared secret(s) from {}", fileSecrets.size(), secretFile);
+    }
+
+    @Nonnull
+    private static ImmutableList<byte[]> encode(@Nonnull Collection<String> secrets) {
+        ImmutableList.Builder<byte[]> encoded = ImmutableList.builder();
+        for (String secret : secrets) {
+            // anything else could not be sent in a gRPC header
+            if (secret.isEmpty() || !CharMatcher.inRange(' ', '~').matchesAllOf(secret)) {
+                throw new IllegalArgumentException("Shared secret must be non-empty printable ASCII");
+            }
+            encoded.add(secret.getBytes(StandardCharsets.US_ASCII));
+        }
+        return encoded.build();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call,
+                                                                 Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        String sharedSecret = headers.get(SHARED_SECRET_METADATA_KEY);
+        if (sharedSecret == null || !isAccepted(sharedSecret)) {
+            log.warn("Incoming gRPC call {} does not have matching shared secret", call.getMethodDescriptor().getFullMethodName());
+            call.close(Status.UNAUTHENTICATED.withDescription("Incoming request does not have matching shared secret"), new Metadata());
+            return NOOP_LISTENER;
+        }
+        return next.startCall(call, headers);
+    }
+
+    /**
+     * Wraps REST handler so that requests without matching shared secret are rejected with <tt>401 Unauthorized</tt>.
+     */
+    @Nonnull
+    public HttpHandler wrap(@Nonnull HttpHandler next) {
+        return exchange -> {
+            String sharedSecret = exchange.getRequestHeaders().getFirst(SHARED_SECRET_HTTP_HEADER);
+            if (sharedSecret == null || !isAccepted(sharedSecret)) {
+                log.warn("Incoming REST request {} does not have matching shared secret", exchange.getRequestPath());
+                exchange.setStatusCode(StatusCodes.UNAUTHORIZED);
+                exchange.endExchange();
+                return;
+            }
+            next.handleRequest(exchange);
+        };
+    }
+
+    /**
+     * Wraps REST handler serving metrics, same as {@link #wrap(HttpHandler)} unless <tt>SHARED_SECRET_EXEMPT_METRICS</tt> is set.
+     */
+    @Nonnull
+    public HttpHandler wrapMetrics(@Nonnull HttpHandler next) {
+        return metricsExempt ? next : wrap(next);
+    }
+
+    /**
+     * Compares given value against every secret, without stopping at the first match, so that time taken does not tell which one matched.
+     */
+    private boolean isAccepted(@Nonnull String value) {
+        boolean accepted = false;
+        for (byte[] secret : secrets) {
+            accepted |= isEqual(secret, value);
+        }
+        return accepted;
+    }
+
+    /**
+     * Same as {@link MessageDigest#isEqual(byte[], byte[])}, for header value already decoded (gRPC decodes it as ASCII, Undertow as
+     * ISO-8859-1, both of which map bytes to chars one to one).
+     */
+    private static boolean isEqual(@Nonnull byte[] secret, @Nonnull String value) {
+        if (secret.length != value.length()) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < secret.length; i++) {
+            difference |= secret[i] ^ value.charAt(i);
+        }
+        return difference == 0;
+    }
+}
@@ -0,0 +1,69 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+
+import javax.annotation.*;
+
+import com.google.common.base.*;
+
+/**
+ * <p>Short confirmation codes made of 64-bit Snowflake IDs: 41 bits of current time (milliseconds since 2020-01-01, good until 2089), 10 bits
+ * of node ID, and a 12-bit sequence within the millisecond (see {@link MillisSequence}), followed by 40 random bits from
+ * {@link UnguessableBits}, so that codes can not be guessed from other codes. Both parts are written in base 36, e.g.
+ * <tt>2ZK8F1N0QW5S-0K3J9X2A</tt>.</p>
+ *
+ * <p>IDs are unique across running plugin instances as long as every instance has its own node ID (<tt>SAMPLE_CONFIRMATION_NODE_ID</tt>, e.g.
+ * the replica ordinal). An instance restarted after its clock went back may make the same ID again, but then with other random bits, which
+ * collide with odds of about one in 2^40 per repeated ID. Ticket barcodes are random UUIDs.</p>
+ */
+final class SnowflakeCodeGenerator implements ConfirmationCodeGenerator {
+
+    /**
+     * 2020-01-01T00:00:00Z.
+     */
+    private static final long EPOCH_MILLIS = 1_577_836_800_000L;
+
+    private static final int NODE_ID_BITS = 10;
+
+    private static final long RANDOM_MASK = (1L << 40) - 1L;
+
+    /**
+     * Base 36 digits of 40 bits.
+     */
+    private static final int RANDOM_DIGITS = 8;
+
+    private final MillisSequence sequence = new MillisSequence(EPOCH_MILLIS);
+
+    private final long nodeBits;
+
+    private final UnguessableBits bits = new UnguessableBits();
+
+    private final RandomCodeGenerator ticketBarcodes = new RandomCodeGenerator(bits);
+
+    /**
+     * @throws IllegalArgumentException if node ID is out of range, e.g. not configured.
+     */
+    SnowflakeCodeGenerator(int nodeId) {
+        if (nodeId < 0 || nodeId >= (1 << NODE_ID_BITS)) {
+            throw new IllegalArgumentException("Snowflake confirmation codes need node ID from 0 to 1023, got " + nodeId);
+        }
+        this.nodeBits = (long) nodeId << MillisSequence.SEQUENCE_BITS;
+    }
+
+    @Nonnull
+    @Override
+    public String next() {
+        long number = sequence.next();
+        long id = ((number >>> MillisSequence.SEQUENCE_BITS) << (NODE_ID_BITS + MillisSequence.SEQUENCE_BITS))
+                | nodeBits
+                | (number & MillisSequence.SEQUENCE_MASK);
+        String random = Strings.padStart(Long.toString(bits.nextLong() & RANDOM_MASK, 36), RANDOM_DIGITS, '0');
+        return (Long.toString(id, 36) + '-' + random).toUpperCase(Locale.ROOT);
+    }
+
+    @Nonnull
+    @Override
+    public String nextTicketBarcode() {
+        return ticketBarcodes.next();
+    }
+}
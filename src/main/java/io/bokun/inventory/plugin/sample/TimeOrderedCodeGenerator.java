@@ -0,0 +1,43 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+
+import javax.annotation.*;
+
+/**
+ * <p>Confirmation codes laid out as version 7 UUIDs: 48 bits of current time (Unix epoch milliseconds), a 12-bit sequence within the
+ * millisecond (see {@link MillisSequence}), and 62 random bits per code from {@link UnguessableBits}. Codes therefore look like before
+ * (random UUIDs) and sort by the time they were made; they tell when they were made, but can not be guessed from other codes.</p>
+ *
+ * <p>Codes of one running instance never repeat. Codes of different instances, or of one instance before and after a restart (when its clock
+ * may have gone back), differ in random bits, which collide with odds of about one in 2^62 per pair of codes made in the same millisecond;
+ * unlike <tt>snowflake</tt> codes, this needs no configuration per instance. Ticket barcodes are random UUIDs.</p>
+ */
+final class TimeOrderedCodeGenerator implements ConfirmationCodeGenerator {
+
+    private static final long VERSION = 7L << 12;
+
+    private static final long VARIANT = 1L << 63;
+
+    private static final long RANDOM_MASK = (1L << 62) - 1L;
+
+    private final MillisSequence sequence = new MillisSequence(0L);
+
+    private final UnguessableBits bits = new UnguessableBits();
+
+    private final RandomCodeGenerator ticketBarcodes = new RandomCodeGenerator(bits);
+
+    @Nonnull
+    @Override
+    public String next() {
+        long number = sequence.next();
+        long mostSignificantBits = ((number >>> MillisSequence.SEQUENCE_BITS) << 16) | VERSION | (number & MillisSequence.SEQUENCE_MASK);
+        return new UUID(mostSignificantBits, VARIANT | (bits.nextLong() & RANDOM_MASK)).toString();
+    }
+
+    @Nonnull
+    @Override
+    public String nextTicketBarcode() {
+        return ticketBarcodes.next();
+    }
+}
@@ -0,0 +1,59 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.nio.*;
+import java.security.*;
+import java.util.concurrent.atomic.*;
+
+import javax.annotation.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * <p>Source of bits which can not be guessed from earlier ones, for {@link ConfirmationCodeGenerator}s. Each draw is HMAC-SHA256 of a counter,
+ * under a key drawn from <tt>SecureRandom</tt> once per instance; without the key, outputs look random and tell nothing about other outputs.
+ * Unlike <tt>SecureRandom</tt> shared by the whole JVM, nothing but the counter is shared between threads, each of which has its own
+ * {@link Mac}.</p>
+ */
+final class UnguessableBits {
+
+    private static final String ALGORITHM = "HmacSHA256";
+
+    private final SecretKey key;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+
+    UnguessableBits() {
+        byte[] keyBytes = new byte[32];
+        new SecureRandom().nextBytes(keyBytes);
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+    }
+
+    /**
+     * @return 256 new bits.
+     */
+    @Nonnull
+    ByteBuffer next() {
+        byte[] input = ByteBuffer.allocate(Long.BYTES).putLong(counter.getAndIncrement()).array();
+        return ByteBuffer.wrap(macs.get().doFinal(input));
+    }
+
+    /**
+     * @return 64 new bits.
+     */
+    long nextLong() {
+        return next().getLong();
+    }
+
+    @Nonnull
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);     // every JVM has to support it
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+/**
+ * <p>Virtual threads (Java 21 and later), looked up reflectively as the plugin is built for Java 8. A virtual thread blocked on I/O (e.g. a
+ * backend call) gives up its carrier thread, so blocking code can have as many calls in flight as there are requests, each holding a stack of
+ * a few KB on the heap instead of a platform thread with its own native stack.</p>
+ *
+ * <p>Virtual threads still hold on to their carrier while blocked inside <tt>synchronized</tt> blocks (until Java 24), which OkHttp and Undertow
+ * enter only briefly around their connection bookkeeping.</p>
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @param namePrefix threads are named by this prefix plus a counter, e.g. <tt>grpc-virtual-42</tt>.
+     * @return executor starting a new virtual thread for every task, or <tt>null</tt> if this JVM has no virtual threads.
+     */
+    @Nullable
+    static ExecutorService newPerTaskExecutor(@Nonnull String namePrefix) {
+        try {
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            // no such methods before Java 19, and they throw (wrapped) UnsupportedOperationException while virtual threads are preview feature
+            return null;
+        }
+    }
+
+    /**
+     * @return Java version, for messages about virtual threads not being available.
+     */
+    @Nonnull
+    static String javaVersion() {
+        return System.getProperty("java.version");
+    }
+}
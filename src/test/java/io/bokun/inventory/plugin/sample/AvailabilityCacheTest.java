@@ -0,0 +1,108 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.annotation.*;
+
+import com.google.common.util.concurrent.*;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class AvailabilityCacheTest {
+
+    private static final Configuration CONFIGURATION = TestConfigurations.backend("backend", 80);
+
+    private static final AvailabilityKey KEY = new AvailabilityKey(CONFIGURATION, "123", 20190601, 20190630);
+
+    /**
+     * Backend calls made by the cache, in order; completed by tests.
+     */
+    private final List<CompletableFuture<String>> loads = new CopyOnWriteArrayList<>();
+
+    @Test
+    public void bookingDropsCachedAvailability() {
+        AvailabilityCache<String> cache = newCache(0L);
+        CompletableFuture<String> before = cache.get(KEY);
+        loads.get(0).complete("before");
+        assertEquals("before", before.join());
+
+        cache.bookingConfirmed(CONFIGURATION, "BOOKING", "123");
+
+        CompletableFuture<String> after = cache.get(KEY);
+        assertEquals(2, loads.size());
+        loads.get(1).complete("after");
+        assertEquals("after", after.join());
+    }
+
+    @Test
+    public void refreshCompletingAfterBookingIsNotCached() throws InterruptedException {
+        AvailabilityCache<String> cache = newCache(1L);
+        CompletableFuture<String> first = cache.get(KEY);
+        loads.get(0).complete("before");
+        assertEquals("before", first.join());
+
+        Thread.sleep(1_100L);
+        assertEquals("before", cache.get(KEY).join());          // stale value is served while refreshing
+        assertEquals(2, loads.size());
+
+        cache.bookingConfirmed(CONFIGURATION, "BOOKING", "123");
+        loads.get(1).complete("refreshed before booking");
+
+        CompletableFuture<String> after = cache.get(KEY);
+        assertEquals(3, loads.size());
+        loads.get(2).complete("after");
+        assertEquals("after", after.join());
+        assertEquals("after", cache.get(KEY).join());
+    }
+
+    @Test
+    public void loadStartedAfterBookingDoesNotJoinEarlierCall() {
+        AvailabilityCache<String> cache = newCache(0L);
+        CompletableFuture<String> before = cache.get(KEY);
+        assertEquals(1, loads.size());
+
+        cache.bookingConfirmed(CONFIGURATION, "BOOKING", "123");
+
+        CompletableFuture<String> after = cache.get(KEY);
+        assertEquals(2, loads.size());
+        loads.get(0).complete("before");
+        loads.get(1).complete("after");
+        assertEquals("before", before.join());
+        assertEquals("after", after.join());
+        assertEquals("after", cache.get(KEY).join());
+    }
+
+    @Test
+    public void concurrentLoadsShareBackendCall() {
+        AvailabilityCache<String> cache = newCache(0L);
+        cache.invalidateProduct(CONFIGURATION, "other");
+
+        CompletableFuture<String> first = cache.get(KEY);
+        CompletableFuture<String> second = cache.get(new AvailabilityKey(CONFIGURATION, "123", 20190601, 20190630));
+        loads.get(0).complete("shared");
+
+        assertEquals(1, loads.size());
+        assertEquals("shared", first.join());
+        assertEquals("shared", second.join());
+    }
+
+    @Nonnull
+    private AvailabilityCache<String> newCache(long refreshSeconds) {
+        return new AvailabilityCache<>(
+                "test",
+                key -> {
+                    CompletableFuture<String> load = new CompletableFuture<>();
+                    loads.add(load);
+                    return load;
+                },
+                value -> 1,
+                60L,
+                refreshSeconds,
+                1_000L,
+                MoreExecutors.directExecutor(),
+                null
+        );
+    }
+}
@@ -0,0 +1,117 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.google.common.collect.*;
+import io.grpc.Context;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class AvailabilityFanOutTest {
+
+    private static final Context.Key<String> CALLER = Context.key("caller");
+
+    private static final Configuration CONFIGURATION = TestConfigurations.backend("backend", 80);
+
+    @Test
+    public void batchesAreCheckedInCallerContext() throws Exception {
+        AvailabilityFanOut fanOut = new AvailabilityFanOut(1, 2, 5_000L, 2);
+        List<String> callers = new CopyOnWriteArrayList<>();
+
+        Context.ROOT.withValue(CALLER, "grpc call").call(() -> fanOut.execute(
+                CONFIGURATION,
+                ImmutableList.of("1", "2", "3"),
+                batch -> {
+                    callers.add(CALLER.get());
+                    return CompletableFuture.completedFuture(batch);
+                },
+                productId -> productId,
+                productId -> productId,
+                productId -> { }
+        )).get(5L, TimeUnit.SECONDS);
+
+        assertEquals(ImmutableList.of("grpc call", "grpc call", "grpc call"), callers);
+    }
+
+    @Test
+    public void batchesAreNotStartedOnceCallIsCancelled() throws Exception {
+        AvailabilityFanOut fanOut = new AvailabilityFanOut(1, 1, 5_000L, 1);
+        Context.CancellableContext grpcCall = Context.ROOT.withCancellation();
+        CompletableFuture<List<String>> firstBatch = new CompletableFuture<>();
+        List<List<String>> checked = new CopyOnWriteArrayList<>();
+        List<String> results = new CopyOnWriteArrayList<>();
+        CountDownLatch firstBatchStarted = new CountDownLatch(1);
+
+        CompletableFuture<Void> done = grpcCall.call(() -> fanOut.execute(
+                CONFIGURATION,
+                ImmutableList.of("1", "2"),
+                batch -> {
+                    checked.add(batch);
+                    firstBatchStarted.countDown();
+                    return firstBatch;
+                },
+                productId -> "not checked " + productId,
+                result -> result.substring(result.lastIndexOf(' ') + 1),
+                results::add
+        ));
+        assertTrue(firstBatchStarted.await(5L, TimeUnit.SECONDS));
+        grpcCall.cancel(null);
+        firstBatch.complete(ImmutableList.of("1"));
+        done.get(5L, TimeUnit.SECONDS);
+
+        assertEquals(ImmutableList.of(ImmutableList.of("1")), checked);
+        assertEquals(ImmutableList.of("1", "not checked 2"), results);
+    }
+
+    @Test
+    public void callerDeadlineCutsFanOutShort() throws Exception {
+        AvailabilityFanOut fanOut = new AvailabilityFanOut(1, 1, 60_000L, 1);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        List<String> results = new CopyOnWriteArrayList<>();
+        try {
+            Context.CancellableContext grpcCall = Context.ROOT.withDeadlineAfter(100L, TimeUnit.MILLISECONDS, scheduler);
+
+            grpcCall.call(() -> fanOut.execute(
+                    CONFIGURATION,
+                    ImmutableList.of("1"),
+                    batch -> new CompletableFuture<List<String>>(),
+                    productId -> "not checked " + productId,
+                    result -> result.substring(result.lastIndexOf(' ') + 1),
+                    results::add
+            )).get(5L, TimeUnit.SECONDS);
+
+            assertEquals(ImmutableList.of("not checked 1"), results);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failingToPassResultOnFailsFanOut() throws Exception {
+        AvailabilityFanOut fanOut = new AvailabilityFanOut(1, 2, 5_000L, 2);
+        IllegalStateException clientGone = new IllegalStateException("call already cancelled");
+        List<String> passed = new CopyOnWriteArrayList<>();
+
+        CompletableFuture<Void> done = fanOut.execute(
+                CONFIGURATION,
+                ImmutableList.of("1", "2", "3"),
+                batch -> CompletableFuture.completedFuture(batch),
+                productId -> productId,
+                productId -> productId,
+                productId -> {
+                    passed.add(productId);
+                    throw clientGone;
+                }
+        );
+
+        try {
+            done.get(5L, TimeUnit.SECONDS);
+            fail("Fan-out must fail once results can not be passed on");
+        } catch (ExecutionException e) {
+            assertSame(clientGone, e.getCause());
+        }
+        assertEquals(1, passed.size());
+    }
+}
@@ -0,0 +1,82 @@
+package io.bokun.inventory.plugin.sample;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class AvailabilitySlotsTest {
+
+    private static final int DATE = AvailabilityKey.encodeDate(2019, 6, 1);
+
+    @Test
+    public void amountsComeBackAsSent() {
+        String[] amounts = {"100", "10", "12.5", "12.50", "0.001", "-3", "0", "1E+2", "0100", "+5", "123456789012345678901234567890.12"};
+        AvailabilitySlots.Builder builder = AvailabilitySlots.builder()
+                .slot(DATE, AvailabilitySlots.NO_TIME, 1)
+                .rate("standard");
+        for (String amount : amounts) {
+            builder.price("ADT", amount, "EUR");
+        }
+
+        AvailabilitySlots slots = builder.build();
+
+        for (int price = 0; price < amounts.length; price++) {
+            assertEquals(amounts[price], slots.amount(price));
+            assertEquals("EUR", slots.currency(price));
+        }
+    }
+
+    @Test
+    public void ratesKeepTheirPricingType() {
+        AvailabilitySlots slots = AvailabilitySlots.builder()
+                .slot(DATE, AvailabilitySlots.encodeTime(13, 30), 10)
+                .rate("perPerson")
+                .price("ADT", "100", "EUR")
+                .price("CHD", "10", "EUR")
+                .rate("perBooking")
+                .pricePerBooking("250", "USD")
+                .slot(DATE, AvailabilitySlots.NO_TIME, 5)
+                .rate("perBooking")
+                .pricePerBooking("99.90", "EUR")
+                .build();
+
+        assertEquals(2, slots.size());
+        assertEquals(810, slots.time(0));
+        assertEquals(0, slots.rateStart(0));
+        assertEquals(2, slots.rateStart(1));
+        assertEquals(3, slots.rateStart(2));
+
+        assertEquals("perPerson", slots.rateId(0));
+        assertFalse(slots.isPricedPerBooking(0));
+        assertEquals(2, slots.priceStart(1) - slots.priceStart(0));
+        assertEquals("CHD", slots.pricingCategoryId(1));
+        assertEquals("10", slots.amount(1));
+
+        assertEquals("perBooking", slots.rateId(1));
+        assertTrue(slots.isPricedPerBooking(1));
+        assertEquals(1, slots.priceStart(2) - slots.priceStart(1));
+        assertEquals("250", slots.amount(slots.priceStart(1)));
+        assertEquals("USD", slots.currency(slots.priceStart(1)));
+
+        assertTrue(slots.isPricedPerBooking(2));
+        assertEquals("99.90", slots.amount(slots.priceStart(2)));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rateIsPricedOneWay() {
+        AvailabilitySlots.builder()
+                .slot(DATE, AvailabilitySlots.NO_TIME, 1)
+                .rate("standard")
+                .price("ADT", "100", "EUR")
+                .pricePerBooking("100", "EUR");
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rateHasOnePricePerBooking() {
+        AvailabilitySlots.builder()
+                .slot(DATE, AvailabilitySlots.NO_TIME, 1)
+                .rate("standard")
+                .pricePerBooking("100", "EUR")
+                .price("ADT", "100", "EUR");
+    }
+}
@@ -0,0 +1,185 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+
+import javax.annotation.*;
+
+import com.squareup.okhttp.*;
+import io.grpc.Status;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class BackendGuardTest {
+
+    private static final Request REQUEST = new Request.Builder().url("http://backend/api").build();
+
+    @Test
+    public void limitIsHalvedOncePerLatencyTargetPeriod() throws IOException {
+        BackendGuard guard = new BackendGuard("backend", 8, 60_000L, 100, 60L);
+
+        call(guard, failing());
+        call(guard, failing());
+
+        assertEquals(4, guard.getLimit());
+    }
+
+    @Test
+    public void limitGrowsBackUpToMax() throws IOException {
+        BackendGuard guard = new BackendGuard("backend", 8, 60_000L, 100, 60L);
+        call(guard, failing());
+
+        for (int i = 0; i < 1_000; i++) {
+            call(guard, responding(200));
+        }
+
+        assertEquals(8, guard.getLimit());
+    }
+
+    @Test
+    public void callsOverLimitAreRejected() throws IOException {
+        BackendGuard guard = new BackendGuard("backend", 1, 60_000L, 100, 60L);
+
+        // second call is made while the first one is still in flight
+        Response response = guard.intercept(chain(request -> {
+            BackendCallException rejected = call(guard, responding(200));
+            assertEquals(Status.Code.UNAVAILABLE, rejected.getStatus().getCode());
+            return response(request, 200);
+        }));
+
+        assertEquals(200, response.code());
+    }
+
+    @Test
+    public void circuitOpensAfterConsecutiveFailures() throws IOException {
+        BackendGuard guard = new BackendGuard("backend", 8, 60_000L, 3, 60L);
+        call(guard, failing());
+        call(guard, responding(503));
+        assertFalse(guard.isCircuitOpen());
+
+        call(guard, failing());
+        assertTrue(guard.isCircuitOpen());
+
+        BackendCallException rejected = call(guard, chain(request -> {
+            fail("Backend must not be called while circuit is open");
+            return null;
+        }));
+        assertEquals(Status.Code.UNAVAILABLE, rejected.getStatus().getCode());
+    }
+
+    @Test
+    public void successfulTrialClosesCircuit() throws IOException {
+        BackendGuard guard = new BackendGuard("backend", 8, 60_000L, 1, 0L);
+        call(guard, failing());
+        assertTrue(guard.isCircuitOpen());
+
+        assertNull(call(guard, responding(200)));
+        assertFalse(guard.isCircuitOpen());
+    }
+
+    @Test
+    public void failedTrialOpensCircuitAgain() throws IOException {
+        BackendGuard guard = new BackendGuard("backend", 8, 60_000L, 1, 0L);
+        call(guard, failing());
+
+        call(guard, responding(503));
+        assertTrue(guard.isCircuitOpen());
+
+        assertNull(call(guard, responding(200)));
+        assertFalse(guard.isCircuitOpen());
+    }
+
+    @Test
+    public void abandonedTrialLetsNextCallTry() throws IOException {
+        BackendGuard guard = new BackendGuard("backend", 8, 60_000L, 1, 0L);
+        call(guard, failing());
+
+        BackendCallException abandoned = call(guard, givingUp());
+        assertEquals(Status.Code.CANCELLED, abandoned.getStatus().getCode());
+        assertFalse(guard.isCircuitOpen());
+
+        assertNull(call(guard, responding(200)));
+        assertFalse(guard.isCircuitOpen());
+    }
+
+    @Test
+    public void callsGivenUpOnLeaveLimitAndCircuitAsTheyAre() throws IOException {
+        BackendGuard guard = new BackendGuard("backend", 8, 60_000L, 1, 60L);
+
+        call(guard, givingUp());
+        call(guard, givingUp());
+
+        assertEquals(8, guard.getLimit());
+        assertFalse(guard.isCircuitOpen());
+    }
+
+    /**
+     * @return exception the call failed with, or <tt>null</tt> if it succeeded.
+     */
+    @Nullable
+    private static BackendCallException call(@Nonnull BackendGuard guard, @Nonnull Interceptor.Chain chain) throws IOException {
+        try {
+            Response response = guard.intercept(chain);
+            return (response.code() >= 500) ? new BackendCallException(Status.UNAVAILABLE) : null;
+        } catch (BackendCallException e) {
+            return e;
+        }
+    }
+
+    @Nonnull
+    private static Interceptor.Chain responding(int code) {
+        return chain(request -> response(request, code));
+    }
+
+    @Nonnull
+    private static Interceptor.Chain failing() {
+        return chain(request -> {
+            throw new IOException("Connection refused");
+        });
+    }
+
+    /**
+     * Same as {@link BackendClients} fail calls once the caller is cancelled.
+     */
+    @Nonnull
+    private static Interceptor.Chain givingUp() {
+        return chain(request -> {
+            throw new BackendCallException(Status.CANCELLED);
+        });
+    }
+
+    @Nonnull
+    private static Response response(@Nonnull Request request, int code) {
+        return new Response.Builder()
+                .request(request)
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("Status " + code)
+                .build();
+    }
+
+    @Nonnull
+    private static Interceptor.Chain chain(@Nonnull Backend backend) {
+        return new Interceptor.Chain() {
+            @Override
+            public Request request() {
+                return REQUEST;
+            }
+
+            @Override
+            public Response proceed(Request request) throws IOException {
+                return backend.call(request);
+            }
+
+            @Override
+            public Connection connection() {
+                return null;
+            }
+        };
+    }
+
+    private interface Backend {
+
+        Response call(@Nonnull Request request) throws IOException;
+    }
+}
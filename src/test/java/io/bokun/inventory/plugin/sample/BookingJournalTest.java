@@ -0,0 +1,230 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+
+import javax.annotation.*;
+
+import com.google.common.hash.*;
+import org.junit.*;
+import org.junit.rules.*;
+
+import static org.junit.Assert.*;
+
+public class BookingJournalTest {
+
+    /**
+     * Magic number and claimed end.
+     */
+    private static final int FILE_HEADER_SIZE = 8;
+
+    /**
+     * Record size, time written, key, response size and checksum.
+     */
+    private static final int RECORD_OVERHEAD = 4 + 8 + 32 + 4 + 4;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void responsesAreFoundAfterReopening() throws IOException {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            journal.append(key(1), bytes("first"), 0L);
+            journal.append(key(2), bytes("second"), 0L);
+        }
+
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            assertEquals(2, journal.size());
+            assertArrayEquals(bytes("first"), journal.get(key(1)));
+            assertArrayEquals(bytes("second"), journal.get(key(2)));
+            assertNull(journal.get(key(3)));
+        }
+    }
+
+    @Test
+    public void lastWriteWinsForRepeatedKey() throws IOException {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            journal.append(key(1), bytes("first"), 0L);
+            journal.append(key(1), bytes("second"), 0L);
+            assertArrayEquals(bytes("second"), journal.get(key(1)));
+        }
+
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            assertEquals(1, journal.size());
+            assertArrayEquals(bytes("second"), journal.get(key(1)));
+        }
+    }
+
+    @Test
+    public void tornRecordIsSkippedOnReplay() throws IOException {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            journal.append(key(1), bytes("first"), 0L);
+            journal.append(key(2), bytes("second"), 0L);
+            journal.append(key(3), bytes("third"), 0L);
+        }
+        int second = FILE_HEADER_SIZE + RECORD_OVERHEAD + "first".length();
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(second + RECORD_OVERHEAD - 4);                 // first byte of the response
+            raw.write('S');
+        }
+
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            assertEquals(2, journal.size());
+            assertArrayEquals(bytes("first"), journal.get(key(1)));
+            assertNull(journal.get(key(2)));
+            assertArrayEquals(bytes("third"), journal.get(key(3)));
+        }
+    }
+
+    @Test
+    public void claimedButUnwrittenRecordIsSkippedOnReplay() throws IOException {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            journal.append(key(1), bytes("first"), 0L);
+            journal.append(key(2), bytes("second"), 0L);
+            journal.append(key(3), bytes("third"), 0L);
+        }
+        // crash right after the second record was claimed: only its size made it to the file
+        int second = FILE_HEADER_SIZE + RECORD_OVERHEAD + "first".length();
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(second + 4);
+            raw.write(new byte[RECORD_OVERHEAD + "second".length() - 4]);
+        }
+
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            assertEquals(2, journal.size());
+            assertNull(journal.get(key(2)));
+            assertArrayEquals(bytes("third"), journal.get(key(3)));
+            journal.append(key(4), bytes("fourth"), 0L);
+        }
+
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            assertEquals(3, journal.size());
+            assertArrayEquals(bytes("fourth"), journal.get(key(4)));
+        }
+    }
+
+    @Test
+    public void claimedEndIsKeptInFileHeader() throws IOException {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            journal.append(key(1), bytes("first"), 0L);
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(4);
+            assertEquals(FILE_HEADER_SIZE + RECORD_OVERHEAD + "first".length(), raw.readInt());
+        }
+    }
+
+    @Test
+    public void filesWrittenWithoutClaimedEndAreReplayed() throws IOException {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            journal.append(key(1), bytes("first"), 0L);
+            journal.append(key(2), bytes("second"), 0L);
+        }
+        try (RandomAccessFile raw = new RandomAccessFile(file.toFile(), "rw")) {
+            raw.seek(4);
+            raw.writeInt(0);
+        }
+
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            assertEquals(2, journal.size());
+            journal.append(key(3), bytes("third"), 0L);
+        }
+
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            assertEquals(3, journal.size());
+            assertArrayEquals(bytes("first"), journal.get(key(1)));
+            assertArrayEquals(bytes("third"), journal.get(key(3)));
+        }
+    }
+
+    @Test
+    public void compactionDropsExpiredRecords() throws Exception {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            journal.append(key(1), bytes("expired"), 0L);
+            Thread.sleep(5L);
+            long minTimestampMillis = System.currentTimeMillis();
+            journal.append(key(2), bytes("live"), 0L);
+
+            journal.compact(minTimestampMillis, 0);
+
+            assertEquals(1, journal.size());
+            assertNull(journal.get(key(1)));
+            assertArrayEquals(bytes("live"), journal.get(key(2)));
+            journal.append(key(3), bytes("after"), 0L);
+        }
+
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            assertEquals(2, journal.size());
+            assertNull(journal.get(key(1)));
+            assertArrayEquals(bytes("live"), journal.get(key(2)));
+            assertArrayEquals(bytes("after"), journal.get(key(3)));
+        }
+    }
+
+    @Test
+    public void compactionIsSkippedWhenNothingHasExpired() throws IOException {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            journal.append(key(1), bytes("first"), 0L);
+            Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+
+            journal.compact(0L, 0);
+
+            // compaction would have replaced the file
+            assertEquals(fileKey, Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+            assertArrayEquals(bytes("first"), journal.get(key(1)));
+        }
+    }
+
+    @Test
+    public void fullJournalGrows() throws IOException {
+        Path file = file();
+        byte[] response = new byte[100];
+        try (BookingJournal journal = BookingJournal.open(file, 256)) {
+            for (int i = 0; i < 10; i++) {
+                journal.append(key(i), response, 0L);
+            }
+            assertEquals(10, journal.size());
+        }
+        assertTrue(Files.size(file) > 256L);
+
+        try (BookingJournal journal = BookingJournal.open(file, 256)) {
+            assertEquals(10, journal.size());
+            for (int i = 0; i < 10; i++) {
+                assertArrayEquals(response, journal.get(key(i)));
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void fileIsUsedByOneJournalAtATime() throws IOException {
+        Path file = file();
+        try (BookingJournal journal = BookingJournal.open(file, 4_096)) {
+            BookingJournal.open(file, 4_096);
+        }
+    }
+
+    @Nonnull
+    private Path file() {
+        return folder.getRoot().toPath().resolve("booking-journal.dat");
+    }
+
+    @Nonnull
+    private static HashCode key(int i) {
+        return Hashing.sha256().hashInt(i);
+    }
+
+    @Nonnull
+    private static byte[] bytes(@Nonnull String response) {
+        return response.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,106 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.annotation.*;
+
+import com.google.common.hash.*;
+import org.junit.*;
+import org.junit.rules.*;
+
+import static org.junit.Assert.*;
+
+public class IdempotentBookingsTest {
+
+    private static final HashCode KEY = Hashing.sha256().hashString("booking", StandardCharsets.UTF_8);
+
+    private static final IdempotentBookings.ResponseFormat<String> FORMAT = new IdempotentBookings.ResponseFormat<String>() {
+        @Nonnull
+        @Override
+        public byte[] toBytes(@Nonnull String response) {
+            return response.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Nonnull
+        @Override
+        public String fromBytes(@Nonnull byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void storedResponseIsReplayedWithoutCallingBackend() {
+        IdempotentBookings original = newBookings();
+        assertEquals("confirmed", original.confirm(KEY, FORMAT, () -> CompletableFuture.completedFuture("confirmed")).join());
+        original.close();
+
+        IdempotentBookings afterRestart = newBookings();
+        try {
+            String replayed = afterRestart.confirm(KEY, FORMAT, () -> {
+                throw new AssertionError("Backend must not be called for a stored booking");
+            }).join();
+
+            assertEquals("confirmed", replayed);
+            assertEquals(1L, afterRestart.getReplayCount());
+        } finally {
+            afterRestart.close();
+        }
+    }
+
+    @Test
+    public void retryWaitsForOriginalInProgress() {
+        IdempotentBookings bookings = newBookings();
+        try {
+            CompletableFuture<String> backend = new CompletableFuture<>();
+            AtomicInteger backendCalls = new AtomicInteger();
+            CompletableFuture<String> original = bookings.confirm(KEY, FORMAT, () -> {
+                backendCalls.incrementAndGet();
+                return backend;
+            });
+            CompletableFuture<String> retry = bookings.confirm(KEY, FORMAT, () -> {
+                backendCalls.incrementAndGet();
+                return CompletableFuture.completedFuture("booked again");
+            });
+
+            backend.complete("confirmed");
+
+            assertEquals("confirmed", original.join());
+            assertEquals("confirmed", retry.join());
+            assertEquals(1, backendCalls.get());
+        } finally {
+            bookings.close();
+        }
+    }
+
+    @Test
+    public void failedConfirmationIsNotStored() {
+        IdempotentBookings bookings = newBookings();
+        try {
+            CompletableFuture<String> failed = new CompletableFuture<>();
+            failed.completeExceptionally(new IllegalStateException("backend is down"));
+            assertTrue(bookings.confirm(KEY, FORMAT, () -> failed).isCompletedExceptionally());
+
+            assertEquals("confirmed", bookings.confirm(KEY, FORMAT, () -> CompletableFuture.completedFuture("confirmed")).join());
+            assertEquals(1, bookings.getStoredCount());
+            assertEquals(0L, bookings.getReplayCount());
+        } finally {
+            bookings.close();
+        }
+    }
+
+    @Nonnull
+    private IdempotentBookings newBookings() {
+        return new IdempotentBookings(
+                folder.getRoot().toPath().resolve("booking-journal.dat").toString(),
+                4_096,
+                3_600L,
+                3_600L,
+                new PluginMetrics()
+        );
+    }
+}
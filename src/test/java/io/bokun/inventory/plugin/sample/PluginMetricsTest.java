@@ -0,0 +1,33 @@
+package io.bokun.inventory.plugin.sample;
+
+import org.junit.*;
+
+import static java.util.concurrent.TimeUnit.*;
+import static org.junit.Assert.*;
+
+public class PluginMetricsTest {
+
+    private static final String MEDIAN = "plugin_request_duration_seconds{transport=\"grpc\",endpoint=\"GetProduct\",quantile=\"0.5\"} ";
+
+    private static final String COUNT = "plugin_request_duration_seconds_count{transport=\"grpc\",endpoint=\"GetProduct\"} ";
+
+    @Test
+    public void quantilesAreOfCallsSinceLastScrape() {
+        PluginMetrics metrics = new PluginMetrics();
+        PluginMetrics.LatencyMetric metric = metrics.pluginCall("grpc", "GetProduct");
+
+        metric.record(SECONDS.toNanos(2L), false);
+        String first = metrics.scrape();
+        assertTrue(first, first.contains(MEDIAN + "2.0"));
+        assertTrue(first, first.contains(COUNT + "1\n"));
+
+        String idle = metrics.scrape();
+        assertTrue(idle, idle.contains(MEDIAN + "NaN"));
+        assertTrue(idle, idle.contains(COUNT + "1\n"));
+
+        metric.record(MILLISECONDS.toNanos(10L), false);
+        String recovered = metrics.scrape();
+        assertTrue(recovered, recovered.contains(MEDIAN + "0.01"));
+        assertTrue(recovered, recovered.contains(COUNT + "2\n"));
+    }
+}
@@ -0,0 +1,184 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import io.grpc.Context;
+import io.grpc.Status;
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+public class RequestCoalescerTest {
+
+    @Test
+    public void concurrentCallersShareOneCall() throws Exception {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+        CompletableFuture<String> backend = new CompletableFuture<>();
+        AtomicInteger backendCalls = new AtomicInteger();
+        int callers = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<CompletableFuture<String>>> calls = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                calls.add(executor.submit(() -> {
+                    start.await();
+                    return coalescer.execute("key", key -> {
+                        backendCalls.incrementAndGet();
+                        return backend;
+                    });
+                }));
+            }
+            start.countDown();
+            List<CompletableFuture<String>> results = new ArrayList<>();
+            for (Future<CompletableFuture<String>> call : calls) {
+                results.add(call.get(5L, TimeUnit.SECONDS));
+            }
+            assertEquals(1, coalescer.getInFlightCount());
+
+            // each caller has a future of its own, so giving up on it leaves the others be
+            assertTrue(results.get(0).cancel(false));
+            backend.complete("shared");
+
+            assertEquals(1, backendCalls.get());
+            assertEquals(callers, coalescer.getCallCount());
+            assertEquals(callers - 1, coalescer.getCoalescedCallCount());
+            assertEquals(0, coalescer.getInFlightCount());
+            for (CompletableFuture<String> result : results.subList(1, callers)) {
+                assertNotSame(backend, result);
+                assertEquals("shared", result.join());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void completedCallIsNotShared() {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+        assertEquals("first", coalescer.execute("key", key -> CompletableFuture.completedFuture("first")).join());
+
+        assertEquals("second", coalescer.execute("key", key -> CompletableFuture.completedFuture("second")).join());
+        assertEquals(0L, coalescer.getCoalescedCallCount());
+    }
+
+    @Test
+    public void callStartedOutsideGrpcCallRunsInRootContext() {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+        AtomicReference<Context> callContext = new AtomicReference<>();
+
+        coalescer.execute("key", key -> {
+            callContext.set(Context.current());
+            return new CompletableFuture<>();
+        });
+
+        // so that backend clients are used as they are, see BackendClients#get
+        assertSame(Context.ROOT, callContext.get());
+    }
+
+    @Test
+    public void callIsCancelledOnceAllCallersHaveGone() throws Exception {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+        AtomicReference<Context> callContext = new AtomicReference<>();
+        Context.CancellableContext first = Context.ROOT.withCancellation();
+        Context.CancellableContext second = Context.ROOT.withCancellation();
+
+        CompletableFuture<String> firstResult = first.wrap(() -> coalescer.execute("key", key -> {
+            callContext.set(Context.current());
+            return new CompletableFuture<>();
+        })).call();
+        CompletableFuture<String> secondResult = second.wrap(() -> coalescer.execute("key", key -> {
+            throw new AssertionError("Second caller must join the call in flight");
+        })).call();
+
+        first.cancel(null);
+        assertFalse(callContext.get().isCancelled());
+
+        second.cancel(null);
+        assertTrue(callContext.get().isCancelled());
+        assertFalse(firstResult.isDone());
+        assertFalse(secondResult.isDone());
+    }
+
+    @Test
+    public void callCarriesOnWhileCallerNotServingGrpcCallWaits() throws Exception {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+        AtomicReference<Context> callContext = new AtomicReference<>();
+        Context.CancellableContext grpcCall = Context.ROOT.withCancellation();
+
+        grpcCall.wrap(() -> coalescer.execute("key", key -> {
+            callContext.set(Context.current());
+            return new CompletableFuture<>();
+        })).call();
+        coalescer.execute("key", key -> new CompletableFuture<>());
+
+        grpcCall.cancel(null);
+        assertFalse(callContext.get().isCancelled());
+    }
+
+    @Test
+    public void abandonedCallIsNotJoined() throws Exception {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+        Context.CancellableContext grpcCall = Context.ROOT.withCancellation();
+        grpcCall.wrap(() -> coalescer.execute("key", key -> new CompletableFuture<>())).call();
+        grpcCall.cancel(null);
+
+        CompletableFuture<String> result = coalescer.execute("key", key -> CompletableFuture.completedFuture("new call"));
+
+        assertEquals("new call", result.join());
+        assertEquals(0L, coalescer.getCoalescedCallCount());
+    }
+
+    @Test
+    public void callsWhichMustCarryOnAreNotCancelled() throws Exception {
+        RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test", false);
+        AtomicReference<Context> callContext = new AtomicReference<>();
+        Context.CancellableContext grpcCall = Context.ROOT.withCancellation();
+
+        grpcCall.wrap(() -> coalescer.execute("key", key -> {
+            callContext.set(Context.current());
+            return new CompletableFuture<>();
+        })).call();
+        grpcCall.cancel(null);
+
+        assertFalse(callContext.get().isCancelled());
+    }
+
+    @Test(timeout = 10_000L)
+    public void cancelledGrpcCallAbortsBackendRequest() throws Exception {
+        try (ServerSocket backend = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            BackendClients backendClients = new BackendClients(4, 5L, 30L, 60L, true, 1_000L, 5, 10L, "");
+            Configuration configuration = TestConfigurations.backend("127.0.0.1", backend.getLocalPort());
+            RequestCoalescer<String, String> coalescer = new RequestCoalescer<>("test");
+            Context.CancellableContext grpcCall = Context.ROOT.withCancellation();
+
+            CompletableFuture<String> result = grpcCall.wrap(() -> coalescer.execute("key", key -> {
+                AsyncBackendClient client = backendClients.async(configuration);
+                return client.get(client.newUrlBuilder().addPathSegment("availability").build(), body -> body.string());
+            })).call();
+
+            try (Socket connection = backend.accept()) {
+                BufferedReader request = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.US_ASCII));
+                assertEquals("GET /api/availability HTTP/1.1", request.readLine());
+
+                grpcCall.cancel(null);
+
+                try {
+                    result.get();
+                    fail("Backend call must be aborted");
+                } catch (ExecutionException e) {
+                    assertEquals(Status.Code.CANCELLED, ((BackendCallException) e.getCause()).getStatus().getCode());
+                }
+                // backend sees the connection closed, well before its 30s read timeout
+                while (request.readLine() != null) {
+                    // rest of the request
+                }
+            }
+        }
+    }
+}
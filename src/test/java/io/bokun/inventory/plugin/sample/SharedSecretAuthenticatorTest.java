@@ -0,0 +1,250 @@
+package io.bokun.inventory.plugin.sample;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import javax.annotation.*;
+
+import com.google.common.collect.*;
+import com.google.common.io.ByteStreams;
+import com.squareup.okhttp.*;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.Status;
+import io.undertow.*;
+import io.undertow.server.*;
+import org.junit.*;
+import org.junit.rules.*;
+
+import static org.junit.Assert.*;
+
+public class SharedSecretAuthenticatorTest {
+
+    private static final Metadata.Key<String> SHARED_SECRET = Metadata.Key.of("sharedSecret", Metadata.ASCII_STRING_MARSHALLER);
+
+    private static final MethodDescriptor<String, String> METHOD = MethodDescriptor.<String, String>newBuilder()
+            .setType(MethodDescriptor.MethodType.UNARY)
+            .setFullMethodName("test.Plugin/Call")
+            .setRequestMarshaller(new StringMarshaller())
+            .setResponseMarshaller(new StringMarshaller())
+            .build();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void grpcCallWithoutMatchingSecretIsRejected() {
+        SharedSecretAuthenticator authenticator = new SharedSecretAuthenticator(ImmutableList.of("secret"));
+
+        assertEquals(Status.Code.UNAUTHENTICATED, grpcCall(authenticator, null));
+        assertEquals(Status.Code.UNAUTHENTICATED, grpcCall(authenticator, "secreT"));
+        assertEquals(Status.Code.UNAUTHENTICATED, grpcCall(authenticator, "secret2"));
+        assertEquals(Status.Code.OK, grpcCall(authenticator, "secret"));
+    }
+
+    @Test
+    public void restRequestWithoutMatchingSecretIsRejected() throws IOException {
+        SharedSecretAuthenticator authenticator = new SharedSecretAuthenticator(ImmutableList.of("secret"));
+        HttpHandler handler = authenticator.wrap(exchange -> exchange.getResponseSender().send("ok"));
+
+        assertEquals(401, restRequest(handler, null));
+        assertEquals(401, restRequest(handler, "other"));
+        assertEquals(200, restRequest(handler, "secret"));
+    }
+
+    @Test
+    public void severalSecretsAreAcceptedAtOnce() throws IOException {
+        Path secretFile = secretFile("new\n\n# comment\nnewer\n");
+        SharedSecretAuthenticator authenticator = SharedSecretAuthenticator.fromEnvironment(environment("old", secretFile, false));
+
+        assertEquals(Status.Code.OK, grpcCall(authenticator, "old"));
+        assertEquals(Status.Code.OK, grpcCall(authenticator, "new"));
+        assertEquals(Status.Code.OK, grpcCall(authenticator, "newer"));
+        assertEquals(Status.Code.UNAUTHENTICATED, grpcCall(authenticator, "# comment"));
+    }
+
+    @Test
+    public void changedSecretFileIsReloaded() throws IOException {
+        Path secretFile = secretFile("old\n");
+        SharedSecretAuthenticator authenticator = SharedSecretAuthenticator.fromEnvironment(environment(null, secretFile, false));
+
+        rewrite(secretFile, "new\n");
+        authenticator.reloadChangedSecretFile();
+
+        assertEquals(Status.Code.OK, grpcCall(authenticator, "new"));
+        assertEquals(Status.Code.UNAUTHENTICATED, grpcCall(authenticator, "old"));
+    }
+
+    @Test
+    public void badSecretFileKeepsPreviousSecrets() throws IOException {
+        Path secretFile = secretFile("old\n");
+        SharedSecretAuthenticator authenticator = SharedSecretAuthenticator.fromEnvironment(environment(null, secretFile, false));
+
+        rewrite(secretFile, "# none left\n");
+        authenticator.reloadChangedSecretFile();
+        assertEquals(Status.Code.OK, grpcCall(authenticator, "old"));
+
+        rewrite(secretFile, "caf\u00e9\n");
+        authenticator.reloadChangedSecretFile();
+        assertEquals(Status.Code.OK, grpcCall(authenticator, "old"));
+
+        Files.delete(secretFile);
+        authenticator.reloadChangedSecretFile();
+        assertEquals(Status.Code.OK, grpcCall(authenticator, "old"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void secretFileMustListSecrets() throws IOException {
+        SharedSecretAuthenticator.fromEnvironment(environment(null, secretFile("# none yet\n"), false));
+    }
+
+    @Test
+    public void metricsCanBeExempt() throws IOException {
+        HttpHandler metrics = exchange -> exchange.getResponseSender().send("metrics");
+
+        SharedSecretAuthenticator exempting = SharedSecretAuthenticator.fromEnvironment(environment("secret", null, true));
+        assertEquals(200, restRequest(exempting.wrapMetrics(metrics), null));
+
+        SharedSecretAuthenticator protecting = SharedSecretAuthenticator.fromEnvironment(environment("secret", null, false));
+        assertEquals(401, restRequest(protecting.wrapMetrics(metrics), null));
+        assertEquals(200, restRequest(protecting.wrapMetrics(metrics), "secret"));
+    }
+
+    @Test
+    public void noSecretMeansNoAuthentication() {
+        assertNull(SharedSecretAuthenticator.fromEnvironment(environment(null, null, false)));
+    }
+
+    /**
+     * @return status the call was closed with by the authenticator, or <tt>OK</tt> if it was passed on.
+     */
+    @Nonnull
+    private static Status.Code grpcCall(@Nonnull SharedSecretAuthenticator authenticator, @Nullable String sharedSecret) {
+        Metadata headers = new Metadata();
+        if (sharedSecret != null) {
+            headers.put(SHARED_SECRET, sharedSecret);
+        }
+        RecordingCall call = new RecordingCall();
+        AtomicBoolean started = new AtomicBoolean();
+        authenticator.interceptCall(call, headers, (startedCall, startedHeaders) -> {
+            started.set(true);
+            return new ServerCall.Listener<String>() {};
+        });
+        if (started.get()) {
+            assertNull("Accepted call must not be closed", call.status);
+            return Status.Code.OK;
+        }
+        return call.status.getCode();
+    }
+
+    /**
+     * @return HTTP status of request to given handler.
+     */
+    private static int restRequest(@Nonnull HttpHandler handler, @Nullable String sharedSecret) throws IOException {
+        Undertow server = Undertow.builder()
+                .addHttpListener(0, "localhost")
+                .setHandler(handler)
+                .build();
+        server.start();
+        try {
+            InetSocketAddress address = (InetSocketAddress) server.getListenerInfo().get(0).getAddress();
+            Request.Builder request = new Request.Builder().url("http://localhost:" + address.getPort() + "/metrics");
+            if (sharedSecret != null) {
+                request.header("sharedSecret", sharedSecret);
+            }
+            Response response = new OkHttpClient().newCall(request.build()).execute();
+            response.body().close();
+            return response.code();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Nonnull
+    private static Map<String, String> environment(@Nullable String sharedSecret, @Nullable Path sharedSecretFile, boolean metricsExempt) {
+        Map<String, String> environment = new HashMap<>();
+        if (sharedSecret != null) {
+            environment.put("SHARED_SECRET", sharedSecret);
+        }
+        if (sharedSecretFile != null) {
+            environment.put("SHARED_SECRET_FILE", sharedSecretFile.toString());
+        }
+        environment.put("SHARED_SECRET_RELOAD_INTERVAL", "3600");
+        environment.put("SHARED_SECRET_EXEMPT_METRICS", String.valueOf(metricsExempt));
+        return environment;
+    }
+
+    @Nonnull
+    private Path secretFile(@Nonnull String contents) throws IOException {
+        Path file = folder.getRoot().toPath().resolve("shared-secrets.txt");
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    /**
+     * Changes file contents along with its modification time, which might otherwise stay the same within file system time resolution.
+     */
+    private static void rewrite(@Nonnull Path file, @Nonnull String contents) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, contents.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(file, FileTime.fromMillis(modified.toMillis() + 10_000L));
+    }
+
+    /**
+     * Remembers how the call was closed.
+     */
+    private static final class RecordingCall extends ServerCall<String, String> {
+
+        private Status status;
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void sendMessage(String message) {
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            this.status = status;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public MethodDescriptor<String, String> getMethodDescriptor() {
+            return METHOD;
+        }
+    }
+
+    private static final class StringMarshaller implements MethodDescriptor.Marshaller<String> {
+
+        @Override
+        public InputStream stream(String value) {
+            return new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        @Override
+        public String parse(InputStream stream) {
+            try {
+                return new String(ByteStreams.toByteArray(stream), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package io.bokun.inventory.plugin.sample;
+
+import javax.annotation.*;
+
+import com.google.common.collect.*;
+import io.bokun.inventory.common.api.grpc.*;
+
+/**
+ * Configurations of made up backends, as sent by the platform.
+ */
+final class TestConfigurations {
+
+    private TestConfigurations() {
+    }
+
+    @Nonnull
+    static Configuration backend(@Nonnull String host, int port) {
+        return Configuration.fromGrpcParameters(
+                ImmutableList.of(
+                        parameter(Configuration.SAMPLE_API_SCHEME, "http"),
+                        parameter(Configuration.SAMPLE_API_HOST, host),
+                        parameter(Configuration.SAMPLE_API_PORT, String.valueOf(port)),
+                        parameter(Configuration.SAMPLE_API_PATH, "/api"),
+                        parameter(Configuration.SAMPLE_API_USERNAME, "user"),
+                        parameter(Configuration.SAMPLE_API_PASSWORD, "password")
+                )
+        );
+    }
+
+    @Nonnull
+    private static PluginConfigurationParameterValue parameter(@Nonnull String name, @Nonnull String value) {
+        return PluginConfigurationParameterValue.newBuilder()
+                .setName(name)
+                .setValue(value)
+                .build();
+    }
+}